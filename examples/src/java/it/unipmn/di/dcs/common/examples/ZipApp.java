@@ -24,6 +24,10 @@
 
 package it.unipmn.di.dcs.common.examples;
 
+import it.unipmn.di.dcs.common.io.IZipEntryFilter;
+import it.unipmn.di.dcs.common.io.ZipArchiveOptions;
+import it.unipmn.di.dcs.common.io.ZipCodecs;
+import it.unipmn.di.dcs.common.io.ZipEntryFilters;
 import it.unipmn.di.dcs.common.io.ZipUtil;
 
 import java.util.ArrayList;
@@ -46,9 +50,12 @@ public class ZipApp
 
 		boolean help = false;
 		boolean decompress = false;
+		boolean dedup = false;
+		boolean fast = false;
 		String errmsg = null;
 		String zipName = null;
 		int level = 6;
+		int parallelism = ZipUtil.DEFAULT_PARALLELISM;
 		List<String> files = new ArrayList<String>();
 
 		for (int i = 0; i < args.length && errmsg == null; i++)
@@ -61,6 +68,14 @@ public class ZipApp
 			{
 				decompress = true;
 			}
+			else if (args[i].equals("-D"))
+			{
+				dedup = true;
+			}
+			else if (args[i].equals("-f"))
+			{
+				fast = true;
+			}
 			else if (args[i].equals("-h"))
 			{
 				help = true;
@@ -84,6 +99,25 @@ public class ZipApp
 					errmsg = "Missing compression level number";
 				}
 			}
+			else if (args[i].equals("-p"))
+			{
+				i++;
+				if (i < args.length)
+				{
+					try
+					{
+						parallelism = Integer.parseInt(args[i]);
+					}
+					catch (NumberFormatException nfe)
+					{
+						errmsg = "Bad number of threads";
+					}
+				}
+				else
+				{
+					errmsg = "Missing number of threads";
+				}
+			}
 			else if (args[i].startsWith("-"))
 			{
 					errmsg = "Unrecognzied option '" + args[i] + "'";
@@ -120,12 +154,32 @@ public class ZipApp
 
 		if (decompress)
 		{
+			try
+			{
+				IZipEntryFilter filter = null;
+				if (!files.isEmpty())
+				{
+					filter = ZipEntryFilters.Glob(files.toArray(new String[0]));
+				}
+				ZipUtil.ExtractArchive(zipName, ".", filter, parallelism);
+			}
+			catch (Exception e)
+			{
+				e.printStackTrace();
+				System.exit(1);
+			}
 		}
 		else
 		{
 			try
 			{
-				ZipUtil.CreateArchive(zipName, files.toArray(new String[0]), level, null);
+				ZipArchiveOptions options = new ZipArchiveOptions(level, parallelism);
+				options.setDeduplicate(dedup);
+				if (fast)
+				{
+					options.setCodec(ZipCodecs.Lz());
+				}
+				ZipUtil.CreateArchive(zipName, files.toArray(new String[0]), null, options);
 			}
 			catch (Exception e)
 			{
@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2008-2012  Marco Guazzone
+ *                          [Distributed Computing System (DCS) Group,
+ *                           Computer Science Institute,
+ *                           Department of Science and Technological Innovation,
+ *                           University of Piemonte Orientale,
+ *                           Alessandria (Italy)]
+ *
+ * This file is part of dcj-commons.
+ *
+ * dcsj-commons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dcsj-commons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dcsj-commons.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.unipmn.di.dcs.common.io;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+
+/**
+ * A compression policy which stores the entries that would not shrink
+ * and deflates the other ones.
+ *
+ * An entry is stored (i.e., not compressed) if:
+ * <ol>
+ * <li>it is empty, or</li>
+ * <li>its name has the extension of an already-compressed format (e.g.,
+ * {@code .gz}, {@code .jpg}, {@code .zip}, {@code .jar}), or</li>
+ * <li>the byte entropy of its first bytes is at least
+ * {@link #getMaxEntropy()} bits per byte, or</li>
+ * <li>deflating its first bytes at the fastest level does not shrink them
+ * below {@link #getStoreRatio()} of their size.</li>
+ * </ol>
+ * The trial compression is only performed when the entropy alone is not
+ * conclusive, that is when it is at least {@link #getMinEntropy()}.
+ * Entries whose trial ratio is above {@link #getFastRatio()} are deflated at
+ * the fastest level, since a slower level would hardly gain anything;
+ * the other ones are deflated at the configured level.
+ *
+ * @author <a href="mailto:marco.guazzone@gmail.com">Marco Guazzone</a>
+ */
+public class AdaptiveZipCompressionPolicy implements IZipCompressionPolicy
+{
+	/** The default number of sampled bytes. */
+	public static final int DEFAULT_SAMPLE_SIZE = 4096;
+
+	/** Extensions of commonly used compressed formats. */
+	private static final String[] COMPRESSED_EXTENSIONS = {
+		// archives and compressed streams
+		"7z", "apk", "br", "bz2", "cab", "ear", "gz", "jar", "lz", "lz4",
+		"lzma", "rar", "tbz2", "tgz", "txz", "war", "xz", "z", "zip", "zst",
+		// office documents (ZIP containers)
+		"docx", "odp", "ods", "odt", "pptx", "xlsx",
+		// images
+		"gif", "heic", "jpeg", "jpg", "png", "webp",
+		// audio and video
+		"aac", "avi", "flac", "m4a", "mkv", "mov", "mp3", "mp4", "ogg", "webm"
+	};
+
+	private final int level;
+	private final Set<String> storedExtensions = Collections.newSetFromMap( new ConcurrentHashMap<String,Boolean>() );
+	// Volatile, since the policy is shared by the compressing threads
+	private volatile int sampleSize = DEFAULT_SAMPLE_SIZE;
+	private volatile double minEntropy = 6.0;
+	private volatile double maxEntropy = 7.5;
+	private volatile double storeRatio = 0.95;
+	private volatile double fastRatio = 0.8;
+
+	/** A constructor. */
+	public AdaptiveZipCompressionPolicy()
+	{
+		this( Deflater.DEFAULT_COMPRESSION );
+	}
+
+	/**
+	 * A constructor.
+	 *
+	 * @param level The level used for compressible entries.
+	 */
+	public AdaptiveZipCompressionPolicy(int level)
+	{
+		this.level = level;
+		this.storedExtensions.addAll( Arrays.asList( COMPRESSED_EXTENSIONS ) );
+	}
+
+	/** Adds an extension (without the dot) of entries to be stored. */
+	public void addStoredExtension(String ext)
+	{
+		this.storedExtensions.add( ext.toLowerCase( Locale.ROOT ) );
+	}
+
+	/** Removes an extension (without the dot) of entries to be stored. */
+	public void removeStoredExtension(String ext)
+	{
+		this.storedExtensions.remove( ext.toLowerCase( Locale.ROOT ) );
+	}
+
+	public void setSampleSize(int value)
+	{
+		this.sampleSize = value;
+	}
+
+	public void setMinEntropy(double value)
+	{
+		this.minEntropy = value;
+	}
+
+	public double getMinEntropy()
+	{
+		return this.minEntropy;
+	}
+
+	public void setMaxEntropy(double value)
+	{
+		this.maxEntropy = value;
+	}
+
+	public double getMaxEntropy()
+	{
+		return this.maxEntropy;
+	}
+
+	public void setStoreRatio(double value)
+	{
+		this.storeRatio = value;
+	}
+
+	public double getStoreRatio()
+	{
+		return this.storeRatio;
+	}
+
+	public void setFastRatio(double value)
+	{
+		this.fastRatio = value;
+	}
+
+	public double getFastRatio()
+	{
+		return this.fastRatio;
+	}
+
+	//@{ IZipCompressionPolicy implementation /////////////////////////////
+
+	public int getSampleSize()
+	{
+		return this.sampleSize;
+	}
+
+	public ZipCompression choose(String entryName, long size, byte[] sample, int off, int len)
+	{
+		if ( size == 0 )
+		{
+			return ZipCompression.Stored( "empty" );
+		}
+
+		String ext = GetExtension( entryName );
+		if ( ext != null && this.storedExtensions.contains( ext ) )
+		{
+			return ZipCompression.Stored( "extension ." + ext );
+		}
+
+		if ( len == 0 )
+		{
+			return ZipCompression.Deflated( this.level, "no sample" );
+		}
+
+		double entropy = Entropy( sample, off, len );
+		if ( entropy >= this.maxEntropy )
+		{
+			return ZipCompression.Stored( String.format( Locale.ROOT, "entropy %.2f", entropy ) );
+		}
+		if ( entropy < this.minEntropy )
+		{
+			return ZipCompression.Deflated( this.level, String.format( Locale.ROOT, "entropy %.2f", entropy ) );
+		}
+
+		double ratio = this.trialRatio( sample, off, len );
+		String reason = String.format( Locale.ROOT, "entropy %.2f, trial ratio %.2f", entropy, ratio );
+		if ( ratio >= this.storeRatio )
+		{
+			return ZipCompression.Stored( reason );
+		}
+		if ( ratio >= this.fastRatio )
+		{
+			return ZipCompression.Deflated( Deflater.BEST_SPEED, reason );
+		}
+		return ZipCompression.Deflated( this.level, reason );
+	}
+
+	//@} IZipCompressionPolicy implementation /////////////////////////////
+
+	/**
+	 * Returns the compressed over uncompressed size of the given data.
+	 *
+	 * The deflater is ended at once, so that no native stream is kept by
+	 * the (possibly pooled) calling thread.
+	 */
+	private double trialRatio(byte[] b, int off, int len)
+	{
+		Deflater def = new Deflater( Deflater.BEST_SPEED, true );
+
+		try
+		{
+			def.setInput( b, off, len );
+			def.finish();
+
+			byte[] out = new byte[ len + 64 ];
+			int n = 0;
+			while ( !def.finished() && n < out.length )
+			{
+				n += def.deflate( out, n, out.length - n );
+			}
+
+			return (double) n / len;
+		}
+		finally
+		{
+			def.end();
+		}
+	}
+
+	/** Returns the Shannon entropy of the given bytes, in bits per byte. */
+	private static double Entropy(byte[] b, int off, int len)
+	{
+		int[] counts = new int[256];
+		for (int i = off; i < off + len; i++)
+		{
+			counts[ b[i] & 0xFF ]++;
+		}
+
+		double h = 0;
+		for (int c : counts)
+		{
+			if ( c > 0 )
+			{
+				double p = (double) c / len;
+				h -= p * Math.log( p );
+			}
+		}
+
+		return h / Math.log( 2 );
+	}
+
+	/** Returns the lower-case extension of the given name, if any. */
+	private static String GetExtension(String name)
+	{
+		int slash = Math.max( name.lastIndexOf( '/' ), name.lastIndexOf( '\\' ) );
+		int dot = name.lastIndexOf( '.' );
+
+		if ( dot <= slash + 1 || dot == name.length() - 1 )
+		{
+			return null;
+		}
+
+		return name.substring( dot + 1 ).toLowerCase( Locale.ROOT );
+	}
+}
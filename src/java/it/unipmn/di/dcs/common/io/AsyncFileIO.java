@@ -0,0 +1,574 @@
+/*
+ * Copyright (C) 2008-2012  Marco Guazzone
+ *                          [Distributed Computing System (DCS) Group,
+ *                           Computer Science Institute,
+ *                           Department of Science and Technological Innovation,
+ *                           University of Piemonte Orientale,
+ *                           Alessandria (Italy)]
+ *
+ * This file is part of dcj-commons.
+ *
+ * dcsj-commons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dcsj-commons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dcsj-commons.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.unipmn.di.dcs.common.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Asynchronous file operations, which do not block the caller.
+ *
+ * Copies and reads are chains of {@link AsynchronousFileChannel} reads and
+ * writes, whose completions run on a small, dedicated pool of I/O threads.
+ * Hence, many concurrent operations do not need as many threads.
+ * Deletions (which have no asynchronous counterpart) block their thread,
+ * so they run on a separate pool of as many threads, leaving the I/O
+ * threads to the completions.
+ *
+ * At most {@link #getMaxInFlight()} operations run at once: further
+ * operations are queued, and started as running ones complete, so that
+ * submitting an operation never blocks.
+ *
+ * Operations are cancelled by cancelling their future: a queued operation
+ * is never started, while a running one stops at its next read or write
+ * (a cancelled copy leaves a partial destination file).
+ * Failed operations complete exceptionally with an {@link IOException}.
+ *
+ * @author <a href="mailto:marco.guazzone@gmail.com">Marco Guazzone</a>
+ */
+public final class AsyncFileIO implements Closeable
+{
+	/** The default maximum number of operations running at once. */
+	public static final int DEFAULT_MAX_IN_FLIGHT = 64;
+	/** The default size of the buffer of each operation (256 KiB). */
+	public static final int DEFAULT_BUFFER_SIZE = 256 << 10;
+
+	private static final Set<OpenOption> ReadOptions = Collections.<OpenOption>singleton( StandardOpenOption.READ );
+	private static final Set<OpenOption> WriteOptions = new HashSet<OpenOption>( Arrays.<OpenOption>asList(
+		StandardOpenOption.WRITE,
+		StandardOpenOption.CREATE,
+		StandardOpenOption.TRUNCATE_EXISTING
+	));
+
+	private static AsyncFileIO SharedInstance;
+
+	private final ExecutorService executor;
+	private final ExecutorService deleteExecutor;
+	private final int maxInFlight;
+	private final Queue<Operation<?>> queue = new ArrayDeque<Operation<?>>();
+	private int inFlight = 0;
+	/** The number of slots to hand over, while releasing on this thread. */
+	private final ThreadLocal<int[]> releasing = new ThreadLocal<int[]>();
+	private int bufferSize = DEFAULT_BUFFER_SIZE;
+
+	/**
+	 * A constructor, using as many threads as available processors and
+	 * the default maximum number of operations running at once.
+	 */
+	public AsyncFileIO()
+	{
+		this( 0, DEFAULT_MAX_IN_FLIGHT );
+	}
+
+	/**
+	 * A constructor.
+	 *
+	 * @param threads The number of I/O threads; if less than or equal to 0,
+	 *        the number of available processors.
+	 * @param maxInFlight The maximum number of operations running at once.
+	 */
+	public AsyncFileIO(int threads, int maxInFlight)
+	{
+		if ( maxInFlight <= 0 )
+		{
+			throw new IllegalArgumentException( "Invalid maximum number of operations: " + maxInFlight );
+		}
+
+		int nthreads = ConcurrencyUtil.ResolveParallelism( threads );
+		this.executor = Executors.newFixedThreadPool( nthreads, new DaemonThreadFactory( "async-io" ) );
+		this.deleteExecutor = Executors.newFixedThreadPool( nthreads, new DaemonThreadFactory( "async-delete" ) );
+		this.maxInFlight = maxInFlight;
+	}
+
+	/**
+	 * Returns the instance shared by the asynchronous methods of
+	 * {@link FileUtil}, created on first use.
+	 */
+	public static synchronized AsyncFileIO Shared()
+	{
+		if ( SharedInstance == null )
+		{
+			SharedInstance = new AsyncFileIO();
+		}
+
+		return SharedInstance;
+	}
+
+	public int getMaxInFlight()
+	{
+		return this.maxInFlight;
+	}
+
+	/** Sets the size of the buffer of each copy or read. */
+	public void setBufferSize(int value)
+	{
+		if ( value <= 0 )
+		{
+			throw new IllegalArgumentException( "Invalid buffer size: " + value );
+		}
+
+		this.bufferSize = value;
+	}
+
+	public int getBufferSize()
+	{
+		return this.bufferSize;
+	}
+
+	/** Returns the number of operations currently running. */
+	public synchronized int getInFlightCount()
+	{
+		return this.inFlight;
+	}
+
+	/** Returns the number of operations waiting to be started. */
+	public synchronized int getQueuedCount()
+	{
+		return this.queue.size();
+	}
+
+	/**
+	 * Copies the given file, replacing the destination if it exists.
+	 *
+	 * @return A future completed with the number of bytes copied.
+	 */
+	public CompletableFuture<Long> copy(final Path source, final Path dest)
+	{
+		return this.submit( new Operation<Long>()
+		{
+			protected void start() throws IOException
+			{
+				new CopyChain( this, source, dest ).start();
+			}
+		});
+	}
+
+	/**
+	 * Reads the whole content of the given file.
+	 *
+	 * @return A future completed with the content of the file.
+	 */
+	public CompletableFuture<byte[]> readAll(final Path file)
+	{
+		return this.submit( new Operation<byte[]>()
+		{
+			protected void start() throws IOException
+			{
+				new ReadChain( this, file ).start();
+			}
+		});
+	}
+
+	/**
+	 * Deletes the given file or file tree, on a deletion thread.
+	 *
+	 * @return A future completed with the summary of the deletion (files
+	 *         which cannot be deleted are reported there).
+	 * @see FileUtil#DeleteTree(String,int)
+	 */
+	public CompletableFuture<FileTreeReport> delete(final Path path)
+	{
+		return this.submit( new Operation<FileTreeReport>()
+		{
+			protected void start()
+			{
+				final Operation<FileTreeReport> op = this;
+
+				AsyncFileIO.this.deleteExecutor.execute( new Runnable()
+				{
+					public void run()
+					{
+						if ( op.isDone() )
+						{
+							// Cancelled while waiting for a thread
+							op.done();
+							return;
+						}
+
+						try
+						{
+							op.succeed( new ParallelTreeDeleter( 1 ).delete( path ) );
+						}
+						catch (Throwable t)
+						{
+							op.fail( t );
+						}
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Shuts the I/O and deletion threads down; running operations are
+	 * abandoned, and further operations are rejected.
+	 */
+	public void close()
+	{
+		this.executor.shutdownNow();
+		this.deleteExecutor.shutdownNow();
+	}
+
+	private <T> CompletableFuture<T> submit(Operation<T> op)
+	{
+		boolean start = false;
+
+		synchronized (this)
+		{
+			if ( this.inFlight < this.maxInFlight )
+			{
+				this.inFlight++;
+				start = true;
+			}
+			else
+			{
+				this.queue.add( op );
+			}
+		}
+
+		if ( start )
+		{
+			op.run();
+		}
+
+		return op;
+	}
+
+	/**
+	 * Hands the slot of a completed operation over to the next queued (and
+	 * not cancelled) operation, if any.
+	 *
+	 * Operations may complete while being started (e.g., when their file
+	 * is missing), releasing their slot again: such nested releases are
+	 * counted, and served by the outermost call in a loop, so that long
+	 * queues of such operations do not exhaust the stack.
+	 */
+	private void release()
+	{
+		int[] pending = this.releasing.get();
+		if ( pending != null )
+		{
+			pending[0]++;
+			return;
+		}
+
+		pending = new int[] { 1 };
+		this.releasing.set( pending );
+		try
+		{
+			while ( pending[0] > 0 )
+			{
+				pending[0]--;
+
+				Operation<?> next = null;
+				synchronized (this)
+				{
+					next = this.queue.poll();
+					if ( next == null )
+					{
+						this.inFlight--;
+						continue;
+					}
+				}
+
+				if ( next.isDone() )
+				{
+					// Cancelled meanwhile: the slot is still free
+					pending[0]++;
+				}
+				else
+				{
+					next.run();
+				}
+			}
+		}
+		finally
+		{
+			this.releasing.remove();
+		}
+	}
+
+	/**
+	 * An operation, completed by its chain of asynchronous steps.
+	 *
+	 * Its slot is released once it completes, whatever the way.
+	 */
+	private abstract class Operation<T> extends CompletableFuture<T>
+	{
+		private boolean released = false;
+
+		protected abstract void start() throws IOException;
+
+		final void run()
+		{
+			try
+			{
+				this.start();
+			}
+			catch (Throwable t)
+			{
+				this.fail( t );
+			}
+		}
+
+		final void succeed(T value)
+		{
+			this.complete( value );
+			this.done();
+		}
+
+		final void fail(Throwable t)
+		{
+			this.completeExceptionally( t );
+			this.done();
+		}
+
+		/** Releases the slot, if the operation is done. */
+		final void done()
+		{
+			synchronized (this)
+			{
+				if ( this.released || !this.isDone() )
+				{
+					return;
+				}
+				this.released = true;
+			}
+
+			AsyncFileIO.this.release();
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning)
+		{
+			boolean cancelled = super.cancel( mayInterruptIfRunning );
+
+			synchronized (AsyncFileIO.this)
+			{
+				if ( AsyncFileIO.this.queue.remove( this ) )
+				{
+					// Never started: it holds no slot
+					this.released = true;
+				}
+			}
+
+			return cancelled;
+		}
+	}
+
+	/** Reads a file into memory, one buffer at a time. */
+	private final class ReadChain implements CompletionHandler<Integer,Void>
+	{
+		private final Operation<byte[]> op;
+		private final Path file;
+		private AsynchronousFileChannel ch;
+		private ByteBuffer data;
+
+		ReadChain(Operation<byte[]> op, Path file)
+		{
+			this.op = op;
+			this.file = file;
+		}
+
+		void start() throws IOException
+		{
+			this.ch = AsynchronousFileChannel.open( this.file, ReadOptions, AsyncFileIO.this.executor );
+
+			long size = this.ch.size();
+			if ( size > Integer.MAX_VALUE - 8 )
+			{
+				Close( this.ch );
+				throw new IOException( "File too large to be read into memory: " + this.file );
+			}
+			this.data = ByteBuffer.allocate( (int) size );
+			this.read();
+		}
+
+		private void read()
+		{
+			if ( this.op.isDone() )
+			{
+				Close( this.ch );
+				this.op.done();
+				return;
+			}
+			if ( !this.data.hasRemaining() )
+			{
+				Close( this.ch );
+				this.op.succeed( this.data.array() );
+				return;
+			}
+
+			// Reads at most a buffer at a time, so that cancellation is honoured
+			ByteBuffer view = this.data.duplicate();
+			view.limit( Math.min( this.data.capacity(), this.data.position() + AsyncFileIO.this.bufferSize ) );
+			this.ch.read( view, this.data.position(), null, this );
+		}
+
+		public void completed(Integer n, Void attachment)
+		{
+			if ( n < 0 )
+			{
+				// The file shrunk
+				Close( this.ch );
+				this.op.succeed( Arrays.copyOf( this.data.array(), this.data.position() ) );
+				return;
+			}
+
+			this.data.position( this.data.position() + n );
+			this.read();
+		}
+
+		public void failed(Throwable t, Void attachment)
+		{
+			Close( this.ch );
+			this.op.fail( t );
+		}
+	}
+
+	/** Copies a file, by alternating reads and writes of a buffer. */
+	private final class CopyChain
+	{
+		private final Operation<Long> op;
+		private final Path source;
+		private final Path dest;
+		private AsynchronousFileChannel src;
+		private AsynchronousFileChannel dst;
+		private ByteBuffer buf;
+		private long position = 0;
+
+		CopyChain(Operation<Long> op, Path source, Path dest)
+		{
+			this.op = op;
+			this.source = source;
+			this.dest = dest;
+		}
+
+		void start() throws IOException
+		{
+			this.src = AsynchronousFileChannel.open( this.source, ReadOptions, AsyncFileIO.this.executor );
+			try
+			{
+				this.dst = AsynchronousFileChannel.open( this.dest, WriteOptions, AsyncFileIO.this.executor );
+			}
+			catch (IOException ioe)
+			{
+				Close( this.src );
+				throw ioe;
+			}
+
+			this.buf = BufferPool.Shared().acquireDirect( AsyncFileIO.this.bufferSize );
+			this.read();
+		}
+
+		private void read()
+		{
+			if ( this.op.isDone() )
+			{
+				this.close();
+				this.op.done();
+				return;
+			}
+
+			this.buf.clear();
+			this.src.read( this.buf, this.position, null, new CompletionHandler<Integer,Void>()
+			{
+				public void completed(Integer n, Void attachment)
+				{
+					if ( n < 0 )
+					{
+						CopyChain.this.close();
+						CopyChain.this.op.succeed( CopyChain.this.position );
+						return;
+					}
+
+					CopyChain.this.buf.flip();
+					CopyChain.this.write();
+				}
+
+				public void failed(Throwable t, Void attachment)
+				{
+					CopyChain.this.close();
+					CopyChain.this.op.fail( t );
+				}
+			});
+		}
+
+		private void write()
+		{
+			this.dst.write( this.buf, this.position, null, new CompletionHandler<Integer,Void>()
+			{
+				public void completed(Integer n, Void attachment)
+				{
+					CopyChain.this.position += n;
+					if ( CopyChain.this.buf.hasRemaining() )
+					{
+						CopyChain.this.write();
+					}
+					else
+					{
+						CopyChain.this.read();
+					}
+				}
+
+				public void failed(Throwable t, Void attachment)
+				{
+					CopyChain.this.close();
+					CopyChain.this.op.fail( t );
+				}
+			});
+		}
+
+		private void close()
+		{
+			Close( this.src );
+			Close( this.dst );
+			BufferPool.Shared().release( this.buf );
+			this.buf = null;
+		}
+	}
+
+	private static void Close(AsynchronousFileChannel ch)
+	{
+		if ( ch != null )
+		{
+			try { ch.close(); } catch (Exception e) { /* ignore */ }
+		}
+	}
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2008-2012  Marco Guazzone
+ *                          [Distributed Computing System (DCS) Group,
+ *                           Computer Science Institute,
+ *                           Department of Science and Technological Innovation,
+ *                           University of Piemonte Orientale,
+ *                           Alessandria (Italy)]
+ *
+ * This file is part of dcj-commons.
+ *
+ * dcsj-commons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dcsj-commons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dcsj-commons.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.unipmn.di.dcs.common.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+
+/**
+ * Reads the lines of a file backwards, from its end, in blocks.
+ *
+ * Lines are split as {@code BufferedReader} does (on {@code "\n"},
+ * {@code "\r"} or {@code "\r\n"}, a trailing terminator not starting a
+ * further line), so that the lines returned are the ones a
+ * {@code BufferedReader} would return, in reverse order.
+ * Only the blocks holding the lines returned are read.
+ *
+ * Terminators are searched as encoded by the given charset, aligned to
+ * its code unit (as for UTF-16 and UTF-32); this is safe for those
+ * charsets and for the ASCII-compatible ones, whose multibyte sequences
+ * never contain the bytes of {@code "\n"} and {@code "\r"} (as UTF-8).
+ * A leading byte order mark is dropped.
+ *
+ * @author <a href="mailto:marco.guazzone@gmail.com">Marco Guazzone</a>
+ */
+final class BackwardLineScanner
+{
+	/** The default size of the blocks read. */
+	static final int DEFAULT_BLOCK_SIZE = 8192;
+
+	private final FileChannel ch;
+	private final CharsetDecoder decoder;
+	private final byte[] lf;
+	private final byte[] cr;
+	/** The size of code units. */
+	private final int unit;
+	private final ByteBuffer block;
+	/** The position in the file of the block. */
+	private long blockStart = 0;
+	/** The end of the current line (exclusive). */
+	private long end;
+	/** Tells if there is a line ending at {@link #end}. */
+	private boolean hasLine;
+	/** The start of the line last returned. */
+	private long lineStart;
+
+	/**
+	 * A constructor, for the lines of the given channel up to its current
+	 * size.
+	 */
+	BackwardLineScanner(FileChannel ch, Charset cs, int blockSize) throws IOException
+	{
+		this.ch = ch;
+		this.decoder = cs.newDecoder()
+			.onMalformedInput( CodingErrorAction.REPLACE )
+			.onUnmappableCharacter( CodingErrorAction.REPLACE );
+
+		byte[] one = Encode( cs, "\n" );
+		byte[] two = Encode( cs, "\n\n" );
+		this.unit = Math.max( 1, two.length - one.length );
+		this.lf = Arrays.copyOfRange( two, two.length - this.unit, two.length );
+		byte[] crs = Encode( cs, "\r\r" );
+		this.cr = Arrays.copyOfRange( crs, crs.length - this.unit, crs.length );
+
+		int size = Math.max( this.unit, blockSize - blockSize % this.unit );
+		this.block = ByteBuffer.allocate( size );
+		this.block.limit( 0 );
+
+		this.end = ch.size() - ch.size() % this.unit;
+		this.lineStart = this.end;
+		this.hasLine = this.end > 0;
+		if ( this.hasLine )
+		{
+			// A trailing terminator does not start a further line
+			long t = this.end - this.unit;
+			if ( this.isAt( t, this.lf ) )
+			{
+				this.end = ( t >= this.unit && this.isAt( t - this.unit, this.cr ) ) ? t - this.unit : t;
+			}
+			else if ( this.isAt( t, this.cr ) )
+			{
+				this.end = t;
+			}
+		}
+	}
+
+	/**
+	 * Returns the line before the last line returned (the last line of the
+	 * file, at first), or {@code null} if there are no more lines.
+	 */
+	String previousLine() throws IOException
+	{
+		CharBuffer line = this.previousChars();
+
+		return ( line != null ) ? line.toString() : null;
+	}
+
+	/**
+	 * Same as {@link #previousLine()}, but the line is returned as a buffer
+	 * (the decoded characters, not copied into a string).
+	 */
+	CharBuffer previousChars() throws IOException
+	{
+		if ( !this.hasLine )
+		{
+			return null;
+		}
+
+		// Searches the terminator of the line before
+		long t = this.end - this.unit;
+		while ( t >= 0 && !this.isAt( t, this.lf ) && !this.isAt( t, this.cr ) )
+		{
+			t -= this.unit;
+		}
+
+		long start = ( t >= 0 ) ? t + this.unit : 0;
+		CharBuffer line = this.decode( start, this.end );
+		this.lineStart = start;
+
+		if ( t < 0 )
+		{
+			this.hasLine = false;
+		}
+		else
+		{
+			this.end = ( this.isAt( t, this.lf ) && t >= this.unit && this.isAt( t - this.unit, this.cr ) )
+				? t - this.unit
+				: t;
+		}
+
+		return line;
+	}
+
+	/** Returns the position in the file of the line last returned. */
+	long position()
+	{
+		return this.lineStart;
+	}
+
+	/** Tells if the given bytes are at the given position of the file. */
+	private boolean isAt(long pos, byte[] b) throws IOException
+	{
+		if ( pos < this.blockStart || pos + b.length > this.blockStart + this.block.limit() )
+		{
+			// Loads the block ending with the unit at pos
+			long blockEnd = pos + this.unit;
+			this.blockStart = Math.max( 0, blockEnd - this.block.capacity() );
+			this.block.clear();
+			this.block.limit( (int) (blockEnd - this.blockStart) );
+			ReadFully( this.ch, this.block, this.blockStart );
+			this.block.flip();
+		}
+
+		int off = (int) (pos - this.blockStart);
+		for (int i = 0; i < b.length; i++)
+		{
+			if ( this.block.get( off + i ) != b[i] )
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/** Decodes the given range of the file. */
+	private CharBuffer decode(long start, long end) throws IOException
+	{
+		if ( end - start > Integer.MAX_VALUE - 8 )
+		{
+			throw new IOException( "Line too long: " + (end - start) + " bytes" );
+		}
+
+		ByteBuffer buf = ByteBuffer.allocate( (int) (end - start) );
+		ReadFully( this.ch, buf, start );
+		buf.flip();
+
+		CharBuffer line = this.decoder.reset().decode( buf );
+		if ( start == 0 && line.length() > 0 && line.charAt( 0 ) == '\uFEFF' )
+		{
+			line.position( 1 );
+		}
+
+		return line;
+	}
+
+	private static void ReadFully(FileChannel ch, ByteBuffer buf, long pos) throws IOException
+	{
+		while ( buf.hasRemaining() )
+		{
+			int n = ch.read( buf, pos + buf.position() );
+			if ( n < 0 )
+			{
+				throw new IOException( "File truncated while being read" );
+			}
+		}
+	}
+
+	/** Encodes the given text, as the bytes to search. */
+	private static byte[] Encode(Charset cs, String s) throws CharacterCodingException
+	{
+		CharsetEncoder enc = cs.newEncoder()
+			.onMalformedInput( CodingErrorAction.REPLACE )
+			.onUnmappableCharacter( CodingErrorAction.REPLACE );
+		ByteBuffer b = enc.encode( CharBuffer.wrap( s ) );
+
+		return Arrays.copyOf( b.array(), b.limit() );
+	}
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2008-2012  Marco Guazzone
+ *                          [Distributed Computing System (DCS) Group,
+ *                           Computer Science Institute,
+ *                           Department of Science and Technological Innovation,
+ *                           University of Piemonte Orientale,
+ *                           Alessandria (Italy)]
+ *
+ * This file is part of dcj-commons.
+ *
+ * dcsj-commons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dcsj-commons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dcsj-commons.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.unipmn.di.dcs.common.io;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of reusable I/O buffers: byte arrays, char arrays and direct byte
+ * buffers.
+ *
+ * Buffers are grouped by size class (powers of two, from
+ * {@link #MIN_POOLED_SIZE} to {@link #MAX_POOLED_SIZE}): a request is
+ * served with a buffer of the smallest class holding the requested size,
+ * hence buffers may be larger than requested.
+ * Each class retains a bounded number of released buffers (about
+ * {@link #MAX_RETAINED_BYTES} worth, and at least two); larger requests
+ * are always allocated, and not retained on release.
+ *
+ * Borrowed buffers must be released once, and not used afterwards; their
+ * content is not cleared. Releasing buffers not taken from the pool is
+ * allowed (they are retained if their size matches a class).
+ *
+ * Instances are thread-safe.
+ *
+ * @author <a href="mailto:marco.guazzone@gmail.com">Marco Guazzone</a>
+ */
+public final class BufferPool
+{
+	/** The smallest size class. */
+	public static final int MIN_POOLED_SIZE = 1 << 10;
+	/** The largest size class. */
+	public static final int MAX_POOLED_SIZE = 4 << 20;
+	/** The amount of memory retained by each size class. */
+	public static final int MAX_RETAINED_BYTES = 4 << 20;
+
+	private static final int MIN_SHIFT = 10;
+	private static final int CLASS_COUNT = 13;
+
+	private static final BufferPool SharedInstance = new BufferPool();
+
+	private final Bucket[] bytes = NewBuckets();
+	private final Bucket[] chars = NewBuckets();
+	private final Bucket[] direct = NewBuckets();
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong discardCount = new AtomicLong();
+
+	/** A constructor, for a pool on its own. */
+	public BufferPool()
+	{
+		// empty
+	}
+
+	/** Returns the pool shared by the copy loops of the library. */
+	public static BufferPool Shared()
+	{
+		return SharedInstance;
+	}
+
+	/** Borrows a byte array of at least the given length. */
+	public byte[] acquireBytes(int size)
+	{
+		int c = SizeClass( size );
+		byte[] b = (byte[]) this.poll( this.bytes, c );
+
+		return ( b != null ) ? b : new byte[ ClassSize( c, size ) ];
+	}
+
+	/** Returns the given byte array to the pool. */
+	public void release(byte[] buf)
+	{
+		if ( buf != null )
+		{
+			this.offer( this.bytes, buf, buf.length );
+		}
+	}
+
+	/** Borrows a char array of at least the given length. */
+	public char[] acquireChars(int size)
+	{
+		int c = SizeClass( size );
+		char[] b = (char[]) this.poll( this.chars, c );
+
+		return ( b != null ) ? b : new char[ ClassSize( c, size ) ];
+	}
+
+	/** Returns the given char array to the pool. */
+	public void release(char[] buf)
+	{
+		if ( buf != null )
+		{
+			this.offer( this.chars, buf, buf.length );
+		}
+	}
+
+	/**
+	 * Borrows a direct byte buffer of at least the given capacity.
+	 *
+	 * The buffer is cleared, and its limit is set to the given size.
+	 */
+	public ByteBuffer acquireDirect(int size)
+	{
+		int c = SizeClass( size );
+		ByteBuffer b = (ByteBuffer) this.poll( this.direct, c );
+
+		if ( b == null )
+		{
+			b = ByteBuffer.allocateDirect( ClassSize( c, size ) );
+		}
+		b.clear();
+		b.limit( size );
+
+		return b;
+	}
+
+	/** Returns the given direct byte buffer to the pool. */
+	public void release(ByteBuffer buf)
+	{
+		if ( buf != null && buf.isDirect() )
+		{
+			this.offer( this.direct, buf, buf.capacity() );
+		}
+	}
+
+	/** Returns the number of requests served with a pooled buffer. */
+	public long getHitCount()
+	{
+		return this.hitCount.get();
+	}
+
+	/** Returns the number of requests served with a new buffer. */
+	public long getMissCount()
+	{
+		return this.missCount.get();
+	}
+
+	/** Returns the number of released buffers which were not retained. */
+	public long getDiscardCount()
+	{
+		return this.discardCount.get();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "<"
+			+ "hits: " + this.getHitCount()
+			+ ", misses: " + this.getMissCount()
+			+ ", discarded: " + this.getDiscardCount()
+			+ ">";
+	}
+
+	private Object poll(Bucket[] buckets, int c)
+	{
+		Object b = ( c < 0 ) ? null : buckets[c].poll();
+
+		if ( b != null )
+		{
+			this.hitCount.incrementAndGet();
+		}
+		else
+		{
+			this.missCount.incrementAndGet();
+		}
+
+		return b;
+	}
+
+	private void offer(Bucket[] buckets, Object buf, int size)
+	{
+		int c = SizeClass( size );
+
+		if ( c < 0 || ClassSize( c, size ) != size || !buckets[c].offer( buf ) )
+		{
+			this.discardCount.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Returns the index of the smallest class holding the given size, or
+	 * -1 if the size is too large to be pooled.
+	 */
+	private static int SizeClass(int size)
+	{
+		if ( size > MAX_POOLED_SIZE )
+		{
+			return -1;
+		}
+		if ( size <= MIN_POOLED_SIZE )
+		{
+			return 0;
+		}
+
+		return 32 - Integer.numberOfLeadingZeros( size - 1 ) - MIN_SHIFT;
+	}
+
+	/** Returns the size of the given class, or the given size if unpooled. */
+	private static int ClassSize(int c, int size)
+	{
+		return ( c < 0 ) ? size : MIN_POOLED_SIZE << c;
+	}
+
+	private static Bucket[] NewBuckets()
+	{
+		Bucket[] buckets = new Bucket[CLASS_COUNT];
+
+		for (int c = 0; c < CLASS_COUNT; c++)
+		{
+			buckets[c] = new Bucket( Math.max( 2, MAX_RETAINED_BYTES / (MIN_POOLED_SIZE << c) ) );
+		}
+
+		return buckets;
+	}
+
+	/** A bounded stack of the released buffers of a size class. */
+	private static final class Bucket
+	{
+		private final Object[] buffers;
+		private int count = 0;
+
+		Bucket(int capacity)
+		{
+			this.buffers = new Object[capacity];
+		}
+
+		synchronized Object poll()
+		{
+			if ( this.count == 0 )
+			{
+				return null;
+			}
+
+			Object b = this.buffers[--this.count];
+			this.buffers[this.count] = null;
+
+			return b;
+		}
+
+		synchronized boolean offer(Object buf)
+		{
+			if ( this.count == this.buffers.length )
+			{
+				return false;
+			}
+
+			this.buffers[this.count++] = buf;
+
+			return true;
+		}
+	}
+}
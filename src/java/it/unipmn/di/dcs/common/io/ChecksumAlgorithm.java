@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2008-2012  Marco Guazzone
+ *                          [Distributed Computing System (DCS) Group,
+ *                           Computer Science Institute,
+ *                           Department of Science and Technological Innovation,
+ *                           University of Piemonte Orientale,
+ *                           Alessandria (Italy)]
+ *
+ * This file is part of dcj-commons.
+ *
+ * dcsj-commons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dcsj-commons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dcsj-commons.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.unipmn.di.dcs.common.io;
+
+/**
+ * The checksum algorithms supported by {@link FileChecksummer}.
+ *
+ * @author <a href="mailto:marco.guazzone@gmail.com">Marco Guazzone</a>
+ */
+public enum ChecksumAlgorithm
+{
+	/** CRC-32, as used by ZIP and gzip. */
+	CRC32,
+	/** CRC-32C (Castagnoli), as used by iSCSI and ext4. */
+	CRC32C,
+	/** SHA-256. */
+	SHA256
+}
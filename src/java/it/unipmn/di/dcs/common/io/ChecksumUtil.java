@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2008-2012  Marco Guazzone
+ *                          [Distributed Computing System (DCS) Group,
+ *                           Computer Science Institute,
+ *                           Department of Science and Technological Innovation,
+ *                           University of Piemonte Orientale,
+ *                           Alessandria (Italy)]
+ *
+ * This file is part of dcj-commons.
+ *
+ * dcsj-commons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dcsj-commons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dcsj-commons.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.unipmn.di.dcs.common.io;
+
+import java.lang.reflect.Constructor;
+import java.util.zip.Checksum;
+
+/**
+ * Utility class for checksums.
+ *
+ * @author <a href="mailto:marco.guazzone@gmail.com">Marco Guazzone</a>
+ */
+final class ChecksumUtil
+{
+	/** The (reversed) CRC-32 polynomial used by ZIP and gzip. */
+	static final long CRC32_POLY = 0xedb88320L;
+	/** The (reversed) CRC-32C (Castagnoli) polynomial. */
+	static final long CRC32C_POLY = 0x82f63b78L;
+
+	/** The constructor of {@code java.util.zip.CRC32C} (Java 9+), if any. */
+	private static final Constructor<?> Crc32cConstructor = FindCrc32cConstructor();
+
+	private ChecksumUtil()
+	{
+		// empty
+	}
+
+	/**
+	 * Combines two CRC-32 checksums.
+	 *
+	 * Given the CRC-32 {@code crc1} of a first block of data and the
+	 * CRC-32 {@code crc2} of a second block of {@code len2} bytes, returns
+	 * the CRC-32 of the two blocks concatenated, without reading any data.
+	 * This makes it possible to checksum separate parts of the same data
+	 * concurrently.
+	 *
+	 * The implementation follows the {@code crc32_combine} function of
+	 * zlib.
+	 */
+	static long CombineCrc32(long crc1, long crc2, long len2)
+	{
+		return CombineCrc( CRC32_POLY, crc1, crc2, len2 );
+	}
+
+	/**
+	 * Combines two CRC checksums computed with the given reversed 32-bit
+	 * polynomial.
+	 *
+	 * @see #CombineCrc32(long,long,long)
+	 */
+	static long CombineCrc(long poly, long crc1, long crc2, long len2)
+	{
+		if ( len2 <= 0 )
+		{
+			return crc1;
+		}
+
+		long[] even = new long[32]; // even-power-of-two zeros operator
+		long[] odd = new long[32]; // odd-power-of-two zeros operator
+
+		// put operator for one zero bit in odd
+		odd[0] = poly;
+		long row = 1;
+		for (int n = 1; n < 32; n++)
+		{
+			odd[n] = row;
+			row <<= 1;
+		}
+
+		// put operator for two zero bits in even
+		Gf2MatrixSquare( even, odd );
+		// put operator for four zero bits in odd
+		Gf2MatrixSquare( odd, even );
+
+		// apply len2 zeros to crc1 (first square will put the operator for
+		// one zero byte, eight zero bits, in even)
+		do
+		{
+			// apply zeros operator for this bit of len2
+			Gf2MatrixSquare( even, odd );
+			if ( (len2 & 1) != 0 )
+			{
+				crc1 = Gf2MatrixTimes( even, crc1 );
+			}
+			len2 >>= 1;
+
+			if ( len2 == 0 )
+			{
+				break;
+			}
+
+			// another iteration of the loop with odd and even swapped
+			Gf2MatrixSquare( odd, even );
+			if ( (len2 & 1) != 0 )
+			{
+				crc1 = Gf2MatrixTimes( odd, crc1 );
+			}
+			len2 >>= 1;
+		}
+		while ( len2 != 0 );
+
+		return ( crc1 ^ crc2 ) & 0xFFFFFFFFL;
+	}
+
+	/**
+	 * Combines two CRC-32C checksums.
+	 *
+	 * @see #CombineCrc32(long,long,long)
+	 */
+	static long CombineCrc32c(long crc1, long crc2, long len2)
+	{
+		return CombineCrc( CRC32C_POLY, crc1, crc2, len2 );
+	}
+
+	/**
+	 * Creates a CRC-32C checksum, using the (intrinsified) JDK
+	 * implementation if available.
+	 */
+	static Checksum NewCrc32c()
+	{
+		if ( Crc32cConstructor != null )
+		{
+			try
+			{
+				return (Checksum) Crc32cConstructor.newInstance();
+			}
+			catch (Exception e)
+			{
+				// fall back
+			}
+		}
+
+		return new Crc32c();
+	}
+
+	private static Constructor<?> FindCrc32cConstructor()
+	{
+		try
+		{
+			return Class.forName( "java.util.zip.CRC32C" ).getConstructor();
+		}
+		catch (Exception e)
+		{
+			return null;
+		}
+	}
+
+	private static long Gf2MatrixTimes(long[] mat, long vec)
+	{
+		long sum = 0;
+		int i = 0;
+
+		while ( vec != 0 )
+		{
+			if ( (vec & 1) != 0 )
+			{
+				sum ^= mat[i];
+			}
+			vec >>>= 1;
+			i++;
+		}
+
+		return sum;
+	}
+
+	private static void Gf2MatrixSquare(long[] square, long[] mat)
+	{
+		for (int n = 0; n < 32; n++)
+		{
+			square[n] = Gf2MatrixTimes( mat, mat[n] );
+		}
+	}
+}
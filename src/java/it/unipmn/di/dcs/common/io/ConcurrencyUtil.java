@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2008-2012  Marco Guazzone
+ *                          [Distributed Computing System (DCS) Group,
+ *                           Computer Science Institute,
+ *                           Department of Science and Technological Innovation,
+ *                           University of Piemonte Orientale,
+ *                           Alessandria (Italy)]
+ *
+ * This file is part of dcj-commons.
+ *
+ * dcsj-commons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dcsj-commons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dcsj-commons.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.unipmn.di.dcs.common.io;
+
+import java.io.InterruptedIOException;
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Helpers for the concurrent I/O tasks of this package.
+ *
+ * @author <a href="mailto:marco.guazzone@gmail.com">Marco Guazzone</a>
+ */
+final class ConcurrencyUtil
+{
+	private ConcurrencyUtil()
+	{
+		// empty
+	}
+
+	/**
+	 * Waits for the given I/O task and returns its result.
+	 *
+	 * Failures are rethrown unwrapped.
+	 *
+	 * @throws InterruptedIOException if the current thread is interrupted
+	 *         while waiting (its interrupted status is restored).
+	 */
+	static <T> T Await(Future<T> f) throws IOException
+	{
+		try
+		{
+			return f.get();
+		}
+		catch (InterruptedException ie)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException( "Interrupted while waiting for an I/O task" );
+		}
+		catch (ExecutionException ee)
+		{
+			Throwable t = ee.getCause();
+			if ( t instanceof IOException )
+			{
+				throw (IOException) t;
+			}
+			if ( t instanceof RuntimeException )
+			{
+				throw (RuntimeException) t;
+			}
+			if ( t instanceof Error )
+			{
+				throw (Error) t;
+			}
+			throw new IOException( t );
+		}
+	}
+
+	/**
+	 * Returns the given number of threads, or the number of available
+	 * processors if it is less than or equal to 0.
+	 */
+	static int ResolveParallelism(int parallelism)
+	{
+		return ( parallelism > 0 )
+			? parallelism
+			: Runtime.getRuntime().availableProcessors();
+	}
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2008-2012  Marco Guazzone
+ *                          [Distributed Computing System (DCS) Group,
+ *                           Computer Science Institute,
+ *                           Department of Science and Technological Innovation,
+ *                           University of Piemonte Orientale,
+ *                           Alessandria (Italy)]
+ *
+ * This file is part of dcj-commons.
+ *
+ * dcsj-commons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dcsj-commons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dcsj-commons.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.unipmn.di.dcs.common.io;
+
+import java.util.zip.Checksum;
+
+/**
+ * Computes the CRC-32C (Castagnoli) of data, with slicing-by-8 tables.
+ *
+ * Used where the JDK does not provide {@code java.util.zip.CRC32C} (see
+ * {@link ChecksumUtil#NewCrc32c()}).
+ *
+ * @author <a href="mailto:marco.guazzone@gmail.com">Marco Guazzone</a>
+ */
+final class Crc32c implements Checksum
+{
+	private static final int[][] Tables = new int[8][256];
+
+	static
+	{
+		for (int n = 0; n < 256; n++)
+		{
+			int c = n;
+			for (int k = 0; k < 8; k++)
+			{
+				c = ( (c & 1) != 0 ) ? ( (c >>> 1) ^ (int) ChecksumUtil.CRC32C_POLY ) : ( c >>> 1 );
+			}
+			Tables[0][n] = c;
+		}
+		for (int n = 0; n < 256; n++)
+		{
+			for (int k = 1; k < 8; k++)
+			{
+				int c = Tables[k - 1][n];
+				Tables[k][n] = (c >>> 8) ^ Tables[0][c & 0xFF];
+			}
+		}
+	}
+
+	private int crc = 0xFFFFFFFF;
+
+	public void update(int b)
+	{
+		this.crc = (this.crc >>> 8) ^ Tables[0][(this.crc ^ b) & 0xFF];
+	}
+
+	public void update(byte[] b, int off, int len)
+	{
+		int[] t0 = Tables[0], t1 = Tables[1], t2 = Tables[2], t3 = Tables[3];
+		int[] t4 = Tables[4], t5 = Tables[5], t6 = Tables[6], t7 = Tables[7];
+		int c = this.crc;
+
+		while ( len >= 8 )
+		{
+			int lo = c ^ ( (b[off] & 0xFF) | (b[off + 1] & 0xFF) << 8 | (b[off + 2] & 0xFF) << 16 | (b[off + 3] & 0xFF) << 24 );
+			int hi = (b[off + 4] & 0xFF) | (b[off + 5] & 0xFF) << 8 | (b[off + 6] & 0xFF) << 16 | (b[off + 7] & 0xFF) << 24;
+			c = t7[lo & 0xFF] ^ t6[(lo >>> 8) & 0xFF] ^ t5[(lo >>> 16) & 0xFF] ^ t4[lo >>> 24]
+				^ t3[hi & 0xFF] ^ t2[(hi >>> 8) & 0xFF] ^ t1[(hi >>> 16) & 0xFF] ^ t0[hi >>> 24];
+			off += 8;
+			len -= 8;
+		}
+		while ( len-- > 0 )
+		{
+			c = (c >>> 8) ^ t0[(c ^ b[off++]) & 0xFF];
+		}
+
+		this.crc = c;
+	}
+
+	public long getValue()
+	{
+		return ~this.crc & 0xFFFFFFFFL;
+	}
+
+	public void reset()
+	{
+		this.crc = 0xFFFFFFFF;
+	}
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2008-2012  Marco Guazzone
+ *                          [Distributed Computing System (DCS) Group,
+ *                           Computer Science Institute,
+ *                           Department of Science and Technological Innovation,
+ *                           University of Piemonte Orientale,
+ *                           Alessandria (Italy)]
+ *
+ * This file is part of dcj-commons.
+ *
+ * dcsj-commons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dcsj-commons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dcsj-commons.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.unipmn.di.dcs.common.io;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates named daemon threads for the worker pools of this package.
+ *
+ * @author <a href="mailto:marco.guazzone@gmail.com">Marco Guazzone</a>
+ */
+final class DaemonThreadFactory implements ThreadFactory
+{
+	private static final AtomicInteger PoolCount = new AtomicInteger();
+
+	private final AtomicInteger threadCount = new AtomicInteger();
+	private final String prefix;
+
+	/**
+	 * A constructor.
+	 *
+	 * @param name The name of the pool, used as prefix of thread names.
+	 */
+	DaemonThreadFactory(String name)
+	{
+		this.prefix = name + "-" + PoolCount.incrementAndGet() + "-";
+	}
+
+	public Thread newThread(Runnable r)
+	{
+		Thread t = new Thread( r, this.prefix + this.threadCount.incrementAndGet() );
+		t.setDaemon( true );
+		return t;
+	}
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2008-2012  Marco Guazzone
+ *                          [Distributed Computing System (DCS) Group,
+ *                           Computer Science Institute,
+ *                           Department of Science and Technological Innovation,
+ *                           University of Piemonte Orientale,
+ *                           Alessandria (Italy)]
+ *
+ * This file is part of dcj-commons.
+ *
+ * dcsj-commons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dcsj-commons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dcsj-commons.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.unipmn.di.dcs.common.io;
+
+import java.io.EOFException;
+import java.io.InputStream;
+import java.io.IOException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+
+/**
+ * The DEFLATE codec (ZIP method 8).
+ *
+ * Chunks are deflated pigz-style: every chunk but the last one is
+ * terminated by a sync flush and is primed with the last 32K of the
+ * previous chunk, so that the concatenation of the compressed chunks is a
+ * single valid deflate stream.
+ *
+ * @author <a href="mailto:marco.guazzone@gmail.com">Marco Guazzone</a>
+ */
+final class DeflateZipCodec implements IZipCodec
+{
+	/** Size of the deflate window. */
+	static final int DICTIONARY_SIZE = 32768;
+
+	public int getMethod()
+	{
+		return ZipEntry.DEFLATED;
+	}
+
+	public String getName()
+	{
+		return "deflate";
+	}
+
+	public int getDictionarySize()
+	{
+		return DICTIONARY_SIZE;
+	}
+
+	public int getMaxCompressedLength(int len)
+	{
+		// Stored blocks (5 bytes each) plus the sync flush marker, with
+		// plenty of margin.
+		return len + (len >> 3) + 64;
+	}
+
+	public IZipCodecEncoder newEncoder(int level)
+	{
+		return new Encoder( level );
+	}
+
+	public InputStream newInputStream(InputStream in)
+	{
+		return new RawInflaterInputStream( in );
+	}
+
+	/** Deflates chunks with a reused deflater. */
+	private static final class Encoder implements IZipCodecEncoder
+	{
+		private final Deflater def;
+
+		Encoder(int level)
+		{
+			this.def = new Deflater( level, true );
+		}
+
+		public int compress(byte[] in, int dictLen, int len, boolean last, byte[] out, int off) throws IOException
+		{
+			Deflater def = this.def;
+
+			def.reset();
+			if ( dictLen > 0 )
+			{
+				def.setDictionary( in, 0, dictLen );
+			}
+			def.setInput( in, dictLen, len );
+
+			int n = off;
+			if ( last )
+			{
+				def.finish();
+				while ( !def.finished() && n < out.length )
+				{
+					n += def.deflate( out, n, out.length - n );
+				}
+				if ( !def.finished() )
+				{
+					throw new IOException( "Deflated chunk exceeds the output buffer" );
+				}
+			}
+			else
+			{
+				int avail = out.length - n;
+				int k = def.deflate( out, n, avail, Deflater.SYNC_FLUSH );
+				n += k;
+				if ( k == avail )
+				{
+					// The flush might not be complete
+					throw new IOException( "Deflated chunk exceeds the output buffer" );
+				}
+			}
+
+			return n - off;
+		}
+
+		public void end()
+		{
+			this.def.end();
+		}
+	}
+
+	/**
+	 * Inflates raw deflate data, feeding the inflater with the extra dummy
+	 * byte it may need at the end of the input.
+	 */
+	private static final class RawInflaterInputStream extends InflaterInputStream
+	{
+		private boolean eof = false;
+
+		RawInflaterInputStream(InputStream in)
+		{
+			super( in, new Inflater( true ), 8192 );
+		}
+
+		@Override
+		protected void fill() throws IOException
+		{
+			if ( this.eof )
+			{
+				throw new EOFException( "Unexpected end of deflated data" );
+			}
+
+			this.len = this.in.read( this.buf, 0, this.buf.length );
+			if ( this.len == -1 )
+			{
+				this.buf[0] = 0;
+				this.len = 1;
+				this.eof = true;
+			}
+			this.inf.setInput( this.buf, 0, this.len );
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			try
+			{
+				super.close();
+			}
+			finally
+			{
+				this.inf.end();
+			}
+		}
+	}
+}
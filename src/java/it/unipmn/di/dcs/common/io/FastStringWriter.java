@@ -26,6 +26,8 @@ package it.unipmn.di.dcs.common.io;
 
 import java.io.Writer;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * A character stream that collects its output in a string buffer, which can
@@ -41,6 +43,14 @@ import java.io.IOException;
  * {@code java.lang.StringBuffer}.
  * </p>
  * <p>
+ * In chunked mode (see {@link #Chunked(int)}), characters are rather
+ * appended to a list of fixed-size segments, so that growing never copies
+ * the data already written nor needs a contiguous block of memory; data
+ * can then be read through {@link #writeTo(Writer)} or a
+ * {@link #toCharSequence() CharSequence view}, without building a
+ * (possibly huge) string.
+ * </p>
+ * <p>
  * Since {@code StringBuilder} doesn't guarantee synchronization, this class
  * should be used only by single thread at time.
  * </p>
@@ -49,7 +59,14 @@ import java.io.IOException;
  */
 public class FastStringWriter extends Writer
 {
+	/** The default size of segments in chunked mode. */
+	public static final int DEFAULT_SEGMENT_SIZE = 65536;
+
 	private StringBuilder buf;
+	/** The segments, in chunked mode (all full, but the last one). */
+	private List<char[]> segments;
+	private int segmentSize;
+	private int length;
 
 	/**
 	 * Create a new string writer using the default initial string-buffer
@@ -86,12 +103,63 @@ public class FastStringWriter extends Writer
 		this.lock = this.buf;
 	}
 
+	/**
+	 * Create a new string writer in chunked mode.
+	 *
+	 * @param segmentSize
+	 *        The number of <tt>char</tt> values of each segment
+	 *
+	 * @throws IllegalArgumentException
+	 *         If <tt>segmentSize</tt> is not positive
+	 */
+	public static FastStringWriter Chunked(int segmentSize)
+	{
+		if (segmentSize <= 0)
+		{
+			throw new IllegalArgumentException("Invalid segment size");
+		}
+
+		FastStringWriter wr = new FastStringWriter(0);
+		wr.buf = null;
+		wr.segments = new ArrayList<char[]>();
+		wr.segmentSize = segmentSize;
+		wr.lock = wr.segments;
+
+		return wr;
+	}
+
+	/**
+	 * Create a new string writer in chunked mode, with segments of the
+	 * default size.
+	 */
+	public static FastStringWriter Chunked()
+	{
+		return Chunked(DEFAULT_SEGMENT_SIZE);
+	}
+
+	/** Tells if this writer is in chunked mode. */
+	public boolean isChunked()
+	{
+		return this.segments != null;
+	}
+
+	/** Returns the number of characters written so far. */
+	public int length()
+	{
+		return ( this.segments != null ) ? this.length : this.buf.length();
+	}
+
 	/**
 	 * Write a single character.
 	 */
 	@Override
 	public void write(int c)
 	{
+		if (this.segments != null)
+		{
+			this.room()[this.length++ % this.segmentSize] = (char) c;
+			return;
+		}
 		this.buf.append((char) c);
 	}
 
@@ -114,6 +182,20 @@ public class FastStringWriter extends Writer
 		{
 			return;
 		}
+		if (this.segments != null)
+		{
+			while (len > 0)
+			{
+				char[] seg = this.room();
+				int pos = this.length % this.segmentSize;
+				int n = Math.min(len, this.segmentSize - pos);
+				System.arraycopy(cbuf, off, seg, pos, n);
+				this.length += n;
+				off += n;
+				len -= n;
+			}
+			return;
+		}
 		this.buf.append(cbuf, off, len);
 	}
 
@@ -123,11 +205,14 @@ public class FastStringWriter extends Writer
 	@Override
 	public void write(String str)
 	{
-		this.buf.append(str);
+		String s = (str == null ? "null" : str);
+
+		this.appendChars(s, 0, s.length());
 	}
 
 	/**
-	 * Write a portion of a string.
+	 * Write a portion of a string (without copying it to a temporary
+	 * string).
 	 *
 	 * @param  str  String to be written
 	 * @param  off  Offset from which to start writing characters
@@ -136,7 +221,7 @@ public class FastStringWriter extends Writer
 	@Override
 	public void write(String str, int off, int len)
 	{
-		this.buf.append(str.substring(off, off + len));
+		this.appendChars(str, off, off + len);
 	}
 
 	/**
@@ -163,14 +248,10 @@ public class FastStringWriter extends Writer
 	 */
 	public FastStringWriter append(CharSequence csq)
 	{
-		if (csq == null)
-		{
-			this.write("null");
-		}
-		else
-		{
-			this.write(csq.toString());
-		}
+		CharSequence cs = (csq == null ? "null" : csq);
+
+		this.appendChars(cs, 0, cs.length());
+
 		return this;
 	}
 
@@ -208,7 +289,7 @@ public class FastStringWriter extends Writer
 	{
 		CharSequence cs = (csq == null ? "null" : csq);
 
-		this.write(cs.subSequence(start, end).toString());
+		this.appendChars(cs, start, end);
 
 		return this;
 	}
@@ -240,6 +321,10 @@ public class FastStringWriter extends Writer
 	@Override
 	public String toString()
 	{
+		if (this.segments != null)
+		{
+			return this.toCharSequence().toString();
+		}
 		return this.buf.toString();
 	}
 
@@ -247,12 +332,69 @@ public class FastStringWriter extends Writer
 	 * Return the string buffer itself.
 	 *
 	 * @return StringBuffer holding the current buffer value.
+	 *
+	 * @throws IllegalStateException
+	 *         If this writer is in chunked mode
 	 */
 	public StringBuilder getBuffer()
 	{
+		if (this.segments != null)
+		{
+			throw new IllegalStateException("No single buffer in chunked mode");
+		}
+		return this.buf;
+	}
+
+	/**
+	 * Return a read-only view of the characters written so far.
+	 *
+	 * In chunked mode, the view reads the segments in place (and so do its
+	 * subsequences), and is not affected by later writes; otherwise, it is
+	 * the underlying buffer itself.
+	 */
+	public CharSequence toCharSequence()
+	{
+		if (this.segments != null)
+		{
+			return new SegmentsView(this.segments, this.segmentSize, 0, this.length);
+		}
 		return this.buf;
 	}
 
+	/**
+	 * Write the characters written so far to the given writer, without
+	 * building a string.
+	 */
+	public void writeTo(Writer wr) throws IOException
+	{
+		if (this.segments != null)
+		{
+			for (int i = 0, left = this.length; left > 0; i++)
+			{
+				int n = Math.min(left, this.segmentSize);
+				wr.write(this.segments.get(i), 0, n);
+				left -= n;
+			}
+			return;
+		}
+
+		char[] chunk = BufferPool.Shared().acquireChars(Math.min(DEFAULT_SEGMENT_SIZE, Math.max(1, this.buf.length())));
+		try
+		{
+			for (int off = 0; off < this.buf.length(); )
+			{
+				int n = Math.min(chunk.length, this.buf.length() - off);
+				this.buf.getChars(off, off + n, chunk, 0);
+				wr.write(chunk, 0, n);
+				off += n;
+			}
+		}
+		finally
+		{
+			BufferPool.Shared().release(chunk);
+		}
+	}
+
 	/**
 	 * Flush the stream.
 	 */
@@ -272,4 +414,114 @@ public class FastStringWriter extends Writer
 	{
 		// empty
 	}
+
+	/**
+	 * Append the characters of the given sequence, between the given
+	 * indices.
+	 */
+	private void appendChars(CharSequence cs, int start, int end)
+	{
+		if ((start < 0) || (start > end) || (end > cs.length()))
+		{
+			throw new IndexOutOfBoundsException();
+		}
+		if (this.segments == null)
+		{
+			this.buf.append(cs, start, end);
+			return;
+		}
+
+		while (start < end)
+		{
+			char[] seg = this.room();
+			int pos = this.length % this.segmentSize;
+			int n = Math.min(end - start, this.segmentSize - pos);
+			if (cs instanceof String)
+			{
+				((String) cs).getChars(start, start + n, seg, pos);
+			}
+			else
+			{
+				for (int i = 0; i < n; i++)
+				{
+					seg[pos + i] = cs.charAt(start + i);
+				}
+			}
+			this.length += n;
+			start += n;
+		}
+	}
+
+	/**
+	 * Return the segment where the next character goes, adding a new one
+	 * if the last segment is full.
+	 */
+	private char[] room()
+	{
+		if (this.length == Integer.MAX_VALUE)
+		{
+			throw new OutOfMemoryError("Too many characters");
+		}
+		if (this.length == this.segments.size() * this.segmentSize)
+		{
+			this.segments.add(new char[this.segmentSize]);
+		}
+		return this.segments.get(this.length / this.segmentSize);
+	}
+
+	/** A read-only view of a range of the segments. */
+	private static final class SegmentsView implements CharSequence
+	{
+		private final List<char[]> segments;
+		private final int segmentSize;
+		private final int offset;
+		private final int length;
+
+		SegmentsView(List<char[]> segments, int segmentSize, int offset, int length)
+		{
+			this.segments = segments;
+			this.segmentSize = segmentSize;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		public int length()
+		{
+			return this.length;
+		}
+
+		public char charAt(int index)
+		{
+			if ((index < 0) || (index >= this.length))
+			{
+				throw new IndexOutOfBoundsException("Index: " + index);
+			}
+			int i = this.offset + index;
+			return this.segments.get(i / this.segmentSize)[i % this.segmentSize];
+		}
+
+		public CharSequence subSequence(int start, int end)
+		{
+			if ((start < 0) || (start > end) || (end > this.length))
+			{
+				throw new IndexOutOfBoundsException();
+			}
+			return new SegmentsView(this.segments, this.segmentSize, this.offset + start, end - start);
+		}
+
+		@Override
+		public String toString()
+		{
+			char[] chars = new char[this.length];
+			for (int done = 0; done < this.length; )
+			{
+				int i = this.offset + done;
+				int pos = i % this.segmentSize;
+				int n = Math.min(this.length - done, this.segmentSize - pos);
+				System.arraycopy(this.segments.get(i / this.segmentSize), pos, chars, done, n);
+				done += n;
+			}
+			return new String(chars);
+		}
+	}
 }
@@ -0,0 +1,422 @@
+/*
+ * Copyright (C) 2008-2012  Marco Guazzone
+ *                          [Distributed Computing System (DCS) Group,
+ *                           Computer Science Institute,
+ *                           Department of Science and Technological Innovation,
+ *                           University of Piemonte Orientale,
+ *                           Alessandria (Italy)]
+ *
+ * This file is part of dcj-commons.
+ *
+ * dcsj-commons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dcsj-commons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dcsj-commons.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.unipmn.di.dcs.common.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/**
+ * Computes the checksums of files concurrently.
+ *
+ * Files are split into blocks of {@link #getBlockSize()} bytes, which are
+ * hashed by a pool of worker threads: large files are memory-mapped, one
+ * block at a time, so that several blocks of the same file are hashed at
+ * once, while smaller files are read through a small buffer.
+ * Block results are then combined:
+ * <ul>
+ * <li>CRC-32 and CRC-32C block checksums are combined without reading the
+ * data again (see {@code ChecksumUtil.CombineCrc32}), so the result is the
+ * plain checksum of the whole file;</li>
+ * <li>SHA-256 block digests are combined into a tree hash: each block is
+ * hashed as {@code SHA-256(0x00 || block)}, and the file as
+ * {@code SHA-256(0x01 || length || block size || block digests)}, with
+ * lengths as 8-byte big-endian integers. The distinct prefixes keep a
+ * file made of block digests from hashing to the same value as the file
+ * those digests come from; hence, even files made of a single block do
+ * not get their plain SHA-256, and results depend on the block size.</li>
+ * </ul>
+ * Checksums are returned as lower-case hexadecimal strings.
+ *
+ * @author <a href="mailto:marco.guazzone@gmail.com">Marco Guazzone</a>
+ */
+public final class FileChecksummer
+{
+	/** The default block size (8 MiB). */
+	public static final int DEFAULT_BLOCK_SIZE = 8 << 20;
+	/** Size of the buffer for reading small files. */
+	private static final int READ_BUFFER_SIZE = 65536;
+	/** The prefixes of the SHA-256 tree hash inputs. */
+	private static final byte[] TREE_LEAF = { 0x00 };
+	private static final byte[] TREE_NODE = { 0x01 };
+
+	/** The {@code Checksum.update(ByteBuffer)} method (Java 9+), if any. */
+	private static final Method ChecksumUpdateBuffer = FindChecksumUpdateBuffer();
+
+	private final ChecksumAlgorithm algorithm;
+	private final int parallelism;
+	private int blockSize = DEFAULT_BLOCK_SIZE;
+
+	/**
+	 * A constructor, using as many threads as available processors.
+	 */
+	public FileChecksummer(ChecksumAlgorithm algorithm)
+	{
+		this( algorithm, 0 );
+	}
+
+	/**
+	 * A constructor.
+	 *
+	 * @param parallelism The number of threads; if less than or equal to 0,
+	 *        the number of available processors.
+	 */
+	public FileChecksummer(ChecksumAlgorithm algorithm, int parallelism)
+	{
+		this.algorithm = algorithm;
+		this.parallelism = ConcurrencyUtil.ResolveParallelism( parallelism );
+	}
+
+	public ChecksumAlgorithm getAlgorithm()
+	{
+		return this.algorithm;
+	}
+
+	/** Sets the size of the blocks hashed concurrently. */
+	public void setBlockSize(int value)
+	{
+		if ( value <= 0 )
+		{
+			throw new IllegalArgumentException( "Invalid block size: " + value );
+		}
+
+		this.blockSize = value;
+	}
+
+	public int getBlockSize()
+	{
+		return this.blockSize;
+	}
+
+	/** Returns the checksum of the given file. */
+	public String checksum(Path file) throws IOException
+	{
+		return this.checksum( Collections.singletonList( file ) ).get( file );
+	}
+
+	/**
+	 * Returns the checksums of the given files, in the given order.
+	 *
+	 * @throws IOException if a file cannot be read.
+	 */
+	public Map<Path,String> checksum(List<Path> files) throws IOException
+	{
+		Map<Path,String> checksums = new LinkedHashMap<Path,String>();
+		ExecutorService executor = Executors.newFixedThreadPool( this.parallelism, new DaemonThreadFactory( "checksum" ) );
+
+		try
+		{
+			List<List<Future<Block>>> results = new ArrayList<List<Future<Block>>>( files.size() );
+
+			for (final Path file : files)
+			{
+				long size = Files.size( file );
+				final boolean map = size > this.blockSize;
+				long nblocks = Math.max( 1, (size + this.blockSize - 1) / this.blockSize );
+
+				List<Future<Block>> blocks = new ArrayList<Future<Block>>( (int) nblocks );
+				for (long i = 0; i < nblocks; i++)
+				{
+					final long offset = i * this.blockSize;
+					final long len = Math.min( this.blockSize, size - offset );
+
+					blocks.add( executor.submit( new Callable<Block>()
+					{
+						public Block call() throws IOException
+						{
+							return FileChecksummer.this.hashBlock( file, offset, len, map );
+						}
+					}));
+				}
+				results.add( blocks );
+			}
+
+			for (int i = 0; i < files.size(); i++)
+			{
+				checksums.put( files.get( i ), this.combine( results.get( i ) ) );
+			}
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+
+		return checksums;
+	}
+
+	/**
+	 * Tells if the checksum of the given file is the expected one (compared
+	 * case-insensitively).
+	 */
+	public boolean verify(Path file, String expected) throws IOException
+	{
+		return this.checksum( file ).equalsIgnoreCase( expected );
+	}
+
+	/**
+	 * Verifies the checksums of the given files.
+	 *
+	 * @param expected The expected checksum of each file.
+	 * @return The files whose checksum is not the expected one, with their
+	 *         actual checksum (an empty map if all the files are fine).
+	 * @throws IOException if a file cannot be read.
+	 */
+	public Map<Path,String> verify(Map<Path,String> expected) throws IOException
+	{
+		Map<Path,String> mismatches = new LinkedHashMap<Path,String>();
+
+		for (Map.Entry<Path,String> e : this.checksum( new ArrayList<Path>( expected.keySet() ) ).entrySet())
+		{
+			if ( !e.getValue().equalsIgnoreCase( expected.get( e.getKey() ) ) )
+			{
+				mismatches.put( e.getKey(), e.getValue() );
+			}
+		}
+
+		return mismatches;
+	}
+
+	/** Hashes a block of a file, mapping it into memory if requested. */
+	private Block hashBlock(Path file, long offset, long len, boolean map) throws IOException
+	{
+		Block block = new Block( len );
+		FileChannel ch = null;
+		ByteBuffer buf = null;
+
+		try
+		{
+			ch = FileChannel.open( file, StandardOpenOption.READ );
+
+			if ( map )
+			{
+				block.update( ch.map( FileChannel.MapMode.READ_ONLY, offset, len ) );
+			}
+			else
+			{
+				int size = (int) Math.min( READ_BUFFER_SIZE, len );
+				buf = BufferPool.Shared().acquireDirect( size );
+				for (long pos = offset; pos < offset + len; )
+				{
+					buf.clear();
+					buf.limit( (int) Math.min( size, offset + len - pos ) );
+					int n = ch.read( buf, pos );
+					if ( n < 0 )
+					{
+						throw new EOFException( "Unexpected end of file after " + pos + " bytes: " + file );
+					}
+					buf.flip();
+					block.update( buf );
+					pos += n;
+				}
+			}
+		}
+		finally
+		{
+			if ( ch != null )
+			{
+				try { ch.close(); } catch (Exception e) { /* ignore */ }
+				ch = null;
+			}
+			BufferPool.Shared().release( buf );
+		}
+
+		block.finish();
+
+		return block;
+	}
+
+	/** Combines the results of the blocks of a file. */
+	private String combine(List<Future<Block>> blocks) throws IOException
+	{
+		if ( this.algorithm == ChecksumAlgorithm.SHA256 )
+		{
+			List<byte[]> digests = new ArrayList<byte[]>( blocks.size() );
+			long length = 0;
+			for (Future<Block> f : blocks)
+			{
+				Block b = ConcurrencyUtil.Await( f );
+				digests.add( b.digest );
+				length += b.length;
+			}
+
+			MessageDigest md = NewDigest();
+			md.update( TREE_NODE );
+			md.update( ByteBuffer.allocate( 16 ).putLong( length ).putLong( this.blockSize ).array() );
+			for (byte[] d : digests)
+			{
+				md.update( d );
+			}
+			return ToHex( md.digest() );
+		}
+
+		long crc = 0;
+		for (Future<Block> f : blocks)
+		{
+			Block b = ConcurrencyUtil.Await( f );
+			crc = ( this.algorithm == ChecksumAlgorithm.CRC32C )
+				? ChecksumUtil.CombineCrc32c( crc, b.crc, b.length )
+				: ChecksumUtil.CombineCrc32( crc, b.crc, b.length );
+		}
+		return String.format( "%08x", crc );
+	}
+
+	/** Returns the given bytes as a lower-case hexadecimal string. */
+	public static String ToHex(byte[] b)
+	{
+		char[] digits = "0123456789abcdef".toCharArray();
+		char[] s = new char[2 * b.length];
+
+		for (int i = 0; i < b.length; i++)
+		{
+			s[2 * i] = digits[(b[i] >> 4) & 0xF];
+			s[2 * i + 1] = digits[b[i] & 0xF];
+		}
+
+		return new String( s );
+	}
+
+	private static MessageDigest NewDigest() throws IOException
+	{
+		try
+		{
+			return MessageDigest.getInstance( "SHA-256" );
+		}
+		catch (NoSuchAlgorithmException nsae)
+		{
+			throw new IOException( nsae );
+		}
+	}
+
+	private static Method FindChecksumUpdateBuffer()
+	{
+		try
+		{
+			return Checksum.class.getMethod( "update", ByteBuffer.class );
+		}
+		catch (Exception e)
+		{
+			return null;
+		}
+	}
+
+	/** The checksum (or digest) of a block. */
+	private final class Block
+	{
+		final long length;
+		long crc;
+		byte[] digest;
+		private Checksum checksum;
+		private MessageDigest md;
+		private byte[] scratch;
+
+		Block(long length) throws IOException
+		{
+			this.length = length;
+
+			switch ( FileChecksummer.this.algorithm )
+			{
+				case CRC32:
+					this.checksum = new CRC32();
+					break;
+				case CRC32C:
+					this.checksum = ChecksumUtil.NewCrc32c();
+					break;
+				default:
+					this.md = NewDigest();
+					this.md.update( TREE_LEAF );
+					break;
+			}
+		}
+
+		void update(ByteBuffer buf) throws IOException
+		{
+			if ( this.md != null )
+			{
+				this.md.update( buf );
+			}
+			else if ( this.checksum instanceof CRC32 )
+			{
+				((CRC32) this.checksum).update( buf );
+			}
+			else if ( ChecksumUpdateBuffer != null && !(this.checksum instanceof Crc32c) )
+			{
+				try
+				{
+					ChecksumUpdateBuffer.invoke( this.checksum, buf );
+				}
+				catch (Exception e)
+				{
+					throw new IOException( e );
+				}
+			}
+			else
+			{
+				if ( this.scratch == null )
+				{
+					this.scratch = BufferPool.Shared().acquireBytes( READ_BUFFER_SIZE );
+				}
+				while ( buf.hasRemaining() )
+				{
+					int n = Math.min( buf.remaining(), this.scratch.length );
+					buf.get( this.scratch, 0, n );
+					this.checksum.update( this.scratch, 0, n );
+				}
+			}
+		}
+
+		void finish()
+		{
+			if ( this.md != null )
+			{
+				this.digest = this.md.digest();
+			}
+			else
+			{
+				this.crc = this.checksum.getValue();
+			}
+			BufferPool.Shared().release( this.scratch );
+			this.checksum = null;
+			this.md = null;
+			this.scratch = null;
+		}
+	}
+}
@@ -0,0 +1,395 @@
+/*
+ * Copyright (C) 2008-2012  Marco Guazzone
+ *                          [Distributed Computing System (DCS) Group,
+ *                           Computer Science Institute,
+ *                           Department of Science and Technological Innovation,
+ *                           University of Piemonte Orientale,
+ *                           Alessandria (Italy)]
+ *
+ * This file is part of dcj-commons.
+ *
+ * dcsj-commons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dcsj-commons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dcsj-commons.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.unipmn.di.dcs.common.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Copies files through their channels, in chunks.
+ *
+ * Each chunk is copied with {@link FileChannel#transferTo}, which lets the
+ * operating system move the data without copying it to user space; since
+ * transfers may copy less than requested (or be capped, e.g., at 2 GiB),
+ * the copier loops until the whole range is copied, and falls back to a
+ * loop over a direct buffer if a transfer makes no progress.
+ *
+ * When sparse copies are enabled, data is always copied through the
+ * buffer, and blocks of zeros are skipped rather than written, so that
+ * holes of the source become holes of the destination (on file systems
+ * supporting sparse files).
+ *
+ * When verification is enabled, the checksums of the source and of the
+ * destination are compared once the copy is complete (see
+ * {@link FileChecksummer}).
+ *
+ * Instances can be shared by threads, once configured.
+ *
+ * @author <a href="mailto:marco.guazzone@gmail.com">Marco Guazzone</a>
+ */
+public final class FileCopier
+{
+	/** The default chunk size (64 MiB). */
+	public static final int DEFAULT_CHUNK_SIZE = 64 << 20;
+	/** The default size of the buffer of buffered copies (1 MiB). */
+	public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+	/** Granularity of the detection of holes in sparse copies. */
+	private static final int SPARSE_BLOCK_SIZE = 4096;
+
+	private long chunkSize = DEFAULT_CHUNK_SIZE;
+	private int bufferSize = DEFAULT_BUFFER_SIZE;
+	private boolean sparse = false;
+	private IFileCopyListener listener;
+	private ChecksumAlgorithm verify;
+
+	/** A constructor. */
+	public FileCopier()
+	{
+		// empty
+	}
+
+	/**
+	 * Sets the number of bytes copied by each transfer, which is also how
+	 * often the listener is notified.
+	 */
+	public void setChunkSize(long value)
+	{
+		if ( value <= 0 )
+		{
+			throw new IllegalArgumentException( "Invalid chunk size: " + value );
+		}
+
+		this.chunkSize = value;
+	}
+
+	public long getChunkSize()
+	{
+		return this.chunkSize;
+	}
+
+	/** Sets the size of the direct buffer of buffered copies. */
+	public void setBufferSize(int value)
+	{
+		if ( value < SPARSE_BLOCK_SIZE )
+		{
+			throw new IllegalArgumentException( "Invalid buffer size: " + value );
+		}
+
+		this.bufferSize = value;
+	}
+
+	public int getBufferSize()
+	{
+		return this.bufferSize;
+	}
+
+	/**
+	 * Enables or disables sparse copies, where blocks of zeros are skipped
+	 * instead of being written.
+	 */
+	public void setSparse(boolean value)
+	{
+		this.sparse = value;
+	}
+
+	public boolean isSparse()
+	{
+		return this.sparse;
+	}
+
+	/** Sets the listener notified of the progress of copies. */
+	public void setListener(IFileCopyListener value)
+	{
+		this.listener = value;
+	}
+
+	public IFileCopyListener getListener()
+	{
+		return this.listener;
+	}
+
+	/**
+	 * Sets the algorithm used to verify copies, or {@code null} (the
+	 * default) to not verify them.
+	 */
+	public void setVerify(ChecksumAlgorithm value)
+	{
+		this.verify = value;
+	}
+
+	public ChecksumAlgorithm getVerify()
+	{
+		return this.verify;
+	}
+
+	/**
+	 * Copies the given file, replacing the destination if it exists.
+	 *
+	 * @return The number of bytes copied.
+	 * @throws IOException if an I/O error occurs, the source shrinks
+	 *         while being copied or the copy does not match the source.
+	 */
+	public long copy(Path source, Path dest) throws IOException
+	{
+		long size = this.copyFile( source, dest );
+
+		if ( this.verify != null )
+		{
+			Map<Path,String> checksums = new FileChecksummer( this.verify ).checksum( Arrays.asList( source, dest ) );
+
+			if ( !checksums.get( source ).equals( checksums.get( dest ) ) )
+			{
+				throw new IOException( "Checksum mismatch copying '" + source + "' to '" + dest + "'" );
+			}
+		}
+
+		return size;
+	}
+
+	private long copyFile(Path source, Path dest) throws IOException
+	{
+		FileChannel src = null;
+		FileChannel dst = null;
+
+		try
+		{
+			src = FileChannel.open( source, StandardOpenOption.READ );
+			dst = this.sparse
+				? FileChannel.open( dest, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.SPARSE )
+				: FileChannel.open( dest, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING );
+
+			long size = src.size();
+			this.copyRange( source, src, 0, size, dst, 0 );
+
+			if ( dst.size() < size )
+			{
+				// Trailing hole
+				dst.write( ByteBuffer.allocate( 1 ), size - 1 );
+			}
+
+			dst.close();
+			dst = null;
+
+			return size;
+		}
+		finally
+		{
+			if ( src != null )
+			{
+				try { src.close(); } catch (Exception e) { /* ignore */ }
+				src = null;
+			}
+			if ( dst != null )
+			{
+				try { dst.close(); } catch (Exception e) { /* ignore */ }
+				dst = null;
+			}
+		}
+	}
+
+	/**
+	 * Copies a range of the given source channel into the given
+	 * destination channel.
+	 *
+	 * The position of the source channel is not used, while the one of the
+	 * destination channel is changed; hence, concurrent copies of ranges of
+	 * the same file need their own destination channel.
+	 * In sparse copies, the destination range must not hold any data (as
+	 * zeros are not written), and the destination is not extended to cover
+	 * trailing holes.
+	 *
+	 * @param source The path of the source, passed to the listener.
+	 * @return The number of bytes copied.
+	 * @throws IOException if an I/O error occurs or the source ends before
+	 *         the end of the range.
+	 */
+	public long copyRange(Path source, FileChannel src, long srcPos, long len, FileChannel dst, long dstPos) throws IOException
+	{
+		long start = System.nanoTime();
+		long copied = 0;
+		ByteBuffer buf = null;
+
+		dst.position( dstPos );
+
+		try
+		{
+			while ( copied < len )
+			{
+				long count = Math.min( this.chunkSize, len - copied );
+				long n = 0;
+
+				if ( !this.sparse && buf == null )
+				{
+					n = src.transferTo( srcPos + copied, count, dst );
+				}
+				if ( n <= 0 )
+				{
+					// No zero-copy progress: go on through the buffer
+					if ( buf == null )
+					{
+						buf = BufferPool.Shared().acquireDirect( this.bufferSize );
+					}
+					n = this.copyBuffered( src, srcPos + copied, count, dst, dstPos + copied, buf );
+				}
+				if ( n <= 0 )
+				{
+					throw new IOException( "Unexpected end of file after " + (srcPos + copied) + " bytes: " + source );
+				}
+
+				copied += n;
+				this.notify( source, copied, len, start );
+			}
+
+			if ( len == 0 )
+			{
+				this.notify( source, 0, 0, start );
+			}
+
+			return copied;
+		}
+		finally
+		{
+			BufferPool.Shared().release( buf );
+		}
+	}
+
+	/**
+	 * Copies up to {@code count} bytes through the given buffer, skipping
+	 * blocks of zeros in sparse copies.
+	 *
+	 * @return The number of bytes copied, or -1 at the end of the source.
+	 */
+	private long copyBuffered(FileChannel src, long srcPos, long count, FileChannel dst, long dstPos, ByteBuffer buf) throws IOException
+	{
+		long copied = 0;
+
+		while ( copied < count )
+		{
+			buf.clear();
+			if ( buf.capacity() > count - copied )
+			{
+				buf.limit( (int) (count - copied) );
+			}
+
+			int n = src.read( buf, srcPos + copied );
+			if ( n < 0 )
+			{
+				break;
+			}
+			buf.flip();
+
+			if ( this.sparse )
+			{
+				this.writeSparse( buf, dst, dstPos + copied );
+			}
+			else
+			{
+				while ( buf.hasRemaining() )
+				{
+					dst.write( buf, dstPos + copied + buf.position() );
+				}
+			}
+
+			copied += n;
+		}
+
+		return ( copied > 0 || count == 0 ) ? copied : -1;
+	}
+
+	/**
+	 * Writes the given buffer at the given position, skipping the blocks
+	 * made of zeros only.
+	 */
+	private void writeSparse(ByteBuffer buf, FileChannel dst, long pos) throws IOException
+	{
+		int end = buf.limit();
+		int p = 0;
+
+		while ( p < end )
+		{
+			// Skip zero blocks
+			while ( p < end && IsZero( buf, p, Math.min( end, p + SPARSE_BLOCK_SIZE ) ) )
+			{
+				p = Math.min( end, p + SPARSE_BLOCK_SIZE );
+			}
+
+			// Write the following data blocks
+			int q = p;
+			while ( q < end && !IsZero( buf, q, Math.min( end, q + SPARSE_BLOCK_SIZE ) ) )
+			{
+				q = Math.min( end, q + SPARSE_BLOCK_SIZE );
+			}
+			if ( q > p )
+			{
+				ByteBuffer data = buf.duplicate();
+				data.limit( q );
+				data.position( p );
+				while ( data.hasRemaining() )
+				{
+					dst.write( data, pos + data.position() );
+				}
+			}
+
+			p = q;
+		}
+	}
+
+	private void notify(Path source, long copied, long total, long start)
+	{
+		if ( this.listener == null )
+		{
+			return;
+		}
+
+		double secs = (System.nanoTime() - start) / 1e9;
+		this.listener.progress( source, copied, total, secs > 0 ? copied / secs : 0 );
+	}
+
+	/** Tells if the bytes between the given positions are all zeros. */
+	private static boolean IsZero(ByteBuffer buf, int from, int to)
+	{
+		int p = from;
+		for (; p + 8 <= to; p += 8)
+		{
+			if ( buf.getLong( p ) != 0 )
+			{
+				return false;
+			}
+		}
+		for (; p < to; p++)
+		{
+			if ( buf.get( p ) != 0 )
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+}
@@ -0,0 +1,631 @@
+/*
+ * Copyright (C) 2008-2012  Marco Guazzone
+ *                          [Distributed Computing System (DCS) Group,
+ *                           Computer Science Institute,
+ *                           Department of Science and Technological Innovation,
+ *                           University of Piemonte Orientale,
+ *                           Alessandria (Italy)]
+ *
+ * This file is part of dcj-commons.
+ *
+ * dcsj-commons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dcsj-commons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dcsj-commons.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.unipmn.di.dcs.common.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Follows files as they grow (as {@code tail -f} does), delivering the
+ * appended data to listeners.
+ *
+ * A single thread follows all the files: it remembers the offset up to
+ * which each file has been read, and reads a file again when notified of
+ * a change by a {@link WatchService} (which watches the directories of the
+ * files), and, anyway, every {@link #getPollInterval() poll interval}, so
+ * that changes are not missed on file systems where the watch service is
+ * not supported or slow.
+ *
+ * A file shorter than its offset is considered truncated, and a file
+ * whose key (e.g., its inode) has changed is considered replaced, as when
+ * rotated: in both cases, the file is then followed from its start (data
+ * appended to a replaced file after its last reading are not delivered).
+ * A file which does not exist (yet, or any more) is followed once it
+ * appears.
+ *
+ * Files are read only when changed, and closed after each reading, so
+ * that following thousands of files does not hold as many descriptors.
+ *
+ * @author <a href="mailto:marco.guazzone@gmail.com">Marco Guazzone</a>
+ */
+public final class FileFollower implements Closeable
+{
+	/** The default poll interval, in milliseconds. */
+	public static final long DEFAULT_POLL_INTERVAL = 1000;
+
+	private static final int READ_BUFFER_SIZE = 65536;
+
+	private final Map<Path,Followed> files = new ConcurrentHashMap<Path,Followed>();
+	private final Map<WatchKey,Path> dirs = new ConcurrentHashMap<WatchKey,Path>();
+	private final Map<Path,WatchKey> keys = new ConcurrentHashMap<Path,WatchKey>();
+	private final WatchService watcher;
+	/** The buffer for reading files (used by the thread only). */
+	private final ByteBuffer buf = ByteBuffer.allocate( READ_BUFFER_SIZE );
+	private volatile long pollInterval = DEFAULT_POLL_INTERVAL;
+	private volatile boolean closed = false;
+	private Thread thread;
+
+	/**
+	 * A constructor.
+	 *
+	 * Files are followed once {@link #start() started}.
+	 */
+	public FileFollower()
+	{
+		WatchService ws = null;
+		try
+		{
+			ws = java.nio.file.FileSystems.getDefault().newWatchService();
+		}
+		catch (Exception e)
+		{
+			// Polling only
+		}
+		this.watcher = ws;
+	}
+
+	/** Sets the interval between two readings of all files. */
+	public void setPollInterval(long millis)
+	{
+		if ( millis <= 0 )
+		{
+			throw new IllegalArgumentException( "Invalid poll interval: " + millis );
+		}
+
+		this.pollInterval = millis;
+	}
+
+	public long getPollInterval()
+	{
+		return this.pollInterval;
+	}
+
+	/** Starts the thread following the files. */
+	public synchronized void start()
+	{
+		if ( this.closed )
+		{
+			throw new IllegalStateException( "Follower closed" );
+		}
+		if ( this.thread == null )
+		{
+			this.thread = new DaemonThreadFactory( "file-follower" ).newThread( new Runnable()
+			{
+				public void run()
+				{
+					FileFollower.this.run();
+				}
+			});
+			this.thread.start();
+		}
+	}
+
+	/**
+	 * Follows the given file, from its start.
+	 *
+	 * @see #follow(Path,boolean,IFileFollowListener)
+	 */
+	public void follow(Path file, IFileFollowListener listener) throws IOException
+	{
+		this.follow( file, false, listener );
+	}
+
+	/**
+	 * Follows the given file, delivering its appended bytes to the given
+	 * listener.
+	 *
+	 * If the file is already followed, only its listener is replaced: the
+	 * file is still read from where it was ({@code fromEnd} is ignored).
+	 *
+	 * @param fromEnd If {@code true}, only data appended from now on are
+	 *        delivered; otherwise, the current content is delivered, too.
+	 */
+	public void follow(Path file, boolean fromEnd, IFileFollowListener listener) throws IOException
+	{
+		if ( listener == null )
+		{
+			throw new IllegalArgumentException( "Listener not specified" );
+		}
+
+		Path path = file.toAbsolutePath().normalize();
+		Followed old = this.files.get( path );
+		if ( old != null )
+		{
+			old.listener = listener;
+			return;
+		}
+
+		Followed f = new Followed( path, listener );
+
+		if ( fromEnd )
+		{
+			try
+			{
+				BasicFileAttributes attrs = Files.readAttributes( f.path, BasicFileAttributes.class );
+				f.offset = attrs.size();
+				f.key = Key( attrs );
+			}
+			catch (NoSuchFileException nsfe)
+			{
+				// Followed once created
+			}
+		}
+
+		this.files.put( f.path, f );
+		this.watch( f.path.getParent() );
+	}
+
+	/**
+	 * Follows the given file, delivering its appended lines, decoded with
+	 * the given charset, to the given listener.
+	 *
+	 * Lines are split as {@code BufferedReader} does.
+	 *
+	 * @see #follow(Path,boolean,IFileFollowListener)
+	 */
+	public void follow(Path file, boolean fromEnd, Charset cs, IFileLineListener listener) throws IOException
+	{
+		if ( listener == null )
+		{
+			throw new IllegalArgumentException( "Listener not specified" );
+		}
+
+		this.follow( file, fromEnd, new LineSplitter( cs, listener ) );
+	}
+
+	/** Stops following the given file. */
+	public void unfollow(Path file)
+	{
+		Path path = file.toAbsolutePath().normalize();
+
+		if ( this.files.remove( path ) != null )
+		{
+			Path dir = path.getParent();
+			for (Path p : this.files.keySet())
+			{
+				if ( dir.equals( p.getParent() ) )
+				{
+					return;
+				}
+			}
+
+			WatchKey key = this.keys.remove( dir );
+			if ( key != null )
+			{
+				key.cancel();
+				this.dirs.remove( key );
+			}
+		}
+	}
+
+	/** Stops following all the files, and the thread. */
+	public void close() throws IOException
+	{
+		Thread t = null;
+
+		synchronized (this)
+		{
+			this.closed = true;
+			t = this.thread;
+		}
+
+		if ( this.watcher != null )
+		{
+			this.watcher.close();
+		}
+		if ( t != null )
+		{
+			t.interrupt();
+		}
+		this.files.clear();
+	}
+
+	/** The loop of the thread. */
+	private void run()
+	{
+		long nextPoll = System.currentTimeMillis();
+
+		try
+		{
+			while ( !this.closed )
+			{
+				long wait = Math.max( 1, nextPoll - System.currentTimeMillis() );
+				WatchKey key = null;
+
+				if ( this.watcher != null )
+				{
+					key = this.watcher.poll( wait, TimeUnit.MILLISECONDS );
+				}
+				else
+				{
+					Thread.sleep( wait );
+				}
+
+				if ( key != null )
+				{
+					this.checkEvents( key );
+				}
+
+				if ( System.currentTimeMillis() >= nextPoll )
+				{
+					for (Followed f : this.files.values())
+					{
+						this.check( f );
+						this.watch( f.path.getParent() );
+					}
+					nextPoll = System.currentTimeMillis() + this.pollInterval;
+				}
+			}
+		}
+		catch (InterruptedException ie)
+		{
+			// Closed
+		}
+		catch (ClosedWatchServiceException cwse)
+		{
+			// Closed
+		}
+	}
+
+	/** Checks the files changed according to the given key. */
+	private void checkEvents(WatchKey key)
+	{
+		Path dir = this.dirs.get( key );
+
+		for (WatchEvent<?> ev : key.pollEvents())
+		{
+			if ( dir == null )
+			{
+				continue;
+			}
+
+			if ( ev.kind() == StandardWatchEventKinds.OVERFLOW )
+			{
+				// Events lost: checks all the files of the directory
+				for (Followed f : this.files.values())
+				{
+					if ( dir.equals( f.path.getParent() ) )
+					{
+						this.check( f );
+					}
+				}
+			}
+			else
+			{
+				Followed f = this.files.get( dir.resolve( (Path) ev.context() ) );
+				if ( f != null )
+				{
+					this.check( f );
+				}
+			}
+		}
+
+		if ( !key.reset() )
+		{
+			// The directory is gone: polled until watched again
+			this.dirs.remove( key );
+			if ( dir != null )
+			{
+				this.keys.remove( dir );
+			}
+		}
+	}
+
+	/** Watches the given directory, if possible and not already done. */
+	private void watch(Path dir)
+	{
+		if ( this.watcher == null || dir == null || this.keys.containsKey( dir ) )
+		{
+			return;
+		}
+
+		try
+		{
+			WatchKey key = dir.register(
+				this.watcher,
+				StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_MODIFY,
+				StandardWatchEventKinds.ENTRY_DELETE
+			);
+			this.dirs.put( key, dir );
+			this.keys.put( dir, key );
+		}
+		catch (Exception e)
+		{
+			// Not (yet) watchable: polled
+		}
+	}
+
+	/** Reads what has been appended to the given file, if anything. */
+	private void check(Followed f)
+	{
+		BasicFileAttributes attrs = null;
+
+		try
+		{
+			attrs = Files.readAttributes( f.path, BasicFileAttributes.class );
+		}
+		catch (NoSuchFileException nsfe)
+		{
+			// Deleted (or being rotated): waits for it
+			return;
+		}
+		catch (IOException ioe)
+		{
+			Failed( f, ioe );
+			return;
+		}
+
+		Object key = Key( attrs );
+		if ( f.key != null && !f.key.equals( key ) )
+		{
+			f.offset = 0;
+			f.key = key;
+			try
+			{
+				f.listener.rotated( f.path );
+			}
+			catch (RuntimeException re)
+			{
+				Failed( f, re );
+			}
+		}
+		else if ( attrs.size() < f.offset )
+		{
+			f.offset = 0;
+			try
+			{
+				f.listener.truncated( f.path );
+			}
+			catch (RuntimeException re)
+			{
+				Failed( f, re );
+			}
+		}
+		f.key = key;
+
+		if ( attrs.size() > f.offset )
+		{
+			this.read( f );
+		}
+	}
+
+	/** Reads the given file from its offset to its end. */
+	private void read(Followed f)
+	{
+		FileChannel ch = null;
+
+		try
+		{
+			ch = FileChannel.open( f.path, StandardOpenOption.READ );
+
+			while ( !this.closed && this.files.get( f.path ) == f )
+			{
+				this.buf.clear();
+				int n = ch.read( this.buf, f.offset );
+				if ( n <= 0 )
+				{
+					break;
+				}
+				f.offset += n;
+				this.buf.flip();
+
+				try
+				{
+					f.listener.appended( f.path, this.buf );
+				}
+				catch (RuntimeException re)
+				{
+					Failed( f, re );
+				}
+			}
+		}
+		catch (NoSuchFileException nsfe)
+		{
+			// Deleted meanwhile
+		}
+		catch (IOException ioe)
+		{
+			Failed( f, ioe );
+		}
+		finally
+		{
+			if ( ch != null )
+			{
+				try { ch.close(); } catch (Exception e) { /* ignore */ }
+				ch = null;
+			}
+		}
+	}
+
+	private static void Failed(Followed f, Exception e)
+	{
+		try
+		{
+			f.listener.failed( f.path, e );
+		}
+		catch (RuntimeException re)
+		{
+			// ignore
+		}
+	}
+
+	/** Returns what identifies the given file across renames. */
+	private static Object Key(BasicFileAttributes attrs)
+	{
+		return ( attrs.fileKey() != null ) ? attrs.fileKey() : attrs.creationTime();
+	}
+
+	/** The state of a followed file. */
+	private static final class Followed
+	{
+		final Path path;
+		volatile IFileFollowListener listener;
+		long offset = 0;
+		Object key;
+
+		Followed(Path path, IFileFollowListener listener)
+		{
+			this.path = path;
+			this.listener = listener;
+		}
+	}
+
+	/** Decodes appended bytes, and splits them into lines. */
+	private static final class LineSplitter implements IFileFollowListener
+	{
+		private final CharsetDecoder decoder;
+		private final IFileLineListener listener;
+		/** The bytes not decoded yet (e.g., an incomplete character). */
+		private ByteBuffer in = ByteBuffer.allocate( READ_BUFFER_SIZE );
+		private final CharBuffer out = CharBuffer.allocate( READ_BUFFER_SIZE );
+		private final StringBuilder line = new StringBuilder();
+		private boolean afterCr = false;
+
+		LineSplitter(Charset cs, IFileLineListener listener)
+		{
+			this.decoder = cs.newDecoder()
+				.onMalformedInput( CodingErrorAction.REPLACE )
+				.onUnmappableCharacter( CodingErrorAction.REPLACE );
+			this.listener = listener;
+		}
+
+		public void appended(Path file, ByteBuffer data)
+		{
+			if ( this.in.remaining() < data.remaining() )
+			{
+				ByteBuffer bigger = ByteBuffer.allocate( this.in.position() + data.remaining() );
+				this.in.flip();
+				bigger.put( this.in );
+				this.in = bigger;
+			}
+			this.in.put( data );
+			this.in.flip();
+
+			try
+			{
+				while ( true )
+				{
+					this.out.clear();
+					boolean overflow = this.decoder.decode( this.in, this.out, false ).isOverflow();
+					this.out.flip();
+					this.split( file );
+					if ( !overflow )
+					{
+						break;
+					}
+				}
+			}
+			finally
+			{
+				this.in.compact();
+			}
+		}
+
+		public void truncated(Path file)
+		{
+			this.reset();
+		}
+
+		public void rotated(Path file)
+		{
+			this.reset();
+		}
+
+		public void failed(Path file, Exception e)
+		{
+			this.listener.failed( file, e );
+		}
+
+		/** Splits the decoded characters into lines. */
+		private void split(Path file)
+		{
+			while ( this.out.hasRemaining() )
+			{
+				char c = this.out.get();
+
+				if ( c == '\n' )
+				{
+					if ( !this.afterCr )
+					{
+						this.endLine( file );
+					}
+					this.afterCr = false;
+				}
+				else if ( c == '\r' )
+				{
+					this.endLine( file );
+					this.afterCr = true;
+				}
+				else
+				{
+					this.line.append( c );
+					this.afterCr = false;
+				}
+			}
+		}
+
+		private void endLine(Path file)
+		{
+			String s = this.line.toString();
+
+			this.line.setLength( 0 );
+			try
+			{
+				this.listener.lineAppended( file, s );
+			}
+			catch (RuntimeException re)
+			{
+				this.listener.failed( file, re );
+			}
+		}
+
+		private void reset()
+		{
+			this.decoder.reset();
+			this.in.clear();
+			this.line.setLength( 0 );
+			this.afterCr = false;
+		}
+	}
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2008-2012  Marco Guazzone
+ *                          [Distributed Computing System (DCS) Group,
+ *                           Computer Science Institute,
+ *                           Department of Science and Technological Innovation,
+ *                           University of Piemonte Orientale,
+ *                           Alessandria (Italy)]
+ *
+ * This file is part of dcj-commons.
+ *
+ * dcsj-commons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dcsj-commons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dcsj-commons.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.unipmn.di.dcs.common.io;
+
+/**
+ * Options for synchronizing file trees (see {@link
+ * FileUtil#Sync(String,String,FileSyncOptions)}).
+ *
+ * @author <a href="mailto:marco.guazzone@gmail.com">Marco Guazzone</a>
+ */
+public class FileSyncOptions
+{
+	/** The default block size of delta transfers (1 MiB). */
+	public static final int DEFAULT_BLOCK_SIZE = 1 << 20;
+
+	private int parallelism = 0;
+	private boolean deltaTransfer = false;
+	private int blockSize = DEFAULT_BLOCK_SIZE;
+	private boolean deleteExtraneous = false;
+
+	/** A constructor. */
+	public FileSyncOptions()
+	{
+		// empty
+	}
+
+	/**
+	 * Sets the number of threads; a value less than or equal to 0 means
+	 * the number of available processors.
+	 */
+	public void setParallelism(int value)
+	{
+		this.parallelism = value;
+	}
+
+	public int getParallelism()
+	{
+		return this.parallelism;
+	}
+
+	/**
+	 * Enables or disables delta transfers.
+	 *
+	 * When enabled, a changed file whose destination already exists is
+	 * compared with it block by block, and only the blocks which differ
+	 * are written (the destination is then truncated or extended to the
+	 * size of the source); otherwise, changed files are copied in full.
+	 */
+	public void setDeltaTransfer(boolean value)
+	{
+		this.deltaTransfer = value;
+	}
+
+	public boolean isDeltaTransfer()
+	{
+		return this.deltaTransfer;
+	}
+
+	/** Sets the size of the blocks compared by delta transfers. */
+	public void setBlockSize(int value)
+	{
+		if ( value <= 0 )
+		{
+			throw new IllegalArgumentException( "Invalid block size: " + value );
+		}
+
+		this.blockSize = value;
+	}
+
+	public int getBlockSize()
+	{
+		return this.blockSize;
+	}
+
+	/**
+	 * Enables or disables the deletion of the files of the destination
+	 * which do not exist in the source.
+	 */
+	public void setDeleteExtraneous(boolean value)
+	{
+		this.deleteExtraneous = value;
+	}
+
+	public boolean isDeleteExtraneous()
+	{
+		return this.deleteExtraneous;
+	}
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2008-2012  Marco Guazzone
+ *                          [Distributed Computing System (DCS) Group,
+ *                           Computer Science Institute,
+ *                           Department of Science and Technological Innovation,
+ *                           University of Piemonte Orientale,
+ *                           Alessandria (Italy)]
+ *
+ * This file is part of dcj-commons.
+ *
+ * dcsj-commons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dcsj-commons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dcsj-commons.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.unipmn.di.dcs.common.io;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Summarizes an operation on a file tree (e.g., {@link
+ * FileUtil#CopyTree(String,String)}).
+ *
+ * Files which could not be processed do not stop the operation, and are
+ * reported along with the cause of the failure.
+ *
+ * @author <a href="mailto:marco.guazzone@gmail.com">Marco Guazzone</a>
+ */
+public final class FileTreeReport
+{
+	private final long fileCount;
+	private final long directoryCount;
+	private final long byteCount;
+	private final long skippedCount;
+	private final long deletedCount;
+	private final Map<Path,IOException> failures;
+	private final long elapsedMillis;
+	private final boolean renamed;
+
+	/** A constructor. */
+	public FileTreeReport(long fileCount, long directoryCount, long byteCount, Map<Path,IOException> failures, long elapsedMillis, boolean renamed)
+	{
+		this( fileCount, directoryCount, byteCount, 0, 0, failures, elapsedMillis, renamed );
+	}
+
+	/** A constructor. */
+	public FileTreeReport(long fileCount, long directoryCount, long byteCount, long skippedCount, long deletedCount, Map<Path,IOException> failures, long elapsedMillis, boolean renamed)
+	{
+		this.fileCount = fileCount;
+		this.directoryCount = directoryCount;
+		this.byteCount = byteCount;
+		this.skippedCount = skippedCount;
+		this.deletedCount = deletedCount;
+		this.failures = Collections.unmodifiableMap( failures );
+		this.elapsedMillis = elapsedMillis;
+		this.renamed = renamed;
+	}
+
+	/**
+	 * Returns the number of files (including symbolic links) successfully
+	 * processed.
+	 */
+	public long getFileCount()
+	{
+		return this.fileCount;
+	}
+
+	/** Returns the number of directories successfully processed. */
+	public long getDirectoryCount()
+	{
+		return this.directoryCount;
+	}
+
+	/** Returns the number of bytes of data written. */
+	public long getByteCount()
+	{
+		return this.byteCount;
+	}
+
+	/**
+	 * Returns the number of files left untouched because they were
+	 * already up to date (see {@link FileUtil#Sync(String,String)}).
+	 */
+	public long getSkippedCount()
+	{
+		return this.skippedCount;
+	}
+
+	/**
+	 * Returns the number of extraneous files and directories deleted (see
+	 * {@link FileSyncOptions#setDeleteExtraneous(boolean)}).
+	 */
+	public long getDeletedCount()
+	{
+		return this.deletedCount;
+	}
+
+	/** Returns the files which could not be processed, sorted by path. */
+	public Map<Path,IOException> getFailures()
+	{
+		return this.failures;
+	}
+
+	public int getFailureCount()
+	{
+		return this.failures.size();
+	}
+
+	/** Tells if all the files have been processed. */
+	public boolean isSuccessful()
+	{
+		return this.failures.isEmpty();
+	}
+
+	/** Returns the duration of the operation, in milliseconds. */
+	public long getElapsedMillis()
+	{
+		return this.elapsedMillis;
+	}
+
+	/**
+	 * Tells if the tree has been moved by renaming its root, in which case
+	 * its content has not been walked (and nothing is counted).
+	 */
+	public boolean isRenamed()
+	{
+		return this.renamed;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "files: " + this.fileCount
+			+ ", directories: " + this.directoryCount
+			+ ", bytes: " + this.byteCount
+			+ ", skipped: " + this.skippedCount
+			+ ", deleted: " + this.deletedCount
+			+ ", failures: " + this.failures.size()
+			+ ", elapsed: " + this.elapsedMillis + " ms"
+			+ ( this.renamed ? " (renamed)" : "" );
+	}
+}
@@ -0,0 +1,347 @@
+/*
+ * Copyright (C) 2008-2012  Marco Guazzone
+ *                          [Distributed Computing System (DCS) Group,
+ *                           Computer Science Institute,
+ *                           Department of Science and Technological Innovation,
+ *                           University of Piemonte Orientale,
+ *                           Alessandria (Italy)]
+ *
+ * This file is part of dcj-commons.
+ *
+ * dcsj-commons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dcsj-commons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dcsj-commons.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.unipmn.di.dcs.common.io;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemLoopException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Walks file trees in parallel.
+ *
+ * Directories are listed with a {@link DirectoryStream} by a fork/join
+ * pool, one task per directory, and the attributes of each file are read
+ * exactly once, so that callers never need to query the file system again
+ * for the type, the size or the modification time of a file.
+ *
+ * The output order is deterministic: the walk is pre-order (each directory
+ * precedes its content) and the entries of each directory are sorted by
+ * name; reversing it gives a valid post-order, e.g., for deletions.
+ *
+ * Example:
+ * <pre>
+ * for (FileTreeWalker.Entry e : new FileTreeWalker().walk( root ))
+ * {
+ *     if ( e.getAttributes().isRegularFile() )
+ *     {
+ *         total += e.getAttributes().size();
+ *     }
+ * }
+ * </pre>
+ *
+ * @author <a href="mailto:marco.guazzone@gmail.com">Marco Guazzone</a>
+ */
+public final class FileTreeWalker
+{
+	private static final LinkOption[] NoFollowLinks = { LinkOption.NOFOLLOW_LINKS };
+	private static final LinkOption[] FollowLinks = {};
+
+	private static final Comparator<Entry> ByName = new Comparator<Entry>()
+	{
+		public int compare(Entry e1, Entry e2)
+		{
+			return e1.name.compareTo( e2.name );
+		}
+	};
+
+	private final int parallelism;
+	private boolean followLinks = false;
+
+	/** A constructor, using as many threads as available processors. */
+	public FileTreeWalker()
+	{
+		this( 0 );
+	}
+
+	/**
+	 * A constructor.
+	 *
+	 * @param parallelism The number of threads; if less than or equal to 0,
+	 *        the number of available processors.
+	 */
+	public FileTreeWalker(int parallelism)
+	{
+		this.parallelism = ConcurrencyUtil.ResolveParallelism( parallelism );
+	}
+
+	/**
+	 * Tells whether symbolic links are to be followed (by default, they are
+	 * not, and are reported as such).
+	 *
+	 * When links are followed, a link pointing to one of its ancestor
+	 * directories makes the walk fail with a {@link
+	 * FileSystemLoopException}.
+	 */
+	public void setFollowLinks(boolean value)
+	{
+		this.followLinks = value;
+	}
+
+	public boolean isFollowLinks()
+	{
+		return this.followLinks;
+	}
+
+	/**
+	 * Walks the tree rooted at the given path.
+	 *
+	 * @return The root followed by all the files below it, in pre-order.
+	 * @throws IOException if the attributes of a file cannot be read or a
+	 *         directory cannot be listed.
+	 */
+	public List<Entry> walk(Path root) throws IOException
+	{
+		return this.walk( Collections.singletonList( root ) );
+	}
+
+	/**
+	 * Walks the trees rooted at the given paths.
+	 *
+	 * @return The concatenation of the walks of each root, in the given
+	 *         order.
+	 * @throws IOException if the attributes of a file cannot be read or a
+	 *         directory cannot be listed.
+	 */
+	public List<Entry> walk(List<Path> roots) throws IOException
+	{
+		List<Entry> entries = new ArrayList<Entry>();
+		ForkJoinPool pool = null;
+
+		try
+		{
+			for (Path root : roots)
+			{
+				Entry e = new Entry( root, this.readAttributes( root ), 0 );
+				entries.add( e );
+
+				if ( !e.attrs.isDirectory() )
+				{
+					continue;
+				}
+
+				if ( pool == null )
+				{
+					pool = new ForkJoinPool( this.parallelism );
+				}
+				entries.addAll( pool.invoke( new ListTask( e, null ) ) );
+			}
+		}
+		catch (UncheckedIOException uioe)
+		{
+			throw uioe.getCause();
+		}
+		finally
+		{
+			if ( pool != null )
+			{
+				pool.shutdownNow();
+				pool = null;
+			}
+		}
+
+		return entries;
+	}
+
+	private BasicFileAttributes readAttributes(Path path) throws IOException
+	{
+		return Files.readAttributes(
+			path,
+			BasicFileAttributes.class,
+			this.followLinks ? FollowLinks : NoFollowLinks
+		);
+	}
+
+	/** A file found by the walk, with its attributes. */
+	public static final class Entry
+	{
+		private final Path path;
+		private final String name;
+		private final BasicFileAttributes attrs;
+		private final int depth;
+
+		Entry(Path path, BasicFileAttributes attrs, int depth)
+		{
+			this.path = path;
+			Path fileName = path.getFileName();
+			this.name = ( fileName != null ) ? fileName.toString() : "";
+			this.attrs = attrs;
+			this.depth = depth;
+		}
+
+		/** Returns the path, resolved against the one of its root. */
+		public Path getPath()
+		{
+			return this.path;
+		}
+
+		/**
+		 * Returns the attributes read during the walk (those of the link
+		 * target, if links are followed).
+		 */
+		public BasicFileAttributes getAttributes()
+		{
+			return this.attrs;
+		}
+
+		/** Returns the depth below the root (0 for the root itself). */
+		public int getDepth()
+		{
+			return this.depth;
+		}
+
+		public boolean isDirectory()
+		{
+			return this.attrs.isDirectory();
+		}
+
+		@Override
+		public String toString()
+		{
+			return this.path.toString();
+		}
+	}
+
+	/** The chain of directories from a root, for detecting link cycles. */
+	private static final class Ancestor
+	{
+		final Object key;
+		final Ancestor parent;
+
+		Ancestor(Object key, Ancestor parent)
+		{
+			this.key = key;
+			this.parent = parent;
+		}
+	}
+
+	/**
+	 * Lists a directory, forks a task for each subdirectory, and returns
+	 * the content of the whole subtree in pre-order.
+	 */
+	private final class ListTask extends RecursiveTask<List<Entry>>
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final Entry dir;
+		private final Ancestor ancestors;
+
+		ListTask(Entry dir, Ancestor ancestors)
+		{
+			this.dir = dir;
+			this.ancestors = ancestors;
+		}
+
+		@Override
+		protected List<Entry> compute()
+		{
+			try
+			{
+				return this.list();
+			}
+			catch (IOException ioe)
+			{
+				throw new UncheckedIOException( ioe );
+			}
+		}
+
+		private List<Entry> list() throws IOException
+		{
+			Ancestor self = this.ancestors;
+			if ( FileTreeWalker.this.followLinks )
+			{
+				Object key = this.dir.attrs.fileKey();
+				for (Ancestor a = this.ancestors; a != null && key != null; a = a.parent)
+				{
+					if ( key.equals( a.key ) )
+					{
+						throw new FileSystemLoopException( this.dir.path.toString() );
+					}
+				}
+				self = new Ancestor( key, this.ancestors );
+			}
+
+			List<Entry> children = new ArrayList<Entry>();
+			DirectoryStream<Path> ds = null;
+			try
+			{
+				ds = Files.newDirectoryStream( this.dir.path );
+				for (Path p : ds)
+				{
+					children.add( new Entry( p, FileTreeWalker.this.readAttributes( p ), this.dir.depth + 1 ) );
+				}
+			}
+			finally
+			{
+				if ( ds != null )
+				{
+					try { ds.close(); } catch (Exception e) { /* ignore */ }
+					ds = null;
+				}
+			}
+
+			Collections.sort( children, ByName );
+
+			// Fork subdirectories first, then collect the results in order
+			List<ListTask> tasks = new ArrayList<ListTask>();
+			for (Entry child : children)
+			{
+				if ( child.attrs.isDirectory() )
+				{
+					ListTask t = new ListTask( child, self );
+					t.fork();
+					tasks.add( t );
+				}
+			}
+
+			if ( tasks.isEmpty() )
+			{
+				return children;
+			}
+
+			List<Entry> entries = new ArrayList<Entry>( children.size() );
+			int next = 0;
+			for (Entry child : children)
+			{
+				entries.add( child );
+				if ( child.attrs.isDirectory() )
+				{
+					entries.addAll( tasks.get( next++ ).join() );
+				}
+			}
+
+			return entries;
+		}
+	}
+}
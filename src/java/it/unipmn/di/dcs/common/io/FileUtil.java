@@ -28,12 +28,11 @@ import it.unipmn.di.dcs.common.CommonException;
 import it.unipmn.di.dcs.common.util.Strings;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Utility class for files.
@@ -42,13 +41,16 @@ import java.nio.channels.FileChannel;
  */
 public final class FileUtil
 {
+	/** Size of the buffer for copying streams. */
+	private static final int STREAM_BUFFER_SIZE = 8192;
+
 	/**
 	 * Copy the given {@code InputStream} into the given
 	 * {@code OutputStream}.
 	 */
 	public static void CopyStream(InputStream is, OutputStream os) throws CommonException
 	{
-		byte[] buf = new byte[8192];
+		byte[] buf = BufferPool.Shared().acquireBytes( STREAM_BUFFER_SIZE );
 		int nread;
 
 		try
@@ -62,13 +64,38 @@ public final class FileUtil
 		{
 			throw new CommonException(ioe);
 		}
+		finally
+		{
+			BufferPool.Shared().release( buf );
+		}
+	}
+
+	/** Copy {@code source} file into {@code dest} file. */
+	public static void Copy(String source, String dest) throws CommonException
+	{
+		Copy( source, dest, null );
 	}
 
 	/**
-	 * Copy the given {@code InputStream} into the given
-	 * {@code OutputStream}.
+	 * Copy {@code source} file into {@code dest} file, notifying the given
+	 * listener (if not {@code null}) of the progress of the copy.
+	 *
+	 * @see FileCopier
 	 */
-	public static void Copy(String source, String dest) throws CommonException
+	public static void Copy(String source, String dest, IFileCopyListener listener) throws CommonException
+	{
+		Copy( source, dest, listener, null );
+	}
+
+	/**
+	 * Copy {@code source} file into {@code dest} file, notifying the given
+	 * listener (if not {@code null}) of the progress of the copy, and
+	 * verifying the copy with the given checksum algorithm (if not
+	 * {@code null}).
+	 *
+	 * @see FileCopier
+	 */
+	public static void Copy(String source, String dest, IFileCopyListener listener, ChecksumAlgorithm verify) throws CommonException
 	{
 		// preconditions
 		if ( Strings.IsNullOrEmpty( source ) || Strings.IsNullOrEmpty( dest ) )
@@ -91,36 +118,184 @@ public final class FileUtil
 				)
 			)
 		) {
-			FileChannel srcChannel = null;
-			FileChannel dstChannel = null;
+			FileCopier copier = new FileCopier();
+			copier.setListener( listener );
+			copier.setVerify( verify );
 
 			try
 			{
-				// Create channel on the source
-				srcChannel = new FileInputStream( source ).getChannel();
-				// Create channel on the destination
-				dstChannel = new FileOutputStream( dest ).getChannel();
-				// Copy file contents from source to destination
-				dstChannel.transferFrom( srcChannel, 0, srcChannel.size() );
+				copier.copy( Paths.get( source ), Paths.get( dest ) );
 			}
 			catch (IOException ioe)
 			{
 				throw new CommonException(ioe);
 			}
-			finally
-			{
-				// Close the channels
-				if ( srcChannel != null )
-				{
-					try { srcChannel.close(); } catch (Exception e) { ; }
-					srcChannel = null;
-				}
-				if ( dstChannel != null )
-				{
-					try { dstChannel.close(); } catch (Exception e) { ; }
-					dstChannel = null;
-				}
-			}
+		}
+	}
+
+	/**
+	 * Asynchronously copy {@code source} file into {@code dest} file.
+	 *
+	 * The returned future is completed with the number of bytes copied,
+	 * or exceptionally with an {@code IOException}; cancelling it stops
+	 * the copy.
+	 *
+	 * @see AsyncFileIO#copy
+	 */
+	public static CompletableFuture<Long> CopyAsync(String source, String dest) throws CommonException
+	{
+		// preconditions
+		if ( Strings.IsNullOrEmpty( source ) || Strings.IsNullOrEmpty( dest ) )
+		{
+			throw new CommonException("Source or dest file name not specified.");
+		}
+
+		return AsyncFileIO.Shared().copy( Paths.get( source ), Paths.get( dest ) );
+	}
+
+	/**
+	 * Asynchronously read the whole content of the {@code source} file.
+	 *
+	 * The returned future is completed with the content of the file, or
+	 * exceptionally with an {@code IOException}; cancelling it stops the
+	 * reading.
+	 *
+	 * @see AsyncFileIO#readAll
+	 */
+	public static CompletableFuture<byte[]> ReadAllAsync(String source) throws CommonException
+	{
+		// preconditions
+		if ( Strings.IsNullOrEmpty( source ) )
+		{
+			throw new CommonException("Source file name not specified.");
+		}
+
+		return AsyncFileIO.Shared().readAll( Paths.get( source ) );
+	}
+
+	/**
+	 * Copy the {@code source} file tree into {@code dest}, by using as
+	 * many threads as available processors.
+	 *
+	 * @see #CopyTree(String,String,int)
+	 */
+	public static FileTreeReport CopyTree(String source, String dest) throws CommonException
+	{
+		return CopyTree( source, dest, 0 );
+	}
+
+	/**
+	 * Copy the {@code source} file tree (a directory or a single file) into
+	 * {@code dest}, replacing existing files.
+	 *
+	 * Files are copied concurrently (large files in concurrent ranges),
+	 * preserving their times and permissions; symbolic links are copied as
+	 * links.
+	 * Files which cannot be copied are reported in the returned summary.
+	 *
+	 * @param parallelism The number of copying threads; if less than or
+	 *        equal to 0, the number of available processors.
+	 * @throws CommonException if the source tree cannot be read.
+	 */
+	public static FileTreeReport CopyTree(String source, String dest, int parallelism) throws CommonException
+	{
+		// preconditions
+		if ( Strings.IsNullOrEmpty( source ) || Strings.IsNullOrEmpty( dest ) )
+		{
+			throw new CommonException("Source or dest file name not specified.");
+		}
+
+		try
+		{
+			return new ParallelTreeCopier( parallelism ).copy( Paths.get( source ), Paths.get( dest ) );
+		}
+		catch (IOException ioe)
+		{
+			throw new CommonException(ioe);
+		}
+	}
+
+	/**
+	 * Move the {@code source} file tree into {@code dest}, by using as
+	 * many threads as available processors if it needs to be copied.
+	 *
+	 * @see #MoveTree(String,String,int)
+	 */
+	public static FileTreeReport MoveTree(String source, String dest) throws CommonException
+	{
+		return MoveTree( source, dest, 0 );
+	}
+
+	/**
+	 * Move the {@code source} file tree (a directory or a single file) into
+	 * {@code dest}.
+	 *
+	 * The tree is renamed if possible; otherwise, it is copied like {@link
+	 * #CopyTree(String,String,int)} does, and the source tree is deleted
+	 * only if all of its files have been copied.
+	 *
+	 * @param parallelism The number of copying threads; if less than or
+	 *        equal to 0, the number of available processors.
+	 * @throws CommonException if the source tree cannot be read.
+	 */
+	public static FileTreeReport MoveTree(String source, String dest, int parallelism) throws CommonException
+	{
+		// preconditions
+		if ( Strings.IsNullOrEmpty( source ) || Strings.IsNullOrEmpty( dest ) )
+		{
+			throw new CommonException("Source or dest file name not specified.");
+		}
+
+		try
+		{
+			return new ParallelTreeCopier( parallelism ).move( Paths.get( source ), Paths.get( dest ) );
+		}
+		catch (IOException ioe)
+		{
+			throw new CommonException(ioe);
+		}
+	}
+
+	/**
+	 * Synchronize the {@code dest} file tree with the {@code source} one,
+	 * with the default options.
+	 *
+	 * @see #Sync(String,String,FileSyncOptions)
+	 */
+	public static FileTreeReport Sync(String source, String dest) throws CommonException
+	{
+		return Sync( source, dest, new FileSyncOptions() );
+	}
+
+	/**
+	 * Synchronize the {@code dest} file tree with the {@code source} one
+	 * (a directory or a single file).
+	 *
+	 * Files with the same size and modification time in both trees are
+	 * skipped; the other ones are copied like {@link
+	 * #CopyTree(String,String,int)} does or, with delta transfers, patched
+	 * by writing only the blocks which differ.
+	 * Times and permissions are copied as well, so that unchanged files
+	 * are skipped by the next synchronization.
+	 *
+	 * @throws CommonException if the source or the destination tree cannot
+	 *         be read.
+	 */
+	public static FileTreeReport Sync(String source, String dest, FileSyncOptions options) throws CommonException
+	{
+		// preconditions
+		if ( Strings.IsNullOrEmpty( source ) || Strings.IsNullOrEmpty( dest ) )
+		{
+			throw new CommonException("Source or dest file name not specified.");
+		}
+
+		try
+		{
+			return new ParallelTreeCopier( options.getParallelism() ).sync( Paths.get( source ), Paths.get( dest ), options );
+		}
+		catch (IOException ioe)
+		{
+			throw new CommonException(ioe);
 		}
 	}
 
@@ -297,10 +472,15 @@ public final class FileUtil
 	 *
 	 * If {@code recursive} is true and {@code source} is a directory, the
 	 * deletion is recursively propagated down in the hierarchy.
+	 *
+	 * @see #DeleteTree(String,int)
 	 */
 	public static boolean TryDelete(String source, boolean recursive)
 	{
-		boolean deleted = false;
+		if ( !recursive )
+		{
+			return TryDelete( source );
+		}
 
 		// preconditions
 		if ( Strings.IsNullOrEmpty( source ) )
@@ -308,40 +488,68 @@ public final class FileUtil
 			return false;
 		}
 
-		if ( CheckWrite(source) )
+		try
 		{
-			try
-			{
-				File f = new File(source);
-
-				if ( f.isDirectory() && recursive )
-				{
-					// Delete child files
+			return DeleteTree( source ).isSuccessful();
+		}
+		catch (Exception e)
+		{
+			return false;
+		}
+	}
 
-					String pathPrefix = f.getAbsolutePath() + File.separator;
+	/**
+	 * Delete the {@code source} file tree, by using as many threads as
+	 * available processors.
+	 *
+	 * @see #DeleteTree(String,int)
+	 */
+	public static FileTreeReport DeleteTree(String source) throws CommonException
+	{
+		return DeleteTree( source, 0 );
+	}
 
-					boolean childDeleted = true;
+	/**
+	 * Delete the {@code source} file tree (a directory or a single file).
+	 *
+	 * Subdirectories are deleted concurrently, children first; symbolic
+	 * links are deleted, not followed.
+	 * Files which cannot be deleted are reported in the returned summary,
+	 * along with their directories.
+	 *
+	 * @param parallelism The number of threads; if less than or equal to 0,
+	 *        the number of available processors.
+	 */
+	public static FileTreeReport DeleteTree(String source, int parallelism) throws CommonException
+	{
+		// preconditions
+		if ( Strings.IsNullOrEmpty( source ) )
+		{
+			throw new CommonException("Source file name not specified.");
+		}
 
-					for (String child : f.list())
-					{
-						childDeleted &= FileUtil.TryDelete( pathPrefix + child, true );
-					}
+		return new ParallelTreeDeleter( parallelism ).delete( Paths.get( source ) );
+	}
 
-					// Delete itself
-					deleted = f.delete() & childDeleted;
-				}
-				else
-				{
-					deleted = f.delete();
-				}
-			}
-			catch (Exception e)
-			{
-				// Ignore
-			}
+	/**
+	 * Asynchronously delete the {@code source} file tree (a directory or a
+	 * single file).
+	 *
+	 * The returned future is completed with the summary of the deletion;
+	 * cancelling it before the deletion starts prevents it.
+	 *
+	 * @see #DeleteTree(String,int)
+	 * @see AsyncFileIO#delete
+	 */
+	public static CompletableFuture<FileTreeReport> DeleteAsync(String source) throws CommonException
+	{
+		// preconditions
+		if ( Strings.IsNullOrEmpty( source ) )
+		{
+			throw new CommonException("Source file name not specified.");
 		}
 
-		return deleted;
+		return AsyncFileIO.Shared().delete( Paths.get( source ) );
 	}
 
 	/** Returns {@code true} if the given file exists. */
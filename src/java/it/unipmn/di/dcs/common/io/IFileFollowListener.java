@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2008-2012  Marco Guazzone
+ *                          [Distributed Computing System (DCS) Group,
+ *                           Computer Science Institute,
+ *                           Department of Science and Technological Innovation,
+ *                           University of Piemonte Orientale,
+ *                           Alessandria (Italy)]
+ *
+ * This file is part of dcj-commons.
+ *
+ * dcsj-commons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dcsj-commons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dcsj-commons.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.unipmn.di.dcs.common.io;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+/**
+ * Receives the changes of the files followed by a {@link FileFollower}.
+ *
+ * Methods are called by the thread of the follower, one at a time; they
+ * should return quickly, since they delay the other files.
+ *
+ * @author <a href="mailto:marco.guazzone@gmail.com">Marco Guazzone</a>
+ */
+public interface IFileFollowListener
+{
+	/**
+	 * Called with the bytes appended to the given file, between the
+	 * position and the limit of the buffer (which is reused afterwards).
+	 */
+	void appended(Path file, ByteBuffer data);
+
+	/**
+	 * Called when the given file shrinks; it is then followed from its
+	 * start.
+	 */
+	void truncated(Path file);
+
+	/**
+	 * Called when the given file is replaced by a new one (e.g., when it
+	 * is rotated); the new file is then followed from its start.
+	 */
+	void rotated(Path file);
+
+	/**
+	 * Called when the given file cannot be read, or some other method of
+	 * this listener fails; the file is still followed.
+	 */
+	void failed(Path file, Exception e);
+}
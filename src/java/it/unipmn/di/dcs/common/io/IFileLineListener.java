@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2008-2012  Marco Guazzone
+ *                          [Distributed Computing System (DCS) Group,
+ *                           Computer Science Institute,
+ *                           Department of Science and Technological Innovation,
+ *                           University of Piemonte Orientale,
+ *                           Alessandria (Italy)]
+ *
+ * This file is part of dcj-commons.
+ *
+ * dcsj-commons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dcsj-commons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dcsj-commons.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.unipmn.di.dcs.common.io;
+
+import java.nio.file.Path;
+
+/**
+ * Receives the lines appended to the files followed by a
+ * {@link FileFollower}.
+ *
+ * @author <a href="mailto:marco.guazzone@gmail.com">Marco Guazzone</a>
+ */
+public interface IFileLineListener
+{
+	/**
+	 * Called with each complete line (without its terminator) appended to
+	 * the given file.
+	 *
+	 * A line being written is delivered once terminated; when the file is
+	 * truncated or rotated, it is dropped.
+	 */
+	void lineAppended(Path file, String line);
+
+	/**
+	 * Called when the given file cannot be read, or some other method of
+	 * this listener fails; the file is still followed.
+	 */
+	void failed(Path file, Exception e);
+}
@@ -27,16 +27,29 @@ package it.unipmn.di.dcs.common.io;
 import it.unipmn.di.dcs.common.util.Strings;
 
 import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
-import java.io.OutputStreamWriter;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.Reader;
 import java.io.StringReader;
-import java.io.StringWriter;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
+import java.util.List;
 
 /**
  * Utility class for input/output operations.
@@ -45,6 +58,11 @@ import java.util.Arrays;
  */
 public final class IOUtil
 {
+	/** Size of the buffers for reading characters. */
+	private static final int READ_BUFFER_SIZE = 8192;
+	/** The largest array size supported by (most) virtual machines. */
+	private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
 	/**
 	 * Read characters from a Reader to the end and write to a Writer.
 	 *
@@ -65,32 +83,72 @@ public final class IOUtil
 	 */
 	public static String ReadAllToString(Reader rd) throws Throwable
 	{
-		String result = null;
+		return IOUtil.ReadAllToString( rd, 0 );
+	}
+
+	/**
+	 * Reads all the given data and write them to a string.
+	 *
+	 * @param sizeHint The expected number of characters (e.g., the length
+	 *        of the file the reader reads), or 0 if unknown.
+	 * @return The given data as a string.
+	 * @throws Throwable if the reader is not specified or something goes
+	 * wrong.
+	 */
+	public static String ReadAllToString(Reader rd, int sizeHint) throws Throwable
+	{
+		char[] chars = IOUtil.ReadAllToChars( rd, sizeHint );
 
+		return new String( chars );
+	}
+
+	/**
+	 * Reads all the given data into a character array.
+	 *
+	 * Characters are read straight into the returned array, which is
+	 * sized after the given hint and grown as needed; hence, when the
+	 * hint is exact, data is not copied at all.
+	 *
+	 * @param sizeHint The expected number of characters (e.g., the length
+	 *        of the file the reader reads), or 0 if unknown.
+	 * @return The given data, in an array of exactly their length.
+	 * @throws Throwable if the reader is not specified or something goes
+	 * wrong.
+	 */
+	public static char[] ReadAllToChars(Reader rd, int sizeHint) throws Throwable
+	{
 		// preconditions
 		if ( rd == null	)
 		{
 			throw new Exception( "Reader not specified." );
 		}
 
-		StringWriter swr = null;
+		char[] chars = new char[ ( sizeHint > 0 ) ? sizeHint : READ_BUFFER_SIZE ];
+		int len = 0;
 
-		try
+		while ( true )
 		{
-			swr = new StringWriter();
-			IOUtil.ReadAll( rd, swr );
-			result = swr.toString();
-		}
-		finally
-		{
-			if ( swr != null )
+			if ( len == chars.length )
+			{
+				// Full: make sure there is more before growing
+				int c = rd.read();
+				if ( c == -1 )
+				{
+					break;
+				}
+				chars = Arrays.copyOf( chars, GrowCapacity( len ) );
+				chars[len++] = (char) c;
+			}
+
+			int n = rd.read( chars, len, chars.length - len );
+			if ( n == -1 )
 			{
-				try { swr.close(); } finally { }
-				swr = null;
+				break;
 			}
+			len += n;
 		}
 
-		return result;
+		return ( len == chars.length ) ? chars : Arrays.copyOf( chars, len );
 	}
 
 	/**
@@ -99,32 +157,32 @@ public final class IOUtil
 	 * @return The given data as a string buffer.
 	 * @throws Throwable if the reader is not specified or something goes
 	 * wrong.
+	 * @deprecated {@code StringBuffer} synchronizes every append; use
+	 * {@link #ReadAllToStringBuilder(Reader,int)} instead.
 	 */
+	@Deprecated
 	public static StringBuffer ReadAllToStringBuffer(Reader rd) throws Throwable
 	{
-		StringBuffer result = null;
-
 		// preconditions
 		if ( rd == null	)
 		{
 			throw new Exception( "Reader not specified." );
 		}
 
-		java.io.StringWriter swr = null;
+		StringBuffer result = new StringBuffer();
+		char[] buf = BufferPool.Shared().acquireChars( READ_BUFFER_SIZE );
 
 		try
 		{
-			swr = new StringWriter();
-			IOUtil.ReadAll( rd, swr );
-			result = swr.getBuffer();
+			int nread = 0;
+			while ( ( nread = rd.read( buf ) ) != -1 )
+			{
+				result.append( buf, 0, nread );
+			}
 		}
 		finally
 		{
-			if ( swr != null )
-			{
-				try { swr.close(); } finally { }
-				swr = null;
-			}
+			BufferPool.Shared().release( buf );
 		}
 
 		return result;
@@ -139,73 +197,96 @@ public final class IOUtil
 	 */
 	public static StringBuilder ReadAllToStringBuilder(Reader rd) throws Throwable
 	{
-		StringBuilder result = null;
-
-		// preconditions
-		if ( rd == null	)
-		{
-			throw new Exception( "Reader not specified." );
-		}
+		return IOUtil.ReadAllToStringBuilder( rd, 0 );
+	}
 
-		StringWriter swr = null;
+	/**
+	 * Reads all the given data and write them to a string builder.
+	 *
+	 * @param sizeHint The expected number of characters (e.g., the length
+	 *        of the file the reader reads), or 0 if unknown.
+	 * @return The given data as a string builder.
+	 * @throws Throwable if the reader is not specified or something goes
+	 * wrong.
+	 */
+	public static StringBuilder ReadAllToStringBuilder(Reader rd, int sizeHint) throws Throwable
+	{
+		FastStringWriter wr = ( sizeHint > 0 ) ? new FastStringWriter( sizeHint ) : new FastStringWriter();
 
-		try
-		{
-			swr = new StringWriter();
-			IOUtil.ReadAll( rd, swr );
-			result = new StringBuilder( swr.toString() );
-		}
-		finally
-		{
-			if ( swr != null )
-			{
-				try { swr.close(); } finally { }
-				swr = null;
-			}
-		}
+		IOUtil.ReadAll( rd, wr );
 
-		return result;
+		return wr.getBuffer();
 	}
 
 	/**
-	 * Reads all the given data and write them to a byte array.
+	 * Reads all the given data and write them to a byte array, encoded
+	 * with the default charset.
 	 *
 	 * @return The given data as a byte array.
 	 * @throws Throwable if the reader is not specified or something goes
 	 * wrong.
+	 * @see #ReadAllToBytes(Reader,Charset,int)
 	 */
 	public static byte[] ReadAllToBytes(Reader rd) throws Throwable
 	{
-		byte[] result = null;
-
 		// preconditions
 		if ( rd == null	)
 		{
 			throw new Exception( "Reader not specified." );
 		}
 
-		ByteArrayOutputStream baos = null;
-		OutputStreamWriter oswr = null;
+		return IOUtil.ReadAllToBytes( rd, Charset.defaultCharset(), 0 );
+	}
 
+	/**
+	 * Reads all the given data and encodes them into a byte array.
+	 *
+	 * Characters are encoded straight into the returned array, which is
+	 * sized after the given hint and grown as needed; malformed and
+	 * unmappable characters are replaced (as {@code OutputStreamWriter}
+	 * does).
+	 *
+	 * @param sizeHint The expected number of characters, or 0 if unknown.
+	 * @return The encoded data, in an array of exactly their length.
+	 */
+	public static byte[] ReadAllToBytes(Reader rd, Charset cs, int sizeHint) throws IOException
+	{
+		CharsetEncoder enc = NewEncoder( cs );
+		int capacity = ( sizeHint > 0 )
+			? (int) Math.min( MAX_ARRAY_SIZE, (long) Math.ceil( sizeHint * (double) enc.averageBytesPerChar() ) )
+			: READ_BUFFER_SIZE;
+		ByteBuffer[] out = { ByteBuffer.allocate( Math.max( 16, capacity ) ) };
+		IOUtil.Encode( rd, enc, out, null );
+
+		return ( out[0].position() == out[0].capacity() ) ? out[0].array() : Arrays.copyOf( out[0].array(), out[0].position() );
+	}
+
+	/**
+	 * Reads all the given data and writes them, encoded with the given
+	 * charset, to the given stream.
+	 *
+	 * Malformed and unmappable characters are replaced (as
+	 * {@code OutputStreamWriter} does); the stream is neither flushed nor
+	 * closed.
+	 *
+	 * @return The number of bytes written.
+	 */
+	public static long ReadAll(Reader rd, OutputStream os, Charset cs) throws IOException
+	{
+		if ( os == null )
+		{
+			throw new IllegalArgumentException( "Output stream not specified." );
+		}
+
+		byte[] buf = BufferPool.Shared().acquireBytes( READ_BUFFER_SIZE );
 		try
 		{
-			baos = new ByteArrayOutputStream();
-			oswr = new OutputStreamWriter( baos );
-			IOUtil.ReadAll( rd, oswr );
-			result = baos.toByteArray();
+			return IOUtil.Encode( rd, NewEncoder( cs ), new ByteBuffer[] { ByteBuffer.wrap( buf ) }, os );
 		}
 		finally
 		{
-			if ( baos != null )
-			{
-				try { baos.close(); } finally { }
-				baos = null;
-				//try { oswr.close(); } finally { }
-				oswr = null;
-			}
+			BufferPool.Shared().release( buf );
 		}
-
-		return result;
 	}
 
 	/**
@@ -239,6 +320,289 @@ public final class IOUtil
 		}
 	}
 
+	/**
+	 * Reads all the given data and write them to a file, encoded with the
+	 * given charset.
+	 */
+	public static void ReadAllToFile(Reader rd, File f, Charset cs) throws IOException
+	{
+		OutputStream os = null;
+
+		try
+		{
+			os = new FileOutputStream( f );
+			IOUtil.ReadAll( rd, os, cs );
+		}
+		finally
+		{
+			if ( os != null )
+			{
+				os.close();
+				os = null;
+			}
+		}
+	}
+
+	/**
+	 * Reads the given stream to the end and writes its data to the given
+	 * stream (which is neither flushed nor closed).
+	 *
+	 * @return The number of bytes copied.
+	 */
+	public static long ReadAll(InputStream is, OutputStream os) throws IOException
+	{
+		// preconditions
+		if ( is == null || os == null )
+		{
+			throw new IllegalArgumentException( "Input or output stream not specified." );
+		}
+
+		byte[] buf = BufferPool.Shared().acquireBytes( READ_BUFFER_SIZE );
+		long count = 0;
+
+		try
+		{
+			int nread = 0;
+			while ( ( nread = is.read( buf ) ) != -1 )
+			{
+				os.write( buf, 0, nread );
+				count += nread;
+			}
+		}
+		finally
+		{
+			BufferPool.Shared().release( buf );
+		}
+
+		return count;
+	}
+
+	/**
+	 * Reads the given stream to the end.
+	 *
+	 * @see #ReadAllBytes(InputStream,int)
+	 */
+	public static byte[] ReadAllBytes(InputStream is) throws IOException
+	{
+		return IOUtil.ReadAllBytes( is, 0 );
+	}
+
+	/**
+	 * Reads the given stream to the end.
+	 *
+	 * Bytes are read straight into the returned array, which is sized
+	 * after the given hint (or after the remaining size of the file, for
+	 * file streams) and grown as needed; hence, when the size is known,
+	 * data is not copied at all.
+	 *
+	 * @param sizeHint The expected number of bytes, or 0 if unknown.
+	 * @return The data read, in an array of exactly their length.
+	 */
+	public static byte[] ReadAllBytes(InputStream is, int sizeHint) throws IOException
+	{
+		// preconditions
+		if ( is == null )
+		{
+			throw new IllegalArgumentException( "Input stream not specified." );
+		}
+
+		if ( sizeHint <= 0 && is instanceof FileInputStream )
+		{
+			FileChannel ch = ((FileInputStream) is).getChannel();
+			sizeHint = (int) Math.min( MAX_ARRAY_SIZE, Math.max( 0, ch.size() - ch.position() ) );
+		}
+
+		byte[] bytes = new byte[ ( sizeHint > 0 ) ? sizeHint : READ_BUFFER_SIZE ];
+		int len = 0;
+
+		while ( true )
+		{
+			if ( len == bytes.length )
+			{
+				// Full: make sure there is more before growing
+				int b = is.read();
+				if ( b == -1 )
+				{
+					break;
+				}
+				bytes = Arrays.copyOf( bytes, GrowCapacity( len ) );
+				bytes[len++] = (byte) b;
+			}
+
+			int n = is.read( bytes, len, bytes.length - len );
+			if ( n == -1 )
+			{
+				break;
+			}
+			len += n;
+		}
+
+		return ( len == bytes.length ) ? bytes : Arrays.copyOf( bytes, len );
+	}
+
+	/**
+	 * Reads the given file.
+	 *
+	 * @return The content of the file, in an array of exactly its length.
+	 */
+	public static byte[] ReadAllBytes(Path file) throws IOException
+	{
+		FileChannel ch = null;
+
+		try
+		{
+			ch = FileChannel.open( file, StandardOpenOption.READ );
+
+			ByteBuffer buf = IOUtil.ReadAllToByteBuffer( ch );
+
+			return ( buf.remaining() == buf.capacity() ) ? buf.array() : Arrays.copyOf( buf.array(), buf.remaining() );
+		}
+		finally
+		{
+			if ( ch != null )
+			{
+				try { ch.close(); } catch (Exception e) { /* ignore */ }
+				ch = null;
+			}
+		}
+	}
+
+	/**
+	 * Reads the given channel to the end.
+	 *
+	 * For file channels, the buffer is sized after the remaining size of
+	 * the file; otherwise, it is grown as needed.
+	 *
+	 * @return A (heap) buffer holding the data read, between its position
+	 *         (0) and its limit.
+	 */
+	public static ByteBuffer ReadAllToByteBuffer(ReadableByteChannel ch) throws IOException
+	{
+		// preconditions
+		if ( ch == null )
+		{
+			throw new IllegalArgumentException( "Channel not specified." );
+		}
+
+		int capacity = READ_BUFFER_SIZE;
+		if ( ch instanceof FileChannel )
+		{
+			FileChannel fch = (FileChannel) ch;
+			capacity = (int) Math.min( MAX_ARRAY_SIZE, Math.max( 0, fch.size() - fch.position() ) );
+		}
+
+		ByteBuffer buf = ByteBuffer.allocate( capacity );
+		ByteBuffer probe = null;
+
+		while ( true )
+		{
+			if ( !buf.hasRemaining() )
+			{
+				// Full: make sure there is more before growing
+				if ( probe == null )
+				{
+					probe = ByteBuffer.allocate( 1 );
+				}
+				probe.clear();
+				if ( ReadSome( ch, probe ) == -1 )
+				{
+					break;
+				}
+				ByteBuffer bigger = ByteBuffer.allocate( GrowCapacity( buf.capacity() ) );
+				buf.flip();
+				bigger.put( buf );
+				probe.flip();
+				bigger.put( probe );
+				buf = bigger;
+			}
+
+			if ( ReadSome( ch, buf ) == -1 )
+			{
+				break;
+			}
+		}
+		buf.flip();
+
+		return buf;
+	}
+
+	/**
+	 * Reads the given reader to the end, and returns its last lines.
+	 *
+	 * @see #ReadLastLines(Reader,int,ILineFilter)
+	 */
+	public static List<String> ReadLastLines(Reader rd, int n) throws IOException
+	{
+		return IOUtil.ReadLastLines( rd, n, null );
+	}
+
+	/**
+	 * Reads the given reader to the end, and returns its last lines
+	 * selected by the given filter.
+	 *
+	 * Lines are split as {@code BufferedReader} does; only the selected
+	 * lines are kept (in a ring buffer), so that memory does not depend on
+	 * the length of the whole text.
+	 *
+	 * @param n The maximum number of lines to return.
+	 * @param filter The filter of the lines, or {@code null} to select any
+	 *        line.
+	 * @return The last selected lines, in order of appearance.
+	 */
+	public static List<String> ReadLastLines(Reader rd, int n, ILineFilter filter) throws IOException
+	{
+		// preconditions
+		if ( rd == null )
+		{
+			throw new IllegalArgumentException( "Reader not specified." );
+		}
+
+		return new LineTail( n, filter ).read( rd );
+	}
+
+	/**
+	 * Returns the last lines of the given file.
+	 *
+	 * @see #ReadLastLines(Path,Charset,int,ILineFilter)
+	 */
+	public static List<String> ReadLastLines(Path file, Charset cs, int n) throws IOException
+	{
+		return IOUtil.ReadLastLines( file, cs, n, null );
+	}
+
+	/**
+	 * Returns the last lines of the given file selected by the given
+	 * filter.
+	 *
+	 * The file is scanned backwards, from its end, until enough lines are
+	 * found; lines are split as {@code BufferedReader} does.
+	 *
+	 * @param n The maximum number of lines to return.
+	 * @param filter The filter of the lines, or {@code null} to select any
+	 *        line.
+	 * @return The last selected lines, in order of appearance.
+	 * @see LastNonEmptyLineReader#LastNonEmptyLineReader(Path,Charset)
+	 */
+	public static List<String> ReadLastLines(Path file, Charset cs, int n, ILineFilter filter) throws IOException
+	{
+		FileChannel ch = null;
+
+		try
+		{
+			ch = FileChannel.open( file, StandardOpenOption.READ );
+
+			return new LineTail( n, filter ).read( ch, cs );
+		}
+		finally
+		{
+			if ( ch != null )
+			{
+				try { ch.close(); } catch (Exception e) { /* ignore */ }
+				ch = null;
+			}
+		}
+	}
+
 	/**
 	 * Returns the relative path respect to the given {@code baseFile}.
 	 */
@@ -299,24 +663,164 @@ public final class IOUtil
 			throw new Exception( "Writer not specified" );
 		}
 
-		//FIXME: a better way to know an optimal buf length?!
-		char[] buf = new char[2048];
-		//char[] buf = new char[4096];
+		// Same as Reader#transferTo (Java 10+), but with a pooled buffer
+		char[] buf = BufferPool.Shared().acquireChars( READ_BUFFER_SIZE );
 		int nread = 0; // num of characters read
 
-		// reads characters to the end
-		while ( ( nread = rd.read( buf ) ) != -1 )
+		try
 		{
-			// writes read characters
-			wr.write( buf, 0, nread );
-			//wr.flush();
-
-			// blanks the buffer
-			Arrays.fill( buf, 0, nread, (char) 0 );
+			// reads characters to the end
+			while ( ( nread = rd.read( buf ) ) != -1 )
+			{
+				// writes read characters
+				wr.write( buf, 0, nread );
+			}
+		}
+		finally
+		{
+			BufferPool.Shared().release( buf );
 		}
 		wr.flush();
 	}
 
+	/**
+	 * Encodes the characters of the given reader into the given buffer.
+	 *
+	 * If a stream is given, the buffer is drained into it whenever full
+	 * (and at the end); otherwise, the buffer is replaced by a larger one
+	 * whenever full, and holds all the encoded data up to its position.
+	 *
+	 * @param out A one-element array holding the output buffer.
+	 * @return The number of encoded bytes.
+	 */
+	private static long Encode(Reader rd, CharsetEncoder enc, ByteBuffer[] out, OutputStream os) throws IOException
+	{
+		// preconditions
+		if ( rd == null )
+		{
+			throw new IllegalArgumentException( "Reader not specified." );
+		}
+
+		char[] cbuf = BufferPool.Shared().acquireChars( READ_BUFFER_SIZE );
+		CharBuffer in = CharBuffer.wrap( cbuf );
+		boolean eof = false;
+		boolean flushing = false;
+		long count = 0;
+
+		try
+		{
+			in.limit( 0 );
+			while ( true )
+			{
+				CoderResult cr = flushing ? enc.flush( out[0] ) : enc.encode( in, out[0], eof );
+
+				if ( cr.isUnderflow() )
+				{
+					if ( flushing )
+					{
+						break;
+					}
+					if ( eof )
+					{
+						flushing = true;
+						continue;
+					}
+
+					// Needs more input
+					in.compact();
+					int n = rd.read( cbuf, in.position(), in.remaining() );
+					if ( n == -1 )
+					{
+						eof = true;
+					}
+					else
+					{
+						in.position( in.position() + n );
+					}
+					in.flip();
+				}
+				else if ( cr.isOverflow() )
+				{
+					if ( os != null )
+					{
+						count += out[0].position();
+						os.write( out[0].array(), out[0].arrayOffset(), out[0].position() );
+						out[0].clear();
+					}
+					else
+					{
+						ByteBuffer bigger = ByteBuffer.allocate( GrowCapacity( out[0].capacity() ) );
+						out[0].flip();
+						bigger.put( out[0] );
+						out[0] = bigger;
+					}
+				}
+				else
+				{
+					cr.throwException();
+				}
+			}
+		}
+		finally
+		{
+			BufferPool.Shared().release( cbuf );
+		}
+
+		count += out[0].position();
+		if ( os != null )
+		{
+			os.write( out[0].array(), out[0].arrayOffset(), out[0].position() );
+			out[0].clear();
+		}
+
+		return count;
+	}
+
+	/** Returns a replacing encoder for the given charset. */
+	private static CharsetEncoder NewEncoder(Charset cs)
+	{
+		if ( cs == null )
+		{
+			throw new IllegalArgumentException( "Charset not specified." );
+		}
+
+		return cs.newEncoder()
+			.onMalformedInput( CodingErrorAction.REPLACE )
+			.onUnmappableCharacter( CodingErrorAction.REPLACE );
+	}
+
+	/**
+	 * Reads from the given channel into the given buffer (which must have
+	 * room), until something is read.
+	 *
+	 * @return The number of bytes read, or -1 at the end of the channel.
+	 */
+	private static int ReadSome(ReadableByteChannel ch, ByteBuffer buf) throws IOException
+	{
+		int n = 0;
+
+		while ( n == 0 )
+		{
+			n = ch.read( buf );
+		}
+
+		return n;
+	}
+
+	/**
+	 * Returns the capacity of an array grown from the given one (which is
+	 * full).
+	 */
+	private static int GrowCapacity(int capacity)
+	{
+		if ( capacity == MAX_ARRAY_SIZE )
+		{
+			throw new OutOfMemoryError( "Required array size too large" );
+		}
+
+		return (int) Math.min( MAX_ARRAY_SIZE, Math.max( READ_BUFFER_SIZE, 2L * capacity ) );
+	}
+
 	private static void ReadAll_Variant2(Reader rd, Writer wr) throws Exception
 	{
                 // preconditions
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2008-2012  Marco Guazzone
+ *                          [Distributed Computing System (DCS) Group,
+ *                           Computer Science Institute,
+ *                           Department of Science and Technological Innovation,
+ *                           University of Piemonte Orientale,
+ *                           Alessandria (Italy)]
+ *
+ * This file is part of dcj-commons.
+ *
+ * dcsj-commons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dcsj-commons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dcsj-commons.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.unipmn.di.dcs.common.io;
+
+import java.io.InputStream;
+import java.io.IOException;
+
+/**
+ * A compression codec for ZIP entries.
+ *
+ * The data of an entry is compressed in chunks, which may be compressed
+ * concurrently by different encoders: the compressed entry data is the
+ * concatenation of the compressed chunks, in order.
+ * Each chunk can be compressed by looking at up to {@link
+ * #getDictionarySize()} bytes preceding it (which is how DEFLATE chunks are
+ * chained together); codecs writing self-contained blocks need none.
+ *
+ * Codecs are identified by the compression method ID stored in the ZIP
+ * headers (see {@link ZipCodecs}).
+ * Implementations must be thread-safe.
+ *
+ * @author <a href="mailto:marco.guazzone@gmail.com">Marco Guazzone</a>
+ */
+public interface IZipCodec
+{
+	/** Returns the compression method ID stored in the ZIP headers. */
+	int getMethod();
+
+	/** Returns a short name of this codec (e.g., "deflate"). */
+	String getName();
+
+	/**
+	 * Returns the maximum number of bytes preceding a chunk the encoder
+	 * can make use of.
+	 */
+	int getDictionarySize();
+
+	/**
+	 * Returns the maximum length of a compressed chunk of the given
+	 * length.
+	 */
+	int getMaxCompressedLength(int len);
+
+	/**
+	 * Creates an encoder.
+	 *
+	 * Encoders are not thread-safe, but can be reused for any number of
+	 * chunks and entries.
+	 *
+	 * @param level The compression level (0-9, or -1 for the default);
+	 *        codecs may ignore it.
+	 */
+	IZipCodecEncoder newEncoder(int level);
+
+	/**
+	 * Returns a stream for reading the uncompressed data of an entry from
+	 * its compressed data.
+	 *
+	 * @param in The compressed data of the entry (and nothing else).
+	 */
+	InputStream newInputStream(InputStream in) throws IOException;
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2008-2012  Marco Guazzone
+ *                          [Distributed Computing System (DCS) Group,
+ *                           Computer Science Institute,
+ *                           Department of Science and Technological Innovation,
+ *                           University of Piemonte Orientale,
+ *                           Alessandria (Italy)]
+ *
+ * This file is part of dcj-commons.
+ *
+ * dcsj-commons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dcsj-commons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dcsj-commons.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.unipmn.di.dcs.common.io;
+
+import java.io.IOException;
+
+/**
+ * Compresses chunks of ZIP entries for an {@link IZipCodec}.
+ *
+ * @author <a href="mailto:marco.guazzone@gmail.com">Marco Guazzone</a>
+ */
+public interface IZipCodecEncoder
+{
+	/**
+	 * Compresses a chunk of an entry.
+	 *
+	 * @param in The input buffer, holding the {@code dictLen} bytes which
+	 *        precede the chunk (at most {@link
+	 *        IZipCodec#getDictionarySize()}), followed by the chunk itself.
+	 * @param dictLen The number of bytes preceding the chunk.
+	 * @param len The length of the chunk.
+	 * @param last Tells if this is the last chunk of the entry.
+	 * @param out The output buffer.
+	 * @param off The offset in the output buffer, which must have room for
+	 *        at least {@link IZipCodec#getMaxCompressedLength(int)} bytes.
+	 * @return The length of the compressed chunk.
+	 */
+	int compress(byte[] in, int dictLen, int len, boolean last, byte[] out, int off) throws IOException;
+
+	/** Releases the resources held by this encoder. */
+	void end();
+}
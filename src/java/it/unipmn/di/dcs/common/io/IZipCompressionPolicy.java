@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2008-2012  Marco Guazzone
+ *                          [Distributed Computing System (DCS) Group,
+ *                           Computer Science Institute,
+ *                           Department of Science and Technological Innovation,
+ *                           University of Piemonte Orientale,
+ *                           Alessandria (Italy)]
+ *
+ * This file is part of dcj-commons.
+ *
+ * dcsj-commons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dcsj-commons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dcsj-commons.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.unipmn.di.dcs.common.io;
+
+/**
+ * Chooses how each entry of a ZIP archive is to be compressed.
+ *
+ * @author <a href="mailto:marco.guazzone@gmail.com">Marco Guazzone</a>
+ */
+public interface IZipCompressionPolicy
+{
+	/**
+	 * Returns the number of leading bytes of each file the policy wants to
+	 * look at.
+	 */
+	int getSampleSize();
+
+	/**
+	 * Chooses how to compress an entry.
+	 *
+	 * Implementations must be thread-safe, since entries are usually
+	 * examined concurrently.
+	 *
+	 * @param entryName The name of the entry.
+	 * @param size The size of the uncompressed entry, or -1 if it is not
+	 *        known in advance (e.g., for entries read from a stream).
+	 * @param sample The first bytes of the entry data.
+	 * @param off The offset of the first sample byte.
+	 * @param len The number of sample bytes (at most {@link
+	 *        #getSampleSize()}, fewer for small entries).
+	 */
+	ZipCompression choose(String entryName, long size, byte[] sample, int off, int len);
+}
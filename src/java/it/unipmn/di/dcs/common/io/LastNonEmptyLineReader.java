@@ -27,11 +27,20 @@ package it.unipmn.di.dcs.common.io;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.Reader;
+import java.io.StringReader;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 
 /**
  * This class implement a specialized version of <code>BufferedReader</code>
  * where data are read only from last line.
  *
+ * Readers of files (or file channels) find the last non-empty line by
+ * scanning the file backwards from its end, so that only the last lines are
+ * read; readers of streams have to read the whole stream.
+ *
  * @author <a href="mailto:marco.guazzone@gmail.com">Marco Guazzone</a>
  */
 public class LastNonEmptyLineReader extends BufferedReader
@@ -56,6 +65,58 @@ public class LastNonEmptyLineReader extends BufferedReader
 		this.skipToLastLine();
 	}
 
+	/**
+	 * A constructor, for the given file channel (from its end, whatever
+	 * its position).
+	 */
+	public LastNonEmptyLineReader(FileChannel ch, Charset cs) throws IOException
+	{
+		super( new StringReader( "" ) );
+
+		this.lastLine = FindLastNonEmptyLine( ch, cs );
+	}
+
+	/** A constructor, for the given file. */
+	public LastNonEmptyLineReader(Path file, Charset cs) throws IOException
+	{
+		super( new StringReader( "" ) );
+
+		FileChannel ch = null;
+		try
+		{
+			ch = FileChannel.open( file, StandardOpenOption.READ );
+			this.lastLine = FindLastNonEmptyLine( ch, cs );
+		}
+		finally
+		{
+			if ( ch != null )
+			{
+				try { ch.close(); } catch (Exception e) { /* ignore */ }
+				ch = null;
+			}
+		}
+	}
+
+	/**
+	 * Returns the last non-empty line of the given file channel, or
+	 * {@code null} if there is none, by scanning the file backwards.
+	 */
+	private static String FindLastNonEmptyLine(FileChannel ch, Charset cs) throws IOException
+	{
+		BackwardLineScanner scanner = new BackwardLineScanner( ch, cs, BackwardLineScanner.DEFAULT_BLOCK_SIZE );
+
+		String line = null;
+		while ( ( line = scanner.previousLine() ) != null )
+		{
+			if ( line.trim().length() > 0 )
+			{
+				return line;
+			}
+		}
+
+		return null;
+	}
+
 	/**
 	 * Skips all characters until the last line, or end of stream, is
 	 * encountered.
@@ -113,10 +174,11 @@ public class LastNonEmptyLineReader extends BufferedReader
 
 				this.lastLine.getChars(
 					(int) this.pos,
-					nread,
+					(int) this.pos + nread,
 					buf,
 					off
 				);
+				this.pos += nread;
 			}
 
 			return nread;
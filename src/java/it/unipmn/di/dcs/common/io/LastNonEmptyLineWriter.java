@@ -24,75 +24,65 @@
 
 package it.unipmn.di.dcs.common.io;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.StringReader;
 import java.io.Writer;
-import it.unipmn.di.dcs.common.annotation.Experimental;
-import it.unipmn.di.dcs.common.annotation.TODO;
-//import it.unipmn.di.dcs.common.annotation.TODO.SeverityType;
-import it.unipmn.di.dcs.common.util.Arrays;
+import java.util.Arrays;
 
 /**
  * This class implement a specialized version of <code>BufferedWriter</code>
  * where only the last line of data is written.
  *
+ * Written characters are parsed by a state machine which splits lines on
+ * {@code "\n"}, {@code "\r"} or {@code "\r\n"} (even when split across
+ * writes), and keeps only the current line and the last non-empty one, in
+ * reusable buffers.
+ *
  * @author <a href="mailto:marco.guazzone@gmail.com">Marco Guazzone</a>
  */
 //public class LastNonEmptyLineWriter extends Writer
 public class LastNonEmptyLineWriter extends BufferedWriter
 {
-	private StringBuffer lastLine = new StringBuffer(); /** The line to be written */
+	private static final int INITIAL_LINE_SIZE = 128;
+
+	/** The line being written (since the last terminator) */
+	private char[] line = new char[INITIAL_LINE_SIZE];
+	private int lineLen = 0;
+	/** The last complete non-empty line */
+	private char[] lastLine = new char[INITIAL_LINE_SIZE];
+	private int lastLineLen = 0;
+	/** Tells if the last character was a CR, possibly followed by a LF */
+	private boolean afterCr = false;
 	private boolean bufIsDirty = false; /** Monitors changes to internal buffer */
-	private static String newLine = null; /** The underlying newline string */
-	//private boolean newLinePresent = false; /** "true" if "lastLine" contains a newline */
-	private int newLineSentinelIdx = 0; /** Keep track of fragmented newlines */
 
 	/** A constructor */
 	public LastNonEmptyLineWriter(Writer wr)
 	{
 		super( wr );
-
-		this.newLine = System.getProperty( "line.separator" );
 	}
 
 	/** A constructor */
 	public LastNonEmptyLineWriter(Writer wr, int sz) 
 	{
 		super( wr, sz );
-
-		this.newLine = System.getProperty( "line.separator" );
 	}
 
-/*
-	private static char[] subArray(char[] array, int beginPos, int len)
-	{
-		char[] result = new char[ len ];
-		int endPos = beginPos + len - 1;
-
-		for ( int i = beginPos; i <= endPos; i++ )
-		{
-			result[i] = array[i];
-		}
-
-		return result;
-	}
-*/
-
 	/** @see java.io.BufferedWriter#flush() */
 	@Override
 	public void flush() throws IOException
 	{
 		synchronized ( this.lock )
 		{
-			if ( this.bufIsDirty == true && this.lastLine.length() > 0 )
+			if ( this.bufIsDirty == true )
 			{
-				super.write(
-					this.lastLine.toString(),
-					0,
-					this.lastLine.length()
-				);
+				if ( this.lineLen > 0 )
+				{
+					super.write( this.line, 0, this.lineLen );
+				}
+				else if ( this.lastLineLen > 0 )
+				{
+					super.write( this.lastLine, 0, this.lastLineLen );
+				}
 
 				super.flush();
 
@@ -105,150 +95,105 @@ public class LastNonEmptyLineWriter extends BufferedWriter
 	@Override
 	public void write(char[] cbuf, int off, int len) throws IOException
 	{
+		if ( off < 0 || len < 0 || off > cbuf.length - len )
+		{
+			throw new IndexOutOfBoundsException();
+		}
+
 		synchronized ( this.lock )
 		{
-			// Looks for a beginning fragmented newline
-			if ( this.newLineSentinelIdx > 0 )
+			for ( int i = off; i < off + len; i++ )
 			{
-				// a possible pending fragmented newline
-
-				int newLineLen = this.newLine.length();
-				int i = this.newLineSentinelIdx;
-				int j = off;
-				for ( ; i < newLineLen && j < len; i++, j++ )
-				{
-					if ( this.newLine.charAt(i) != cbuf[j] )
-					{
-						break;
-					}
-				}
-
-				if ( i == newLineLen || j == len )
-				{
-					// Found the other part of the fragment
-					// or
-					// Found a second fragment of a newline
-					// (cbuf is shorter than newline).
-
-					int delta = i - this.newLineSentinelIdx;
-					off += delta;
-					len -= delta;
-
-					if ( i == newLineLen )
-					{
-						// A complete newline has been found
-						// => reset the sentinel
-
-						this.newLineSentinelIdx = 0;
-					}
-				}
-
-				if ( off >= cbuf.length || len <= 0 )
-				{
-					// No more chars to write.
-					return;
-				}
+				this.put( cbuf[i] );
 			}
 
-			// Looks for an ending fragmented newline
-			{
-				int newLineLen = this.newLine.length();
-				int lastPos = off + len - 1;
-
-				for ( int l = newLineLen; l > 0; l-- )
-				{
-					// looks for a suffix of length l
-
-					int firstPos = lastPos - l + 1;
-					int j = firstPos;
-					for ( ; j <= lastPos; j++ )
-					{
-						if ( this.newLine.charAt(j - firstPos) != cbuf[j] )
-						{
-							// this suffix don't match
-							break;
-						}
-					}
-
-					if ( j > lastPos )
-					{
-						// found a common suffix
+			this.bufIsDirty = true;
+		}
+	}
 
-						this.newLineSentinelIdx = l;
-						len -= l;
-						break;
-					}
-				}
+	/** @see java.io.BufferedWriter#write(int) */
+	@Override
+	public void write(int c) throws IOException
+	{
+		synchronized ( this.lock )
+		{
+			this.put( (char) c );
 
-				if ( len <= 0 )
-				{
-					// No more chars to write.
-					return;
-				}
-			}
+			this.bufIsDirty = true;
+		}
+	}
 
-			BufferedReader br = new BufferedReader(
-				new StringReader(
-					new String( Arrays.SubArray( cbuf, off, len ) )
-				)
-			);
+	/** @see java.io.BufferedWriter#write(String,int,int) */
+	@Override
+	public void write(String s, int off, int len) throws IOException
+	{
+		if ( off < 0 || len < 0 || off > s.length() - len )
+		{
+			throw new IndexOutOfBoundsException();
+		}
 
-			String line = null;
-			while ( ( line = br.readLine() ) != null )
+		synchronized ( this.lock )
+		{
+			for ( int i = off; i < off + len; i++ )
 			{
-				if ( line.length() > 0 )
-				{
-/*
-					this.lastLine.setLength(0);
-					this.lastLine.append( line );
-*/
-					this.lastLine.setLength( line.length() );
-					this.lastLine.replace( 0, line.length(), line );
-				}
+				this.put( s.charAt( i ) );
 			}
-			br.close();
-			br = null;
 
 			this.bufIsDirty = true;
 		}
 	}
 
-//	/** @see java.io.BufferedWriter#write(int) */
-/* Implicitly implemented via write(char[], int, int)
-	@TODO( value="Optimize and add code to handle fragmented newlines", severity=TODO.SeverityType.LOW )
-	public void write(int c) throws IOException
+	/** Feeds the given character to the line state machine. */
+	private void put(char c)
 	{
-		this.write(
-			new String(
-				new int[] { c },
-				0,
-				1
-			),
-			0,
-			1
-		);
+		if ( c == '\n' )
+		{
+			if ( !this.afterCr )
+			{
+				this.endLine();
+			}
+			// else: the LF of a CRLF, whose line is already ended
+			this.afterCr = false;
+		}
+		else if ( c == '\r' )
+		{
+			this.endLine();
+			this.afterCr = true;
+		}
+		else
+		{
+			if ( this.lineLen == this.line.length )
+			{
+				this.line = Arrays.copyOf( this.line, 2 * this.line.length );
+			}
+			this.line[this.lineLen++] = c;
+			this.afterCr = false;
+		}
 	}
-*/
 
-//	/** @see java.io.BufferedWriter#write(String,int,int) */
-/* Implicitly implemented via write(char[], int, int)
-	public void write(String s, int off, int len) throws IOException
+	/** Ends the current line, which becomes the last line if not empty. */
+	private void endLine()
 	{
-		if ( s.length() > 0 )
+		if ( this.lineLen > 0 )
 		{
-			this.write( s.toCharArray(), off, len );
+			// Swaps buffers, so that neither is reallocated
+			char[] tmp = this.lastLine;
+			this.lastLine = this.line;
+			this.lastLineLen = this.lineLen;
+			this.line = tmp;
 		}
+		this.lineLen = 0;
 	}
-*/
 
 	/**
-	 * Returns the internal buffer.
+	 * Returns the last non-empty line (the line being written, if not
+	 * empty).
 	 *
-	 * @return The internal buffer.
+	 * @return A copy of the last line.
 	 */
 	public StringBuffer getBuffer()
 	{
-		return this.lastLine;
+		return new StringBuffer( this.toString() );
 	}
 
 	/**
@@ -261,6 +206,11 @@ public class LastNonEmptyLineWriter extends BufferedWriter
 	@Override
 	public String toString()
 	{
-		return this.lastLine.toString();
+		synchronized ( this.lock )
+		{
+			return ( this.lineLen > 0 )
+				? new String( this.line, 0, this.lineLen )
+				: new String( this.lastLine, 0, this.lastLineLen );
+		}
 	}
 }
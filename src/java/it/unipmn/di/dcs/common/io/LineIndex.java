@@ -0,0 +1,840 @@
+/*
+ * Copyright (C) 2008-2012  Marco Guazzone
+ *                          [Distributed Computing System (DCS) Group,
+ *                           Computer Science Institute,
+ *                           Department of Science and Technological Innovation,
+ *                           University of Piemonte Orientale,
+ *                           Alessandria (Italy)]
+ *
+ * This file is part of dcj-commons.
+ *
+ * dcsj-commons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dcsj-commons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dcsj-commons.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.unipmn.di.dcs.common.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * An index of the lines of a text file, for reading any line directly and
+ * for processing the lines in parallel.
+ *
+ * The index is built by mapping the file into memory and looking for line
+ * feeds in several segments in parallel; it keeps the offset of each line
+ * in a single {@code long[]}. It can be saved beside the file (see
+ * {@link #IndexPath(Path)}), and loaded again as long as the file size and
+ * modification time are unchanged.
+ *
+ * Lines are terminated by {@code "\n"} or {@code "\r\n"} (a final line may
+ * be unterminated); hence, the file must be encoded with a charset where a
+ * line feed is the single byte {@code 0x0A} (e.g., UTF-8 or ISO-8859-1).
+ *
+ * An index reflects the file when it was built: when the file changes, a
+ * new index must be built (see {@link #isValid()}).
+ *
+ * @author <a href="mailto:marco.guazzone@gmail.com">Marco Guazzone</a>
+ */
+public final class LineIndex
+{
+	/** The suffix appended to a file name to name its saved index. */
+	public static final String INDEX_SUFFIX = ".idx";
+
+	/** The size of the segments scanned in parallel. */
+	public static final int DEFAULT_SEGMENT_SIZE = 16 << 20;
+
+	private static final int MAGIC = 0x4C494458; // "LIDX"
+	private static final int VERSION = 1;
+	/** The maximum size of the mappings of the line spliterators. */
+	private static final int WINDOW_SIZE = 64 << 20;
+	/** The minimum number of lines of a split. */
+	private static final int MIN_SPLIT_LINES = 1024;
+	private static final long NEWLINES = 0x0A0A0A0A0A0A0A0AL;
+	private static final long LOW7 = 0x7F7F7F7F7F7F7F7FL;
+
+	private final Path file;
+	private final long modified;
+	/**
+	 * The offset of each line, followed by the file size (so that line
+	 * {@code k} spans {@code [offsets[k], offsets[k+1])}).
+	 */
+	private final long[] offsets;
+
+	private LineIndex(Path file, long modified, long[] offsets)
+	{
+		this.file = file;
+		this.modified = modified;
+		this.offsets = offsets;
+	}
+
+	/**
+	 * Builds the index of the given file, using a thread per available
+	 * processor.
+	 */
+	public static LineIndex Build(Path file) throws IOException
+	{
+		return Build( file, 0 );
+	}
+
+	/**
+	 * Builds the index of the given file, using the given number of
+	 * threads (or a thread per available processor, if not positive).
+	 *
+	 * @throws IOException if the file cannot be read, or has too many
+	 *         lines.
+	 */
+	public static LineIndex Build(Path file, int parallelism) throws IOException
+	{
+		return Build( file, parallelism, DEFAULT_SEGMENT_SIZE );
+	}
+
+	/**
+	 * Builds the index of the given file, scanning segments of the given
+	 * size with the given number of threads (or a thread per available
+	 * processor, if not positive).
+	 *
+	 * @throws IOException if the file cannot be read, or has too many
+	 *         lines.
+	 */
+	public static LineIndex Build(Path file, int parallelism, int segmentSize) throws IOException
+	{
+		if ( segmentSize <= 0 )
+		{
+			throw new IllegalArgumentException( "Invalid segment size: " + segmentSize );
+		}
+
+		FileChannel ch = null;
+
+		try
+		{
+			ch = FileChannel.open( file, StandardOpenOption.READ );
+
+			long modified = Files.getLastModifiedTime( file ).toMillis();
+			long size = ch.size();
+			long nsegs = (size + segmentSize - 1) / segmentSize;
+			if ( nsegs > Integer.MAX_VALUE )
+			{
+				throw new IllegalArgumentException( "Segment size too small: " + segmentSize );
+			}
+			int threads = (int) Math.min( nsegs, ConcurrencyUtil.ResolveParallelism( parallelism ) );
+			List<Offsets> found = new ArrayList<Offsets>( (int) nsegs );
+
+			if ( threads <= 1 )
+			{
+				for (int i = 0; i < nsegs; i++)
+				{
+					long from = (long) i * segmentSize;
+					found.add( Scan( ch, from, (int) Math.min( segmentSize, size - from ) ) );
+				}
+			}
+			else
+			{
+				ExecutorService executor = Executors.newFixedThreadPool( threads, new DaemonThreadFactory( "line-index" ) );
+
+				try
+				{
+					final FileChannel fch = ch;
+					List<Future<Offsets>> results = new ArrayList<Future<Offsets>>( (int) nsegs );
+
+					for (int i = 0; i < nsegs; i++)
+					{
+						final long from = (long) i * segmentSize;
+						final int len = (int) Math.min( segmentSize, size - from );
+
+						results.add( executor.submit( new Callable<Offsets>()
+						{
+							public Offsets call() throws IOException
+							{
+								return Scan( fch, from, len );
+							}
+						}));
+					}
+					for (Future<Offsets> f : results)
+					{
+						found.add( ConcurrencyUtil.Await( f ) );
+					}
+				}
+				finally
+				{
+					executor.shutdownNow();
+				}
+			}
+
+			return new LineIndex( file, modified, Merge( found, size ) );
+		}
+		finally
+		{
+			if ( ch != null )
+			{
+				try { ch.close(); } catch (Exception e) { /* ignore */ }
+				ch = null;
+			}
+		}
+	}
+
+	/**
+	 * Loads the saved index of the given file.
+	 *
+	 * @return The index, or {@code null} if there is no saved index, or if
+	 *         it is corrupted or out of date.
+	 * @throws IOException if the file or the index cannot be read.
+	 */
+	public static LineIndex Load(Path file) throws IOException
+	{
+		DataInputStream is = null;
+
+		try
+		{
+			is = new DataInputStream( new BufferedInputStream( Files.newInputStream( IndexPath( file ) ) ) );
+
+			if ( is.readInt() != MAGIC || is.readInt() != VERSION )
+			{
+				return null;
+			}
+
+			long size = is.readLong();
+			long modified = is.readLong();
+			if ( size != Files.size( file ) || modified != Files.getLastModifiedTime( file ).toMillis() )
+			{
+				return null;
+			}
+
+			int count = is.readInt();
+			if ( count < 0 || count > size )
+			{
+				return null;
+			}
+
+			// Line lengths, as variable length integers
+			long[] offsets = new long[count + 1];
+			for (int i = 1; i <= count; i++)
+			{
+				long len = ReadVarLong( is );
+				if ( len <= 0 )
+				{
+					return null;
+				}
+				offsets[i] = offsets[i - 1] + len;
+			}
+			if ( offsets[count] != size )
+			{
+				return null;
+			}
+
+			return new LineIndex( file, modified, offsets );
+		}
+		catch (NoSuchFileException nsfe)
+		{
+			return null;
+		}
+		catch (EOFException eofe)
+		{
+			return null;
+		}
+		finally
+		{
+			if ( is != null )
+			{
+				try { is.close(); } catch (Exception e) { /* ignore */ }
+				is = null;
+			}
+		}
+	}
+
+	/**
+	 * Returns the saved index of the given file if up to date, or builds
+	 * and saves a new one.
+	 *
+	 * A failure saving the index (e.g., in a read-only directory) is
+	 * ignored.
+	 */
+	public static LineIndex Open(Path file) throws IOException
+	{
+		LineIndex index = Load( file );
+
+		if ( index == null )
+		{
+			index = Build( file );
+			try
+			{
+				index.save();
+			}
+			catch (IOException ioe)
+			{
+				// Rebuilt next time
+			}
+		}
+
+		return index;
+	}
+
+	/** Returns the path where the index of the given file is saved. */
+	public static Path IndexPath(Path file)
+	{
+		return file.resolveSibling( file.getFileName().toString() + INDEX_SUFFIX );
+	}
+
+	/**
+	 * Saves this index beside its file.
+	 *
+	 * The index is written to a temporary file first, so that a partially
+	 * written index is never loaded.
+	 */
+	public void save() throws IOException
+	{
+		Path path = IndexPath( this.file );
+		Path tmp = path.resolveSibling( path.getFileName().toString() + ".tmp" );
+		DataOutputStream os = null;
+
+		try
+		{
+			os = new DataOutputStream( new BufferedOutputStream( Files.newOutputStream( tmp ) ) );
+			os.writeInt( MAGIC );
+			os.writeInt( VERSION );
+			os.writeLong( this.getFileSize() );
+			os.writeLong( this.modified );
+			os.writeInt( this.getLineCount() );
+			for (int i = 1; i < this.offsets.length; i++)
+			{
+				WriteVarLong( os, this.offsets[i] - this.offsets[i - 1] );
+			}
+			os.close();
+			os = null;
+
+			try
+			{
+				Files.move( tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+			}
+			catch (AtomicMoveNotSupportedException amnse)
+			{
+				Files.move( tmp, path, StandardCopyOption.REPLACE_EXISTING );
+			}
+		}
+		finally
+		{
+			if ( os != null )
+			{
+				try { os.close(); } catch (Exception e) { /* ignore */ }
+				os = null;
+			}
+			Files.deleteIfExists( tmp );
+		}
+	}
+
+	/**
+	 * Tells if the file has the same size and modification time as when
+	 * this index was built.
+	 */
+	public boolean isValid() throws IOException
+	{
+		try
+		{
+			return Files.size( this.file ) == this.getFileSize()
+				&& Files.getLastModifiedTime( this.file ).toMillis() == this.modified;
+		}
+		catch (NoSuchFileException nsfe)
+		{
+			return false;
+		}
+	}
+
+	public Path getFile()
+	{
+		return this.file;
+	}
+
+	public long getFileSize()
+	{
+		return this.offsets[this.offsets.length - 1];
+	}
+
+	public int getLineCount()
+	{
+		return this.offsets.length - 1;
+	}
+
+	/** Returns the offset of the given line (counted from zero). */
+	public long offset(int line)
+	{
+		this.checkLine( line );
+
+		return this.offsets[line];
+	}
+
+	/**
+	 * Reads the bytes of the given line (counted from zero), without its
+	 * terminator.
+	 */
+	public ByteBuffer readLineBytes(int line) throws IOException
+	{
+		this.checkLine( line );
+
+		long len = this.offsets[line + 1] - this.offsets[line];
+		if ( len > Integer.MAX_VALUE )
+		{
+			throw new IOException( "Line " + line + " too long: " + len + " bytes" );
+		}
+
+		ByteBuffer buf = ByteBuffer.allocate( (int) len );
+		FileChannel ch = null;
+
+		try
+		{
+			ch = FileChannel.open( this.file, StandardOpenOption.READ );
+			while ( buf.hasRemaining() )
+			{
+				if ( ch.read( buf, this.offsets[line] + buf.position() ) < 0 )
+				{
+					throw new EOFException( "File shorter than its index: " + this.file );
+				}
+			}
+		}
+		finally
+		{
+			if ( ch != null )
+			{
+				try { ch.close(); } catch (Exception e) { /* ignore */ }
+				ch = null;
+			}
+		}
+
+		buf.flip();
+		buf.limit( StripTerminator( buf, 0, buf.limit() ) );
+
+		return buf;
+	}
+
+	/**
+	 * Reads the given line (counted from zero), without its terminator,
+	 * decoding it with the given charset.
+	 */
+	public String readLine(int line, Charset cs) throws IOException
+	{
+		CheckCharset( cs );
+
+		return cs.decode( this.readLineBytes( line ) ).toString();
+	}
+
+	/**
+	 * Returns a spliterator over the lines of the file, without their
+	 * terminators, as read-only slices of the file mapped into memory.
+	 *
+	 * The spliterator splits by line ranges, so that each thread of a
+	 * parallel stream (see {@code StreamSupport.stream(spliterator, true)})
+	 * processes a contiguous part of the file; lines are not copied.
+	 * Failures reading the file are thrown as
+	 * {@link UncheckedIOException}.
+	 */
+	public Spliterator<ByteBuffer> parallelLines()
+	{
+		return new ByteLines( 0, this.getLineCount() );
+	}
+
+	/**
+	 * Returns a spliterator over the lines of the file, without their
+	 * terminators, decoded with the given charset.
+	 *
+	 * With ISO-8859-1 and US-ASCII, lines are not copied: they are views
+	 * of the file mapped into memory; with other charsets, each line is
+	 * decoded into a new buffer.
+	 *
+	 * @see #parallelLines()
+	 */
+	public Spliterator<CharSequence> parallelLines(Charset cs)
+	{
+		CheckCharset( cs );
+
+		return new CharLines( 0, this.getLineCount(), cs );
+	}
+
+	private void checkLine(int line)
+	{
+		if ( line < 0 || line >= this.getLineCount() )
+		{
+			throw new IndexOutOfBoundsException( "Line " + line + " not in [0, " + this.getLineCount() + ")" );
+		}
+	}
+
+	/**
+	 * Returns the offsets of the lines starting after the line feeds in
+	 * the given segment of a file.
+	 */
+	private static Offsets Scan(FileChannel ch, long from, int len) throws IOException
+	{
+		ByteBuffer buf = ch.map( FileChannel.MapMode.READ_ONLY, from, len );
+		Offsets found = new Offsets( Math.max( 16, len >>> 6 ) );
+		int i = 0;
+
+		// Eight bytes at a time: the high bit of each byte of t is set
+		// iff that byte is a line feed
+		buf.order( ByteOrder.LITTLE_ENDIAN );
+		for (; i + 8 <= len; i += 8)
+		{
+			long x = buf.getLong( i ) ^ NEWLINES;
+			long t = ~( ( (x & LOW7) + LOW7 ) | x | LOW7 );
+			while ( t != 0 )
+			{
+				found.add( from + i + (Long.numberOfTrailingZeros( t ) >>> 3) + 1 );
+				t &= t - 1;
+			}
+		}
+		for (; i < len; i++)
+		{
+			if ( buf.get( i ) == '\n' )
+			{
+				found.add( from + i + 1 );
+			}
+		}
+
+		return found;
+	}
+
+	/** Merges the offsets found in each segment into the line offsets. */
+	private static long[] Merge(List<Offsets> found, long size) throws IOException
+	{
+		long total = 0;
+		long last = 0;
+		for (Offsets o : found)
+		{
+			total += o.count;
+			if ( o.count > 0 )
+			{
+				last = o.values[o.count - 1];
+			}
+		}
+
+		// A final unterminated line ends at the file size
+		boolean unterminated = last != size;
+		long count = total + ( unterminated ? 1 : 0 );
+		if ( count >= Integer.MAX_VALUE - 8 )
+		{
+			throw new IOException( "Too many lines: " + count );
+		}
+
+		long[] offsets = new long[(int) count + 1];
+		int n = 1;
+		for (Offsets o : found)
+		{
+			System.arraycopy( o.values, 0, offsets, n, o.count );
+			n += o.count;
+		}
+		if ( unterminated )
+		{
+			offsets[n] = size;
+		}
+
+		return offsets;
+	}
+
+	/**
+	 * Returns the end of the line in the given range of the given buffer,
+	 * without its terminator.
+	 */
+	private static int StripTerminator(ByteBuffer buf, int start, int end)
+	{
+		if ( end > start && buf.get( end - 1 ) == '\n' )
+		{
+			end--;
+		}
+		if ( end > start && buf.get( end - 1 ) == '\r' )
+		{
+			end--;
+		}
+
+		return end;
+	}
+
+	private static void CheckCharset(Charset cs)
+	{
+		if ( !Arrays.equals( "\n".getBytes( cs ), new byte[] { '\n' } ) )
+		{
+			throw new IllegalArgumentException( "Line feeds are not single bytes in " + cs );
+		}
+	}
+
+	private static void WriteVarLong(DataOutputStream os, long v) throws IOException
+	{
+		while ( (v & ~0x7FL) != 0 )
+		{
+			os.writeByte( (int) (v & 0x7F) | 0x80 );
+			v >>>= 7;
+		}
+		os.writeByte( (int) v );
+	}
+
+	private static long ReadVarLong(DataInputStream is) throws IOException
+	{
+		long v = 0;
+
+		for (int shift = 0; shift < 64; shift += 7)
+		{
+			int b = is.readUnsignedByte();
+			v |= (long) (b & 0x7F) << shift;
+			if ( (b & 0x80) == 0 )
+			{
+				return v;
+			}
+		}
+
+		throw new EOFException( "Malformed line length" );
+	}
+
+	/** A growable list of offsets. */
+	private static final class Offsets
+	{
+		long[] values;
+		int count = 0;
+
+		Offsets(int capacity)
+		{
+			this.values = new long[capacity];
+		}
+
+		void add(long v)
+		{
+			if ( this.count == this.values.length )
+			{
+				this.values = Arrays.copyOf( this.values, this.values.length * 2 );
+			}
+			this.values[this.count++] = v;
+		}
+	}
+
+	/**
+	 * A spliterator over a range of lines, mapping the file into memory
+	 * a window of lines at a time.
+	 */
+	private abstract class LineSpliterator<T> implements Spliterator<T>
+	{
+		/** The next line. */
+		protected int next;
+		/** The end of the range of lines (excluded). */
+		protected final int end;
+		private ByteBuffer window;
+		/** The range of lines in the window. */
+		private int windowFirst = 0;
+		private int windowEnd = 0;
+
+		LineSpliterator(int next, int end)
+		{
+			this.next = next;
+			this.end = end;
+		}
+
+		/** Returns the element for the given line. */
+		protected abstract T element(ByteBuffer line);
+
+		/** Returns a spliterator over the given range of lines. */
+		protected abstract LineSpliterator<T> split(int next, int end);
+
+		public boolean tryAdvance(Consumer<? super T> action)
+		{
+			if ( this.next >= this.end )
+			{
+				return false;
+			}
+
+			if ( this.next < this.windowFirst || this.next >= this.windowEnd )
+			{
+				this.map( this.next );
+			}
+
+			long base = offsets[this.windowFirst];
+			int start = (int) ( offsets[this.next] - base );
+			int stop = StripTerminator( this.window, start, (int) ( offsets[this.next + 1] - base ) );
+			ByteBuffer line = this.window.duplicate();
+			line.limit( stop );
+			line.position( start );
+
+			this.next++;
+			action.accept( this.element( line.slice() ) );
+
+			return true;
+		}
+
+		public Spliterator<T> trySplit()
+		{
+			if ( this.end - this.next < 2 * MIN_SPLIT_LINES )
+			{
+				return null;
+			}
+
+			int mid = (this.next + this.end) >>> 1;
+			Spliterator<T> prefix = this.split( this.next, mid );
+			this.next = mid;
+
+			return prefix;
+		}
+
+		public long estimateSize()
+		{
+			return this.end - this.next;
+		}
+
+		public int characteristics()
+		{
+			return ORDERED | SIZED | SUBSIZED | NONNULL | IMMUTABLE;
+		}
+
+		/** Maps as many lines as fit in a window, from the given one. */
+		private void map(int first)
+		{
+			long from = offsets[first];
+
+			// The last line whose end fits in the window (at least one)
+			int last = Arrays.binarySearch( offsets, first + 1, this.end + 1, from + WINDOW_SIZE );
+			last = ( last >= 0 ) ? last : -last - 2;
+			last = Math.max( last, first + 1 );
+
+			long len = offsets[last] - from;
+			if ( len > Integer.MAX_VALUE )
+			{
+				throw new UncheckedIOException( new IOException( "Line " + first + " too long: " + len + " bytes" ) );
+			}
+
+			FileChannel ch = null;
+			try
+			{
+				ch = FileChannel.open( file, StandardOpenOption.READ );
+				this.window = ch.map( FileChannel.MapMode.READ_ONLY, from, len ).asReadOnlyBuffer();
+				this.windowFirst = first;
+				this.windowEnd = last;
+			}
+			catch (IOException ioe)
+			{
+				throw new UncheckedIOException( ioe );
+			}
+			finally
+			{
+				if ( ch != null )
+				{
+					try { ch.close(); } catch (Exception e) { /* ignore */ }
+					ch = null;
+				}
+			}
+		}
+	}
+
+	/** A spliterator over lines as byte buffers. */
+	private final class ByteLines extends LineSpliterator<ByteBuffer>
+	{
+		ByteLines(int next, int end)
+		{
+			super( next, end );
+		}
+
+		protected ByteBuffer element(ByteBuffer line)
+		{
+			return line;
+		}
+
+		protected LineSpliterator<ByteBuffer> split(int next, int end)
+		{
+			return new ByteLines( next, end );
+		}
+	}
+
+	/** A spliterator over lines as character sequences. */
+	private final class CharLines extends LineSpliterator<CharSequence>
+	{
+		private final Charset cs;
+		private final boolean latin1;
+
+		CharLines(int next, int end, Charset cs)
+		{
+			super( next, end );
+			this.cs = cs;
+			this.latin1 = "ISO-8859-1".equals( cs.name() ) || "US-ASCII".equals( cs.name() );
+		}
+
+		protected CharSequence element(ByteBuffer line)
+		{
+			return this.latin1 ? new Latin1Sequence( line ) : this.cs.decode( line );
+		}
+
+		protected LineSpliterator<CharSequence> split(int next, int end)
+		{
+			return new CharLines( next, end, this.cs );
+		}
+	}
+
+	/** A view of single-byte characters as a character sequence. */
+	private static final class Latin1Sequence implements CharSequence
+	{
+		/** The characters, from position zero to the limit. */
+		private final ByteBuffer bytes;
+
+		Latin1Sequence(ByteBuffer bytes)
+		{
+			this.bytes = bytes;
+		}
+
+		public int length()
+		{
+			return this.bytes.limit();
+		}
+
+		public char charAt(int index)
+		{
+			return (char) ( this.bytes.get( index ) & 0xFF );
+		}
+
+		public CharSequence subSequence(int start, int end)
+		{
+			if ( start < 0 || start > end || end > this.length() )
+			{
+				throw new IndexOutOfBoundsException( "[" + start + ", " + end + ") not in [0, " + this.length() + ")" );
+			}
+
+			ByteBuffer sub = this.bytes.duplicate();
+			sub.limit( end );
+			sub.position( start );
+
+			return new Latin1Sequence( sub.slice() );
+		}
+
+		@Override
+		public String toString()
+		{
+			byte[] b = new byte[this.length()];
+
+			this.bytes.duplicate().get( b );
+
+			return new String( b, Charset.forName( "ISO-8859-1" ) );
+		}
+	}
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2008-2012  Marco Guazzone
+ *                          [Distributed Computing System (DCS) Group,
+ *                           Computer Science Institute,
+ *                           Department of Science and Technological Innovation,
+ *                           University of Piemonte Orientale,
+ *                           Alessandria (Italy)]
+ *
+ * This file is part of dcj-commons.
+ *
+ * dcsj-commons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dcsj-commons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dcsj-commons.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.unipmn.di.dcs.common.io;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Keeps the last lines of a text (possibly, only the ones selected by a
+ * filter).
+ *
+ * The text of a reader is read forward, and its last lines are kept in a
+ * ring of characters (grown to hold the kept lines, and the current one),
+ * along with a ring of their offsets; lines are split as
+ * {@code BufferedReader} does.
+ * The text of a file is rather scanned backwards, from its end, until
+ * enough lines are found.
+ * In both cases, memory is proportional to the lines kept, and only the
+ * kept lines become strings.
+ *
+ * @author <a href="mailto:marco.guazzone@gmail.com">Marco Guazzone</a>
+ */
+final class LineTail
+{
+	private static final int MIN_CAPACITY = 1024;
+
+	private final int count;
+	private final ILineFilter filter;
+	/** The characters of the kept lines, and of the current line. */
+	private char[] text = new char[MIN_CAPACITY];
+	/** The (logical) offset of the first character held. */
+	private long base = 0;
+	/** The (logical) offset of the next character. */
+	private long tail = 0;
+	/** The (logical) offset of the current line. */
+	private long lineStart = 0;
+	/** The ring of the offsets of the kept lines. */
+	private final long[] starts;
+	private final int[] lengths;
+	private int first = 0;
+	private int size = 0;
+	private final RingView view = new RingView();
+
+	/**
+	 * A constructor.
+	 *
+	 * @param count The number of lines to keep.
+	 * @param filter The filter of the lines to keep, or {@code null} to
+	 *        keep any line.
+	 */
+	LineTail(int count, ILineFilter filter)
+	{
+		if ( count <= 0 )
+		{
+			throw new IllegalArgumentException( "Invalid number of lines: " + count );
+		}
+
+		this.count = count;
+		this.filter = filter;
+		this.starts = new long[count];
+		this.lengths = new int[count];
+	}
+
+	/** Reads the given reader to the end, keeping its last lines. */
+	List<String> read(Reader rd) throws IOException
+	{
+		char[] buf = BufferPool.Shared().acquireChars( 8192 );
+		boolean afterCr = false;
+
+		try
+		{
+			int n = 0;
+			while ( ( n = rd.read( buf ) ) != -1 )
+			{
+				for (int i = 0; i < n; i++)
+				{
+					char c = buf[i];
+
+					if ( c == '\n' )
+					{
+						if ( !afterCr )
+						{
+							this.endLine();
+						}
+						afterCr = false;
+					}
+					else if ( c == '\r' )
+					{
+						this.endLine();
+						afterCr = true;
+					}
+					else
+					{
+						this.append( c );
+						afterCr = false;
+					}
+				}
+			}
+		}
+		finally
+		{
+			BufferPool.Shared().release( buf );
+		}
+
+		if ( this.tail > this.lineStart )
+		{
+			// Last line, without terminator
+			this.endLine();
+		}
+
+		List<String> lines = new ArrayList<String>( this.size );
+		for (int i = 0; i < this.size; i++)
+		{
+			int k = (this.first + i) % this.count;
+			lines.add( this.view.of( this.starts[k], this.lengths[k] ).toString() );
+		}
+
+		return lines;
+	}
+
+	/**
+	 * Scans the given file channel backwards from its end, keeping its last
+	 * lines.
+	 */
+	List<String> read(FileChannel ch, Charset cs) throws IOException
+	{
+		BackwardLineScanner scanner = new BackwardLineScanner( ch, cs, BackwardLineScanner.DEFAULT_BLOCK_SIZE );
+		List<String> lines = new ArrayList<String>( Math.min( this.count, 1024 ) );
+
+		CharBuffer line = null;
+		while ( lines.size() < this.count && ( line = scanner.previousChars() ) != null )
+		{
+			if ( this.filter == null || this.filter.accept( line ) )
+			{
+				lines.add( line.toString() );
+			}
+		}
+		Collections.reverse( lines );
+
+		return lines;
+	}
+
+	private void append(char c)
+	{
+		if ( this.tail - this.base == this.text.length )
+		{
+			this.grow();
+		}
+
+		this.text[(int) (this.tail++ % this.text.length)] = c;
+	}
+
+	/** Ends the current line, keeping it if selected. */
+	private void endLine()
+	{
+		long len = this.tail - this.lineStart;
+
+		if ( len > Integer.MAX_VALUE )
+		{
+			throw new IllegalStateException( "Line too long: " + len + " characters" );
+		}
+		if ( this.filter != null && !this.filter.accept( this.view.of( this.lineStart, (int) len ) ) )
+		{
+			// Drops it
+			this.tail = this.lineStart;
+			return;
+		}
+
+		if ( this.size == this.count )
+		{
+			// Drops the oldest line
+			this.first = (this.first + 1) % this.count;
+			this.size--;
+		}
+		int k = (this.first + this.size) % this.count;
+		this.starts[k] = this.lineStart;
+		this.lengths[k] = (int) len;
+		this.size++;
+
+		this.base = this.starts[this.first];
+		this.lineStart = this.tail;
+	}
+
+	/** Doubles the ring of characters. */
+	private void grow()
+	{
+		int used = (int) (this.tail - this.base);
+		if ( used == Integer.MAX_VALUE - 8 )
+		{
+			throw new OutOfMemoryError( "Required array size too large" );
+		}
+
+		char[] bigger = new char[ (int) Math.min( Integer.MAX_VALUE - 8, 2L * this.text.length ) ];
+		for (long i = this.base; i < this.tail; i++)
+		{
+			bigger[(int) (i % bigger.length)] = this.text[(int) (i % this.text.length)];
+		}
+		this.text = bigger;
+	}
+
+	/** A view of a range of the ring of characters. */
+	private final class RingView implements CharSequence
+	{
+		private long start;
+		private int length;
+
+		RingView of(long start, int length)
+		{
+			this.start = start;
+			this.length = length;
+			return this;
+		}
+
+		public int length()
+		{
+			return this.length;
+		}
+
+		public char charAt(int index)
+		{
+			if ( index < 0 || index >= this.length )
+			{
+				throw new IndexOutOfBoundsException( "Index: " + index );
+			}
+
+			return LineTail.this.text[(int) ((this.start + index) % LineTail.this.text.length)];
+		}
+
+		public CharSequence subSequence(int start, int end)
+		{
+			return this.toString().substring( start, end );
+		}
+
+		@Override
+		public String toString()
+		{
+			char[] chars = new char[this.length];
+			for (int i = 0; i < this.length; i++)
+			{
+				chars[i] = this.charAt( i );
+			}
+			return new String( chars );
+		}
+	}
+}
@@ -0,0 +1,505 @@
+/*
+ * Copyright (C) 2008-2012  Marco Guazzone
+ *                          [Distributed Computing System (DCS) Group,
+ *                           Computer Science Institute,
+ *                           Department of Science and Technological Innovation,
+ *                           University of Piemonte Orientale,
+ *                           Alessandria (Italy)]
+ *
+ * This file is part of dcj-commons.
+ *
+ * dcsj-commons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dcsj-commons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dcsj-commons.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.unipmn.di.dcs.common.io;
+
+import java.io.EOFException;
+import java.io.InputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.ZipException;
+
+/**
+ * A fast LZ77 codec, in the style of LZ4, for archives exchanged between
+ * hosts running this library.
+ *
+ * Data is split into independent blocks of at most {@link #BLOCK_SIZE}
+ * bytes; each block is preceded by an 8-byte header holding (little-endian)
+ * its uncompressed length and its compressed length, whose highest bit is
+ * set if the block is stored uncompressed.
+ * Compressed blocks use the LZ4 block format: a sequence of literal runs
+ * and back-references (with 16-bit offsets) into the same block.
+ *
+ * Compression is greedy, with a single-entry hash table, and does not
+ * allocate anything per block; the level is ignored.
+ *
+ * Since the method ID ({@link #METHOD}) is not a standard one, entries
+ * compressed with this codec can be read by this library only (see
+ * {@link ZipIndex#getInputStream(String)}).
+ *
+ * @author <a href="mailto:marco.guazzone@gmail.com">Marco Guazzone</a>
+ */
+final class LzBlockZipCodec implements IZipCodec
+{
+	/** The compression method ID. */
+	static final int METHOD = 0x4C5A;
+	/** The maximum (uncompressed) block length. */
+	static final int BLOCK_SIZE = 65536;
+
+	private static final int BLOCK_HEADER = 8;
+	private static final int STORED_FLAG = 0x80000000;
+	private static final int MIN_MATCH = 4;
+	private static final int LAST_LITERALS = 5;
+	private static final int MF_LIMIT = 12;
+	private static final int MAX_OFFSET = 65535;
+	private static final int HASH_LOG = 14;
+
+	public int getMethod()
+	{
+		return METHOD;
+	}
+
+	public String getName()
+	{
+		return "lz-block";
+	}
+
+	public int getDictionarySize()
+	{
+		return 0;
+	}
+
+	public int getMaxCompressedLength(int len)
+	{
+		int blocks = (len + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		return len + blocks * BLOCK_HEADER;
+	}
+
+	public IZipCodecEncoder newEncoder(int level)
+	{
+		return new Encoder();
+	}
+
+	public InputStream newInputStream(InputStream in)
+	{
+		return new Decoder( in );
+	}
+
+	/** Compresses blocks with a reused hash table. */
+	static final class Encoder implements IZipCodecEncoder
+	{
+		private final int[] table = new int[1 << HASH_LOG];
+		/**
+		 * Added to positions stored in the hash table, so that positions of
+		 * previous blocks can be told apart without clearing the table.
+		 */
+		private int base = 0;
+
+		public int compress(byte[] in, int dictLen, int len, boolean last, byte[] out, int off)
+		{
+			int n = off;
+
+			for (int p = dictLen; p < dictLen + len; p += BLOCK_SIZE)
+			{
+				int blockLen = Math.min( BLOCK_SIZE, dictLen + len - p );
+				int hdr = n;
+				n += BLOCK_HEADER;
+
+				int clen = this.compressBlock( in, p, blockLen, out, n, n + blockLen );
+				if ( clen < 0 )
+				{
+					System.arraycopy( in, p, out, n, blockLen );
+					clen = blockLen;
+					PutInt( out, hdr + 4, blockLen | STORED_FLAG );
+				}
+				else
+				{
+					PutInt( out, hdr + 4, clen );
+				}
+				PutInt( out, hdr, blockLen );
+				n += clen;
+			}
+
+			return n - off;
+		}
+
+		public void end()
+		{
+			// nothing to release
+		}
+
+		/**
+		 * Compresses a block.
+		 *
+		 * @return The compressed length, or -1 if it would reach {@code
+		 *         dstLimit}.
+		 */
+		private int compressBlock(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLimit)
+		{
+			if ( this.base > Integer.MAX_VALUE - 2 * BLOCK_SIZE )
+			{
+				Arrays.fill( this.table, 0 );
+				this.base = 0;
+			}
+			// Table values below this block's base are stale
+			this.base += BLOCK_SIZE;
+			int adj = this.base - srcOff;
+
+			int end = srcOff + srcLen;
+			int mfLimit = end - MF_LIMIT;
+			int matchLimit = end - LAST_LITERALS;
+			int anchor = srcOff;
+			int ip = srcOff;
+			int op = dstOff;
+			int misses = 0;
+
+			while ( ip < mfLimit )
+			{
+				int seq = GetInt( src, ip );
+				int h = Hash( seq );
+				int ref = this.table[h] - adj;
+				this.table[h] = ip + adj;
+
+				if (
+					ref < srcOff
+					|| ip - ref > MAX_OFFSET
+					|| GetInt( src, ref ) != seq
+				) {
+					// Skip faster over incompressible data
+					ip += 1 + (misses++ >> 6);
+					continue;
+				}
+				misses = 0;
+
+				// Extend the match backwards and forwards
+				while ( ip > anchor && ref > srcOff && src[ip - 1] == src[ref - 1] )
+				{
+					ip--;
+					ref--;
+				}
+				int mlen = MIN_MATCH;
+				while ( ip + mlen < matchLimit && src[ip + mlen] == src[ref + mlen] )
+				{
+					mlen++;
+				}
+
+				int litLen = ip - anchor;
+				if ( op + 1 + litLen + litLen / 255 + 1 + 2 + (mlen - MIN_MATCH) / 255 + 1 >= dstLimit )
+				{
+					return -1;
+				}
+
+				int token = op++;
+				dst[token] = 0;
+				op = PutLength( dst, op, token, litLen, 4 );
+				System.arraycopy( src, anchor, dst, op, litLen );
+				op += litLen;
+				dst[op++] = (byte) (ip - ref);
+				dst[op++] = (byte) ((ip - ref) >>> 8);
+				op = PutLength( dst, op, token, mlen - MIN_MATCH, 0 );
+
+				ip += mlen;
+				anchor = ip;
+
+				if ( ip - 2 >= srcOff && ip < mfLimit )
+				{
+					this.table[ Hash( GetInt( src, ip - 2 ) ) ] = ip - 2 + adj;
+				}
+			}
+
+			// Last literals
+			int litLen = end - anchor;
+			if ( op + 1 + litLen + litLen / 255 + 1 >= dstLimit )
+			{
+				return -1;
+			}
+			int token = op++;
+			dst[token] = 0;
+			op = PutLength( dst, op, token, litLen, 4 );
+			System.arraycopy( src, anchor, dst, op, litLen );
+			op += litLen;
+
+			return op - dstOff;
+		}
+
+		/**
+		 * Stores a length into the token nibble at the given shift, followed
+		 * by the extra length bytes, if any.
+		 *
+		 * @return The position after the extra length bytes.
+		 */
+		private static int PutLength(byte[] dst, int op, int token, int len, int shift)
+		{
+			if ( len < 15 )
+			{
+				dst[token] |= (byte) (len << shift);
+				return op;
+			}
+
+			dst[token] |= (byte) (15 << shift);
+			len -= 15;
+			while ( len >= 255 )
+			{
+				dst[op++] = (byte) 255;
+				len -= 255;
+			}
+			dst[op++] = (byte) len;
+
+			return op;
+		}
+
+		private static int Hash(int seq)
+		{
+			return (seq * -1640531535) >>> (32 - HASH_LOG);
+		}
+	}
+
+	/** Decompresses the blocks read from a stream. */
+	private static final class Decoder extends InputStream
+	{
+		private final InputStream in;
+		private final byte[] header = new byte[BLOCK_HEADER];
+		private byte[] cbuf = null;
+		private final byte[] buf = new byte[BLOCK_SIZE];
+		private int pos = 0;
+		private int limit = 0;
+
+		Decoder(InputStream in)
+		{
+			this.in = in;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			if ( this.pos == this.limit && !this.fill() )
+			{
+				return -1;
+			}
+			return this.buf[this.pos++] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			if ( len == 0 )
+			{
+				return 0;
+			}
+			if ( this.pos == this.limit && !this.fill() )
+			{
+				return -1;
+			}
+
+			int n = Math.min( len, this.limit - this.pos );
+			System.arraycopy( this.buf, this.pos, b, off, n );
+			this.pos += n;
+
+			return n;
+		}
+
+		@Override
+		public int available()
+		{
+			return this.limit - this.pos;
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			this.in.close();
+		}
+
+		/**
+		 * Reads and decompresses the next block.
+		 *
+		 * @return {@code false} at the end of the data.
+		 */
+		private boolean fill() throws IOException
+		{
+			int n = ReadFully( this.in, this.header, 0, BLOCK_HEADER );
+			if ( n == 0 )
+			{
+				return false;
+			}
+			if ( n < BLOCK_HEADER )
+			{
+				throw new EOFException( "Unexpected end of compressed data" );
+			}
+
+			int rawLen = GetInt( this.header, 0 );
+			int clen = GetInt( this.header, 4 );
+			boolean stored = ( clen & STORED_FLAG ) != 0;
+			clen &= ~STORED_FLAG;
+			if (
+				rawLen <= 0
+				|| rawLen > BLOCK_SIZE
+				|| clen > rawLen
+				|| ( stored && clen != rawLen )
+			) {
+				throw new ZipException( "Invalid compressed block header" );
+			}
+
+			if ( stored )
+			{
+				if ( ReadFully( this.in, this.buf, 0, rawLen ) < rawLen )
+				{
+					throw new EOFException( "Unexpected end of compressed data" );
+				}
+			}
+			else
+			{
+				if ( this.cbuf == null )
+				{
+					this.cbuf = new byte[BLOCK_SIZE];
+				}
+				if ( ReadFully( this.in, this.cbuf, 0, clen ) < clen )
+				{
+					throw new EOFException( "Unexpected end of compressed data" );
+				}
+				DecompressBlock( this.cbuf, clen, this.buf, rawLen );
+			}
+
+			this.pos = 0;
+			this.limit = rawLen;
+
+			return true;
+		}
+	}
+
+	/** Decompresses a block, checking every bound. */
+	static void DecompressBlock(byte[] src, int srcLen, byte[] dst, int rawLen) throws ZipException
+	{
+		int ip = 0;
+		int op = 0;
+
+		while ( true )
+		{
+			if ( ip >= srcLen )
+			{
+				throw new ZipException( "Corrupt compressed block" );
+			}
+			int token = src[ip++] & 0xFF;
+
+			// Literals
+			int litLen = token >>> 4;
+			if ( litLen == 15 )
+			{
+				int b = 0;
+				do
+				{
+					if ( ip >= srcLen )
+					{
+						throw new ZipException( "Corrupt compressed block" );
+					}
+					b = src[ip++] & 0xFF;
+					litLen += b;
+				}
+				while ( b == 255 );
+			}
+			if ( litLen > srcLen - ip || litLen > rawLen - op )
+			{
+				throw new ZipException( "Corrupt compressed block" );
+			}
+			System.arraycopy( src, ip, dst, op, litLen );
+			ip += litLen;
+			op += litLen;
+
+			if ( ip == srcLen )
+			{
+				break;
+			}
+
+			// Match
+			if ( ip + 2 > srcLen )
+			{
+				throw new ZipException( "Corrupt compressed block" );
+			}
+			int offset = (src[ip] & 0xFF) | ((src[ip + 1] & 0xFF) << 8);
+			ip += 2;
+			int mlen = token & 0x0F;
+			if ( mlen == 15 )
+			{
+				int b = 0;
+				do
+				{
+					if ( ip >= srcLen )
+					{
+						throw new ZipException( "Corrupt compressed block" );
+					}
+					b = src[ip++] & 0xFF;
+					mlen += b;
+				}
+				while ( b == 255 );
+			}
+			mlen += MIN_MATCH;
+			if ( offset == 0 || offset > op || mlen > rawLen - op )
+			{
+				throw new ZipException( "Corrupt compressed block" );
+			}
+
+			int ref = op - offset;
+			if ( offset >= mlen )
+			{
+				System.arraycopy( dst, ref, dst, op, mlen );
+				op += mlen;
+			}
+			else
+			{
+				// Overlapping copy (e.g., runs)
+				for (int i = 0; i < mlen; i++)
+				{
+					dst[op++] = dst[ref++];
+				}
+			}
+		}
+
+		if ( op != rawLen )
+		{
+			throw new ZipException( "Corrupt compressed block" );
+		}
+	}
+
+	private static int GetInt(byte[] b, int i)
+	{
+		return (b[i] & 0xFF)
+			| ((b[i + 1] & 0xFF) << 8)
+			| ((b[i + 2] & 0xFF) << 16)
+			| ((b[i + 3] & 0xFF) << 24);
+	}
+
+	private static void PutInt(byte[] b, int i, int value)
+	{
+		b[i] = (byte) value;
+		b[i + 1] = (byte) (value >>> 8);
+		b[i + 2] = (byte) (value >>> 16);
+		b[i + 3] = (byte) (value >>> 24);
+	}
+
+	private static int ReadFully(InputStream in, byte[] b, int off, int len) throws IOException
+	{
+		int n = 0;
+		while ( n < len )
+		{
+			int r = in.read( b, off + n, len - n );
+			if ( r < 0 )
+			{
+				break;
+			}
+			n += r;
+		}
+
+		return n;
+	}
+}
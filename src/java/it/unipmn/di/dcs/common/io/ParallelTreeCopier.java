@@ -0,0 +1,654 @@
+/*
+ * Copyright (C) 2008-2012  Marco Guazzone
+ *                          [Distributed Computing System (DCS) Group,
+ *                           Computer Science Institute,
+ *                           Department of Science and Technological Innovation,
+ *                           University of Piemonte Orientale,
+ *                           Alessandria (Italy)]
+ *
+ * This file is part of dcj-commons.
+ *
+ * dcsj-commons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dcsj-commons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dcsj-commons.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.unipmn.di.dcs.common.io;
+
+import java.io.InterruptedIOException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copies (and moves) file trees by using a pool of worker threads.
+ *
+ * The source tree is walked once; directories and symbolic links are
+ * created by the calling thread, in pre-order, while regular files are
+ * copied by the workers, files larger than {@link #SPLIT_THRESHOLD} being
+ * split into ranges of {@link #RANGE_SIZE} bytes copied concurrently.
+ * At most a few tasks per worker are pending at any time, so that the
+ * memory used does not depend on the size of the tree.
+ *
+ * Permissions (if POSIX permissions are supported) and times are copied
+ * once the content of each file is complete, and only at the end for
+ * directories, so that read-only directories can be filled.
+ * Files which cannot be copied are reported in the returned {@link
+ * FileTreeReport}, without stopping the copy.
+ *
+ * Trees can also be synchronized: the destination tree is walked as well,
+ * files with the same size and modification time are skipped, changed
+ * files are copied (or, with delta transfers, patched by writing only the
+ * blocks which differ), and extraneous files are optionally deleted.
+ *
+ * @author <a href="mailto:marco.guazzone@gmail.com">Marco Guazzone</a>
+ */
+final class ParallelTreeCopier
+{
+	/** Files larger than this are copied in ranges, concurrently. */
+	static final long SPLIT_THRESHOLD = 128L << 20;
+	/** Size of the ranges of large files. */
+	static final long RANGE_SIZE = 64L << 20;
+	/** Maximum number of pending tasks per worker. */
+	private static final int PENDING_PER_WORKER = 4;
+
+	private static final LinkOption[] NoFollowLinks = { LinkOption.NOFOLLOW_LINKS };
+
+	private final int parallelism;
+	private final FileCopier copier = new FileCopier();
+	private final AtomicLong fileCount = new AtomicLong();
+	private final AtomicLong directoryCount = new AtomicLong();
+	private final AtomicLong byteCount = new AtomicLong();
+	private final AtomicLong skippedCount = new AtomicLong();
+	private final AtomicLong deletedCount = new AtomicLong();
+	private final Map<Path,IOException> failures = new ConcurrentSkipListMap<Path,IOException>();
+	/** The synchronization options (null for plain copies). */
+	private FileSyncOptions syncOptions;
+
+	/**
+	 * A constructor.
+	 *
+	 * @param parallelism The number of worker threads; if less than or
+	 *        equal to 0, the number of available processors.
+	 */
+	ParallelTreeCopier(int parallelism)
+	{
+		this.parallelism = ConcurrencyUtil.ResolveParallelism( parallelism );
+	}
+
+	/**
+	 * Copies the tree rooted at the given source (a directory or a single
+	 * file) into the given destination, replacing existing files.
+	 *
+	 * @throws IOException if the source tree cannot be walked.
+	 */
+	FileTreeReport copy(Path source, Path dest) throws IOException
+	{
+		long start = System.currentTimeMillis();
+
+		this.copyEntries( source, dest, new FileTreeWalker( this.parallelism ).walk( source ), null );
+
+		return this.report( start, false );
+	}
+
+	/**
+	 * Synchronizes the tree rooted at the given destination with the one
+	 * rooted at the given source.
+	 *
+	 * @throws IOException if the source or the destination tree cannot be
+	 *         walked.
+	 */
+	FileTreeReport sync(Path source, Path dest, FileSyncOptions options) throws IOException
+	{
+		long start = System.currentTimeMillis();
+		FileTreeWalker walker = new FileTreeWalker( this.parallelism );
+
+		this.syncOptions = options;
+
+		// Existing destination files, by relative path (in pre-order)
+		Map<Path,FileTreeWalker.Entry> existing = new LinkedHashMap<Path,FileTreeWalker.Entry>();
+		if ( Files.exists( dest, NoFollowLinks ) )
+		{
+			for (FileTreeWalker.Entry e : walker.walk( dest ))
+			{
+				existing.put( dest.relativize( e.getPath() ), e );
+			}
+		}
+
+		this.copyEntries( source, dest, walker.walk( source ), existing );
+
+		if ( options.isDeleteExtraneous() )
+		{
+			// What is left is not in the source: delete the topmost entries
+			Path deletedDir = null;
+			for (FileTreeWalker.Entry e : existing.values())
+			{
+				if ( deletedDir != null && e.getPath().startsWith( deletedDir ) )
+				{
+					continue;
+				}
+				if ( e.isDirectory() )
+				{
+					deletedDir = e.getPath();
+				}
+				try
+				{
+					this.deleteExisting( e );
+				}
+				catch (IOException ioe)
+				{
+					// already reported
+				}
+			}
+		}
+
+		return this.report( start, false );
+	}
+
+	/**
+	 * Moves the tree rooted at the given source into the given
+	 * destination.
+	 *
+	 * The source is renamed if possible; otherwise (e.g., if the
+	 * destination is on another file store, or exists) it is copied, and
+	 * then deleted only if all of its files have been copied.
+	 *
+	 * @throws IOException if the source tree cannot be walked.
+	 */
+	FileTreeReport move(Path source, Path dest) throws IOException
+	{
+		long start = System.currentTimeMillis();
+
+		try
+		{
+			Files.move( source, dest );
+
+			return this.report( start, true );
+		}
+		catch (IOException ioe)
+		{
+			// Not renamable: copy and delete
+		}
+
+		this.copyEntries( source, dest, new FileTreeWalker( this.parallelism ).walk( source ), null );
+
+		if ( this.failures.isEmpty() )
+		{
+			this.failures.putAll( new ParallelTreeDeleter( this.parallelism ).delete( source ).getFailures() );
+		}
+
+		return this.report( start, false );
+	}
+
+	private FileTreeReport report(long start, boolean renamed)
+	{
+		return new FileTreeReport(
+			this.fileCount.get(),
+			this.directoryCount.get(),
+			this.byteCount.get(),
+			this.skippedCount.get(),
+			this.deletedCount.get(),
+			this.failures,
+			System.currentTimeMillis() - start,
+			renamed
+		);
+	}
+
+	/**
+	 * Copies the given entries of the source tree.
+	 *
+	 * @param existing The entries of the destination tree, by relative
+	 *        path, if synchronizing (otherwise {@code null}); the entries
+	 *        found in the source tree are removed.
+	 */
+	private void copyEntries(Path source, Path dest, List<FileTreeWalker.Entry> entries, Map<Path,FileTreeWalker.Entry> existing) throws IOException
+	{
+		int maxPending = PENDING_PER_WORKER * this.parallelism;
+		Semaphore slots = new Semaphore( maxPending );
+		List<FileTreeWalker.Entry> dirs = new ArrayList<FileTreeWalker.Entry>();
+		ExecutorService executor = Executors.newFixedThreadPool( this.parallelism, new DaemonThreadFactory( "file-copy" ) );
+
+		try
+		{
+			for (FileTreeWalker.Entry e : entries)
+			{
+				Path path = e.getPath();
+				Path rel = source.relativize( path );
+				Path target = dest.resolve( rel );
+				BasicFileAttributes attrs = e.getAttributes();
+				FileTreeWalker.Entry old = ( existing != null ) ? existing.remove( rel ) : null;
+
+				try
+				{
+					if ( old != null && !SameType( attrs, old.getAttributes() ) )
+					{
+						this.deleteExisting( old );
+						if ( old.isDirectory() )
+						{
+							// Its whole subtree is gone
+							for (Iterator<Path> it = existing.keySet().iterator(); it.hasNext(); )
+							{
+								if ( it.next().startsWith( rel ) )
+								{
+									it.remove();
+								}
+							}
+						}
+						old = null;
+					}
+
+					if ( attrs.isDirectory() )
+					{
+						if ( old == null )
+						{
+							Files.createDirectories( target );
+						}
+						dirs.add( e );
+					}
+					else if ( attrs.isSymbolicLink() )
+					{
+						Path link = Files.readSymbolicLink( path );
+						if ( old != null && link.equals( Files.readSymbolicLink( target ) ) )
+						{
+							this.skippedCount.incrementAndGet();
+						}
+						else
+						{
+							Files.deleteIfExists( target );
+							Files.createSymbolicLink( target, link );
+							this.fileCount.incrementAndGet();
+						}
+					}
+					else if ( attrs.isRegularFile() )
+					{
+						if ( old != null && IsUpToDate( attrs, old.getAttributes() ) )
+						{
+							this.skippedCount.incrementAndGet();
+						}
+						else
+						{
+							boolean patch = old != null && this.syncOptions.isDeltaTransfer();
+							this.submitFile( executor, slots, path, target, attrs, patch );
+						}
+					}
+					else
+					{
+						throw new IOException( "Unsupported file type: " + path );
+					}
+				}
+				catch (IOException ioe)
+				{
+					this.failures.put( path, ioe );
+				}
+			}
+
+			// Wait for all the pending tasks
+			Acquire( slots, maxPending );
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+
+		// Directories last, children first
+		for (int i = dirs.size() - 1; i >= 0; i--)
+		{
+			FileTreeWalker.Entry e = dirs.get( i );
+			try
+			{
+				CopyAttributes( e.getPath(), dest.resolve( source.relativize( e.getPath() ) ), e.getAttributes() );
+				this.directoryCount.incrementAndGet();
+			}
+			catch (IOException ioe)
+			{
+				this.failures.put( e.getPath(), ioe );
+			}
+		}
+	}
+
+	/**
+	 * Copies a regular file, in ranges if large.
+	 *
+	 * @param patch Tells if the destination exists, and only the blocks
+	 *        which differ are to be written.
+	 */
+	private void submitFile(ExecutorService executor, Semaphore slots, final Path path, final Path target, final BasicFileAttributes attrs, final boolean patch) throws IOException
+	{
+		final long size = attrs.size();
+
+		if ( !patch && size <= SPLIT_THRESHOLD )
+		{
+			this.submit( executor, slots, path, new Callable<Void>()
+			{
+				public Void call() throws IOException
+				{
+					long n = ParallelTreeCopier.this.copier.copy( path, target );
+					ParallelTreeCopier.this.byteCount.addAndGet( n );
+					ParallelTreeCopier.this.completeFile( path, target, attrs );
+					return null;
+				}
+			});
+
+			return;
+		}
+
+		// Create (or truncate) the destination, then copy its ranges
+		if ( patch )
+		{
+			FileChannel ch = FileChannel.open( target, StandardOpenOption.WRITE );
+			try
+			{
+				if ( ch.size() > size )
+				{
+					ch.truncate( size );
+				}
+			}
+			finally
+			{
+				ch.close();
+			}
+		}
+		else
+		{
+			FileChannel.open( target, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING ).close();
+		}
+
+		int nranges = (int) ((size + RANGE_SIZE - 1) / RANGE_SIZE);
+		if ( nranges == 0 )
+		{
+			this.completeFile( path, target, attrs );
+			return;
+		}
+
+		final AtomicInteger remaining = new AtomicInteger( nranges );
+		final AtomicBoolean failed = new AtomicBoolean( false );
+
+		for (int i = 0; i < nranges; i++)
+		{
+			final long offset = i * RANGE_SIZE;
+			final long len = Math.min( RANGE_SIZE, size - offset );
+
+			this.submit( executor, slots, path, new Callable<Void>()
+			{
+				public Void call() throws IOException
+				{
+					try
+					{
+						if ( patch )
+						{
+							ParallelTreeCopier.this.patchRange( path, target, offset, len );
+						}
+						else
+						{
+							ParallelTreeCopier.this.copyRange( path, target, offset, len );
+						}
+					}
+					catch (IOException ioe)
+					{
+						failed.set( true );
+						throw ioe;
+					}
+					finally
+					{
+						if ( remaining.decrementAndGet() == 0 && !failed.get() )
+						{
+							ParallelTreeCopier.this.completeFile( path, target, attrs );
+						}
+					}
+					return null;
+				}
+			});
+		}
+	}
+
+	private void copyRange(Path path, Path target, long offset, long len) throws IOException
+	{
+		FileChannel src = null;
+		FileChannel dst = null;
+
+		try
+		{
+			src = FileChannel.open( path, StandardOpenOption.READ );
+			dst = FileChannel.open( target, StandardOpenOption.WRITE );
+
+			this.copier.copyRange( path, src, offset, len, dst, offset );
+			this.byteCount.addAndGet( len );
+		}
+		finally
+		{
+			if ( src != null )
+			{
+				try { src.close(); } catch (Exception e) { /* ignore */ }
+				src = null;
+			}
+			if ( dst != null )
+			{
+				dst.close();
+				dst = null;
+			}
+		}
+	}
+
+	/**
+	 * Writes the blocks of the given range of the source which differ from
+	 * the ones of the destination.
+	 */
+	private void patchRange(Path path, Path target, long offset, long len) throws IOException
+	{
+		FileChannel src = null;
+		FileChannel dst = null;
+		int step = (int) Math.min( this.syncOptions.getBlockSize(), len );
+		ByteBuffer srcBuf = null;
+		ByteBuffer dstBuf = null;
+
+		try
+		{
+			src = FileChannel.open( path, StandardOpenOption.READ );
+			dst = FileChannel.open( target, StandardOpenOption.READ, StandardOpenOption.WRITE );
+
+			srcBuf = BufferPool.Shared().acquireDirect( step );
+			dstBuf = BufferPool.Shared().acquireDirect( step );
+
+			for (long pos = offset; pos < offset + len; pos += step)
+			{
+				int n = (int) Math.min( step, offset + len - pos );
+
+				srcBuf.clear();
+				srcBuf.limit( n );
+				ReadFully( src, srcBuf, pos );
+				if ( srcBuf.hasRemaining() )
+				{
+					throw new IOException( "Unexpected end of file after " + (pos + srcBuf.position()) + " bytes: " + path );
+				}
+				srcBuf.flip();
+
+				dstBuf.clear();
+				dstBuf.limit( n );
+				ReadFully( dst, dstBuf, pos );
+				dstBuf.flip();
+
+				if ( !srcBuf.equals( dstBuf ) )
+				{
+					while ( srcBuf.hasRemaining() )
+					{
+						dst.write( srcBuf, pos + srcBuf.position() );
+					}
+					this.byteCount.addAndGet( n );
+				}
+			}
+		}
+		finally
+		{
+			if ( src != null )
+			{
+				try { src.close(); } catch (Exception e) { /* ignore */ }
+				src = null;
+			}
+			BufferPool.Shared().release( srcBuf );
+			BufferPool.Shared().release( dstBuf );
+			if ( dst != null )
+			{
+				dst.close();
+				dst = null;
+			}
+		}
+	}
+
+	/** Deletes an entry of the destination tree (a whole tree, if a directory). */
+	private void deleteExisting(FileTreeWalker.Entry e) throws IOException
+	{
+		if ( e.isDirectory() )
+		{
+			FileTreeReport r = new ParallelTreeDeleter( this.parallelism ).delete( e.getPath() );
+
+			this.deletedCount.addAndGet( r.getFileCount() + r.getDirectoryCount() );
+			this.failures.putAll( r.getFailures() );
+			if ( !r.isSuccessful() )
+			{
+				throw new IOException( "Unable to delete directory: " + e.getPath() );
+			}
+		}
+		else
+		{
+			try
+			{
+				Files.delete( e.getPath() );
+				this.deletedCount.incrementAndGet();
+			}
+			catch (IOException ioe)
+			{
+				this.failures.put( e.getPath(), ioe );
+				throw ioe;
+			}
+		}
+	}
+
+	private void completeFile(Path path, Path target, BasicFileAttributes attrs) throws IOException
+	{
+		CopyAttributes( path, target, attrs );
+		this.fileCount.incrementAndGet();
+	}
+
+	/**
+	 * Runs the given task on the given executor, waiting for a free slot
+	 * first; failures are recorded against the given path.
+	 */
+	private void submit(ExecutorService executor, final Semaphore slots, final Path path, final Callable<Void> task) throws IOException
+	{
+		Acquire( slots, 1 );
+
+		executor.execute( new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					task.call();
+				}
+				catch (IOException ioe)
+				{
+					ParallelTreeCopier.this.failures.put( path, ioe );
+				}
+				catch (Exception e)
+				{
+					ParallelTreeCopier.this.failures.put( path, new IOException( e ) );
+				}
+				finally
+				{
+					slots.release();
+				}
+			}
+		});
+	}
+
+	/** Tells if the given files are both directories, links or other files. */
+	private static boolean SameType(BasicFileAttributes a1, BasicFileAttributes a2)
+	{
+		return a1.isDirectory() == a2.isDirectory()
+			&& a1.isSymbolicLink() == a2.isSymbolicLink()
+			&& a1.isRegularFile() == a2.isRegularFile();
+	}
+
+	/**
+	 * Tells if the destination file has the same size and modification
+	 * time (to the millisecond) as the source one.
+	 */
+	private static boolean IsUpToDate(BasicFileAttributes src, BasicFileAttributes dst)
+	{
+		return src.size() == dst.size()
+			&& src.lastModifiedTime().toMillis() == dst.lastModifiedTime().toMillis();
+	}
+
+	/**
+	 * Reads from the given position until the buffer is full or the end of
+	 * the channel is reached.
+	 */
+	private static void ReadFully(FileChannel ch, ByteBuffer buf, long pos) throws IOException
+	{
+		while ( buf.hasRemaining() )
+		{
+			int n = ch.read( buf, pos + buf.position() );
+			if ( n < 0 )
+			{
+				break;
+			}
+		}
+	}
+
+	/** Copies the permissions and the times of a file. */
+	private static void CopyAttributes(Path path, Path target, BasicFileAttributes attrs) throws IOException
+	{
+		PosixFileAttributeView posix = Files.getFileAttributeView( target, PosixFileAttributeView.class, NoFollowLinks );
+		if ( posix != null )
+		{
+			posix.setPermissions( Files.getPosixFilePermissions( path, NoFollowLinks ) );
+		}
+
+		Files.getFileAttributeView( target, BasicFileAttributeView.class, NoFollowLinks ).setTimes(
+			attrs.lastModifiedTime(),
+			attrs.lastAccessTime(),
+			attrs.creationTime()
+		);
+	}
+
+	private static void Acquire(Semaphore slots, int n) throws IOException
+	{
+		try
+		{
+			slots.acquire( n );
+		}
+		catch (InterruptedException ie)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException( "Interrupted while copying files" );
+		}
+	}
+}
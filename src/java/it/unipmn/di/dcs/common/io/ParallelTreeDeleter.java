@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2008-2012  Marco Guazzone
+ *                          [Distributed Computing System (DCS) Group,
+ *                           Computer Science Institute,
+ *                           Department of Science and Technological Innovation,
+ *                           University of Piemonte Orientale,
+ *                           Alessandria (Italy)]
+ *
+ * This file is part of dcj-commons.
+ *
+ * dcsj-commons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dcsj-commons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dcsj-commons.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.unipmn.di.dcs.common.io;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SecureDirectoryStream;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Deletes file trees, in post-order, by using a fork/join pool.
+ *
+ * Each directory is listed once by its own task, which deletes its files
+ * and forks a task for each subdirectory, then deletes the (now empty)
+ * subdirectories once their tasks are done.
+ * Where the file system provides a {@link SecureDirectoryStream} (e.g., on
+ * Linux), files are deleted relative to the open directory without being
+ * looked up first, and their attributes are only read when the deletion
+ * fails, to tell directories apart; elsewhere, the attributes of each file
+ * are read once.
+ * With a secure stream, subdirectories are opened relative to their parent
+ * too (by their task, when it starts), never through their path, so that a
+ * directory replaced by a link while being deleted is not followed.
+ * Permissions are never probed: files which cannot be deleted are reported
+ * in the returned {@link FileTreeReport}, without stopping the deletion.
+ * Symbolic links are deleted, not followed.
+ *
+ * @author <a href="mailto:marco.guazzone@gmail.com">Marco Guazzone</a>
+ */
+final class ParallelTreeDeleter
+{
+	private static final LinkOption[] NoFollowLinks = { LinkOption.NOFOLLOW_LINKS };
+
+	private final int parallelism;
+	private final AtomicLong fileCount = new AtomicLong();
+	private final AtomicLong directoryCount = new AtomicLong();
+	private final Map<Path,IOException> failures = new ConcurrentSkipListMap<Path,IOException>();
+
+	/**
+	 * A constructor.
+	 *
+	 * @param parallelism The number of threads; if less than or equal to 0,
+	 *        the number of available processors.
+	 */
+	ParallelTreeDeleter(int parallelism)
+	{
+		this.parallelism = ConcurrencyUtil.ResolveParallelism( parallelism );
+	}
+
+	/** Deletes the tree rooted at the given path. */
+	FileTreeReport delete(Path root)
+	{
+		long start = System.currentTimeMillis();
+
+		try
+		{
+			BasicFileAttributes attrs = Files.readAttributes( root, BasicFileAttributes.class, NoFollowLinks );
+
+			if ( attrs.isDirectory() )
+			{
+				ForkJoinPool pool = new ForkJoinPool( this.parallelism );
+				try
+				{
+					pool.invoke( new DeleteTask( root ) );
+				}
+				finally
+				{
+					pool.shutdownNow();
+				}
+
+				this.deleteDirectory( null, root );
+			}
+			else
+			{
+				Files.delete( root );
+				this.fileCount.incrementAndGet();
+			}
+		}
+		catch (IOException ioe)
+		{
+			this.failures.put( root, ioe );
+		}
+
+		return new FileTreeReport(
+			this.fileCount.get(),
+			this.directoryCount.get(),
+			0,
+			this.failures,
+			System.currentTimeMillis() - start,
+			false
+		);
+	}
+
+	/**
+	 * Deletes an empty directory, relative to the given stream of its
+	 * parent, if not {@code null}.
+	 */
+	private void deleteDirectory(SecureDirectoryStream<Path> parent, Path dir)
+	{
+		try
+		{
+			if ( parent != null )
+			{
+				parent.deleteDirectory( dir.getFileName() );
+			}
+			else
+			{
+				Files.delete( dir );
+			}
+			this.directoryCount.incrementAndGet();
+		}
+		catch (IOException ioe)
+		{
+			// Keep the first cause (e.g., the directory could not be listed)
+			this.failures.putIfAbsent( dir, ioe );
+		}
+	}
+
+	/** Deletes the content of a directory. */
+	private final class DeleteTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final Path dir;
+		/** The secure stream of the parent directory, if any. */
+		private final SecureDirectoryStream<Path> parent;
+
+		DeleteTask(Path dir)
+		{
+			this( dir, null );
+		}
+
+		DeleteTask(Path dir, SecureDirectoryStream<Path> parent)
+		{
+			this.dir = dir;
+			this.parent = parent;
+		}
+
+		@Override
+		protected void compute()
+		{
+			ParallelTreeDeleter self = ParallelTreeDeleter.this;
+			List<DeleteTask> tasks = new ArrayList<DeleteTask>();
+			DirectoryStream<Path> ds = null;
+
+			try
+			{
+				// Opened only now, so that forked tasks waiting for a
+				// thread do not hold a descriptor
+				ds = ( this.parent != null )
+					? this.parent.newDirectoryStream( this.dir.getFileName(), LinkOption.NOFOLLOW_LINKS )
+					: Files.newDirectoryStream( this.dir );
+				SecureDirectoryStream<Path> sds = ( ds instanceof SecureDirectoryStream )
+					? (SecureDirectoryStream<Path>) ds
+					: null;
+
+				for (Path p : ds)
+				{
+					if ( this.deleteFile( sds, p ) )
+					{
+						continue;
+					}
+
+					DeleteTask t = new DeleteTask( p, sds );
+					t.fork();
+					tasks.add( t );
+				}
+
+				for (DeleteTask t : tasks)
+				{
+					t.join();
+					self.deleteDirectory( sds, t.dir );
+				}
+			}
+			catch (IOException ioe)
+			{
+				self.failures.put( this.dir, ioe );
+			}
+			catch (RuntimeException re)
+			{
+				// e.g., DirectoryIteratorException
+				self.failures.put( this.dir, new IOException( re ) );
+			}
+			finally
+			{
+				for (DeleteTask t : tasks)
+				{
+					if ( !t.isDone() )
+					{
+						t.join();
+					}
+				}
+				if ( ds != null )
+				{
+					try { ds.close(); } catch (Exception e) { /* ignore */ }
+					ds = null;
+				}
+			}
+		}
+
+		/**
+		 * Deletes the given entry if it is not a directory.
+		 *
+		 * @return {@code false} if the entry is a directory, {@code true}
+		 *         otherwise (even if it could not be deleted).
+		 */
+		private boolean deleteFile(SecureDirectoryStream<Path> sds, Path p)
+		{
+			ParallelTreeDeleter self = ParallelTreeDeleter.this;
+
+			try
+			{
+				if ( sds != null )
+				{
+					try
+					{
+						sds.deleteFile( p.getFileName() );
+						self.fileCount.incrementAndGet();
+						return true;
+					}
+					catch (IOException ioe)
+					{
+						BasicFileAttributes attrs = sds.getFileAttributeView( p.getFileName(), BasicFileAttributeView.class, NoFollowLinks ).readAttributes();
+						if ( attrs.isDirectory() )
+						{
+							return false;
+						}
+						throw ioe;
+					}
+				}
+
+				BasicFileAttributes attrs = Files.readAttributes( p, BasicFileAttributes.class, NoFollowLinks );
+				if ( attrs.isDirectory() )
+				{
+					return false;
+				}
+				Files.delete( p );
+				self.fileCount.incrementAndGet();
+			}
+			catch (IOException ioe)
+			{
+				self.failures.put( p, ioe );
+			}
+
+			return true;
+		}
+	}
+}
@@ -0,0 +1,378 @@
+/*
+ * Copyright (C) 2008-2012  Marco Guazzone
+ *                          [Distributed Computing System (DCS) Group,
+ *                           Computer Science Institute,
+ *                           Department of Science and Technological Innovation,
+ *                           University of Piemonte Orientale,
+ *                           Alessandria (Italy)]
+ *
+ * This file is part of dcj-commons.
+ *
+ * dcsj-commons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dcsj-commons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dcsj-commons.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.unipmn.di.dcs.common.io;
+
+import it.unipmn.di.dcs.common.CommonException;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Extracts the entries of a ZIP archive by using a pool of worker threads.
+ *
+ * Entries are read through a shared {@link ZipIndex}, so that entries
+ * compressed with any codec registered in {@link ZipCodecs} can be
+ * extracted.
+ * Each worker repeatedly takes the next entry to extract from a shared
+ * list, sorted by decreasing compressed size so that large entries do not
+ * end up serializing the tail of the extraction.
+ *
+ * Entry names are validated before anything is written: names resolving
+ * outside of the destination directory (e.g., containing {@code ".."}
+ * components) are rejected.
+ * Entries are read by position, so that archives with duplicate names are
+ * supported; when several entries resolve to the same path (e.g.,
+ * {@code "a/b"} and {@code "a/./b"}), only the last one is extracted, as
+ * a sequential extraction would leave it, so that no two workers write the
+ * same file.
+ *
+ * @author <a href="mailto:marco.guazzone@gmail.com">Marco Guazzone</a>
+ */
+final class ParallelZipExtractor
+{
+	private static final int WR_BUFFER_SIZE = 65536;
+
+	private final File zipFile;
+	private final Path destRoot;
+	private final int parallelism;
+	private final Set<Path> dirsMade = Collections.newSetFromMap( new ConcurrentHashMap<Path,Boolean>() );
+
+	/**
+	 * A constructor.
+	 *
+	 * @param zipFile The archive to extract.
+	 * @param destDir The destination directory.
+	 * @param parallelism The number of worker threads; if less than or
+	 *        equal to 1, entries are extracted by the calling thread.
+	 */
+	ParallelZipExtractor(File zipFile, File destDir, int parallelism)
+	{
+		this.zipFile = zipFile;
+		this.destRoot = destDir.toPath().toAbsolutePath().normalize();
+		this.parallelism = Math.max( 1, parallelism );
+	}
+
+	/**
+	 * Extracts the entries accepted by the given filter.
+	 *
+	 * @param filter The entry filter; if {@code null}, all entries are
+	 *        extracted.
+	 */
+	void extract(IZipEntryFilter filter) throws IOException
+	{
+		// By target path: the last entry extracted to a path wins
+		Map<Path,Target> files = new LinkedHashMap<Path,Target>();
+		Set<Path> dirs = new LinkedHashSet<Path>();
+
+		// Select and validate the entries to extract
+		final ZipIndex index = OpenIndex( this.zipFile );
+
+		for (int i = 0; i < index.size(); i++)
+		{
+			ZipEntry ze = index.getEntry( i );
+
+			if ( filter != null && !filter.accept( ze ) )
+			{
+				continue;
+			}
+
+			Path path = ResolveEntryPath( this.destRoot, ze.getName() );
+
+			if ( ze.isDirectory() )
+			{
+				files.remove( path );
+				dirs.add( path );
+			}
+			else if ( path.equals( this.destRoot ) )
+			{
+				throw new ZipException( "Invalid entry name: " + ze.getName() );
+			}
+			else
+			{
+				dirs.remove( path );
+				files.put( path, new Target( i, ze, path ) );
+			}
+		}
+
+		final List<Target> targets = new ArrayList<Target>( files.values() );
+
+		// All names are valid: directory entries can be created
+		for (Path dir : dirs)
+		{
+			this.makeDirs( dir );
+		}
+
+		// Largest entries first
+		Collections.sort( targets, new Comparator<Target>()
+		{
+			public int compare(Target t1, Target t2)
+			{
+				return Long.compare( t2.compressedSize, t1.compressedSize );
+			}
+		});
+
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicBoolean failed = new AtomicBoolean( false );
+		int nworkers = Math.min( this.parallelism, targets.size() );
+
+		if ( nworkers <= 1 )
+		{
+			this.extractAll( index, targets, next, failed );
+			return;
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool( nworkers, new DaemonThreadFactory( "zip-extract" ) );
+		try
+		{
+			List<Future<Void>> futures = new ArrayList<Future<Void>>( nworkers );
+			for (int i = 0; i < nworkers; i++)
+			{
+				futures.add( executor.submit( new Callable<Void>()
+				{
+					public Void call() throws IOException
+					{
+						ParallelZipExtractor.this.extractAll( index, targets, next, failed );
+						return null;
+					}
+				}));
+			}
+
+			for (Future<Void> f : futures)
+			{
+				ConcurrencyUtil.Await( f );
+			}
+		}
+		finally
+		{
+			failed.set( true );
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Worker loop: extracts targets until there are none left or some
+	 * other worker failed.
+	 */
+	private void extractAll(ZipIndex index, List<Target> targets, AtomicInteger next, AtomicBoolean failed) throws IOException
+	{
+		byte[] buf = BufferPool.Shared().acquireBytes( WR_BUFFER_SIZE );
+
+		try
+		{
+			int i = 0;
+			while ( !failed.get() && (i = next.getAndIncrement()) < targets.size() )
+			{
+				Target t = targets.get( i );
+				InputStream is = null;
+
+				this.makeDirs( t.path.getParent() );
+				try
+				{
+					is = index.getInputStream( t.index );
+				}
+				catch (CommonException ce)
+				{
+					throw ToIOException( ce );
+				}
+
+				ExtractEntry( is, t.entry, t.path.toFile(), buf );
+			}
+		}
+		catch (IOException ioe)
+		{
+			failed.set( true );
+			throw ioe;
+		}
+		catch (RuntimeException re)
+		{
+			failed.set( true );
+			throw re;
+		}
+		finally
+		{
+			BufferPool.Shared().release( buf );
+		}
+	}
+
+	private void makeDirs(Path dir) throws IOException
+	{
+		if ( dir != null && !this.dirsMade.contains( dir ) )
+		{
+			Files.createDirectories( dir );
+			this.dirsMade.add( dir );
+		}
+	}
+
+	/**
+	 * Writes the content of the given entry, read from the given stream,
+	 * into the given file.
+	 *
+	 * The parent directory must exist; the stream is closed.
+	 *
+	 * @throws ZipException if the CRC-32 of the extracted data is not the
+	 *         one of the entry.
+	 */
+	static void ExtractEntry(InputStream is, ZipEntry ze, File file, byte[] buf) throws IOException
+	{
+		OutputStream os = null;
+		CRC32 crc = new CRC32();
+
+		try
+		{
+			os = new FileOutputStream( file );
+
+			int n = 0;
+			while ( (n = is.read( buf )) > 0 )
+			{
+				crc.update( buf, 0, n );
+				os.write( buf, 0, n );
+			}
+		}
+		finally
+		{
+			if ( is != null )
+			{
+				try { is.close(); } catch (Exception e) { /* ignore */ }
+				is = null;
+			}
+			if ( os != null )
+			{
+				os.close();
+				os = null;
+			}
+		}
+
+		if ( ze.getCrc() != -1 && crc.getValue() != ze.getCrc() )
+		{
+			throw new ZipException( "CRC mismatch for entry '" + ze.getName() + "'" );
+		}
+
+		if ( ze.getTime() != -1 )
+		{
+			file.setLastModified( ze.getTime() );
+		}
+	}
+
+	/**
+	 * Returns the path where the entry with the given name is to be
+	 * extracted.
+	 *
+	 * Leading {@code "/"} are ignored, so that absolute names are extracted
+	 * relative to the destination directory.
+	 *
+	 * @throws ZipException if the entry would be extracted outside of the
+	 *         destination directory.
+	 */
+	static Path ResolveEntryPath(Path root, String name) throws ZipException
+	{
+		String relName = name;
+		while ( relName.startsWith( "/" ) )
+		{
+			relName = relName.substring( 1 );
+		}
+
+		Path path = null;
+		try
+		{
+			path = root.resolve( relName ).normalize();
+		}
+		catch (RuntimeException re)
+		{
+			// e.g., InvalidPathException
+			throw new ZipException( "Invalid entry name: " + name );
+		}
+
+		if ( !path.startsWith( root ) )
+		{
+			throw new ZipException( "Entry is outside of the destination directory: " + name );
+		}
+
+		return path;
+	}
+
+	/** Opens the index of the given archive. */
+	private static ZipIndex OpenIndex(File zipFile) throws IOException
+	{
+		try
+		{
+			return ZipIndex.Open( zipFile );
+		}
+		catch (CommonException ce)
+		{
+			throw ToIOException( ce );
+		}
+	}
+
+	private static IOException ToIOException(CommonException ce)
+	{
+		if ( ce.getCause() instanceof IOException )
+		{
+			return (IOException) ce.getCause();
+		}
+
+		return new ZipException( ce.getMessage() );
+	}
+
+	/** An entry to extract. */
+	private static final class Target
+	{
+		/** The index of the entry in the archive. */
+		final int index;
+		final ZipEntry entry;
+		final long compressedSize;
+		final Path path;
+
+		Target(int index, ZipEntry entry, Path path)
+		{
+			this.index = index;
+			this.entry = entry;
+			this.compressedSize = entry.getCompressedSize();
+			this.path = path;
+		}
+	}
+}
@@ -0,0 +1,741 @@
+/*
+ * Copyright (C) 2008-2012  Marco Guazzone
+ *                          [Distributed Computing System (DCS) Group,
+ *                           Computer Science Institute,
+ *                           Department of Science and Technological Innovation,
+ *                           University of Piemonte Orientale,
+ *                           Alessandria (Italy)]
+ *
+ * This file is part of dcj-commons.
+ *
+ * dcsj-commons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dcsj-commons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dcsj-commons.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.unipmn.di.dcs.common.io;
+
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.InterruptedIOException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Compresses files into a ZIP archive by using a pool of worker threads.
+ *
+ * Each file is split into chunks of {@link #CHUNK_SIZE} bytes which are
+ * compressed independently by the {@link IZipCodec} of the archive (by
+ * default DEFLATE, whose chunks are chained pigz-style, see {@link
+ * DeflateZipCodec}).
+ * The CRC-32 of each chunk is computed by the worker as well and combined
+ * by the writer thread.
+ *
+ * The compression method and level of each file are chosen by an optional
+ * {@link IZipCompressionPolicy}, by looking at the first bytes of the file
+ * when its first chunk is read. Files to be stored are only checksummed by
+ * the workers; their data is then copied by the writer thread straight from
+ * the file into the archive.
+ *
+ * Optionally, files with the same content are compressed only once: the
+ * files sharing their size with some other file are hashed (by the worker
+ * threads, before compressing anything), and the copies of a file are
+ * written as central directory records pointing to the data of the first
+ * one (see {@link ZipArchiveWriter#addAlias(ZipEntryRecord,ZipEntryRecord)}).
+ *
+ * Chunks are written by the calling thread in the order of the given
+ * sources, and at most a bounded number of chunks is in flight at any time,
+ * so memory usage does not depend on the size of the input.
+ * Since chunk boundaries do not depend on the number of threads, the
+ * resulting archive is the same whatever the parallelism level.
+ *
+ * @author <a href="mailto:marco.guazzone@gmail.com">Marco Guazzone</a>
+ */
+final class ParallelZipWriter
+{
+	/** Size of the independently compressed chunks. */
+	static final int CHUNK_SIZE = 1 << 20;
+	/** Number of in-flight chunks per worker thread. */
+	private static final int CHUNKS_PER_THREAD = 4;
+	/** Size of the buffer used for hashing files. */
+	private static final int DIGEST_BUFFER_SIZE = 65536;
+
+	private final ZipArchiveWriter out;
+	private final int level;
+	private final int parallelism;
+	private final IZipCompressionPolicy policy;
+	private IZipCodec codec = ZipCodecs.Deflate();
+	private boolean deduplicate = false;
+	/** Pools of encoders, indexed by compression level (plus one). */
+	private final List<ConcurrentLinkedQueue<IZipCodecEncoder>> encoders = new ArrayList<ConcurrentLinkedQueue<IZipCodecEncoder>>();
+	/** The worker threads, created on the first write. */
+	private ExecutorService executor;
+
+	/**
+	 * A constructor.
+	 *
+	 * @param out The archive writer.
+	 * @param level The compression level (0-9, or -1 for the default
+	 *        level), used if there is no compression policy.
+	 * @param parallelism The number of worker threads; if less than or
+	 *        equal to 1, chunks are compressed by the calling thread.
+	 * @param policy The compression policy; if {@code null}, all the files
+	 *        are compressed with the given level.
+	 */
+	ParallelZipWriter(ZipArchiveWriter out, int level, int parallelism, IZipCompressionPolicy policy)
+	{
+		this.out = out;
+		this.level = level;
+		this.parallelism = Math.max( 1, parallelism );
+		this.policy = policy;
+
+		for (int i = Deflater.DEFAULT_COMPRESSION; i <= Deflater.BEST_COMPRESSION; i++)
+		{
+			this.encoders.add( new ConcurrentLinkedQueue<IZipCodecEncoder>() );
+		}
+	}
+
+	/** A constructor. */
+	ParallelZipWriter(ZipArchiveWriter out, ZipArchiveOptions options)
+	{
+		this(
+			out,
+			options.getLevel(),
+			ConcurrencyUtil.ResolveParallelism( options.getParallelism() ),
+			options.getCompressionPolicy()
+		);
+
+		this.deduplicate = options.isDeduplicate();
+		if ( options.getCodec() != null )
+		{
+			this.codec = options.getCodec();
+		}
+	}
+
+	/**
+	 * Compresses the given files with a new writer, and writes them to the
+	 * given archive.
+	 *
+	 * @return How each file has been compressed, in archive order.
+	 */
+	static List<ZipEntryReport> WriteAll(ZipArchiveWriter out, ZipArchiveOptions options, List<ZipFileSource> sources) throws IOException
+	{
+		ParallelZipWriter pzw = new ParallelZipWriter( out, options );
+
+		try
+		{
+			return pzw.write( sources );
+		}
+		finally
+		{
+			pzw.close();
+		}
+	}
+
+	/**
+	 * Compresses the given files and writes them to the archive.
+	 *
+	 * The worker threads and encoders are kept for the next calls, until
+	 * {@link #close()}.
+	 *
+	 * @return How each file has been compressed, in archive order.
+	 */
+	List<ZipEntryReport> write(List<ZipFileSource> sources) throws IOException
+	{
+		Deque<Future<Chunk>> pending = new ArrayDeque<Future<Chunk>>();
+		List<ZipEntryReport> reports = new ArrayList<ZipEntryReport>( sources.size() );
+
+		try
+		{
+			if ( this.parallelism > 1 && this.executor == null )
+			{
+				this.executor = Executors.newFixedThreadPool( this.parallelism, new DaemonThreadFactory( "zip-deflate" ) );
+			}
+			ExecutorService executor = this.executor;
+
+			int[] primaries = this.deduplicate
+				? this.findDuplicates( executor, sources )
+				: null;
+
+			int window = this.parallelism * CHUNKS_PER_THREAD;
+			Iterator<Chunk> chunks = new ChunkIterator( sources, primaries );
+			ZipEntryRecord[] records = new ZipEntryRecord[ sources.size() ];
+			ZipEntryReport[] done = new ZipEntryReport[ sources.size() ];
+
+			long crc = 0;
+
+			while ( chunks.hasNext() || !pending.isEmpty() )
+			{
+				while ( pending.size() < window && chunks.hasNext() )
+				{
+					pending.add( this.submit( executor, chunks.next() ) );
+				}
+
+				Chunk chunk = ConcurrencyUtil.Await( pending.poll() );
+				FileState state = chunk.state;
+				boolean stored = ( state.compression.getMethod() == ZipEntry.STORED );
+
+				if ( chunk.offset == 0 )
+				{
+					crc = chunk.crc;
+
+					if ( !stored )
+					{
+						ZipEntryRecord e = new ZipEntryRecord(
+							state.source.entryName,
+							this.codec.getMethod(),
+							state.source.lastModified
+						);
+						e.flags |= ZipFormat.FLAG_DATA_DESCRIPTOR;
+						// Size hint, for choosing the ZIP64 format in advance
+						e.size = state.source.size;
+						this.out.putNextEntry( e );
+					}
+				}
+				else
+				{
+					crc = ChecksumUtil.CombineCrc32( crc, chunk.crc, chunk.length );
+				}
+
+				if ( !stored )
+				{
+					this.out.write( chunk.data, 0, chunk.dataLength );
+					chunk.data = null;
+				}
+
+				if ( chunk.last )
+				{
+					long size = chunk.offset + chunk.length;
+
+					if ( stored )
+					{
+						this.writeStored( state.source, crc, size );
+					}
+					else
+					{
+						this.out.closeEntry( crc, size );
+					}
+
+					List<ZipEntryRecord> entries = this.out.getEntries();
+					int i = state.index;
+					records[i] = entries.get( entries.size() - 1 );
+					done[i] = new ZipEntryReport(
+						state.source.entryName,
+						stored ? ZipEntry.STORED : this.codec.getMethod(),
+						state.compression.getLevel(),
+						size,
+						records[i].compressedSize,
+						state.compression.getReason()
+					);
+					reports.add( done[i] );
+
+					// Copies of already written files which follow this one
+					for (i++; primaries != null && i < primaries.length && primaries[i] >= 0; i++)
+					{
+						reports.add( this.writeAlias( sources.get( i ), records[ primaries[i] ], done[ primaries[i] ] ) );
+					}
+				}
+			}
+		}
+		finally
+		{
+			for (Future<Chunk> f : pending)
+			{
+				f.cancel( true );
+			}
+		}
+
+		return reports;
+	}
+
+	/** Stops the worker threads and releases the encoders. */
+	void close()
+	{
+		if ( this.executor != null )
+		{
+			this.executor.shutdownNow();
+			this.executor = null;
+		}
+		for (ConcurrentLinkedQueue<IZipCodecEncoder> pool : this.encoders)
+		{
+			IZipCodecEncoder enc = null;
+			while ( (enc = pool.poll()) != null )
+			{
+				enc.end();
+			}
+		}
+	}
+
+	/** Writes a copy of an already written file. */
+	private ZipEntryReport writeAlias(ZipFileSource source, ZipEntryRecord target, ZipEntryReport targetReport) throws IOException
+	{
+		ZipEntryRecord e = new ZipEntryRecord(
+			source.entryName,
+			target.method,
+			source.lastModified
+		);
+		this.out.addAlias( e, target );
+
+		return new ZipEntryReport(
+			source.entryName,
+			targetReport.getMethod(),
+			targetReport.getLevel(),
+			e.size,
+			0,
+			"duplicate of " + targetReport.getName()
+		);
+	}
+
+	/**
+	 * Looks for files with the same content.
+	 *
+	 * Only files sharing their (non-zero) size with some other file are
+	 * hashed, concurrently if an executor is given.
+	 *
+	 * @return For each source, the index of the first source with the same
+	 *         content, or -1 if it is the first one.
+	 */
+	private int[] findDuplicates(ExecutorService executor, List<ZipFileSource> sources) throws IOException
+	{
+		int[] primaries = new int[ sources.size() ];
+		Arrays.fill( primaries, -1 );
+
+		Map<Long,Integer> sizes = new HashMap<Long,Integer>();
+		boolean[] candidate = new boolean[ sources.size() ];
+		for (int i = 0; i < sources.size(); i++)
+		{
+			long size = sources.get( i ).size;
+			if ( size == 0 )
+			{
+				continue;
+			}
+			Integer first = sizes.get( size );
+			if ( first == null )
+			{
+				sizes.put( size, i );
+			}
+			else
+			{
+				candidate[first] = true;
+				candidate[i] = true;
+			}
+		}
+
+		List<Future<byte[]>> digests = new ArrayList<Future<byte[]>>( sources.size() );
+		for (int i = 0; i < sources.size(); i++)
+		{
+			digests.add( candidate[i] ? this.submitDigest( executor, sources.get( i ) ) : null );
+		}
+
+		Map<ByteBuffer,Integer> seen = new HashMap<ByteBuffer,Integer>();
+		for (int i = 0; i < sources.size(); i++)
+		{
+			if ( digests.get( i ) == null )
+			{
+				continue;
+			}
+
+			ByteBuffer key = ByteBuffer.wrap( ConcurrencyUtil.Await( digests.get( i ) ) );
+			Integer first = seen.get( key );
+			if ( first == null )
+			{
+				seen.put( key, i );
+			}
+			else if ( sources.get( first ).size == sources.get( i ).size )
+			{
+				primaries[i] = first;
+			}
+		}
+
+		return primaries;
+	}
+
+	private Future<byte[]> submitDigest(ExecutorService executor, final ZipFileSource source)
+	{
+		Callable<byte[]> task = new Callable<byte[]>()
+		{
+			public byte[] call() throws IOException
+			{
+				return Digest( source );
+			}
+		};
+
+		if ( executor != null )
+		{
+			return executor.submit( task );
+		}
+
+		FutureTask<byte[]> ft = new FutureTask<byte[]>( task );
+		ft.run();
+		return ft;
+	}
+
+	/** Returns the SHA-256 digest of the first {@code size} bytes of a file. */
+	private static byte[] Digest(ZipFileSource source) throws IOException
+	{
+		MessageDigest md = null;
+		try
+		{
+			md = MessageDigest.getInstance( "SHA-256" );
+		}
+		catch (NoSuchAlgorithmException nsae)
+		{
+			throw new IOException( nsae );
+		}
+
+		FileChannel ch = null;
+		try
+		{
+			ch = new FileInputStream( source.file ).getChannel();
+
+			ByteBuffer buf = ByteBuffer.allocate( DIGEST_BUFFER_SIZE );
+			long pos = 0;
+			while ( pos < source.size )
+			{
+				buf.clear();
+				buf.limit( (int) Math.min( buf.capacity(), source.size - pos ) );
+				ReadFully( ch, buf, pos );
+				buf.flip();
+				md.update( buf );
+				pos += buf.limit();
+			}
+		}
+		finally
+		{
+			if ( ch != null )
+			{
+				try { ch.close(); } catch (Exception e) { /* ignore */ }
+				ch = null;
+			}
+		}
+
+		return md.digest();
+	}
+
+	/** Writes a stored entry, copying its data straight from the file. */
+	private void writeStored(ZipFileSource source, long crc, long size) throws IOException
+	{
+		ZipEntryRecord e = new ZipEntryRecord(
+			source.entryName,
+			ZipEntry.STORED,
+			source.lastModified
+		);
+		e.crc = crc;
+		e.size = size;
+		e.compressedSize = size;
+
+		FileChannel ch = null;
+		try
+		{
+			ch = new FileInputStream( source.file ).getChannel();
+
+			this.out.putNextEntry( e );
+			this.out.transferFrom( ch, 0, size );
+			this.out.closeEntry( crc, size );
+		}
+		finally
+		{
+			if ( ch != null )
+			{
+				try { ch.close(); } catch (Exception ex) { /* ignore */ }
+				ch = null;
+			}
+		}
+	}
+
+	private Future<Chunk> submit(ExecutorService executor, final Chunk chunk)
+	{
+		Callable<Chunk> task = new Callable<Chunk>()
+		{
+			public Chunk call() throws IOException
+			{
+				ParallelZipWriter.this.compress( chunk );
+				return chunk;
+			}
+		};
+
+		if ( executor != null )
+		{
+			return executor.submit( task );
+		}
+
+		FutureTask<Chunk> ft = new FutureTask<Chunk>( task );
+		ft.run();
+		return ft;
+	}
+
+	/** Reads and compresses the given chunk (called by worker threads). */
+	private void compress(Chunk chunk) throws IOException
+	{
+		FileState state = chunk.state;
+		int dictLen = (int) Math.min( this.codec.getDictionarySize(), chunk.offset );
+		byte[] in = null;
+
+		try
+		{
+			in = new byte[dictLen + chunk.length];
+
+			FileChannel ch = null;
+			try
+			{
+				ch = new FileInputStream( state.source.file ).getChannel();
+				ReadFully( ch, ByteBuffer.wrap( in ), chunk.offset - dictLen );
+			}
+			finally
+			{
+				if ( ch != null )
+				{
+					try { ch.close(); } catch (Exception e) { /* ignore */ }
+					ch = null;
+				}
+			}
+
+			if ( chunk.offset == 0 )
+			{
+				state.compression = this.choose( state.source, in, chunk.length );
+			}
+		}
+		finally
+		{
+			if ( chunk.offset == 0 )
+			{
+				state.decided.countDown();
+			}
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update( in, dictLen, chunk.length );
+		chunk.crc = crc.getValue();
+
+		// Wait for the first chunk of this file to choose the compression.
+		// Since chunks are submitted in order, it is already running.
+		try
+		{
+			state.decided.await();
+		}
+		catch (InterruptedException ie)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException( "Interrupted while compressing" );
+		}
+		if ( state.compression == null )
+		{
+			throw new IOException( "Unable to choose the compression of: " + state.source.file );
+		}
+		if ( state.compression.getMethod() == ZipEntry.STORED )
+		{
+			return;
+		}
+
+		int clevel = state.compression.getLevel();
+		ConcurrentLinkedQueue<IZipCodecEncoder> pool = this.encoders.get( clevel + 1 );
+		IZipCodecEncoder enc = pool.poll();
+		if ( enc == null )
+		{
+			enc = this.codec.newEncoder( clevel );
+		}
+
+		try
+		{
+			byte[] data = new byte[ this.codec.getMaxCompressedLength( chunk.length ) ];
+			chunk.dataLength = enc.compress( in, dictLen, chunk.length, chunk.last, data, 0 );
+			chunk.data = data;
+		}
+		finally
+		{
+			pool.add( enc );
+		}
+	}
+
+	/** Chooses the compression of a file, given its first chunk. */
+	private ZipCompression choose(ZipFileSource source, byte[] data, int len)
+	{
+		return Choose( this.policy, this.level, source.entryName, source.size, data, 0, len );
+	}
+
+	/**
+	 * Chooses the compression of an entry with the given policy, by passing
+	 * it at most {@link IZipCompressionPolicy#getSampleSize()} bytes of the
+	 * given data.
+	 *
+	 * @param policy The compression policy; if {@code null}, entries are
+	 *        deflated with the given level.
+	 * @param level The fallback deflate level.
+	 */
+	static ZipCompression Choose(IZipCompressionPolicy policy, int level, String name, long size, byte[] data, int off, int len)
+	{
+		if ( policy == null )
+		{
+			return ZipCompression.Deflated( level, "fixed level" );
+		}
+
+		ZipCompression c = policy.choose(
+			name,
+			size,
+			data,
+			off,
+			Math.min( len, policy.getSampleSize() )
+		);
+
+		return ( c != null ) ? c : ZipCompression.Deflated( level, "default" );
+	}
+
+	/**
+	 * Reads from the given position until the buffer is full.
+	 *
+	 * @throws EOFException if the end of the file is reached before.
+	 */
+	private static void ReadFully(FileChannel ch, ByteBuffer dst, long pos) throws IOException
+	{
+		while ( dst.hasRemaining() )
+		{
+			int n = ch.read( dst, pos );
+			if ( n < 0 )
+			{
+				throw new EOFException( "File shrunk while being archived" );
+			}
+			pos += n;
+		}
+	}
+
+	/** The compression state of a file, shared by its chunks. */
+	private static final class FileState
+	{
+		final ZipFileSource source;
+		/** The index of the source. */
+		final int index;
+		/** Counted down once the compression has been chosen. */
+		final CountDownLatch decided = new CountDownLatch( 1 );
+		volatile ZipCompression compression;
+
+		FileState(ZipFileSource source, int index)
+		{
+			this.source = source;
+			this.index = index;
+		}
+	}
+
+	/** A portion of a file to compress independently. */
+	private static final class Chunk
+	{
+		final FileState state;
+		final long offset;
+		final int length;
+		final boolean last;
+		long crc;
+		byte[] data;
+		int dataLength;
+
+		Chunk(FileState state, long offset, int length, boolean last)
+		{
+			this.state = state;
+			this.offset = offset;
+			this.length = length;
+			this.last = last;
+		}
+	}
+
+	/** Splits the sources into chunks, in order, skipping duplicates. */
+	private static final class ChunkIterator implements Iterator<Chunk>
+	{
+		private final List<ZipFileSource> sources;
+		private final int[] primaries;
+		private int next = 0;
+		private FileState state;
+		private long offset;
+
+		/**
+		 * A constructor.
+		 *
+		 * @param primaries For each source, the index of the source with the
+		 *        same content which is actually compressed, or -1 (it may be
+		 *        {@code null}).
+		 */
+		ChunkIterator(List<ZipFileSource> sources, int[] primaries)
+		{
+			this.sources = sources;
+			this.primaries = primaries;
+			this.skipDuplicates();
+		}
+
+		public boolean hasNext()
+		{
+			return this.state != null || this.next < this.sources.size();
+		}
+
+		public Chunk next()
+		{
+			if ( this.state == null )
+			{
+				if ( this.next >= this.sources.size() )
+				{
+					throw new NoSuchElementException();
+				}
+				this.state = new FileState( this.sources.get( this.next ), this.next );
+				this.offset = 0;
+				this.next++;
+				this.skipDuplicates();
+			}
+
+			long size = this.state.source.size;
+			int len = (int) Math.min( CHUNK_SIZE, size - this.offset );
+			boolean last = ( this.offset + len >= size );
+			Chunk chunk = new Chunk( this.state, this.offset, len, last );
+
+			this.offset += len;
+			if ( last )
+			{
+				this.state = null;
+			}
+
+			return chunk;
+		}
+
+		public void remove()
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		private void skipDuplicates()
+		{
+			while (
+				this.primaries != null
+				&& this.next < this.primaries.length
+				&& this.primaries[this.next] >= 0
+			) {
+				this.next++;
+			}
+		}
+	}
+}
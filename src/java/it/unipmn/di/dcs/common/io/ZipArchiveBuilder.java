@@ -0,0 +1,622 @@
+/*
+ * Copyright (C) 2008-2012  Marco Guazzone
+ *                          [Distributed Computing System (DCS) Group,
+ *                           Computer Science Institute,
+ *                           Department of Science and Technological Innovation,
+ *                           University of Piemonte Orientale,
+ *                           Alessandria (Italy)]
+ *
+ * This file is part of dcj-commons.
+ *
+ * dcsj-commons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dcsj-commons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dcsj-commons.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.unipmn.di.dcs.common.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Writes a ZIP archive to a stream, one entry at a time.
+ *
+ * Entries can be added from input streams, from in-memory data and from
+ * files; nothing is written to temporary files and only a bounded amount of
+ * data is kept in memory, so archives can be sent straight to a socket.
+ * The target does not need to be seekable.
+ *
+ * The compression of each entry is chosen by the compression policy of the
+ * given options, if any, by looking at its first bytes; otherwise entries
+ * are compressed with the configured level.
+ * Entries are compressed with the codec of the options (DEFLATE by
+ * default).
+ * Since the size of an input stream is not known in advance, stream entries
+ * which do not fit into a single buffer are always deflated (with no
+ * compression, if the policy would store them), as the ZIP format does not
+ * allow stored entries with a trailing data descriptor.
+ * File entries are compressed like the ones of {@link ZipUtil}, with the
+ * configured parallelism.
+ *
+ * Example:
+ * <pre>
+ * ZipArchiveBuilder zb = new ZipArchiveBuilder( socket.getOutputStream() );
+ * try
+ * {
+ *     zb.addEntry( "README", readme.getBytes( "UTF-8" ) );
+ *     zb.addEntry( "data/report.csv", reportStream );
+ *     zb.addFile( "data/image.png", Paths.get( "image.png" ) );
+ * }
+ * finally
+ * {
+ *     zb.close();
+ * }
+ * </pre>
+ *
+ * This class is not thread-safe.
+ *
+ * @author <a href="mailto:marco.guazzone@gmail.com">Marco Guazzone</a>
+ */
+public final class ZipArchiveBuilder implements Closeable
+{
+	private static final int IO_BUFFER_SIZE = 65536;
+
+	private final ZipArchiveWriter out;
+	private final ZipArchiveOptions options;
+	private final List<ZipEntryReport> reports = new ArrayList<ZipEntryReport>();
+	private byte[] inBuf;
+	private byte[] outBuf;
+	private Deflater deflater;
+	private IZipCodecEncoder encoder;
+	private int encoderLevel;
+	private byte[] codecBuf;
+	/** The writer of the added files, kept with its threads until the end. */
+	private ParallelZipWriter fileWriter;
+
+	/** Creates a builder writing to the given stream. */
+	public ZipArchiveBuilder(OutputStream os)
+	{
+		this( Channels.newChannel( os ), new ZipArchiveOptions() );
+	}
+
+	/** Creates a builder writing to the given stream. */
+	public ZipArchiveBuilder(OutputStream os, ZipArchiveOptions options)
+	{
+		this( Channels.newChannel( os ), options );
+	}
+
+	/** Creates a builder writing to the given channel. */
+	public ZipArchiveBuilder(WritableByteChannel channel)
+	{
+		this( channel, new ZipArchiveOptions() );
+	}
+
+	/** Creates a builder writing to the given channel. */
+	public ZipArchiveBuilder(WritableByteChannel channel, ZipArchiveOptions options)
+	{
+		this.out = new ZipArchiveWriter( channel );
+		this.options = options;
+	}
+
+	/** Sets the archive comment. */
+	public void setComment(String value)
+	{
+		this.out.setComment( value != null ? value.getBytes( ZipFormat.UTF8 ) : null );
+	}
+
+	/** Returns how each entry added so far has been compressed. */
+	public List<ZipEntryReport> getReports()
+	{
+		return Collections.unmodifiableList( this.reports );
+	}
+
+	/**
+	 * Adds a directory entry.
+	 *
+	 * @param name The directory name; a trailing slash is appended if
+	 *        missing.
+	 */
+	public void addDirectory(String name) throws IOException
+	{
+		if ( !name.endsWith( "/" ) )
+		{
+			name += "/";
+		}
+
+		ZipEntryRecord e = new ZipEntryRecord( name, ZipEntry.STORED, System.currentTimeMillis() );
+		this.out.putNextEntry( e );
+		this.out.closeEntry( 0, 0 );
+	}
+
+	/**
+	 * Adds an entry with the data read from the given stream, up to its
+	 * end.
+	 *
+	 * The stream is not closed.
+	 */
+	public void addEntry(String name, InputStream is) throws IOException
+	{
+		this.addEntry( name, is, System.currentTimeMillis() );
+	}
+
+	/**
+	 * Adds an entry with the data read from the given stream, up to its
+	 * end.
+	 *
+	 * The stream is not closed.
+	 *
+	 * @param time The entry modification time.
+	 */
+	public void addEntry(String name, InputStream is, long time) throws IOException
+	{
+		byte[] b = this.getInputBuffer();
+
+		int n = ReadFully( is, b, 0, b.length );
+		if ( n < b.length )
+		{
+			// The whole entry fits into the buffer
+			this.addEntry( name, b, 0, n, time );
+			return;
+		}
+
+		ZipCompression c = this.choose( name, -1, b, 0, n );
+		int level = c.getLevel();
+		String reason = c.getReason();
+		if ( c.getMethod() == ZipEntry.STORED )
+		{
+			level = Deflater.NO_COMPRESSION;
+			reason += " (stream)";
+		}
+
+		ZipEntryRecord e = this.putCompressedEntry( name, time );
+
+		if ( !this.isDeflate() )
+		{
+			CRC32 crc = new CRC32();
+			long size = 0;
+
+			while ( n > 0 )
+			{
+				crc.update( b, 0, n );
+				size += n;
+				this.encode( level, b, n, false );
+
+				n = ReadFully( is, b, 0, b.length );
+			}
+
+			this.closeEncoded( e, crc.getValue(), size, level, reason );
+			return;
+		}
+
+		Deflater def = this.getDeflater( level );
+		CRC32 crc = new CRC32();
+		long size = 0;
+
+		while ( n > 0 )
+		{
+			crc.update( b, 0, n );
+			size += n;
+			def.setInput( b, 0, n );
+			this.drain( def );
+
+			n = is.read( b );
+		}
+
+		this.closeDeflated( e, def, crc.getValue(), size, level, reason );
+	}
+
+	/** Adds an entry with the given data. */
+	public void addEntry(String name, byte[] data) throws IOException
+	{
+		this.addEntry( name, data, 0, data.length, System.currentTimeMillis() );
+	}
+
+	/**
+	 * Adds an entry with the given data.
+	 *
+	 * @param time The entry modification time.
+	 */
+	public void addEntry(String name, byte[] data, int off, int len, long time) throws IOException
+	{
+		CRC32 crc = new CRC32();
+		crc.update( data, off, len );
+
+		ZipCompression c = this.choose( name, len, data, off, len );
+
+		if ( c.getMethod() == ZipEntry.STORED )
+		{
+			ZipEntryRecord e = this.putStoredEntry( name, time, crc.getValue(), len );
+			this.out.write( data, off, len );
+			this.closeStored( e, c.getReason() );
+		}
+		else if ( !this.isDeflate() )
+		{
+			ZipEntryRecord e = this.putCompressedEntry( name, time );
+
+			byte[] b = this.getInputBuffer();
+			for (int p = 0; p < len; p += b.length)
+			{
+				int n = Math.min( b.length, len - p );
+				System.arraycopy( data, off + p, b, 0, n );
+				this.encode( c.getLevel(), b, n, false );
+			}
+
+			this.closeEncoded( e, crc.getValue(), len, c.getLevel(), c.getReason() );
+		}
+		else
+		{
+			ZipEntryRecord e = this.putCompressedEntry( name, time );
+
+			Deflater def = this.getDeflater( c.getLevel() );
+			def.setInput( data, off, len );
+			this.drain( def );
+
+			this.closeDeflated( e, def, crc.getValue(), len, c.getLevel(), c.getReason() );
+		}
+	}
+
+	/**
+	 * Adds an entry with the remaining bytes of the given buffer.
+	 *
+	 * The buffer position is advanced to its limit.
+	 */
+	public void addEntry(String name, ByteBuffer data) throws IOException
+	{
+		this.addEntry( name, data, System.currentTimeMillis() );
+	}
+
+	/**
+	 * Adds an entry with the remaining bytes of the given buffer.
+	 *
+	 * The buffer position is advanced to its limit.
+	 *
+	 * @param time The entry modification time.
+	 */
+	public void addEntry(String name, ByteBuffer data, long time) throws IOException
+	{
+		if ( data.hasArray() )
+		{
+			int len = data.remaining();
+			this.addEntry( name, data.array(), data.arrayOffset() + data.position(), len, time );
+			data.position( data.limit() );
+			return;
+		}
+
+		int len = data.remaining();
+		CRC32 crc = new CRC32();
+		crc.update( data.duplicate() );
+
+		byte[] b = this.getInputBuffer();
+		int sampleLen = Math.min( len, b.length );
+		data.duplicate().get( b, 0, sampleLen );
+		ZipCompression c = this.choose( name, len, b, 0, sampleLen );
+
+		if ( c.getMethod() == ZipEntry.STORED )
+		{
+			ZipEntryRecord e = this.putStoredEntry( name, time, crc.getValue(), len );
+			this.out.write( data );
+			this.closeStored( e, c.getReason() );
+		}
+		else if ( !this.isDeflate() )
+		{
+			ZipEntryRecord e = this.putCompressedEntry( name, time );
+
+			while ( data.hasRemaining() )
+			{
+				int n = Math.min( data.remaining(), b.length );
+				data.get( b, 0, n );
+				this.encode( c.getLevel(), b, n, false );
+			}
+
+			this.closeEncoded( e, crc.getValue(), len, c.getLevel(), c.getReason() );
+		}
+		else
+		{
+			ZipEntryRecord e = this.putCompressedEntry( name, time );
+
+			Deflater def = this.getDeflater( c.getLevel() );
+			while ( data.hasRemaining() )
+			{
+				int n = Math.min( data.remaining(), b.length );
+				data.get( b, 0, n );
+				def.setInput( b, 0, n );
+				this.drain( def );
+			}
+
+			this.closeDeflated( e, def, crc.getValue(), len, c.getLevel(), c.getReason() );
+		}
+	}
+
+	/**
+	 * Adds an entry with the content of the given file.
+	 *
+	 * The file is read in chunks, which are compressed by up to the
+	 * configured number of threads; the threads are shared by all the
+	 * files added to this builder.
+	 */
+	public void addFile(String name, Path file) throws IOException
+	{
+		if ( this.fileWriter == null )
+		{
+			this.fileWriter = new ParallelZipWriter( this.out, this.options );
+		}
+
+		ZipFileSource src = new ZipFileSource(
+			file.toFile(),
+			name,
+			Files.size( file ),
+			Files.getLastModifiedTime( file ).toMillis()
+		);
+
+		this.reports.addAll(
+			this.fileWriter.write( Collections.singletonList( src ) )
+		);
+	}
+
+	/**
+	 * Writes the central directory, leaving the underlying stream open.
+	 *
+	 * No entry can be added afterwards.
+	 */
+	public void finish() throws IOException
+	{
+		this.out.finish();
+		this.end();
+	}
+
+	/** Finishes the archive (if needed) and closes the underlying stream. */
+	public void close() throws IOException
+	{
+		try
+		{
+			this.out.close();
+		}
+		finally
+		{
+			this.end();
+		}
+	}
+
+	private ZipCompression choose(String name, long size, byte[] sample, int off, int len)
+	{
+		return ParallelZipWriter.Choose(
+			this.options.getCompressionPolicy(),
+			this.options.getLevel(),
+			name,
+			size,
+			sample,
+			off,
+			len
+		);
+	}
+
+	/**
+	 * Tells if entries are compressed with DEFLATE, rather than with
+	 * another codec.
+	 */
+	private boolean isDeflate()
+	{
+		IZipCodec codec = this.options.getCodec();
+
+		return codec == null || codec.getMethod() == ZipEntry.DEFLATED;
+	}
+
+	/** Starts a compressed entry, followed by a data descriptor. */
+	private ZipEntryRecord putCompressedEntry(String name, long time) throws IOException
+	{
+		ZipEntryRecord e = new ZipEntryRecord(
+			name,
+			this.isDeflate() ? ZipEntry.DEFLATED : this.options.getCodec().getMethod(),
+			time
+		);
+		e.flags |= ZipFormat.FLAG_DATA_DESCRIPTOR;
+		this.out.putNextEntry( e );
+
+		return e;
+	}
+
+	private ZipEntryRecord putStoredEntry(String name, long time, long crc, long size) throws IOException
+	{
+		ZipEntryRecord e = new ZipEntryRecord( name, ZipEntry.STORED, time );
+		e.crc = crc;
+		e.size = size;
+		e.compressedSize = size;
+		this.out.putNextEntry( e );
+
+		return e;
+	}
+
+	private void closeStored(ZipEntryRecord e, String reason) throws IOException
+	{
+		this.out.closeEntry( e.crc, e.size );
+		this.reports.add( new ZipEntryReport(
+			e.getName(),
+			ZipEntry.STORED,
+			Deflater.NO_COMPRESSION,
+			e.size,
+			e.compressedSize,
+			reason
+		));
+	}
+
+	private void closeDeflated(ZipEntryRecord e, Deflater def, long crc, long size, int level, String reason) throws IOException
+	{
+		def.finish();
+		this.drain( def );
+
+		this.out.closeEntry( crc, size );
+		this.reports.add( new ZipEntryReport(
+			e.getName(),
+			ZipEntry.DEFLATED,
+			level,
+			size,
+			e.compressedSize,
+			reason
+		));
+	}
+
+	/**
+	 * Compresses the first {@code len} bytes of the given buffer with the
+	 * codec of the options and writes them.
+	 *
+	 * Chunks are compressed with no dictionary, and the last one is always
+	 * an empty chunk (see {@link #closeEncoded}).
+	 */
+	private void encode(int level, byte[] b, int len, boolean last) throws IOException
+	{
+		IZipCodec codec = this.options.getCodec();
+
+		if ( this.encoder == null || this.encoderLevel != level )
+		{
+			if ( this.encoder != null )
+			{
+				this.encoder.end();
+			}
+			this.encoder = codec.newEncoder( level );
+			this.encoderLevel = level;
+		}
+		if ( this.codecBuf == null )
+		{
+			this.codecBuf = new byte[ codec.getMaxCompressedLength( IO_BUFFER_SIZE ) ];
+		}
+
+		int n = this.encoder.compress( b, 0, len, last, this.codecBuf, 0 );
+		if ( n > 0 )
+		{
+			this.out.write( this.codecBuf, 0, n );
+		}
+	}
+
+	private void closeEncoded(ZipEntryRecord e, long crc, long size, int level, String reason) throws IOException
+	{
+		this.encode( level, this.getInputBuffer(), 0, true );
+
+		this.out.closeEntry( crc, size );
+		this.reports.add( new ZipEntryReport(
+			e.getName(),
+			e.method,
+			level,
+			size,
+			e.compressedSize,
+			reason
+		));
+	}
+
+	/**
+	 * Writes the output of the given deflater until it needs more input
+	 * (or, once finished, until the end of the compressed data).
+	 */
+	private void drain(Deflater def) throws IOException
+	{
+		byte[] b = this.getOutputBuffer();
+
+		while ( !def.finished() )
+		{
+			int n = def.deflate( b, 0, b.length );
+			if ( n > 0 )
+			{
+				this.out.write( b, 0, n );
+			}
+			else if ( def.needsInput() )
+			{
+				break;
+			}
+		}
+	}
+
+	private Deflater getDeflater(int level)
+	{
+		if ( this.deflater == null )
+		{
+			this.deflater = new Deflater( level, true );
+		}
+		else
+		{
+			this.deflater.reset();
+			this.deflater.setLevel( level );
+		}
+
+		return this.deflater;
+	}
+
+	private byte[] getInputBuffer()
+	{
+		if ( this.inBuf == null )
+		{
+			this.inBuf = new byte[IO_BUFFER_SIZE];
+		}
+		return this.inBuf;
+	}
+
+	private byte[] getOutputBuffer()
+	{
+		if ( this.outBuf == null )
+		{
+			this.outBuf = new byte[IO_BUFFER_SIZE];
+		}
+		return this.outBuf;
+	}
+
+	private void end()
+	{
+		if ( this.fileWriter != null )
+		{
+			this.fileWriter.close();
+			this.fileWriter = null;
+		}
+		if ( this.deflater != null )
+		{
+			this.deflater.end();
+			this.deflater = null;
+		}
+		if ( this.encoder != null )
+		{
+			this.encoder.end();
+			this.encoder = null;
+		}
+	}
+
+	/**
+	 * Reads from the given stream until the given range is full or the end
+	 * of the stream is reached.
+	 *
+	 * @return The number of bytes read.
+	 */
+	private static int ReadFully(InputStream is, byte[] b, int off, int len) throws IOException
+	{
+		int n = 0;
+		while ( n < len )
+		{
+			int r = is.read( b, off + n, len - n );
+			if ( r < 0 )
+			{
+				break;
+			}
+			n += r;
+		}
+
+		return n;
+	}
+}
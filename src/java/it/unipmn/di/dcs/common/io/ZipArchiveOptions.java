@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2008-2012  Marco Guazzone
+ *                          [Distributed Computing System (DCS) Group,
+ *                           Computer Science Institute,
+ *                           Department of Science and Technological Innovation,
+ *                           University of Piemonte Orientale,
+ *                           Alessandria (Italy)]
+ *
+ * This file is part of dcj-commons.
+ *
+ * dcsj-commons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dcsj-commons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dcsj-commons.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.unipmn.di.dcs.common.io;
+
+import java.util.zip.Deflater;
+
+/**
+ * Options for creating and updating ZIP archives.
+ *
+ * @author <a href="mailto:marco.guazzone@gmail.com">Marco Guazzone</a>
+ */
+public class ZipArchiveOptions
+{
+	private int level = Deflater.DEFAULT_COMPRESSION;
+	private int parallelism = ZipUtil.DEFAULT_PARALLELISM;
+	private IZipCompressionPolicy compressionPolicy;
+	private boolean deduplicate = false;
+	private IZipCodec codec = ZipCodecs.Deflate();
+
+	/** A constructor. */
+	public ZipArchiveOptions()
+	{
+		// empty
+	}
+
+	/** A constructor. */
+	public ZipArchiveOptions(int level, int parallelism)
+	{
+		this.level = level;
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Sets the compression level used when there is no compression policy.
+	 *
+	 * @param value An integer number between 0 (minimum/faster compression)
+	 *        and 9 (maximum/slower compression), or -1 for the default level.
+	 */
+	public void setLevel(int value)
+	{
+		this.level = value;
+	}
+
+	public int getLevel()
+	{
+		return this.level;
+	}
+
+	/**
+	 * Sets the number of compression threads; a value less than or equal to
+	 * 0 means the number of available processors.
+	 */
+	public void setParallelism(int value)
+	{
+		this.parallelism = value;
+	}
+
+	public int getParallelism()
+	{
+		return this.parallelism;
+	}
+
+	/**
+	 * Sets the policy choosing the compression method and level of each
+	 * entry; if {@code null}, every entry is deflated with the configured
+	 * level.
+	 */
+	public void setCompressionPolicy(IZipCompressionPolicy value)
+	{
+		this.compressionPolicy = value;
+	}
+
+	public IZipCompressionPolicy getCompressionPolicy()
+	{
+		return this.compressionPolicy;
+	}
+
+	/**
+	 * Enables or disables the deduplication of files with the same content.
+	 *
+	 * When enabled, the content of files with the same size is hashed
+	 * (SHA-256), and only the first file with a given content is
+	 * compressed; the other ones are stored as extra central directory
+	 * records pointing to the data of the first one.
+	 * Such archives are read correctly by tools which use the central
+	 * directory (e.g., {@link java.util.zip.ZipFile} and {@link ZipIndex}),
+	 * while streaming readers (e.g., {@link java.util.zip.ZipInputStream})
+	 * only see the first copy of each file.
+	 */
+	public void setDeduplicate(boolean value)
+	{
+		this.deduplicate = value;
+	}
+
+	public boolean isDeduplicate()
+	{
+		return this.deduplicate;
+	}
+
+	/**
+	 * Sets the codec used to compress the entries which are not stored
+	 * (by default {@link ZipCodecs#Deflate()}).
+	 *
+	 * Entries compressed with a codec other than DEFLATE can only be read
+	 * by {@link ZipIndex} and by the extraction methods of {@link ZipUtil}.
+	 */
+	public void setCodec(IZipCodec value)
+	{
+		this.codec = value;
+	}
+
+	public IZipCodec getCodec()
+	{
+		return this.codec;
+	}
+}
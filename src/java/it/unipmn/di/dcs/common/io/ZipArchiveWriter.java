@@ -0,0 +1,599 @@
+/*
+ * Copyright (C) 2008-2012  Marco Guazzone
+ *                          [Distributed Computing System (DCS) Group,
+ *                           Computer Science Institute,
+ *                           Department of Science and Technological Innovation,
+ *                           University of Piemonte Orientale,
+ *                           Alessandria (Italy)]
+ *
+ * This file is part of dcj-commons.
+ *
+ * dcsj-commons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dcsj-commons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dcsj-commons.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.unipmn.di.dcs.common.io;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.ZipException;
+
+/**
+ * Low-level ZIP archive writer.
+ *
+ * Unlike {@link java.util.zip.ZipOutputStream}, this writer does not compress
+ * anything by itself: entry data is written as-is, so that it can be
+ * compressed elsewhere (e.g., concurrently by several threads) or copied
+ * verbatim from another archive.
+ *
+ * For each entry, {@link #putNextEntry(ZipEntryRecord)} writes the local file
+ * header, {@link #write(byte[],int,int)} writes the (already compressed) data
+ * and {@link #closeEntry(long,long)} completes the entry.
+ * If the record has the data descriptor flag set, CRC and sizes are written
+ * after the data; otherwise they must be set in the record in advance.
+ * Finally, {@link #finish()} writes the central directory.
+ *
+ * ZIP64 extensions are used only where needed, that is for entries whose
+ * sizes or offset do not fit into 32 bits, and for archives with more than
+ * 65534 entries or a central directory beyond 4GB.
+ * For entries with a data descriptor, a ZIP64 local extra field is written
+ * if the record size, set before calling {@link
+ * #putNextEntry(ZipEntryRecord)} as a hint, is at least 4GB; the data
+ * descriptor has 64-bit sizes if the actual sizes need them.
+ *
+ * This class is not thread-safe.
+ *
+ * @author <a href="mailto:marco.guazzone@gmail.com">Marco Guazzone</a>
+ */
+final class ZipArchiveWriter implements Closeable
+{
+	private static final int WR_BUFFER_SIZE = 65536;
+
+	private final WritableByteChannel channel;
+	private final ByteBuffer buf;
+	private final List<ZipEntryRecord> entries = new ArrayList<ZipEntryRecord>();
+	private final Set<String> names = new HashSet<String>();
+	private long offset;
+	private ZipEntryRecord current;
+	private long currentWritten;
+	private boolean currentZip64;
+	private boolean finished = false;
+	private byte[] comment;
+
+	/** A constructor. */
+	ZipArchiveWriter(WritableByteChannel channel)
+	{
+		this.channel = channel;
+		this.buf = ZipFormat.NewBuffer( WR_BUFFER_SIZE );
+	}
+
+	/**
+	 * Creates a writer which continues an existing archive.
+	 *
+	 * @param channel The channel, positioned where the next local file
+	 *        header is to be written.
+	 * @param offset The offset of the channel position from the archive
+	 *        start.
+	 * @param existing The records of the entries already stored in the
+	 *        archive; they are written back to the central directory by
+	 *        {@link #finish()}.
+	 */
+	ZipArchiveWriter(WritableByteChannel channel, long offset, List<ZipEntryRecord> existing)
+	{
+		this( channel );
+
+		this.offset = offset;
+		for (ZipEntryRecord e : existing)
+		{
+			this.entries.add( e );
+			this.names.add( e.getName() );
+		}
+	}
+
+	/** Returns the number of bytes written so far. */
+	long getOffset()
+	{
+		return this.offset + this.buf.position();
+	}
+
+	/** Returns the records of the entries written so far. */
+	List<ZipEntryRecord> getEntries()
+	{
+		return this.entries;
+	}
+
+	/** Sets the encoded archive comment. */
+	void setComment(byte[] value)
+	{
+		this.comment = value;
+	}
+
+	/** Tells if an entry with the given name has already been written. */
+	boolean containsEntry(String name)
+	{
+		return this.names.contains( name );
+	}
+
+	/**
+	 * Begins a new entry by writing its local file header.
+	 *
+	 * @throws ZipException if an entry with the same name already exists.
+	 */
+	void putNextEntry(ZipEntryRecord e) throws IOException
+	{
+		this.ensureOpen();
+
+		if ( this.current != null )
+		{
+			throw new ZipException( "Previous entry not closed" );
+		}
+		String name = e.getName();
+		if ( !this.names.add( name ) )
+		{
+			throw new ZipException( "duplicate entry: " + name );
+		}
+
+		e.offset = this.getOffset();
+
+		boolean dd = e.hasDataDescriptor();
+		boolean zip64 = dd
+			? e.size >= ZipFormat.MAX_32
+			: ( e.size >= ZipFormat.MAX_32 || e.compressedSize >= ZipFormat.MAX_32 );
+
+		// Any ZIP64 field of a copied entry is rebuilt from scratch
+		byte[] extra = ZipFormat.RemoveExtraBlock( e.localExtra, ZipFormat.ZIP64_EXTID );
+		if ( zip64 )
+		{
+			ByteBuffer z64 = ZipFormat.NewBuffer( 20 );
+			ZipFormat.PutShort( z64, ZipFormat.ZIP64_EXTID );
+			ZipFormat.PutShort( z64, 16 );
+			ZipFormat.PutLong( z64, dd ? 0 : e.size );
+			ZipFormat.PutLong( z64, dd ? 0 : e.compressedSize );
+			extra = ConcatExtra( z64.array(), extra );
+		}
+		e.localExtra = extra;
+		if ( zip64 || e.offset >= ZipFormat.MAX_32 )
+		{
+			e.versionNeeded = Math.max( e.versionNeeded, ZipFormat.VERSION_ZIP64 );
+		}
+
+		int extraLen = ( extra != null ) ? extra.length : 0;
+		if ( e.name.length > ZipFormat.MAX_16 || extraLen > ZipFormat.MAX_16 )
+		{
+			throw new ZipException( "Entry name or extra field too long: " + name );
+		}
+
+		this.ensureCapacity( ZipFormat.LOCHDR );
+		ZipFormat.PutInt( this.buf, ZipFormat.LOCSIG );
+		ZipFormat.PutShort( this.buf, e.versionNeeded );
+		ZipFormat.PutShort( this.buf, e.flags );
+		ZipFormat.PutShort( this.buf, e.method );
+		ZipFormat.PutInt( this.buf, e.dosTime );
+		ZipFormat.PutInt( this.buf, dd ? 0 : e.crc );
+		ZipFormat.PutInt( this.buf, zip64 ? ZipFormat.MAX_32 : ( dd ? 0 : e.compressedSize ) );
+		ZipFormat.PutInt( this.buf, zip64 ? ZipFormat.MAX_32 : ( dd ? 0 : e.size ) );
+		ZipFormat.PutShort( this.buf, e.name.length );
+		ZipFormat.PutShort( this.buf, extraLen );
+		this.putBytes( e.name, 0, e.name.length );
+		if ( extraLen > 0 )
+		{
+			this.putBytes( extra, 0, extraLen );
+		}
+
+		this.current = e;
+		this.currentWritten = 0;
+		this.currentZip64 = zip64;
+	}
+
+	/**
+	 * Adds an entry sharing the data of an entry already written.
+	 *
+	 * Only a central directory record is written for the new entry; it
+	 * points to the local header (and thus to the data) of the target
+	 * entry.
+	 *
+	 * @param e The record of the new entry, providing its name, time,
+	 *        attributes and comment; the other fields are copied from the
+	 *        target record.
+	 * @param target The record of an entry already written.
+	 * @throws ZipException if an entry with the same name already exists.
+	 */
+	void addAlias(ZipEntryRecord e, ZipEntryRecord target) throws IOException
+	{
+		this.ensureOpen();
+
+		if ( this.current != null )
+		{
+			throw new ZipException( "Previous entry not closed" );
+		}
+		String name = e.getName();
+		if ( !this.names.add( name ) )
+		{
+			throw new ZipException( "duplicate entry: " + name );
+		}
+
+		e.flags = target.flags;
+		e.method = target.method;
+		e.crc = target.crc;
+		e.compressedSize = target.compressedSize;
+		e.size = target.size;
+		e.offset = target.offset;
+		e.versionNeeded = target.versionNeeded;
+		e.localExtra = target.localExtra;
+
+		this.entries.add( e );
+	}
+
+	/** Writes (already compressed) data of the current entry. */
+	void write(byte[] b, int off, int len) throws IOException
+	{
+		this.ensureEntry();
+
+		this.putBytes( b, off, len );
+		this.currentWritten += len;
+	}
+
+	/** Writes (already compressed) data of the current entry. */
+	void write(ByteBuffer src) throws IOException
+	{
+		this.ensureEntry();
+
+		int len = src.remaining();
+		if ( len <= this.buf.remaining() )
+		{
+			this.buf.put( src );
+		}
+		else
+		{
+			this.flushBuffer();
+			while ( src.hasRemaining() )
+			{
+				this.channel.write( src );
+			}
+			this.offset += len;
+		}
+		this.currentWritten += len;
+	}
+
+	/**
+	 * Copies (already compressed) data of the current entry from a region
+	 * of the given file.
+	 */
+	void transferFrom(FileChannel src, long position, long count) throws IOException
+	{
+		this.ensureEntry();
+
+		this.flushBuffer();
+
+		long remaining = count;
+		while ( remaining > 0 )
+		{
+			long n = src.transferTo( position, remaining, this.channel );
+			if ( n <= 0 )
+			{
+				// No progress: fall back to a plain read
+				this.buf.limit( (int) Math.min( this.buf.capacity(), remaining ) );
+				n = src.read( this.buf, position );
+				if ( n < 0 )
+				{
+					throw new EOFException( "Unexpected end of file" );
+				}
+				this.buf.flip();
+				while ( this.buf.hasRemaining() )
+				{
+					this.channel.write( this.buf );
+				}
+				this.buf.clear();
+			}
+			position += n;
+			remaining -= n;
+		}
+
+		this.offset += count;
+		this.currentWritten += count;
+	}
+
+	/**
+	 * Completes the current entry.
+	 *
+	 * The compressed size is the number of bytes written for this entry.
+	 * If the entry does not use a data descriptor, the given CRC and size
+	 * must match the ones set before writing its local header.
+	 *
+	 * @param crc The CRC-32 of the uncompressed data.
+	 * @param size The size of the uncompressed data.
+	 */
+	void closeEntry(long crc, long size) throws IOException
+	{
+		this.ensureEntry();
+
+		ZipEntryRecord e = this.current;
+
+		if ( e.hasDataDescriptor() )
+		{
+			e.crc = crc;
+			e.compressedSize = this.currentWritten;
+			e.size = size;
+
+			if (
+				this.currentZip64
+				|| e.size >= ZipFormat.MAX_32
+				|| e.compressedSize >= ZipFormat.MAX_32
+			) {
+				this.ensureCapacity( ZipFormat.ZIP64_EXTHDR );
+				ZipFormat.PutInt( this.buf, ZipFormat.EXTSIG );
+				ZipFormat.PutInt( this.buf, e.crc );
+				ZipFormat.PutLong( this.buf, e.compressedSize );
+				ZipFormat.PutLong( this.buf, e.size );
+			}
+			else
+			{
+				this.ensureCapacity( ZipFormat.EXTHDR );
+				ZipFormat.PutInt( this.buf, ZipFormat.EXTSIG );
+				ZipFormat.PutInt( this.buf, e.crc );
+				ZipFormat.PutInt( this.buf, e.compressedSize );
+				ZipFormat.PutInt( this.buf, e.size );
+			}
+		}
+		else if (
+			e.crc != crc
+			|| e.size != size
+			|| e.compressedSize != this.currentWritten
+		) {
+			throw new ZipException( "Invalid CRC or size for entry: " + e.getName() );
+		}
+
+		this.entries.add( e );
+		this.current = null;
+	}
+
+	/**
+	 * Writes the central directory and the end of central directory record
+	 * (preceded by the ZIP64 ones, if needed).
+	 *
+	 * The underlying channel is left open.
+	 */
+	void finish() throws IOException
+	{
+		this.ensureOpen();
+
+		if ( this.current != null )
+		{
+			throw new ZipException( "Last entry not closed" );
+		}
+
+		long cdOffset = this.getOffset();
+
+		for (ZipEntryRecord e : this.entries)
+		{
+			this.writeCentralHeader( e );
+		}
+
+		long cdSize = this.getOffset() - cdOffset;
+		long numEntries = this.entries.size();
+
+		if (
+			numEntries >= ZipFormat.MAX_16
+			|| cdSize >= ZipFormat.MAX_32
+			|| cdOffset >= ZipFormat.MAX_32
+		) {
+			long z64Offset = this.getOffset();
+
+			this.ensureCapacity( ZipFormat.ZIP64_ENDHDR + ZipFormat.ZIP64_LOCHDR );
+			ZipFormat.PutInt( this.buf, ZipFormat.ZIP64_ENDSIG );
+			ZipFormat.PutLong( this.buf, ZipFormat.ZIP64_ENDHDR - 12 );
+			ZipFormat.PutShort( this.buf, ZipFormat.VERSION_ZIP64 );
+			ZipFormat.PutShort( this.buf, ZipFormat.VERSION_ZIP64 );
+			ZipFormat.PutInt( this.buf, 0 );
+			ZipFormat.PutInt( this.buf, 0 );
+			ZipFormat.PutLong( this.buf, numEntries );
+			ZipFormat.PutLong( this.buf, numEntries );
+			ZipFormat.PutLong( this.buf, cdSize );
+			ZipFormat.PutLong( this.buf, cdOffset );
+
+			ZipFormat.PutInt( this.buf, ZipFormat.ZIP64_LOCSIG );
+			ZipFormat.PutInt( this.buf, 0 );
+			ZipFormat.PutLong( this.buf, z64Offset );
+			ZipFormat.PutInt( this.buf, 1 );
+		}
+
+		this.ensureCapacity( ZipFormat.ENDHDR );
+		ZipFormat.PutInt( this.buf, ZipFormat.ENDSIG );
+		ZipFormat.PutShort( this.buf, 0 );
+		ZipFormat.PutShort( this.buf, 0 );
+		ZipFormat.PutShort( this.buf, (int) Math.min( numEntries, ZipFormat.MAX_16 ) );
+		ZipFormat.PutShort( this.buf, (int) Math.min( numEntries, ZipFormat.MAX_16 ) );
+		ZipFormat.PutInt( this.buf, Math.min( cdSize, ZipFormat.MAX_32 ) );
+		ZipFormat.PutInt( this.buf, Math.min( cdOffset, ZipFormat.MAX_32 ) );
+		int commentLen = ( this.comment != null ) ? this.comment.length : 0;
+		ZipFormat.PutShort( this.buf, commentLen );
+		if ( commentLen > 0 )
+		{
+			this.putBytes( this.comment, 0, commentLen );
+		}
+
+		this.flushBuffer();
+		this.finished = true;
+	}
+
+	/** Finishes the archive (if needed) and closes the underlying channel. */
+	public void close() throws IOException
+	{
+		try
+		{
+			if ( !this.finished && this.current == null )
+			{
+				this.finish();
+			}
+		}
+		finally
+		{
+			this.channel.close();
+		}
+	}
+
+	private void writeCentralHeader(ZipEntryRecord e) throws IOException
+	{
+		boolean bigSize = ( e.size >= ZipFormat.MAX_32 );
+		boolean bigCompressedSize = ( e.compressedSize >= ZipFormat.MAX_32 );
+		boolean bigOffset = ( e.offset >= ZipFormat.MAX_32 );
+
+		// Only the values which do not fit are stored in the ZIP64 field
+		byte[] extra = ZipFormat.RemoveExtraBlock( e.extra, ZipFormat.ZIP64_EXTID );
+		int versionMadeBy = e.versionMadeBy;
+		int versionNeeded = e.versionNeeded;
+		if ( bigSize || bigCompressedSize || bigOffset )
+		{
+			ByteBuffer z64 = ZipFormat.NewBuffer( 28 );
+			ZipFormat.PutShort( z64, ZipFormat.ZIP64_EXTID );
+			ZipFormat.PutShort( z64, 0 );
+			if ( bigSize )
+			{
+				ZipFormat.PutLong( z64, e.size );
+			}
+			if ( bigCompressedSize )
+			{
+				ZipFormat.PutLong( z64, e.compressedSize );
+			}
+			if ( bigOffset )
+			{
+				ZipFormat.PutLong( z64, e.offset );
+			}
+			z64.putShort( 2, (short) (z64.position() - 4) );
+			extra = ConcatExtra( Arrays.copyOf( z64.array(), z64.position() ), extra );
+
+			versionNeeded = Math.max( versionNeeded, ZipFormat.VERSION_ZIP64 );
+			if ( (versionMadeBy & 0xFF) < ZipFormat.VERSION_ZIP64 )
+			{
+				versionMadeBy = (versionMadeBy & 0xFF00) | ZipFormat.VERSION_ZIP64;
+			}
+		}
+
+		int extraLen = ( extra != null ) ? extra.length : 0;
+		int commentLen = ( e.comment != null ) ? e.comment.length : 0;
+		if ( extraLen > ZipFormat.MAX_16 )
+		{
+			throw new ZipException( "Extra field too long for entry: " + e.getName() );
+		}
+
+		this.ensureCapacity( ZipFormat.CENHDR );
+		ZipFormat.PutInt( this.buf, ZipFormat.CENSIG );
+		ZipFormat.PutShort( this.buf, versionMadeBy );
+		ZipFormat.PutShort( this.buf, versionNeeded );
+		ZipFormat.PutShort( this.buf, e.flags );
+		ZipFormat.PutShort( this.buf, e.method );
+		ZipFormat.PutInt( this.buf, e.dosTime );
+		ZipFormat.PutInt( this.buf, e.crc );
+		ZipFormat.PutInt( this.buf, bigCompressedSize ? ZipFormat.MAX_32 : e.compressedSize );
+		ZipFormat.PutInt( this.buf, bigSize ? ZipFormat.MAX_32 : e.size );
+		ZipFormat.PutShort( this.buf, e.name.length );
+		ZipFormat.PutShort( this.buf, extraLen );
+		ZipFormat.PutShort( this.buf, commentLen );
+		ZipFormat.PutShort( this.buf, 0 );
+		ZipFormat.PutShort( this.buf, e.internalAttributes );
+		ZipFormat.PutInt( this.buf, e.externalAttributes );
+		ZipFormat.PutInt( this.buf, bigOffset ? ZipFormat.MAX_32 : e.offset );
+		this.putBytes( e.name, 0, e.name.length );
+		if ( extraLen > 0 )
+		{
+			this.putBytes( extra, 0, extraLen );
+		}
+		if ( commentLen > 0 )
+		{
+			this.putBytes( e.comment, 0, commentLen );
+		}
+	}
+
+	/** Returns the concatenation of two (possibly null) extra fields. */
+	private static byte[] ConcatExtra(byte[] a, byte[] b)
+	{
+		if ( b == null )
+		{
+			return a;
+		}
+
+		byte[] c = Arrays.copyOf( a, a.length + b.length );
+		System.arraycopy( b, 0, c, a.length, b.length );
+
+		return c;
+	}
+
+	private void putBytes(byte[] b, int off, int len) throws IOException
+	{
+		if ( len <= this.buf.remaining() )
+		{
+			this.buf.put( b, off, len );
+			return;
+		}
+
+		this.flushBuffer();
+		if ( len <= this.buf.remaining() )
+		{
+			this.buf.put( b, off, len );
+		}
+		else
+		{
+			// Large chunk: bypass the internal buffer
+			ByteBuffer src = ByteBuffer.wrap( b, off, len );
+			while ( src.hasRemaining() )
+			{
+				this.channel.write( src );
+			}
+			this.offset += len;
+		}
+	}
+
+	private void ensureCapacity(int len) throws IOException
+	{
+		if ( this.buf.remaining() < len )
+		{
+			this.flushBuffer();
+		}
+	}
+
+	private void flushBuffer() throws IOException
+	{
+		this.buf.flip();
+		this.offset += this.buf.remaining();
+		while ( this.buf.hasRemaining() )
+		{
+			this.channel.write( this.buf );
+		}
+		this.buf.clear();
+	}
+
+	private void ensureOpen() throws IOException
+	{
+		if ( this.finished )
+		{
+			throw new ZipException( "Archive already finished" );
+		}
+	}
+
+	private void ensureEntry() throws IOException
+	{
+		if ( this.current == null )
+		{
+			throw new ZipException( "No current entry" );
+		}
+	}
+}
@@ -0,0 +1,353 @@
+/*
+ * Copyright (C) 2008-2012  Marco Guazzone
+ *                          [Distributed Computing System (DCS) Group,
+ *                           Computer Science Institute,
+ *                           Department of Science and Technological Innovation,
+ *                           University of Piemonte Orientale,
+ *                           Alessandria (Italy)]
+ *
+ * This file is part of dcj-commons.
+ *
+ * dcsj-commons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dcsj-commons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dcsj-commons.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.unipmn.di.dcs.common.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipException;
+
+/**
+ * The central directory of an existing ZIP archive.
+ *
+ * Entries are read as {@link ZipEntryRecord}s, keeping all their header
+ * fields in encoded form, so that they can be written back unchanged.
+ *
+ * @author <a href="mailto:marco.guazzone@gmail.com">Marco Guazzone</a>
+ */
+final class ZipCentralDirectory
+{
+	/** Maximum length of the archive comment. */
+	private static final int MAX_COMMENT = 0xFFFF;
+
+	/** The central directory records, in directory order. */
+	final List<ZipEntryRecord> entries;
+	/** The offset of the central directory (relative to {@link #base}). */
+	final long offset;
+	/** The length of the central directory. */
+	final long size;
+	/**
+	 * The position of the end of central directory record (or of the ZIP64
+	 * end of central directory record, if any), that is the first byte after
+	 * the central directory.
+	 */
+	final long endPosition;
+	/** The position of the end of the end of central directory record. */
+	final long endLimit;
+	/**
+	 * The position of the first byte of the archive proper.
+	 *
+	 * It differs from 0 if the archive has some leading data (e.g., a
+	 * self-extracting stub) and its offsets are relative to the archive
+	 * start instead of the file start.
+	 */
+	final long base;
+	/** The encoded archive comment. */
+	final byte[] comment;
+
+	private ZipCentralDirectory(List<ZipEntryRecord> entries, long offset, long size, long endPosition, long endLimit, long base, byte[] comment)
+	{
+		this.entries = entries;
+		this.offset = offset;
+		this.size = size;
+		this.endPosition = endPosition;
+		this.endLimit = endLimit;
+		this.base = base;
+		this.comment = comment;
+	}
+
+	/**
+	 * Reads the central directory of the archive accessed through the given
+	 * channel.
+	 *
+	 * @throws ZipException if the archive is not a valid ZIP file.
+	 */
+	static ZipCentralDirectory Read(FileChannel ch) throws IOException
+	{
+		End end = ReadEnd( ch );
+
+		ByteBuffer cd = ZipFormat.NewBuffer( (int) end.size );
+		ReadFully( ch, cd, end.getPosition() );
+		List<ZipEntryRecord> entries = ParseEntries( cd, end.numEntries );
+
+		return new ZipCentralDirectory(
+			entries,
+			end.offset,
+			end.size,
+			end.endPosition,
+			end.endLimit,
+			end.base,
+			end.comment
+		);
+	}
+
+	/**
+	 * Locates and reads the end of central directory record of the archive
+	 * accessed through the given channel.
+	 *
+	 * @throws ZipException if the archive is not a valid ZIP file.
+	 */
+	static End ReadEnd(FileChannel ch) throws IOException
+	{
+		long fileSize = ch.size();
+
+		// Look for the end of central directory record, which is followed
+		// by a variable-length comment.
+		int tailLen = (int) Math.min( fileSize, ZipFormat.ENDHDR + MAX_COMMENT );
+		ByteBuffer tail = ZipFormat.NewBuffer( tailLen );
+		ReadFully( ch, tail, fileSize - tailLen );
+
+		int endIdx = -1;
+		for (int i = tailLen - ZipFormat.ENDHDR; i >= 0; i--)
+		{
+			if (
+				tail.getInt( i ) == ZipFormat.ENDSIG
+				&& i + ZipFormat.ENDHDR + ZipFormat.GetShort( tail, i + 20 ) <= tailLen
+			) {
+				endIdx = i;
+				break;
+			}
+		}
+		if ( endIdx < 0 )
+		{
+			throw new ZipException( "End of central directory record not found" );
+		}
+
+		End end = new End();
+		end.endPosition = fileSize - tailLen + endIdx;
+		long numEntries = ZipFormat.GetShort( tail, endIdx + 10 );
+		end.size = ZipFormat.GetInt( tail, endIdx + 12 );
+		end.offset = ZipFormat.GetInt( tail, endIdx + 16 );
+		int commentLen = ZipFormat.GetShort( tail, endIdx + 20 );
+
+		end.comment = new byte[commentLen];
+		tail.position( endIdx + ZipFormat.ENDHDR );
+		tail.get( end.comment );
+		end.endLimit = end.endPosition + ZipFormat.ENDHDR + commentLen;
+
+		// Look for the ZIP64 end of central directory locator, just before
+		// the end of central directory record.
+		long locPos = end.endPosition - ZipFormat.ZIP64_LOCHDR;
+		ByteBuffer loc = null;
+		if ( locPos >= ZipFormat.ZIP64_ENDHDR )
+		{
+			loc = ZipFormat.NewBuffer( ZipFormat.ZIP64_LOCHDR );
+			ReadFully( ch, loc, locPos );
+			if ( loc.getInt( 0 ) != ZipFormat.ZIP64_LOCSIG )
+			{
+				loc = null;
+			}
+		}
+
+		if ( loc != null )
+		{
+			ByteBuffer z64 = ZipFormat.NewBuffer( ZipFormat.ZIP64_ENDHDR );
+			long z64Pos = ZipFormat.GetLong( loc, 8 );
+			if ( z64Pos >= 0 && z64Pos <= locPos - ZipFormat.ZIP64_ENDHDR )
+			{
+				ReadFully( ch, z64, z64Pos );
+			}
+			if ( z64.getInt( 0 ) != ZipFormat.ZIP64_ENDSIG )
+			{
+				// The archive has some leading data: the record offset is
+				// relative to the archive start.
+				z64Pos = locPos - ZipFormat.ZIP64_ENDHDR;
+				z64.clear();
+				ReadFully( ch, z64, z64Pos );
+				if ( z64.getInt( 0 ) != ZipFormat.ZIP64_ENDSIG )
+				{
+					throw new ZipException( "ZIP64 end of central directory record not found" );
+				}
+			}
+
+			end.endPosition = z64Pos;
+			numEntries = ZipFormat.GetLong( z64, 32 );
+			end.size = ZipFormat.GetLong( z64, 40 );
+			end.offset = ZipFormat.GetLong( z64, 48 );
+		}
+		else if (
+			numEntries == ZipFormat.MAX_16
+			|| end.size == ZipFormat.MAX_32
+			|| end.offset == ZipFormat.MAX_32
+		) {
+			throw new ZipException( "ZIP64 end of central directory locator not found" );
+		}
+
+		if ( numEntries < 0 || numEntries > Integer.MAX_VALUE || end.size < 0 || end.offset < 0 )
+		{
+			throw new ZipException( "Invalid central directory" );
+		}
+		end.numEntries = (int) numEntries;
+
+		end.base = end.endPosition - end.size - end.offset;
+		if ( end.base < 0 || end.size > Integer.MAX_VALUE )
+		{
+			throw new ZipException( "Invalid central directory" );
+		}
+
+		return end;
+	}
+
+	/** Parses {@code count} central directory file headers. */
+	static List<ZipEntryRecord> ParseEntries(ByteBuffer cd, int count) throws ZipException
+	{
+		List<ZipEntryRecord> entries = new ArrayList<ZipEntryRecord>( count );
+		int pos = 0;
+
+		for (int i = 0; i < count; i++)
+		{
+			if (
+				pos + ZipFormat.CENHDR > cd.limit()
+				|| cd.getInt( pos ) != ZipFormat.CENSIG
+			) {
+				throw new ZipException( "Invalid central directory file header" );
+			}
+
+			ZipEntryRecord e = new ZipEntryRecord();
+			e.versionMadeBy = ZipFormat.GetShort( cd, pos + 4 );
+			e.versionNeeded = ZipFormat.GetShort( cd, pos + 6 );
+			e.flags = ZipFormat.GetShort( cd, pos + 8 );
+			e.method = ZipFormat.GetShort( cd, pos + 10 );
+			e.dosTime = ZipFormat.GetInt( cd, pos + 12 );
+			e.crc = ZipFormat.GetInt( cd, pos + 16 );
+			int nameLen = ZipFormat.GetShort( cd, pos + 28 );
+			int extraLen = ZipFormat.GetShort( cd, pos + 30 );
+			int commentLen = ZipFormat.GetShort( cd, pos + 32 );
+			e.internalAttributes = ZipFormat.GetShort( cd, pos + 36 );
+			e.externalAttributes = ZipFormat.GetInt( cd, pos + 38 );
+
+			if ( pos + ZipFormat.CENHDR + nameLen + extraLen + commentLen > cd.limit() )
+			{
+				throw new ZipException( "Invalid central directory file header" );
+			}
+
+			e.compressedSize = ZipFormat.GetCentralValue( cd, pos, 20 );
+			e.size = ZipFormat.GetCentralValue( cd, pos, 24 );
+			e.offset = ZipFormat.GetCentralValue( cd, pos, 42 );
+			if ( e.compressedSize < 0 || e.size < 0 || e.offset < 0 )
+			{
+				throw new ZipException( "Invalid ZIP64 extra field" );
+			}
+
+			pos += ZipFormat.CENHDR;
+			e.name = GetBytes( cd, pos, nameLen );
+			pos += nameLen;
+			e.extra = ( extraLen > 0 ) ? GetBytes( cd, pos, extraLen ) : null;
+			pos += extraLen;
+			e.comment = ( commentLen > 0 ) ? GetBytes( cd, pos, commentLen ) : null;
+			pos += commentLen;
+
+			entries.add( e );
+		}
+
+		return entries;
+	}
+
+	/**
+	 * Reads the local file header of the given entry.
+	 *
+	 * The local extra field is stored into the record.
+	 *
+	 * @param base The position of the archive start in the file.
+	 * @return The position of the entry data in the file.
+	 */
+	static long ReadLocalHeader(FileChannel ch, long base, ZipEntryRecord e) throws IOException
+	{
+		long pos = base + e.offset;
+
+		ByteBuffer hdr = ZipFormat.NewBuffer( ZipFormat.LOCHDR );
+		ReadFully( ch, hdr, pos );
+		if ( hdr.getInt( 0 ) != ZipFormat.LOCSIG )
+		{
+			throw new ZipException( "Invalid local file header for entry: " + e.getName() );
+		}
+
+		int nameLen = ZipFormat.GetShort( hdr, 26 );
+		int extraLen = ZipFormat.GetShort( hdr, 28 );
+
+		if ( extraLen > 0 )
+		{
+			ByteBuffer extra = ByteBuffer.allocate( extraLen );
+			ReadFully( ch, extra, pos + ZipFormat.LOCHDR + nameLen );
+			e.localExtra = extra.array();
+		}
+		else
+		{
+			e.localExtra = null;
+		}
+
+		return pos + ZipFormat.LOCHDR + nameLen + extraLen;
+	}
+
+	private static byte[] GetBytes(ByteBuffer buf, int index, int len)
+	{
+		byte[] b = new byte[len];
+		ByteBuffer dup = buf.duplicate();
+		dup.position( index );
+		dup.get( b );
+		return b;
+	}
+
+	private static void ReadFully(FileChannel ch, ByteBuffer dst, long pos) throws IOException
+	{
+		while ( dst.hasRemaining() )
+		{
+			int n = ch.read( dst, pos );
+			if ( n < 0 )
+			{
+				throw new EOFException( "Unexpected end of ZIP file" );
+			}
+			pos += n;
+		}
+	}
+
+	/** The fields of the end of central directory record. */
+	static final class End
+	{
+		/** The number of entries. */
+		int numEntries;
+		/** The offset of the central directory (relative to {@link #base}). */
+		long offset;
+		/** The length of the central directory. */
+		long size;
+		/** The position of the end of central directory record. */
+		long endPosition;
+		/** The position of the end of the end of central directory record. */
+		long endLimit;
+		/** The position of the first byte of the archive proper. */
+		long base;
+		/** The encoded archive comment. */
+		byte[] comment;
+
+		/** Returns the position of the central directory in the file. */
+		long getPosition()
+		{
+			return this.base + this.offset;
+		}
+	}
+}
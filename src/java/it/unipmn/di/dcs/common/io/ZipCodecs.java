@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2008-2012  Marco Guazzone
+ *                          [Distributed Computing System (DCS) Group,
+ *                           Computer Science Institute,
+ *                           Department of Science and Technological Innovation,
+ *                           University of Piemonte Orientale,
+ *                           Alessandria (Italy)]
+ *
+ * This file is part of dcj-commons.
+ *
+ * dcsj-commons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dcsj-commons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dcsj-commons.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.unipmn.di.dcs.common.io;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The built-in ZIP codecs and the registry mapping compression method IDs
+ * to codecs.
+ *
+ * The DEFLATE codec is the default one, and the only one readable by other
+ * tools; the {@linkplain #Lz() LZ codec} trades compression ratio for speed
+ * and uses a non-standard method ID.
+ * Further codecs can be made readable (e.g., by {@link ZipIndex} and by
+ * {@link ZipUtil#ExtractArchive(String,String)}) by registering them.
+ *
+ * @author <a href="mailto:marco.guazzone@gmail.com">Marco Guazzone</a>
+ */
+public final class ZipCodecs
+{
+	private static final IZipCodec DeflateCodec = new DeflateZipCodec();
+	private static final IZipCodec LzCodec = new LzBlockZipCodec();
+	private static final Map<Integer,IZipCodec> Registry = new ConcurrentHashMap<Integer,IZipCodec>();
+
+	static
+	{
+		Register( DeflateCodec );
+		Register( LzCodec );
+	}
+
+	private ZipCodecs()
+	{
+		// empty
+	}
+
+	/** Returns the DEFLATE codec (method 8). */
+	public static IZipCodec Deflate()
+	{
+		return DeflateCodec;
+	}
+
+	/**
+	 * Returns the fast LZ codec, writing independent LZ4-style blocks
+	 * (method {@code 0x4C5A}).
+	 */
+	public static IZipCodec Lz()
+	{
+		return LzCodec;
+	}
+
+	/**
+	 * Registers a codec, replacing the one previously registered for the
+	 * same method, if any.
+	 */
+	public static void Register(IZipCodec codec)
+	{
+		Registry.put( codec.getMethod(), codec );
+	}
+
+	/**
+	 * Returns the codec registered for the given compression method, or
+	 * {@code null} if there is none.
+	 */
+	public static IZipCodec ForMethod(int method)
+	{
+		return Registry.get( method );
+	}
+}
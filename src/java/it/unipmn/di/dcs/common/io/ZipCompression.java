@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2008-2012  Marco Guazzone
+ *                          [Distributed Computing System (DCS) Group,
+ *                           Computer Science Institute,
+ *                           Department of Science and Technological Innovation,
+ *                           University of Piemonte Orientale,
+ *                           Alessandria (Italy)]
+ *
+ * This file is part of dcj-commons.
+ *
+ * dcsj-commons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dcsj-commons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dcsj-commons.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.unipmn.di.dcs.common.io;
+
+import java.util.zip.ZipEntry;
+
+/**
+ * How a single ZIP entry is to be compressed.
+ *
+ * @author <a href="mailto:marco.guazzone@gmail.com">Marco Guazzone</a>
+ */
+public final class ZipCompression
+{
+	private final int method;
+	private final int level;
+	private final String reason;
+
+	private ZipCompression(int method, int level, String reason)
+	{
+		this.method = method;
+		this.level = level;
+		this.reason = reason;
+	}
+
+	/**
+	 * Store the entry without compressing it.
+	 *
+	 * @param reason A short description of why this choice has been made.
+	 */
+	public static ZipCompression Stored(String reason)
+	{
+		return new ZipCompression( ZipEntry.STORED, 0, reason );
+	}
+
+	/**
+	 * Compress the entry with the given compression level.
+	 *
+	 * Entries are compressed with the codec of the archive (see {@link
+	 * ZipArchiveOptions#setCodec(IZipCodec)}), which is DEFLATE by default.
+	 *
+	 * @param level An integer number between 0 (minimum/faster compression)
+	 *        and 9 (maximum/slower compression), or -1 for the default level.
+	 * @param reason A short description of why this choice has been made.
+	 */
+	public static ZipCompression Deflated(int level, String reason)
+	{
+		if ( level < -1 || level > 9 )
+		{
+			throw new IllegalArgumentException( "Invalid compression level: " + level );
+		}
+
+		return new ZipCompression( ZipEntry.DEFLATED, level, reason );
+	}
+
+	/** Returns the compression method ({@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED}). */
+	public int getMethod()
+	{
+		return this.method;
+	}
+
+	/** Returns the compression level (meaningless for stored entries). */
+	public int getLevel()
+	{
+		return this.level;
+	}
+
+	/** Returns a short description of why this choice has been made. */
+	public String getReason()
+	{
+		return this.reason;
+	}
+}
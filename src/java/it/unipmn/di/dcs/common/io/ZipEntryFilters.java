@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2008-2012  Marco Guazzone
+ *                          [Distributed Computing System (DCS) Group,
+ *                           Computer Science Institute,
+ *                           Department of Science and Technological Innovation,
+ *                           University of Piemonte Orientale,
+ *                           Alessandria (Italy)]
+ *
+ * This file is part of dcj-commons.
+ *
+ * dcsj-commons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dcsj-commons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dcsj-commons.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.unipmn.di.dcs.common.io;
+
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+
+/**
+ * Factory methods for common ZIP entry filters.
+ *
+ * @author <a href="mailto:marco.guazzone@gmail.com">Marco Guazzone</a>
+ */
+public final class ZipEntryFilters
+{
+	private static final IZipEntryFilter AcceptAll = new IZipEntryFilter()
+	{
+		public boolean accept(ZipEntry entry)
+		{
+			return true;
+		}
+	};
+
+	private ZipEntryFilters()
+	{
+		// empty
+	}
+
+	/** Returns a filter accepting every entry. */
+	public static IZipEntryFilter All()
+	{
+		return AcceptAll;
+	}
+
+	/**
+	 * Returns a filter accepting the entries whose name matches at least one
+	 * of the given glob patterns.
+	 *
+	 * Patterns are matched against the whole entry name and support the
+	 * following wildcards:
+	 * <ul>
+	 * <li>{@code *} matches zero or more characters, except {@code /};</li>
+	 * <li>{@code **} matches zero or more characters, {@code /}
+	 * included;</li>
+	 * <li>{@code ?} matches exactly one character, except {@code /};</li>
+	 * <li>{@code [...]} matches one of the enclosed characters ({@code [!...]}
+	 * negates the set);</li>
+	 * <li>{@code {a,b,...}} matches one of the comma-separated
+	 * alternatives.</li>
+	 * </ul>
+	 * A leading {@code "./"} or {@code "/"} in entry names is ignored.
+	 *
+	 * @throws IllegalArgumentException if a pattern is malformed.
+	 */
+	public static IZipEntryFilter Glob(String... patterns)
+	{
+		final Pattern[] regexs = new Pattern[patterns.length];
+
+		for (int i = 0; i < patterns.length; i++)
+		{
+			regexs[i] = Pattern.compile( GlobToRegex( patterns[i] ) );
+		}
+
+		return new IZipEntryFilter()
+		{
+			public boolean accept(ZipEntry entry)
+			{
+				String name = entry.getName();
+				if ( name.startsWith( "./" ) )
+				{
+					name = name.substring( 2 );
+				}
+				else if ( name.startsWith( "/" ) )
+				{
+					name = name.substring( 1 );
+				}
+
+				for (Pattern p : regexs)
+				{
+					if ( p.matcher( name ).matches() )
+					{
+						return true;
+					}
+				}
+
+				return false;
+			}
+		};
+	}
+
+	/** Returns a filter accepting the entries rejected by the given one. */
+	public static IZipEntryFilter Not(final IZipEntryFilter filter)
+	{
+		return new IZipEntryFilter()
+		{
+			public boolean accept(ZipEntry entry)
+			{
+				return !filter.accept( entry );
+			}
+		};
+	}
+
+	/** Returns a filter accepting the entries accepted by all the given ones. */
+	public static IZipEntryFilter And(final IZipEntryFilter... filters)
+	{
+		return new IZipEntryFilter()
+		{
+			public boolean accept(ZipEntry entry)
+			{
+				for (IZipEntryFilter f : filters)
+				{
+					if ( !f.accept( entry ) )
+					{
+						return false;
+					}
+				}
+				return true;
+			}
+		};
+	}
+
+	/** Converts a glob pattern into a regular expression. */
+	private static String GlobToRegex(String glob)
+	{
+		StringBuilder sb = new StringBuilder( glob.length() + 16 );
+		boolean inGroup = false;
+
+		for (int i = 0; i < glob.length(); i++)
+		{
+			char c = glob.charAt( i );
+
+			switch (c)
+			{
+				case '*':
+					if ( i + 1 < glob.length() && glob.charAt( i + 1 ) == '*' )
+					{
+						sb.append( ".*" );
+						i++;
+					}
+					else
+					{
+						sb.append( "[^/]*" );
+					}
+					break;
+				case '?':
+					sb.append( "[^/]" );
+					break;
+				case '[':
+				{
+					int j = glob.indexOf( ']', i + 1 );
+					if ( j < 0 )
+					{
+						throw new IllegalArgumentException( "Unclosed character class in glob: " + glob );
+					}
+					String set = glob.substring( i + 1, j );
+					sb.append( '[' );
+					if ( set.startsWith( "!" ) )
+					{
+						sb.append( '^' );
+						set = set.substring( 1 );
+					}
+					sb.append( set.replace( "\\", "\\\\" ).replace( "[", "\\[" ) );
+					sb.append( ']' );
+					i = j;
+					break;
+				}
+				case '{':
+					if ( inGroup )
+					{
+						throw new IllegalArgumentException( "Nested groups are not supported in glob: " + glob );
+					}
+					sb.append( "(?:" );
+					inGroup = true;
+					break;
+				case '}':
+					if ( !inGroup )
+					{
+						throw new IllegalArgumentException( "Unbalanced group in glob: " + glob );
+					}
+					sb.append( ')' );
+					inGroup = false;
+					break;
+				case ',':
+					sb.append( inGroup ? "|" : "," );
+					break;
+				case '\\':
+					if ( i + 1 < glob.length() )
+					{
+						sb.append( Pattern.quote( String.valueOf( glob.charAt( ++i ) ) ) );
+					}
+					break;
+				default:
+					if ( "().+^$|".indexOf( c ) >= 0 )
+					{
+						sb.append( '\\' );
+					}
+					sb.append( c );
+			}
+		}
+
+		if ( inGroup )
+		{
+			throw new IllegalArgumentException( "Unclosed group in glob: " + glob );
+		}
+
+		return sb.toString();
+	}
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2008-2012  Marco Guazzone
+ *                          [Distributed Computing System (DCS) Group,
+ *                           Computer Science Institute,
+ *                           Department of Science and Technological Innovation,
+ *                           University of Piemonte Orientale,
+ *                           Alessandria (Italy)]
+ *
+ * This file is part of dcj-commons.
+ *
+ * dcsj-commons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dcsj-commons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dcsj-commons.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.unipmn.di.dcs.common.io;
+
+import java.util.zip.ZipEntry;
+
+/**
+ * The header fields of a single ZIP archive entry, as stored in the local
+ * file header and in the central directory.
+ *
+ * Unlike {@link ZipEntry}, the name is kept in its encoded form and the
+ * offset of the local header is tracked, so that records can be written (or
+ * copied from an existing archive) without any further decoding.
+ *
+ * @author <a href="mailto:marco.guazzone@gmail.com">Marco Guazzone</a>
+ */
+final class ZipEntryRecord
+{
+	/** The encoded entry name. */
+	byte[] name;
+	/** The general purpose bit flags. */
+	int flags = ZipFormat.FLAG_UTF8;
+	/** The compression method. */
+	int method = ZipEntry.DEFLATED;
+	/** The last modification time, in MS-DOS format. */
+	long dosTime;
+	/** The CRC-32 of the uncompressed data. */
+	long crc;
+	/** The size of the compressed data. */
+	long compressedSize;
+	/** The size of the uncompressed data. */
+	long size;
+	/** The offset of the local file header from the archive start. */
+	long offset;
+	/** The extra field stored in the local file header. */
+	byte[] localExtra;
+	/** The extra field stored in the central directory. */
+	byte[] extra;
+	/** The encoded entry comment. */
+	byte[] comment;
+	/** The "version made by" field of the central directory. */
+	int versionMadeBy = ZipFormat.VERSION_DEFLATED;
+	/** The "version needed to extract" field. */
+	int versionNeeded = ZipFormat.VERSION_DEFLATED;
+	/** The internal file attributes. */
+	int internalAttributes;
+	/** The external file attributes. */
+	long externalAttributes;
+
+	/** A constructor. */
+	ZipEntryRecord()
+	{
+		// empty
+	}
+
+	/** A constructor. */
+	ZipEntryRecord(String name, int method, long time)
+	{
+		this.name = name.getBytes( ZipFormat.UTF8 );
+		this.method = method;
+		this.dosTime = ZipFormat.JavaToDosTime( time );
+		this.versionNeeded = ( method == ZipEntry.STORED )
+			? ZipFormat.VERSION_STORED
+			: ZipFormat.VERSION_DEFLATED;
+		this.versionMadeBy = this.versionNeeded;
+	}
+
+	/** Returns the decoded entry name. */
+	String getName()
+	{
+		return new String( this.name, ZipFormat.UTF8 );
+	}
+
+	/**
+	 * Tells if the CRC and sizes of this entry follow its data in a data
+	 * descriptor.
+	 */
+	boolean hasDataDescriptor()
+	{
+		return ( this.flags & ZipFormat.FLAG_DATA_DESCRIPTOR ) != 0;
+	}
+
+	/** Returns the length of this entry local header. */
+	long getLocalHeaderLength()
+	{
+		return ZipFormat.LOCHDR
+			+ this.name.length
+			+ ( this.localExtra != null ? this.localExtra.length : 0 );
+	}
+}
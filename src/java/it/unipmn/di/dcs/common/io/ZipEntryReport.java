@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2008-2012  Marco Guazzone
+ *                          [Distributed Computing System (DCS) Group,
+ *                           Computer Science Institute,
+ *                           Department of Science and Technological Innovation,
+ *                           University of Piemonte Orientale,
+ *                           Alessandria (Italy)]
+ *
+ * This file is part of dcj-commons.
+ *
+ * dcsj-commons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dcsj-commons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dcsj-commons.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.unipmn.di.dcs.common.io;
+
+import java.util.Locale;
+
+/**
+ * Reports how a single ZIP entry has been compressed.
+ *
+ * @author <a href="mailto:marco.guazzone@gmail.com">Marco Guazzone</a>
+ */
+public final class ZipEntryReport
+{
+	private final String name;
+	private final int method;
+	private final int level;
+	private final long size;
+	private final long compressedSize;
+	private final String reason;
+
+	/** A constructor. */
+	public ZipEntryReport(String name, int method, int level, long size, long compressedSize, String reason)
+	{
+		this.name = name;
+		this.method = method;
+		this.level = level;
+		this.size = size;
+		this.compressedSize = compressedSize;
+		this.reason = reason;
+	}
+
+	/** Returns the entry name. */
+	public String getName()
+	{
+		return this.name;
+	}
+
+	/** Returns the compression method. */
+	public int getMethod()
+	{
+		return this.method;
+	}
+
+	/** Returns the compression level (meaningless for stored entries). */
+	public int getLevel()
+	{
+		return this.level;
+	}
+
+	/** Returns the uncompressed size. */
+	public long getSize()
+	{
+		return this.size;
+	}
+
+	/** Returns the compressed size. */
+	public long getCompressedSize()
+	{
+		return this.compressedSize;
+	}
+
+	/**
+	 * Returns the compression ratio, that is the compressed size over the
+	 * uncompressed size (1 for empty entries).
+	 */
+	public double getRatio()
+	{
+		return ( this.size > 0 )
+			? ( (double) this.compressedSize / this.size )
+			: 1.0;
+	}
+
+	/** Returns why the compression method and level have been chosen. */
+	public String getReason()
+	{
+		return this.reason;
+	}
+
+	@Override
+	public String toString()
+	{
+		return this.name
+			+ "\t"
+			+ ZipUtil.CompressionMethodToString( this.method )
+			+ "\t"
+			+ this.level
+			+ "\t"
+			+ this.size
+			+ "\t"
+			+ this.compressedSize
+			+ "\t"
+			+ String.format( Locale.ROOT, "%.3f", this.getRatio() )
+			+ "\t"
+			+ this.reason;
+	}
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2008-2012  Marco Guazzone
+ *                          [Distributed Computing System (DCS) Group,
+ *                           Computer Science Institute,
+ *                           Department of Science and Technological Innovation,
+ *                           University of Piemonte Orientale,
+ *                           Alessandria (Italy)]
+ *
+ * This file is part of dcj-commons.
+ *
+ * dcsj-commons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dcsj-commons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dcsj-commons.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.unipmn.di.dcs.common.io;
+
+import java.io.File;
+
+/**
+ * A file to be stored into a ZIP archive under a given entry name.
+ *
+ * @author <a href="mailto:marco.guazzone@gmail.com">Marco Guazzone</a>
+ */
+final class ZipFileSource
+{
+	/** The file to store. */
+	final File file;
+	/** The name of the ZIP entry. */
+	final String entryName;
+	/** The file size, sampled when the source is created. */
+	final long size;
+	/** The file modification time, sampled when the source is created. */
+	final long lastModified;
+
+	/** A constructor. */
+	ZipFileSource(File file, String entryName)
+	{
+		this( file, entryName, file.length(), file.lastModified() );
+	}
+
+	/** A constructor. */
+	ZipFileSource(File file, String entryName, long size, long lastModified)
+	{
+		this.file = file;
+		this.entryName = entryName;
+		this.size = size;
+		this.lastModified = lastModified;
+	}
+}
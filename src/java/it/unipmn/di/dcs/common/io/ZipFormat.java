@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2008-2012  Marco Guazzone
+ *                          [Distributed Computing System (DCS) Group,
+ *                           Computer Science Institute,
+ *                           Department of Science and Technological Innovation,
+ *                           University of Piemonte Orientale,
+ *                           Alessandria (Italy)]
+ *
+ * This file is part of dcj-commons.
+ *
+ * dcsj-commons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dcsj-commons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dcsj-commons.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.unipmn.di.dcs.common.io;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Calendar;
+
+/**
+ * Constants and helper methods for the on-disk layout of ZIP archives.
+ *
+ * See the PKWARE "APPNOTE.TXT" specification for the meaning of each field.
+ *
+ * @author <a href="mailto:marco.guazzone@gmail.com">Marco Guazzone</a>
+ */
+final class ZipFormat
+{
+	/** Local file header signature. */
+	static final int LOCSIG = 0x04034b50;
+	/** Data descriptor signature. */
+	static final int EXTSIG = 0x08074b50;
+	/** Central directory file header signature. */
+	static final int CENSIG = 0x02014b50;
+	/** End of central directory record signature. */
+	static final int ENDSIG = 0x06054b50;
+	/** ZIP64 end of central directory record signature. */
+	static final int ZIP64_ENDSIG = 0x06064b50;
+	/** ZIP64 end of central directory locator signature. */
+	static final int ZIP64_LOCSIG = 0x07064b50;
+
+	/** Fixed length of a local file header. */
+	static final int LOCHDR = 30;
+	/** Fixed length of a data descriptor (signature included). */
+	static final int EXTHDR = 16;
+	/** Fixed length of a central directory file header. */
+	static final int CENHDR = 46;
+	/** Fixed length of the end of central directory record. */
+	static final int ENDHDR = 22;
+	/** Fixed length of a ZIP64 data descriptor (signature included). */
+	static final int ZIP64_EXTHDR = 24;
+	/** Fixed length of the ZIP64 end of central directory record. */
+	static final int ZIP64_ENDHDR = 56;
+	/** Fixed length of the ZIP64 end of central directory locator. */
+	static final int ZIP64_LOCHDR = 20;
+
+	/** Header ID of the ZIP64 extended information extra field. */
+	static final int ZIP64_EXTID = 0x0001;
+
+	/** General purpose flag: sizes and CRC follow the data. */
+	static final int FLAG_DATA_DESCRIPTOR = 0x0008;
+	/** General purpose flag: name and comment are UTF-8 encoded. */
+	static final int FLAG_UTF8 = 0x0800;
+
+	/** Version needed to extract STORED entries. */
+	static final int VERSION_STORED = 10;
+	/** Version needed to extract DEFLATED entries. */
+	static final int VERSION_DEFLATED = 20;
+	/** Version needed to extract entries with ZIP64 extensions. */
+	static final int VERSION_ZIP64 = 45;
+
+	/** Largest value representable in a 16-bit field. */
+	static final int MAX_16 = 0xFFFF;
+	/** Largest value representable in a 32-bit field. */
+	static final long MAX_32 = 0xFFFFFFFFL;
+
+	/** The charset used for entry names and comments. */
+	static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+	private ZipFormat()
+	{
+		// empty
+	}
+
+	/** Creates a little-endian heap buffer of the given capacity. */
+	static ByteBuffer NewBuffer(int capacity)
+	{
+		return ByteBuffer.allocate( capacity ).order( ByteOrder.LITTLE_ENDIAN );
+	}
+
+	/** Puts the lowest 16 bits of {@code value} at the buffer position. */
+	static void PutShort(ByteBuffer buf, int value)
+	{
+		buf.putShort( (short) (value & 0xFFFF) );
+	}
+
+	/** Puts the lowest 32 bits of {@code value} at the buffer position. */
+	static void PutInt(ByteBuffer buf, long value)
+	{
+		buf.putInt( (int) (value & 0xFFFFFFFFL) );
+	}
+
+	/** Puts {@code value} at the buffer position. */
+	static void PutLong(ByteBuffer buf, long value)
+	{
+		buf.putLong( value );
+	}
+
+	/** Reads an unsigned 16-bit value at the given absolute index. */
+	static int GetShort(ByteBuffer buf, int index)
+	{
+		return buf.getShort( index ) & 0xFFFF;
+	}
+
+	/** Reads an unsigned 32-bit value at the given absolute index. */
+	static long GetInt(ByteBuffer buf, int index)
+	{
+		return buf.getInt( index ) & 0xFFFFFFFFL;
+	}
+
+	/**
+	 * Reads a 64-bit value at the given absolute index.
+	 *
+	 * Values are signed: the ones above {@code Long.MAX_VALUE} are not
+	 * supported.
+	 */
+	static long GetLong(ByteBuffer buf, int index)
+	{
+		return buf.getLong( index );
+	}
+
+	/**
+	 * Returns the ZIP64 value of a 32-bit field of a central directory file
+	 * header.
+	 *
+	 * If the field holds {@link #MAX_32}, the actual value is read from the
+	 * ZIP64 extended information extra field, where the uncompressed size,
+	 * the compressed size and the local header offset appear in this order,
+	 * but only if the corresponding header field holds {@link #MAX_32}.
+	 *
+	 * @param cd The buffer holding the header, little-endian.
+	 * @param pos The position of the header.
+	 * @param field The position of the field within the header: 24 for the
+	 *        uncompressed size, 20 for the compressed size, 42 for the
+	 *        local header offset.
+	 * @return The value, or -1 if the extra field is missing or too short.
+	 */
+	static long GetCentralValue(ByteBuffer cd, int pos, int field)
+	{
+		long value = GetInt( cd, pos + field );
+		if ( value != MAX_32 )
+		{
+			return value;
+		}
+
+		// Skip the values which precede the requested one
+		int skip = 0;
+		if ( field != 24 && GetInt( cd, pos + 24 ) == MAX_32 )
+		{
+			skip += 8;
+		}
+		if ( field == 42 && GetInt( cd, pos + 20 ) == MAX_32 )
+		{
+			skip += 8;
+		}
+
+		int off = pos + 46 + GetShort( cd, pos + 28 );
+		int end = off + GetShort( cd, pos + 30 );
+		while ( off + 4 <= end )
+		{
+			int id = GetShort( cd, off );
+			int len = GetShort( cd, off + 2 );
+			if ( id == ZIP64_EXTID )
+			{
+				return ( skip + 8 <= len && off + 4 + len <= end )
+					? GetLong( cd, off + 4 + skip )
+					: -1;
+			}
+			off += 4 + len;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Returns a copy of the given extra field without the blocks with the
+	 * given header ID, or {@code null} if nothing is left.
+	 */
+	static byte[] RemoveExtraBlock(byte[] extra, int id)
+	{
+		if ( extra == null )
+		{
+			return null;
+		}
+
+		ByteBuffer in = ByteBuffer.wrap( extra ).order( ByteOrder.LITTLE_ENDIAN );
+		ByteBuffer out = NewBuffer( extra.length );
+		int off = 0;
+		while ( off + 4 <= extra.length )
+		{
+			int len = GetShort( in, off + 2 );
+			int next = Math.min( extra.length, off + 4 + len );
+			if ( GetShort( in, off ) != id )
+			{
+				out.put( extra, off, next - off );
+			}
+			off = next;
+		}
+		// Keep any trailing garbage as it is
+		out.put( extra, off, extra.length - off );
+
+		return ( out.position() > 0 )
+			? Arrays.copyOf( out.array(), out.position() )
+			: null;
+	}
+
+	/**
+	 * Converts a Java time (milliseconds since the epoch) into a MS-DOS
+	 * date/time value (date in the high 16 bits, time in the low 16 bits).
+	 */
+	static long JavaToDosTime(long time)
+	{
+		Calendar cal = Calendar.getInstance();
+		cal.setTimeInMillis( time );
+
+		int year = cal.get( Calendar.YEAR );
+		if ( year < 1980 )
+		{
+			// 1980-01-01 00:00:00
+			return (1 << 21) | (1 << 16);
+		}
+
+		return ( (long) (year - 1980) << 25 )
+			| ( (cal.get( Calendar.MONTH ) + 1) << 21 )
+			| ( cal.get( Calendar.DAY_OF_MONTH ) << 16 )
+			| ( cal.get( Calendar.HOUR_OF_DAY ) << 11 )
+			| ( cal.get( Calendar.MINUTE ) << 5 )
+			| ( cal.get( Calendar.SECOND ) >> 1 );
+	}
+
+	/**
+	 * Converts a MS-DOS date/time value into a Java time (milliseconds since
+	 * the epoch).
+	 */
+	static long DosToJavaTime(long dtime)
+	{
+		Calendar cal = Calendar.getInstance();
+		cal.clear();
+		cal.set(
+			(int) (((dtime >> 25) & 0x7f) + 1980),
+			(int) (((dtime >> 21) & 0x0f) - 1),
+			(int) ((dtime >> 16) & 0x1f),
+			(int) ((dtime >> 11) & 0x1f),
+			(int) ((dtime >> 5) & 0x3f),
+			(int) ((dtime << 1) & 0x3e)
+		);
+
+		return cal.getTimeInMillis();
+	}
+}
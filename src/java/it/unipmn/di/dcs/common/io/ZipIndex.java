@@ -0,0 +1,658 @@
+/*
+ * Copyright (C) 2008-2012  Marco Guazzone
+ *                          [Distributed Computing System (DCS) Group,
+ *                           Computer Science Institute,
+ *                           Department of Science and Technological Innovation,
+ *                           University of Piemonte Orientale,
+ *                           Alessandria (Italy)]
+ *
+ * This file is part of dcj-commons.
+ *
+ * dcsj-commons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dcsj-commons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dcsj-commons.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.unipmn.di.dcs.common.io;
+
+import it.unipmn.di.dcs.common.CommonException;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * A read-only index over the central directory of a ZIP archive.
+ *
+ * The central directory is memory-mapped and parsed only once: for each
+ * entry, the index keeps the position of its record within the mapping and
+ * a hash of its name, in an open-addressing hash table of primitive arrays.
+ * Entry names and fields are decoded only when requested.
+ *
+ * Indexes returned by {@link #Open(File)} are cached and shared; a cached
+ * index is discarded as soon as the size or the modification time of its
+ * archive changes.
+ * Instances are immutable and thread-safe.
+ *
+ * @author <a href="mailto:marco.guazzone@gmail.com">Marco Guazzone</a>
+ */
+public final class ZipIndex
+{
+	/** Maximum number of cached indexes. */
+	private static final int MAX_CACHED = 64;
+
+	private static final Map<String,ZipIndex> Cache = new LinkedHashMap<String,ZipIndex>( 16, 0.75f, true )
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String,ZipIndex> eldest)
+		{
+			return this.size() > MAX_CACHED;
+		}
+	};
+
+	private final File file;
+	private final long fileSize;
+	private final long lastModified;
+	private final long base;
+	private final ByteBuffer cd;
+	/** Position of each central directory record within {@link #cd}. */
+	private final int[] records;
+	/** Hash of each entry name. */
+	private final int[] hashes;
+	/** Open-addressing table of entry indexes (plus one; 0 means empty). */
+	private final int[] table;
+
+	private ZipIndex(File file, long fileSize, long lastModified, long base, ByteBuffer cd, int numEntries) throws ZipException
+	{
+		this.file = file;
+		this.fileSize = fileSize;
+		this.lastModified = lastModified;
+		this.base = base;
+		this.cd = cd;
+		this.records = new int[numEntries];
+		this.hashes = new int[numEntries];
+
+		int tableSize = 16;
+		while ( tableSize < 2 * numEntries )
+		{
+			tableSize <<= 1;
+		}
+		this.table = new int[tableSize];
+
+		int pos = 0;
+		for (int i = 0; i < numEntries; i++)
+		{
+			if (
+				pos + ZipFormat.CENHDR > cd.limit()
+				|| cd.getInt( pos ) != ZipFormat.CENSIG
+			) {
+				throw new ZipException( "Invalid central directory file header" );
+			}
+
+			int nameLen = ZipFormat.GetShort( cd, pos + 28 );
+			int recLen = ZipFormat.CENHDR
+				+ nameLen
+				+ ZipFormat.GetShort( cd, pos + 30 )
+				+ ZipFormat.GetShort( cd, pos + 32 );
+			if ( pos + recLen > cd.limit() )
+			{
+				throw new ZipException( "Invalid central directory file header" );
+			}
+			if (
+				ZipFormat.GetCentralValue( cd, pos, 20 ) < 0
+				|| ZipFormat.GetCentralValue( cd, pos, 24 ) < 0
+				|| ZipFormat.GetCentralValue( cd, pos, 42 ) < 0
+			) {
+				throw new ZipException( "Invalid ZIP64 extra field" );
+			}
+
+			this.records[i] = pos;
+			this.hashes[i] = this.hash( pos + ZipFormat.CENHDR, nameLen );
+
+			// Insert (the first entry with a given name wins)
+			if ( this.find( this.hashes[i], pos + ZipFormat.CENHDR, nameLen ) < 0 )
+			{
+				int mask = tableSize - 1;
+				int slot = this.hashes[i] & mask;
+				while ( this.table[slot] != 0 )
+				{
+					slot = (slot + 1) & mask;
+				}
+				this.table[slot] = i + 1;
+			}
+
+			pos += recLen;
+		}
+	}
+
+	/**
+	 * Returns the (possibly cached) index of the given archive.
+	 */
+	public static ZipIndex Open(String fileName) throws CommonException
+	{
+		return Open( new File( fileName ) );
+	}
+
+	/**
+	 * Returns the (possibly cached) index of the given archive.
+	 */
+	public static ZipIndex Open(File file) throws CommonException
+	{
+		String key = file.getAbsolutePath();
+		long size = file.length();
+		long mtime = file.lastModified();
+
+		synchronized ( Cache )
+		{
+			ZipIndex idx = Cache.get( key );
+			if ( idx != null && idx.fileSize == size && idx.lastModified == mtime )
+			{
+				return idx;
+			}
+		}
+
+		ZipIndex idx = null;
+		try
+		{
+			idx = Load( file.getAbsoluteFile() );
+		}
+		catch (IOException ioe)
+		{
+			throw new CommonException(ioe);
+		}
+
+		synchronized ( Cache )
+		{
+			Cache.put( key, idx );
+		}
+
+		return idx;
+	}
+
+	/** Discards the cached index of the given archive, if any. */
+	public static void Invalidate(File file)
+	{
+		synchronized ( Cache )
+		{
+			Cache.remove( file.getAbsolutePath() );
+		}
+	}
+
+	/** Discards all the cached indexes. */
+	public static void ClearCache()
+	{
+		synchronized ( Cache )
+		{
+			Cache.clear();
+		}
+	}
+
+	private static ZipIndex Load(File file) throws IOException
+	{
+		RandomAccessFile raf = null;
+
+		try
+		{
+			raf = new RandomAccessFile( file, "r" );
+			FileChannel ch = raf.getChannel();
+
+			// Sample size and time before reading, so that a concurrent
+			// update makes the index stale rather than silently wrong.
+			long mtime = file.lastModified();
+			long size = ch.size();
+
+			ZipCentralDirectory.End end = ZipCentralDirectory.ReadEnd( ch );
+			ByteBuffer cd = ch.map( FileChannel.MapMode.READ_ONLY, end.getPosition(), end.size );
+			cd.order( ByteOrder.LITTLE_ENDIAN );
+
+			return new ZipIndex( file, size, mtime, end.base, cd, end.numEntries );
+		}
+		finally
+		{
+			if ( raf != null )
+			{
+				try { raf.close(); } catch (Exception e) { /* ignore */ }
+				raf = null;
+			}
+		}
+	}
+
+	/** Returns the indexed archive. */
+	public File getFile()
+	{
+		return this.file;
+	}
+
+	/** Returns the number of entries. */
+	public int size()
+	{
+		return this.records.length;
+	}
+
+	/** Returns the name of the i-th entry, in central directory order. */
+	public String getName(int i)
+	{
+		int pos = this.records[i];
+		return this.decode( pos + ZipFormat.CENHDR, ZipFormat.GetShort( this.cd, pos + 28 ) );
+	}
+
+	/**
+	 * Returns the compression method of the i-th entry.
+	 *
+	 * Unlike the one of {@link #getEntry(int)}, it is also returned for
+	 * methods which are unknown to {@link ZipEntry} (see {@link
+	 * ZipCodecs}).
+	 */
+	public int getMethod(int i)
+	{
+		return ZipFormat.GetShort( this.cd, this.records[i] + 10 );
+	}
+
+	/**
+	 * Returns the i-th entry, in central directory order.
+	 *
+	 * The method of entries compressed with codecs other than DEFLATE is
+	 * left unset (see {@link #getMethod(int)}).
+	 */
+	public ZipEntry getEntry(int i)
+	{
+		int pos = this.records[i];
+		int nameLen = ZipFormat.GetShort( this.cd, pos + 28 );
+		int extraLen = ZipFormat.GetShort( this.cd, pos + 30 );
+		int commentLen = ZipFormat.GetShort( this.cd, pos + 32 );
+
+		ZipEntry ze = new ZipEntry( this.decode( pos + ZipFormat.CENHDR, nameLen ) );
+		int method = ZipFormat.GetShort( this.cd, pos + 10 );
+		if ( method == ZipEntry.STORED || method == ZipEntry.DEFLATED )
+		{
+			ze.setMethod( method );
+		}
+		ze.setTime( ZipFormat.DosToJavaTime( ZipFormat.GetInt( this.cd, pos + 12 ) ) );
+		ze.setCrc( ZipFormat.GetInt( this.cd, pos + 16 ) );
+		ze.setCompressedSize( ZipFormat.GetCentralValue( this.cd, pos, 20 ) );
+		ze.setSize( ZipFormat.GetCentralValue( this.cd, pos, 24 ) );
+		if ( extraLen > 0 )
+		{
+			ze.setExtra( this.getBytes( pos + ZipFormat.CENHDR + nameLen, extraLen ) );
+		}
+		if ( commentLen > 0 )
+		{
+			ze.setComment( this.decode( pos + ZipFormat.CENHDR + nameLen + extraLen, commentLen ) );
+		}
+
+		return ze;
+	}
+
+	/** Returns all the entries, in central directory order. */
+	public List<ZipEntry> getEntries()
+	{
+		List<ZipEntry> entries = new ArrayList<ZipEntry>( this.records.length );
+
+		for (int i = 0; i < this.records.length; i++)
+		{
+			entries.add( this.getEntry( i ) );
+		}
+
+		return entries;
+	}
+
+	/**
+	 * Returns the position of the entry with the given name, in central
+	 * directory order, or -1 if there is no such entry.
+	 */
+	public int indexOf(String name)
+	{
+		byte[] b = name.getBytes( ZipFormat.UTF8 );
+		int h = HashBytes( b );
+		int mask = this.table.length - 1;
+
+		for (int slot = h & mask; this.table[slot] != 0; slot = (slot + 1) & mask)
+		{
+			int i = this.table[slot] - 1;
+			if ( this.hashes[i] == h && this.nameEquals( this.records[i], b ) )
+			{
+				return i;
+			}
+		}
+
+		return -1;
+	}
+
+	/** Tells if there is an entry with the given name. */
+	public boolean contains(String name)
+	{
+		return this.indexOf( name ) >= 0;
+	}
+
+	/**
+	 * Returns the entry with the given name, or {@code null} if there is no
+	 * such entry.
+	 */
+	public ZipEntry getEntry(String name)
+	{
+		int i = this.indexOf( name );
+
+		return ( i >= 0 ) ? this.getEntry( i ) : null;
+	}
+
+	/**
+	 * Returns a read-only view of the data of the given STORED entry,
+	 * mapped directly from the archive (i.e., without copying it).
+	 *
+	 * @throws CommonException if there is no such entry, or the entry is
+	 *         compressed, or it is larger than 2GB.
+	 */
+	public ByteBuffer mapStoredEntry(String name) throws CommonException
+	{
+		int i = this.checkedIndexOf( name );
+		int pos = this.records[i];
+
+		if ( ZipFormat.GetShort( this.cd, pos + 10 ) != ZipEntry.STORED )
+		{
+			throw new CommonException( "Entry is compressed: " + name );
+		}
+		long size = ZipFormat.GetCentralValue( this.cd, pos, 24 );
+		if ( size > Integer.MAX_VALUE )
+		{
+			throw new CommonException( "Entry too large to be mapped: " + name );
+		}
+
+		RandomAccessFile raf = null;
+		try
+		{
+			raf = new RandomAccessFile( this.file, "r" );
+			FileChannel ch = raf.getChannel();
+
+			return ch.map( FileChannel.MapMode.READ_ONLY, this.getDataPosition( ch, pos ), size );
+		}
+		catch (IOException ioe)
+		{
+			throw new CommonException(ioe);
+		}
+		finally
+		{
+			if ( raf != null )
+			{
+				try { raf.close(); } catch (Exception e) { /* ignore */ }
+				raf = null;
+			}
+		}
+	}
+
+	/**
+	 * Returns a stream for reading the uncompressed data of the given entry.
+	 *
+	 * STORED entries and entries compressed with any codec registered in
+	 * {@link ZipCodecs} are supported.
+	 *
+	 * @throws CommonException if there is no such entry, or the entry uses
+	 *         an unsupported compression method.
+	 */
+	public InputStream getInputStream(String name) throws CommonException
+	{
+		return this.getInputStream( this.checkedIndexOf( name ) );
+	}
+
+	/**
+	 * Returns a stream for reading the uncompressed data of the i-th entry,
+	 * in central directory order.
+	 *
+	 * Unlike {@link #getInputStream(String)}, which reads the first entry
+	 * with the given name, it can read any of the entries sharing a name.
+	 *
+	 * @throws CommonException if the entry uses an unsupported compression
+	 *         method.
+	 */
+	public InputStream getInputStream(int i) throws CommonException
+	{
+		int pos = this.records[i];
+		int method = ZipFormat.GetShort( this.cd, pos + 10 );
+
+		IZipCodec codec = null;
+		if ( method != ZipEntry.STORED )
+		{
+			codec = ZipCodecs.ForMethod( method );
+		}
+		if ( method != ZipEntry.STORED && codec == null )
+		{
+			throw new CommonException( "Unsupported compression method " + method + " for entry: " + this.getName( i ) );
+		}
+
+		RandomAccessFile raf = null;
+		try
+		{
+			raf = new RandomAccessFile( this.file, "r" );
+			long dataPos = this.getDataPosition( raf.getChannel(), pos );
+
+			InputStream is = new RegionInputStream( raf, dataPos, ZipFormat.GetCentralValue( this.cd, pos, 20 ) );
+			raf = null;
+
+			if ( codec != null )
+			{
+				is = codec.newInputStream( is );
+			}
+
+			return is;
+		}
+		catch (IOException ioe)
+		{
+			throw new CommonException(ioe);
+		}
+		finally
+		{
+			if ( raf != null )
+			{
+				try { raf.close(); } catch (Exception e) { /* ignore */ }
+				raf = null;
+			}
+		}
+	}
+
+	private int checkedIndexOf(String name) throws CommonException
+	{
+		int i = this.indexOf( name );
+		if ( i < 0 )
+		{
+			throw new CommonException( "Entry not found: " + name );
+		}
+		return i;
+	}
+
+	/** Returns the file position of the data of the entry at {@code pos}. */
+	private long getDataPosition(FileChannel ch, int pos) throws IOException
+	{
+		long hdrPos = this.base + ZipFormat.GetCentralValue( this.cd, pos, 42 );
+
+		ByteBuffer hdr = ZipFormat.NewBuffer( ZipFormat.LOCHDR );
+		while ( hdr.hasRemaining() )
+		{
+			if ( ch.read( hdr, hdrPos + hdr.position() ) < 0 )
+			{
+				throw new EOFException( "Unexpected end of ZIP file" );
+			}
+		}
+		if ( hdr.getInt( 0 ) != ZipFormat.LOCSIG )
+		{
+			throw new ZipException( "Invalid local file header" );
+		}
+
+		return hdrPos
+			+ ZipFormat.LOCHDR
+			+ ZipFormat.GetShort( hdr, 26 )
+			+ ZipFormat.GetShort( hdr, 28 );
+	}
+
+	private boolean nameEquals(int pos, byte[] name)
+	{
+		if ( ZipFormat.GetShort( this.cd, pos + 28 ) != name.length )
+		{
+			return false;
+		}
+
+		int off = pos + ZipFormat.CENHDR;
+		for (int i = 0; i < name.length; i++)
+		{
+			if ( this.cd.get( off + i ) != name[i] )
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Returns the index of the entry whose name is stored at the given
+	 * position, or -1 if it has not been inserted yet.
+	 */
+	private int find(int h, int off, int len)
+	{
+		int mask = this.table.length - 1;
+
+		for (int slot = h & mask; this.table[slot] != 0; slot = (slot + 1) & mask)
+		{
+			int i = this.table[slot] - 1;
+			if ( this.hashes[i] == h && ZipFormat.GetShort( this.cd, this.records[i] + 28 ) == len )
+			{
+				int off2 = this.records[i] + ZipFormat.CENHDR;
+				int k = 0;
+				while ( k < len && this.cd.get( off + k ) == this.cd.get( off2 + k ) )
+				{
+					k++;
+				}
+				if ( k == len )
+				{
+					return i;
+				}
+			}
+		}
+
+		return -1;
+	}
+
+	private int hash(int off, int len)
+	{
+		int h = 0x811c9dc5;
+		for (int i = 0; i < len; i++)
+		{
+			h = (h ^ (this.cd.get( off + i ) & 0xFF)) * 0x01000193;
+		}
+		return h ^ (h >>> 16);
+	}
+
+	/** FNV-1a hash, must match {@link #hash(int,int)}. */
+	private static int HashBytes(byte[] b)
+	{
+		int h = 0x811c9dc5;
+		for (int i = 0; i < b.length; i++)
+		{
+			h = (h ^ (b[i] & 0xFF)) * 0x01000193;
+		}
+		return h ^ (h >>> 16);
+	}
+
+	private byte[] getBytes(int off, int len)
+	{
+		byte[] b = new byte[len];
+		ByteBuffer dup = this.cd.duplicate();
+		dup.position( off );
+		dup.get( b );
+		return b;
+	}
+
+	private String decode(int off, int len)
+	{
+		return new String( this.getBytes( off, len ), ZipFormat.UTF8 );
+	}
+
+	/** A stream over a region of a file. */
+	private static final class RegionInputStream extends InputStream
+	{
+		private final RandomAccessFile raf;
+		private long pos;
+		private long remaining;
+
+		RegionInputStream(RandomAccessFile raf, long pos, long len)
+		{
+			this.raf = raf;
+			this.pos = pos;
+			this.remaining = len;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			byte[] b = new byte[1];
+			return ( this.read( b, 0, 1 ) == 1 ) ? (b[0] & 0xFF) : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			if ( this.remaining <= 0 )
+			{
+				return -1;
+			}
+			if ( len == 0 )
+			{
+				return 0;
+			}
+
+			int n = this.raf.getChannel().read(
+				ByteBuffer.wrap( b, off, (int) Math.min( len, this.remaining ) ),
+				this.pos
+			);
+			if ( n < 0 )
+			{
+				throw new EOFException( "Unexpected end of ZIP file" );
+			}
+			this.pos += n;
+			this.remaining -= n;
+
+			return n;
+		}
+
+		@Override
+		public long skip(long n)
+		{
+			long k = Math.max( 0, Math.min( n, this.remaining ) );
+			this.pos += k;
+			this.remaining -= k;
+			return k;
+		}
+
+		@Override
+		public int available()
+		{
+			return (int) Math.min( Integer.MAX_VALUE, this.remaining );
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			this.raf.close();
+		}
+	}
+}
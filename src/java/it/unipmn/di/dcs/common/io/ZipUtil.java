@@ -25,21 +25,31 @@
 package it.unipmn.di.dcs.common.io;
 
 import it.unipmn.di.dcs.common.CommonException;
+import it.unipmn.di.dcs.common.util.Strings;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
 import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
-import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipOutputStream;
@@ -51,6 +61,9 @@ import java.util.zip.ZipOutputStream;
  */
 public final class ZipUtil
 {
+	/** The default number of compression threads. */
+	public static final int DEFAULT_PARALLELISM = 1;
+
 	private static final int RD_BUFFER_SIZE = 2048;
 
 	private ZipUtil()
@@ -73,6 +86,8 @@ public final class ZipUtil
 	/**
 	 * Create a zip file including the given files.
 	 *
+	 * Files are compressed by the calling thread.
+	 *
 	 * @param zipName The name of the resulting ZIP file.
 	 * @param fileNames The name of the files to include in the ZIP file.
 	 * @param level An integer number between 0 (minimum/faster compression)
@@ -81,39 +96,73 @@ public final class ZipUtil
 	 */
 	public static void CreateArchive(String zipName, String[] fileNames, int level, String[] stripPrefixes) throws CommonException
 	{
-		ZipOutputStream zos = null;
+		CreateArchive( zipName, fileNames, level, stripPrefixes, DEFAULT_PARALLELISM );
+	}
 
-		// Reverse-sort the prefixes so that longest prefixes are
-		// stripped first
-		if ( !ArrayIsNullOrEmpty(stripPrefixes) )
+	/**
+	 * Create a zip file including the given files, compressing them
+	 * concurrently.
+	 *
+	 * Files (and independent chunks of large files) are deflated by a pool
+	 * of {@code parallelism} worker threads and then written to the archive
+	 * in a fixed order, so that the resulting archive does not depend on the
+	 * parallelism level.
+	 *
+	 * @param zipName The name of the resulting ZIP file.
+	 * @param fileNames The name of the files to include in the ZIP file.
+	 * @param level An integer number between 0 (minimum/faster compression)
+	 *        and 9 (maximum/slower compression).
+	 * @param stripPrefixes List of prefixes to be stripped from each file name.
+	 * @param parallelism The number of compression threads; a value less
+	 *        than or equal to 0 means the number of available processors.
+	 */
+	public static void CreateArchive(String zipName, String[] fileNames, int level, String[] stripPrefixes, int parallelism) throws CommonException
+	{
+		CreateArchive( zipName, fileNames, stripPrefixes, new ZipArchiveOptions( level, parallelism ) );
+	}
+
+	/**
+	 * Create a zip file including the given files, with the given options.
+	 *
+	 * If the options specify a compression policy, the compression method
+	 * and level of each file are chosen by the policy; this way, for
+	 * instance, files which are already compressed can be stored as-is
+	 * instead of being deflated again.
+	 * If deduplication is enabled, files with the same content are
+	 * compressed only once (see {@link
+	 * ZipArchiveOptions#setDeduplicate(boolean)}).
+	 *
+	 * @param zipName The name of the resulting ZIP file.
+	 * @param fileNames The name of the files to include in the ZIP file.
+	 * @param stripPrefixes List of prefixes to be stripped from each file name.
+	 * @param options The compression options.
+	 * @return How each file has been compressed, in archive order.
+	 */
+	public static List<ZipEntryReport> CreateArchive(String zipName, String[] fileNames, String[] stripPrefixes, ZipArchiveOptions options) throws CommonException
+	{
+		ZipArchiveWriter zw = null;
+		List<ZipEntryReport> reports = null;
+
+		stripPrefixes = SortPrefixes( stripPrefixes );
+
+		try
 		{
-			Arrays.sort( stripPrefixes );
-			for (int i = 0; i < stripPrefixes.length; i++)
+			List<ZipFileSource> sources = new ArrayList<ZipFileSource>();
+
+			if ( !ArrayIsNullOrEmpty(fileNames) )
 			{
-				// swap
-				int j = stripPrefixes.length - i - 1;
-				String tmp = stripPrefixes[i];
-				stripPrefixes[i] = stripPrefixes[j];
-				stripPrefixes[j] = tmp;
+				CollectFiles( fileNames, stripPrefixes, sources );
 			}
-		}
 
-		try
-		{
 			// Create the ZIP file
-			zos = new ZipOutputStream(
-				new FileOutputStream(zipName)
+			zw = new ZipArchiveWriter(
+				new FileOutputStream(zipName).getChannel()
 			);
 
-			zos.setLevel( level );
-
 			// Compress the files
-			if ( !ArrayIsNullOrEmpty(fileNames) )
-			{
-				AddFilesToArchive( zos, fileNames, stripPrefixes );
-			}
+			reports = ParallelZipWriter.WriteAll( zw, options, sources );
 
-			zos.finish();
+			zw.finish();
 		}
 		catch (IOException ioe)
 		{
@@ -121,24 +170,31 @@ public final class ZipUtil
 		}
 		finally
 		{
+			ZipIndex.Invalidate( new File( zipName ) );
+
 			// Complete the ZIP file
-			if (zos != null)
+			if (zw != null)
 			{
-				try { zos.close(); } catch (Exception e) { /* ignore */ }
-				zos = null;
+				try { zw.close(); } catch (Exception e) { /* ignore */ }
+				zw = null;
 			}
 		}
+
+		return reports;
 	}
 
+	/**
+	 * Print the list of the entries of a zip file.
+	 *
+	 * The archive is accessed through its (possibly cached) {@link ZipIndex}.
+	 */
 	public static void PrintArchive(String zipFileName, Writer wr) throws CommonException
 	{
-		ZipFile zf = null;
 		PrintWriter pwr = null;
 
 		try
 		{
-			// Open the ZIP file
-			zf = new ZipFile( zipFileName );
+			ZipIndex zi = ZipIndex.Open( zipFileName );
 			pwr = new PrintWriter( wr );
 
 			pwr.println( "Archive: " + zipFileName );
@@ -152,19 +208,19 @@ public final class ZipUtil
 			timeFmt = new SimpleDateFormat( "HH:mm" );
 
 			// Enumerate each entry
-			for (Enumeration<? extends ZipEntry> e = zf.entries(); e.hasMoreElements(); )
+			for (int i = 0; i < zi.size(); i++)
 			{
-				ZipEntry ze = e.nextElement();
+				ZipEntry ze = zi.getEntry( i );
 				Date date = new Date( ze.getTime() );
 
 				pwr.println(
 					ze.getCompressedSize()
 					+ "\t"
-					+ CompressionMethodToString( ze.getMethod() )
+					+ CompressionMethodToString( zi.getMethod( i ) )
 					+ "\t"
 					+ ze.getSize()
 					+ "\t"
-					+ ( ze.getSize() > 0 ? (100 * (ze.getSize() - ze.getCompressedSize()) / ze.getSize()) : 0 ) + "%"
+					+ ( ze.getSize() > 0 ? (long) ( 100.0 * (ze.getSize() - ze.getCompressedSize()) / ze.getSize() ) : 0 ) + "%"
 					+ "\t"
 					+ dateFmt.format( date )
 					+ "\t"
@@ -180,18 +236,8 @@ public final class ZipUtil
 				);
 			}
 		}
-		catch (IOException ioe)
-		{
-			throw new CommonException(ioe);
-		}
 		finally
 		{
-			// Complete the ZIP file
-			if (zf != null)
-			{
-				try { zf.close(); } catch (Exception e) { /* ignore */ }
-				zf = null;
-			}
 			// Close the print writer
 			if (pwr != null)
 			{
@@ -201,59 +247,168 @@ public final class ZipUtil
 		}
 	}
 
+	/**
+	 * Returns the entries of a zip file.
+	 *
+	 * The archive is accessed through its (possibly cached) {@link ZipIndex}.
+	 */
 	public static List<ZipEntry> ReadArchive(String zipName) throws CommonException
 	{
-		ZipFile zf = null;
-		List<ZipEntry> entries = new ArrayList<ZipEntry>();
+		return ZipIndex.Open( zipName ).getEntries();
+	}
 
-		try
-		{
-			// Open the ZIP file
-			zf = new ZipFile( zipName );
+	/**
+	 * Extract all the entries of a zip file.
+	 *
+	 * Entries are extracted by the calling thread.
+	 *
+	 * @see #ExtractArchive(String,String,IZipEntryFilter,int)
+	 */
+	public static void ExtractArchive(String zipFileName, String destPath) throws CommonException
+	{
+		ExtractArchive( zipFileName, destPath, null, DEFAULT_PARALLELISM );
+	}
 
-			// Enumerate each entry
-			for (Enumeration<? extends ZipEntry> e = zf.entries(); e.hasMoreElements(); )
-			{
-				ZipEntry ze = e.nextElement();
+	/**
+	 * Extract the selected entries of a zip file, concurrently.
+	 *
+	 * Each entry is extracted under {@code destPath}, at the path given by
+	 * its name (leading {@code "/"} are ignored). Missing directories are
+	 * created.
+	 * Entries whose name would resolve outside of {@code destPath} (e.g.,
+	 * {@code "../x"}) are rejected before anything is extracted.
+	 *
+	 * @param zipFileName The name of the ZIP file.
+	 * @param destPath The destination directory; if {@code null} or empty,
+	 *        the current working directory is used.
+	 * @param filter Selects the entries to extract; if {@code null}, all the
+	 *        entries are extracted.
+	 *        See {@link ZipEntryFilters} for common filters.
+	 * @param parallelism The number of extraction threads, each one with its
+	 *        own handle to the ZIP file; a value less than or equal to 0
+	 *        means the number of available processors.
+	 */
+	public static void ExtractArchive(String zipFileName, String destPath, IZipEntryFilter filter, int parallelism) throws CommonException
+	{
+		parallelism = ConcurrencyUtil.ResolveParallelism( parallelism );
 
-				entries.add( ze );
-			}
+		File destDir = new File( Strings.IsNullOrEmpty( destPath ) ? "." : destPath );
+
+		try
+		{
+			new ParallelZipExtractor( new File( zipFileName ), destDir, parallelism ).extract( filter );
 		}
 		catch (IOException ioe)
 		{
 			throw new CommonException(ioe);
 		}
-		finally
-		{
-			// Complete the ZIP file
-			if (zf != null)
-			{
-				try { zf.close(); } catch (Exception e) { /* ignore */ }
-				zf = null;
-			}
-		}
+	}
+
+	/**
+	 * Add the given files to an existing zip file.
+	 *
+	 * Files are compressed by the calling thread with the default
+	 * compression level.
+	 *
+	 * @see #AddFilesToArchive(String,String[],int,String[],int)
+	 */
+	public static void AddFilesToArchive(String zipFileName, String[] fileNames, String[] stripPrefixes) throws CommonException
+	{
+		AddFilesToArchive( zipFileName, fileNames, Deflater.DEFAULT_COMPRESSION, stripPrefixes, DEFAULT_PARALLELISM );
+	}
 
-		return entries;
+	/**
+	 * Add the given files to an existing zip file.
+	 *
+	 * @see #AddFilesToArchive(String,String[],String[],ZipArchiveOptions)
+	 */
+	public static void AddFilesToArchive(String zipFileName, String[] fileNames, int level, String[] stripPrefixes, int parallelism) throws CommonException
+	{
+		AddFilesToArchive( zipFileName, fileNames, stripPrefixes, new ZipArchiveOptions( level, parallelism ) );
 	}
 
-	public static void ExtractArchive(String zipFileName, String destPath) throws CommonException
+	/**
+	 * Add the given files to an existing zip file.
+	 *
+	 * New entries are written in place of the old central directory, just
+	 * after the last existing entry, and then a new central directory is
+	 * written; existing entries are neither read nor moved.
+	 * If the append fails, the original central directory is restored.
+	 *
+	 * If some of the given files has the same name of an existing entry,
+	 * the existing entry is replaced by the new one. In this case (as well
+	 * as for archives with a non-standard layout), the archive is rewritten
+	 * to a temporary file, copying the compressed data of the retained
+	 * entries as-is, without inflating and deflating them again.
+	 *
+	 * @param zipFileName The name of the ZIP file to update.
+	 * @param fileNames The name of the files to include in the ZIP file.
+	 * @param stripPrefixes List of prefixes to be stripped from each file name.
+	 * @param options The compression options.
+	 * @return How each new file has been compressed, in archive order.
+	 */
+	public static List<ZipEntryReport> AddFilesToArchive(String zipFileName, String[] fileNames, String[] stripPrefixes, ZipArchiveOptions options) throws CommonException
 	{
-		ZipFile zf = null;
+		RandomAccessFile raf = null;
+		List<ZipEntryReport> reports = null;
 
-		// Cache for directory created
-		//SortedSet dirsMade = null;
-		//dirsMade = new TreeSet();
+		stripPrefixes = SortPrefixes( stripPrefixes );
 
 		try
 		{
-			zf = new ZipFile(zipFileName);
+			File zipFile = new File( zipFileName );
+			if ( !zipFile.isFile() )
+			{
+				throw new FileNotFoundException( zipFileName );
+			}
 
-			// Enumerate each entry
-			for (Enumeration<? extends ZipEntry> e = zf.entries(); e.hasMoreElements(); )
+			List<ZipFileSource> sources = new ArrayList<ZipFileSource>();
+			if ( !ArrayIsNullOrEmpty(fileNames) )
+			{
+				CollectFiles( fileNames, stripPrefixes, sources );
+			}
+
+			// Open the old zip
+			raf = new RandomAccessFile( zipFile, "rw" );
+			FileChannel ch = raf.getChannel();
+			ZipCentralDirectory cd = ZipCentralDirectory.Read( ch );
+
+			Set<String> newNames = new HashSet<String>();
+			for (ZipFileSource src : sources)
+			{
+				newNames.add( src.entryName );
+			}
+			boolean replace = false;
+			for (ZipEntryRecord e : cd.entries)
+			{
+				if ( newNames.contains( e.getName() ) )
+				{
+					replace = true;
+					break;
+				}
+			}
+
+			if (
+				!replace
+				&& cd.base == 0
+				&& cd.offset + cd.size == cd.endPosition
+				&& cd.endLimit == ch.size()
+			) {
+				reports = AppendToArchive( ch, cd, sources, options );
+			}
+			else
 			{
-				ZipEntry ze = e.nextElement();
+				File tmp = File.createTempFile( "zip", ".tmp", zipFile.getAbsoluteFile().getParentFile() );
+				reports = RewriteArchive( tmp, ch, cd, newNames, sources, options );
 
-				ExtractFile( zf, ze );
+				raf.close();
+				raf = null;
+
+				if ( !FileUtil.TryMove( tmp.getAbsolutePath(), zipFile.getAbsolutePath() ) )
+				{
+					FileUtil.TryDelete( tmp.getAbsolutePath() );
+					throw new CommonException( "Unable to replace ZIP file: " + zipFileName );
+				}
 			}
 		}
 		catch (IOException ioe)
@@ -262,262 +417,346 @@ public final class ZipUtil
 		}
 		finally
 		{
-			if (zf != null)
+			ZipIndex.Invalidate( new File( zipFileName ) );
+
+			if ( raf != null )
 			{
-				try { zf.close(); } catch (Exception e) { /* ignore */ }
-				zf = null;
+				try { raf.close(); } catch (Exception e) { /* ignore */ }
+				raf = null;
 			}
 		}
+
+		return reports;
 	}
 
-	public static void AddFilesToArchive(String zipFileName, String[] fileNames, String[] stripPrefixes) throws CommonException
+	protected static void AddFilesToArchive(ZipOutputStream zos, String[] fileNames, String[] stripPrefixes) throws IOException
 	{
-		ZipOutputStream zos = null;
+		String[] roots = SortRoots( fileNames );
+		int r = -1;
 
-		try
+		for (FileTreeWalker.Entry e : WalkFiles( roots ))
 		{
-			// Create a temp file where storing the new zip
-			File tmp = null;
-			tmp = File.createTempFile("zip", ".zip");
-			tmp.deleteOnExit();
-
-			// Open the stream for the new zip
-			zos = new ZipOutputStream(
-				new FileOutputStream(tmp)
-			);
-
-			// Open the old zip
-			ZipFile oldZip = null;
-			oldZip = new ZipFile( zipFileName );
-
-			// Copy old entries
-			for (Enumeration<? extends ZipEntry> e = oldZip.entries(); e.hasMoreElements(); )
+			if ( e.getDepth() == 0 )
+			{
+				r++;
+			}
+			if ( e.isDirectory() )
 			{
-				ZipEntry ze = e.nextElement();
+				continue;
+			}
 
-				InputStream is = null;
-				is = oldZip.getInputStream(ze);
+			String fileName = ( e.getDepth() == 0 ) ? roots[r] : e.getPath().toString();
+			String entryName = ToEntryName( fileName, stripPrefixes );
 
-				zos.putNextEntry(ze);
+//TODO: should I use buffered input for faster read but with possible
+//      more mem consumption
+			FileInputStream fis = null;
+			byte[] buf = null;
 
-				FileUtil.CopyStream( is, zos );
+			try
+			{
+				fis = new FileInputStream( fileName );
 
-				zos.closeEntry();
+				// Add ZIP entry to output stream.
+				zos.putNextEntry(
+					new ZipEntry( entryName )
+				);
 
-				is.close();
-				is = null;
+				// Transfer bytes from the file to the ZIP file
+				int nread = 0;
+				buf = BufferPool.Shared().acquireBytes( RD_BUFFER_SIZE );
+
+				while ( (nread = fis.read(buf)) > 0 )
+				{
+					zos.write(buf, 0, nread);
+				}
+			}
+			finally
+			{
+				if (fis != null)
+				{
+					try { fis.close(); } catch (Exception ex) { /* ignore */ ex.printStackTrace(); }
+					fis = null;
+				}
+				BufferPool.Shared().release( buf );
 			}
+		}
+	}
 
-			// add new entries
-			AddFilesToArchive( zos, fileNames, stripPrefixes );
+	/**
+	 * Appends the given files to the archive accessed through the given
+	 * channel, overwriting its central directory.
+	 */
+	private static List<ZipEntryReport> AppendToArchive(FileChannel ch, ZipCentralDirectory cd, List<ZipFileSource> sources, ZipArchiveOptions options) throws IOException
+	{
+		ch.position( cd.offset );
 
-			zos.finish();
+		ZipArchiveWriter zw = new ZipArchiveWriter( ch, cd.offset, cd.entries );
+		zw.setComment( cd.comment );
 
-			FileUtil.Copy( tmp.getAbsolutePath(), zipFileName );
-		}
-		catch (CommonException ce)
+		try
 		{
-			throw ce;
+			List<ZipEntryReport> reports = ParallelZipWriter.WriteAll( zw, options, sources );
+			zw.finish();
+			ch.truncate( zw.getOffset() );
+
+			return reports;
 		}
 		catch (IOException ioe)
 		{
-			throw new CommonException(ioe);
-		}
-		finally
-		{
-			if ( zos != null )
+			// Restore the original central directory
+			try
+			{
+				ch.position( cd.offset );
+				zw = new ZipArchiveWriter( ch, cd.offset, cd.entries );
+				zw.setComment( cd.comment );
+				zw.finish();
+				ch.truncate( zw.getOffset() );
+			}
+			catch (Exception e)
 			{
-				try { zos.close(); } catch (Exception e) { /* ignore */ }
-				zos = null;
+				// ignore
 			}
+
+			throw ioe;
 		}
 	}
 
-	protected static void AddFilesToArchive(ZipOutputStream zos, String[] fileNames, String[] stripPrefixes) throws IOException
+	/**
+	 * Writes a copy of the archive accessed through the given channel to a
+	 * temporary file, dropping the entries named in {@code skipNames} and
+	 * appending the given files.
+	 *
+	 * Retained entries are copied without decompressing them.
+	 * The temporary file is deleted on failure.
+	 *
+	 * @return How each new file has been compressed.
+	 */
+	private static List<ZipEntryReport> RewriteArchive(File tmp, FileChannel ch, ZipCentralDirectory cd, Set<String> skipNames, List<ZipFileSource> sources, ZipArchiveOptions options) throws IOException
 	{
-		Arrays.sort( fileNames );
+		List<ZipEntryReport> reports = null;
+		ZipArchiveWriter zw = null;
+		boolean done = false;
 
-		for (String fileName : fileNames)
+		try
 		{
-			if ( ".".equals(fileName) || "..".equals(fileName) )
+			FileChannel out = new FileOutputStream( tmp ).getChannel();
+
+			// Keep any leading data (e.g., self-extracting stubs)
+			long pos = 0;
+			while ( pos < cd.base )
 			{
-				continue;
+				pos += ch.transferTo( pos, cd.base - pos, out );
 			}
 
-			File f = new File(fileName);
-			String entryName = null;
+			zw = new ZipArchiveWriter( out, cd.base, Collections.<ZipEntryRecord>emptyList() );
+			zw.setComment( cd.comment );
 
-			if ( !ArrayIsNullOrEmpty(stripPrefixes) )
+			// Copy old entries (deduplicated entries keep sharing their data)
+			Map<Long,ZipEntryRecord> copied = new HashMap<Long,ZipEntryRecord>();
+			for (ZipEntryRecord e : cd.entries)
 			{
-				boolean prefixFound = false;
-
-				for (String prefix : stripPrefixes)
+				if ( skipNames.contains( e.getName() ) )
 				{
-					if (fileName.startsWith(prefix))
-					{
-						entryName = fileName.substring( prefix.length() );
-						prefixFound = true;
-						break;
-					}
+					continue;
 				}
 
-				if ( !prefixFound )
+				ZipEntryRecord target = copied.get( e.offset );
+				if ( target != null )
 				{
-					entryName = fileName;
+					zw.addAlias( e, target );
+					continue;
 				}
+				long oldOffset = e.offset;
+
+				long dataPos = ZipCentralDirectory.ReadLocalHeader( ch, cd.base, e );
+
+				// Sizes and CRC are known: no need for a data descriptor
+				e.flags &= ~ZipFormat.FLAG_DATA_DESCRIPTOR;
+				zw.putNextEntry( e );
+				zw.transferFrom( ch, dataPos, e.compressedSize );
+				zw.closeEntry( e.crc, e.size );
+				copied.put( oldOffset, e );
 			}
-			else
+
+			// add new entries
+			reports = ParallelZipWriter.WriteAll( zw, options, sources );
+
+			zw.finish();
+			done = true;
+		}
+		finally
+		{
+			if ( zw != null )
 			{
-				entryName = fileName;
+				try { zw.close(); } catch (Exception e) { /* ignore */ }
+				zw = null;
 			}
-
-			// Check for absolute/relative entry name
-			if ( entryName.startsWith( File.separator ) )
+			if ( !done )
 			{
-				// Absolute entry (/) ==> Relative entry (./)
-				entryName = "." + entryName;
+				tmp.delete();
 			}
+		}
 
-			if ( f.isDirectory() )
+		return reports;
+	}
+
+	/**
+	 * Collects the files to add to an archive, recursing into directories.
+	 *
+	 * Files are collected in the same order {@link
+	 * #AddFilesToArchive(ZipOutputStream,String[],String[])} adds them.
+	 *
+	 * @param stripPrefixes List of prefixes to be stripped from each file
+	 *        name, sorted from the longest to the shortest one.
+	 */
+	private static void CollectFiles(String[] fileNames, String[] stripPrefixes, List<ZipFileSource> sources) throws IOException
+	{
+		String[] roots = SortRoots( fileNames );
+		int r = -1;
+
+		for (FileTreeWalker.Entry e : WalkFiles( roots ))
+		{
+			if ( e.getDepth() == 0 )
 			{
-				File[] childFiles = f.listFiles();
-				//String[] childFiles = f.list();
+				r++;
+			}
+			if ( e.isDirectory() )
+			{
+				continue;
+			}
 
-				if ( childFiles.length > 0 )
-				{
-					String[] children = new String[childFiles.length];
+			String fileName = ( e.getDepth() == 0 ) ? roots[r] : e.getPath().toString();
+			sources.add( new ZipFileSource(
+				e.getPath().toFile(),
+				ToEntryName( fileName, stripPrefixes ),
+				e.getAttributes().size(),
+				e.getAttributes().lastModifiedTime().toMillis()
+			));
+		}
+	}
+
+	/**
+	 * Returns a sorted copy of the given file names, without {@code "."}
+	 * and {@code ".."}.
+	 */
+	private static String[] SortRoots(String[] fileNames)
+	{
+		List<String> roots = new ArrayList<String>( fileNames.length );
 
-					for (int i = 0; i < childFiles.length; i++)
-					{
-						String childName = childFiles[i].getName();
-						//String childName = childFiles[i];
+		for (String fileName : fileNames)
+		{
+			if ( !".".equals(fileName) && !"..".equals(fileName) )
+			{
+				roots.add( fileName );
+			}
+		}
+		Collections.sort( roots );
 
-						if ( ".".equals(childName) || "..".equals(childName) )
-						{
-							continue;
-						}
+		return roots.toArray( new String[roots.size()] );
+	}
 
-						children[i] = childFiles[i].getAbsolutePath();
-						//File childFile = null;
-						///childFile = new File(childFiles[i]);
-						//children[i] = childFile.getAbsolutePath();
-						//childFile = null;
-					}
+	/**
+	 * Walks the given files (following symbolic links), in the order they
+	 * are added to archives.
+	 *
+	 * The content of directories is resolved against their absolute path.
+	 */
+	private static List<FileTreeWalker.Entry> WalkFiles(String[] roots) throws IOException
+	{
+		List<Path> paths = new ArrayList<Path>( roots.length );
+		for (String root : roots)
+		{
+			paths.add( new File( root ).getAbsoluteFile().toPath() );
+		}
 
-					childFiles = null;
+		FileTreeWalker walker = new FileTreeWalker();
+		walker.setFollowLinks( true );
 
-					AddFilesToArchive(zos, children, stripPrefixes);
-				}
+		return walker.walk( paths );
+	}
 
-//				if ( !entryName.endsWith( File.separator ) )
-//				{
-//					entryName = entryName + File.separator;
-//				}
+	/**
+	 * Returns the name of the ZIP entry for the given file name.
+	 *
+	 * @param stripPrefixes List of prefixes to be stripped from each file
+	 *        name, sorted from the longest to the shortest one.
+	 */
+	private static String ToEntryName(String fileName, String[] stripPrefixes)
+	{
+		String entryName = fileName;
 
-				// Add ZIP entry to output stream.
-//				zos.putNextEntry(
-//					new ZipEntry( entryName )
-//				);
-			}
-			else
+		if ( !ArrayIsNullOrEmpty(stripPrefixes) )
+		{
+			for (String prefix : stripPrefixes)
 			{
-//TODO: should I use buffered input for faster read but with possible
-//      more mem consumption
-//				BufferedInputStream bis = null;
-				FileInputStream fis = null;
-
-				try
+				if (fileName.startsWith(prefix))
 				{
-					fis = new FileInputStream( fileName );
-//					bis = new BufferedInputStream(bis, RD_BUFFER_SIZE);
-
-					// Add ZIP entry to output stream.
-					zos.putNextEntry(
-						new ZipEntry( entryName )
-					);
+					entryName = fileName.substring( prefix.length() );
+					break;
+				}
+			}
+		}
 
-					// Transfer bytes from the file to the ZIP file
-					int nread = 0;
-					byte[] buf = new byte[RD_BUFFER_SIZE];
+		// Check for absolute/relative entry name
+		if ( entryName.startsWith( File.separator ) )
+		{
+			// Absolute entry (/) ==> Relative entry (./)
+			entryName = "." + entryName;
+		}
 
-					while ( (nread = fis.read(buf)) > 0 )
-					{
-						zos.write(buf, 0, nread);
-					}
+		return entryName;
+	}
 
-//					zos.finish();
-				}
-				finally
-				{
-//					if (bis != null)
-//					{
-//						try { bis.close(); } catch (Exception e) { /* ignore */ }
-//						bis = null;
-//					}
-					if (fis != null)
-					{
-						try { fis.close(); } catch (Exception e) { /* ignore */ e.printStackTrace(); }
-						fis = null;
-					}
-				}
+	/**
+	 * Returns a copy of the given prefixes reverse-sorted, so that longest
+	 * prefixes are stripped first.
+	 */
+	private static String[] SortPrefixes(String[] stripPrefixes)
+	{
+		if ( !ArrayIsNullOrEmpty(stripPrefixes) )
+		{
+			stripPrefixes = stripPrefixes.clone();
+			Arrays.sort( stripPrefixes );
+			for (int i = 0; i < stripPrefixes.length / 2; i++)
+			{
+				// swap
+				int j = stripPrefixes.length - i - 1;
+				String tmp = stripPrefixes[i];
+				stripPrefixes[i] = stripPrefixes[j];
+				stripPrefixes[j] = tmp;
 			}
 		}
+
+		return stripPrefixes;
 	}
 
 	/**
 	 * Process one file from the zip, given its name. Either print the name, or
 	 * create the file on disk.
+	 *
+	 * The file is created relative to the current working directory.
 	 */
 	protected static void ExtractFile(ZipFile zf, ZipEntry ze) throws CommonException
 	{
-		String fileName = ze.getName();
-		if (fileName.startsWith("/"))
-		{
-//			System.out.println("Ignoring absolute paths");
-			fileName = fileName.substring(1);
-		}
-		// if a directory, just return. We mkdir for every file,
-		// since some widely-used Zip creators don't put out
-		// any directory entries, or put them in the wrong place.
-		if (fileName.endsWith("/"))
-		{
-			return;
-		}
-		// Else must be a file; open the file for output
-		// Get the directory part.
-		int ix = fileName.lastIndexOf('/');
-		if (ix > 0)
-		{
-			String dirName = fileName.substring(0, ix);
-//			if (!dirsMade.contains(dirName))
-//			{
-				File d = new File(dirName);
-				// If it already exists as a dir, don't do anything
-				if (!(d.exists() && d.isDirectory()))
-				{
-					// Try to create the directory, warn if it fails
-//					System.out.println("Creating Directory: " + dirName);
-					if (!d.mkdirs())
-					{
-//						System.err.println("Warning: unable to mkdir " + dirName);
-					}
-					//dirsMade.add(dirName);
-				}
-//			}
-		}
-//		System.err.println("Creating " + zipName);
-		FileOutputStream os = null;
-		InputStream is = null;
+		byte[] buf = null;
+
 		try
 		{
-			is = zf.getInputStream(ze);
-			os = new FileOutputStream(fileName);
-			int n = 0;
-			byte[] b = new byte[RD_BUFFER_SIZE];
-			while ((n = is.read(b)) > 0)
+			// if a directory, just return. We mkdir for every file,
+			// since some widely-used Zip creators don't put out
+			// any directory entries, or put them in the wrong place.
+			if ( ze.isDirectory() )
 			{
-				os.write(b, 0, n);
+				return;
 			}
+
+			Path root = new File( "." ).toPath().toAbsolutePath().normalize();
+			Path path = ParallelZipExtractor.ResolveEntryPath( root, ze.getName() );
+
+			Files.createDirectories( path.getParent() );
+			buf = BufferPool.Shared().acquireBytes( RD_BUFFER_SIZE );
+			ParallelZipExtractor.ExtractEntry( zf.getInputStream( ze ), ze, path.toFile(), buf );
 		}
 		catch (IOException ioe)
 		{
@@ -525,16 +764,7 @@ public final class ZipUtil
 		}
 		finally
 		{
-			if (is != null)
-			{
-				try { is.close(); } catch (Exception e) { /* ignore */ }
-				is = null;
-			}
-			if (os != null)
-			{
-				try { os.close(); } catch (Exception e) { /* ignore */ }
-				os = null;
-			}
+			BufferPool.Shared().release( buf );
 		}
 	}
 
@@ -547,7 +777,8 @@ public final class ZipUtil
 			case ZipEntry.DEFLATED:
 				return "DEFLATED";
 			default:
-				return "UNKNOWN";
+				IZipCodec codec = ZipCodecs.ForMethod( method );
+				return codec != null ? codec.getName().toUpperCase() : "UNKNOWN";
 		}
 	}
 
@@ -24,6 +24,7 @@
 
 package it.unipmn.di.dcs.common.util;
 
+import it.unipmn.di.dcs.common.io.BufferPool;
 import it.unipmn.di.dcs.common.io.IOUtil;
 import it.unipmn.di.dcs.common.CommonException;
 
@@ -90,19 +91,23 @@ final class StreamProducerConsumer implements Runnable
 		{
 			// Read to EOF: Variant #1
 
-			char[] buf = new char[2048];
+			char[] buf = BufferPool.Shared().acquireChars( 2048 );
 			//char[] buf = new char[4096];
 			int nread = 0; // num of characters read
 
-			// reads characters to the end
-			while ( ( nread = this.producer.read( buf ) ) != -1 )
+			try
 			{
-				// writes read characters
-				this.consumer.write( buf, 0, nread );
-				//wr.flush();
-
-				// blanks the buffer
-				Arrays.fill( buf, 0, nread, (char) 0 );
+				// reads characters to the end
+				while ( ( nread = this.producer.read( buf ) ) != -1 )
+				{
+					// writes read characters
+					this.consumer.write( buf, 0, nread );
+					//wr.flush();
+				}
+			}
+			finally
+			{
+				BufferPool.Shared().release( buf );
 			}
 			this.consumer.flush();
 
@@ -0,0 +1,618 @@
+/*
+ * Copyright (C) 2008-2012  Marco Guazzone
+ *                          [Distributed Computing System (DCS) Group,
+ *                           Computer Science Institute,
+ *                           Department of Science and Technological Innovation,
+ *                           University of Piemonte Orientale,
+ *                           Alessandria (Italy)]
+ *
+ * This file is part of dcj-commons.
+ *
+ * dcsj-commons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dcsj-commons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dcsj-commons.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package test.unit;
+
+import it.unipmn.di.dcs.common.io.AsyncFileIO;
+import it.unipmn.di.dcs.common.io.BufferPool;
+import it.unipmn.di.dcs.common.io.ChecksumAlgorithm;
+import it.unipmn.di.dcs.common.io.FileChecksummer;
+import it.unipmn.di.dcs.common.io.FileCopier;
+import it.unipmn.di.dcs.common.io.FileSyncOptions;
+import it.unipmn.di.dcs.common.io.FileTreeReport;
+import it.unipmn.di.dcs.common.io.FileUtil;
+import it.unipmn.di.dcs.common.io.IFileCopyListener;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.*;
+import static org.junit.Assert.*;
+import org.junit.runner.JUnitCore;
+
+/**
+ * Test class for FileUtil.
+ *
+ * @author <a href="mailto:marco.guazzone@mfn.unipmn.it">Marco Guazzone</a>
+ */
+public final class FileUtilTester
+{
+	@Test
+	public void testCopy() throws Exception
+	{
+		File dir = CreateTempDir();
+		File src = new File( dir, "src.bin" );
+		File dst = new File( dir, "dst.bin" );
+		byte[] data = RandomBytes( 1000000 );
+		WriteFile( src, data );
+
+		FileUtil.Copy( src.getAbsolutePath(), dst.getAbsolutePath() );
+		assertArrayEquals( data, Files.readAllBytes( dst.toPath() ) );
+
+		// Chunked copy, with progress
+		final List<Long> progress = new ArrayList<Long>();
+		FileCopier copier = new FileCopier();
+		copier.setChunkSize( 300000 );
+		copier.setListener( new IFileCopyListener()
+		{
+			public void progress(Path source, long copied, long total, double bytesPerSecond)
+			{
+				assertEquals( 1000000, total );
+				assertTrue( bytesPerSecond >= 0 );
+				progress.add( copied );
+			}
+		});
+		assertEquals( data.length, copier.copy( src.toPath(), dst.toPath() ) );
+		assertArrayEquals( data, Files.readAllBytes( dst.toPath() ) );
+		assertEquals( 4, progress.size() );
+		assertEquals( 1000000L, (long) progress.get( 3 ) );
+
+		// Copying an empty file truncates the destination
+		File empty = new File( dir, "empty" );
+		WriteFile( empty, new byte[0] );
+		copier.setListener( null );
+		assertEquals( 0, copier.copy( empty.toPath(), dst.toPath() ) );
+		assertEquals( 0, dst.length() );
+	}
+
+	@Test
+	public void testSparseCopy() throws Exception
+	{
+		File dir = CreateTempDir();
+		File src = new File( dir, "sparse.bin" );
+		File dst = new File( dir, "copy.bin" );
+		byte[] data = RandomBytes( 10000 );
+
+		// Hole, data, hole
+		RandomAccessFile raf = new RandomAccessFile( src, "rw" );
+		try
+		{
+			raf.setLength( 5000000 );
+			raf.seek( 1234567 );
+			raf.write( data );
+		}
+		finally
+		{
+			raf.close();
+		}
+
+		FileCopier copier = new FileCopier();
+		copier.setSparse( true );
+		copier.setBufferSize( 65536 );
+		assertEquals( 5000000, copier.copy( src.toPath(), dst.toPath() ) );
+		assertEquals( 5000000, dst.length() );
+		assertArrayEquals( Files.readAllBytes( src.toPath() ), Files.readAllBytes( dst.toPath() ) );
+	}
+
+	@Test
+	public void testCopyTree() throws Exception
+	{
+		File src = CreateTempDir();
+		String[] names = { "a.txt", "b/c.txt", "b/d/e.bin", "f/g.txt" };
+		for (String name : names)
+		{
+			File f = new File( src, name );
+			f.getParentFile().mkdirs();
+			WriteFile( f, RandomBytes( 1000 + name.length() ) );
+			f.setLastModified( 1300000000000L );
+		}
+		new File( src, "empty" ).mkdir();
+		new File( src, "f/g.txt" ).setReadOnly();
+		new File( src, "f" ).setLastModified( 1200000000000L );
+		Files.createSymbolicLink( new File( src, "link" ).toPath(), new File( "a.txt" ).toPath() );
+
+		// Large enough to be copied in ranges
+		byte[] tail = RandomBytes( 5000 );
+		File big = new File( src, "b/big.bin" );
+		RandomAccessFile raf = new RandomAccessFile( big, "rw" );
+		try
+		{
+			raf.setLength( 150000000L );
+			raf.seek( 150000000L - tail.length );
+			raf.write( tail );
+			raf.seek( 70000000L );
+			raf.write( tail );
+		}
+		finally
+		{
+			raf.close();
+		}
+
+		File dest = new File( CreateTempDir(), "copy" );
+		FileTreeReport report = FileUtil.CopyTree( src.getAbsolutePath(), dest.getAbsolutePath(), 3 );
+
+		assertTrue( report.toString(), report.isSuccessful() );
+		assertFalse( report.isRenamed() );
+		assertEquals( 6, report.getFileCount() );
+		assertEquals( 5, report.getDirectoryCount() );
+		for (String name : names)
+		{
+			File f = new File( dest, name );
+			assertArrayEquals( Files.readAllBytes( new File( src, name ).toPath() ), Files.readAllBytes( f.toPath() ) );
+			assertEquals( 1300000000000L, f.lastModified() );
+		}
+		assertEquals(
+			Files.getPosixFilePermissions( new File( src, "f/g.txt" ).toPath() ),
+			Files.getPosixFilePermissions( new File( dest, "f/g.txt" ).toPath() )
+		);
+		assertEquals( 1200000000000L, new File( dest, "f" ).lastModified() );
+		assertTrue( new File( dest, "empty" ).isDirectory() );
+		assertEquals( new File( "a.txt" ).toPath(), Files.readSymbolicLink( new File( dest, "link" ).toPath() ) );
+
+		File bigCopy = new File( dest, "b/big.bin" );
+		assertEquals( big.length(), bigCopy.length() );
+		raf = new RandomAccessFile( bigCopy, "r" );
+		try
+		{
+			byte[] b = new byte[ tail.length ];
+			raf.seek( 150000000L - tail.length );
+			raf.readFully( b );
+			assertArrayEquals( tail, b );
+			raf.seek( 70000000L );
+			raf.readFully( b );
+			assertArrayEquals( tail, b );
+		}
+		finally
+		{
+			raf.close();
+		}
+		big.delete();
+		bigCopy.delete();
+
+		// Moving within the same file store renames the tree
+		File moved = new File( dest.getParentFile(), "moved" );
+		report = FileUtil.MoveTree( dest.getAbsolutePath(), moved.getAbsolutePath() );
+		assertTrue( report.isRenamed() );
+		assertFalse( dest.exists() );
+
+		// Moving onto an existing tree copies and deletes
+		report = FileUtil.MoveTree( moved.getAbsolutePath(), src.getAbsolutePath() );
+		assertTrue( report.toString(), report.isSuccessful() );
+		assertFalse( report.isRenamed() );
+		assertFalse( moved.exists() );
+		assertTrue( new File( src, "b/d/e.bin" ).isFile() );
+	}
+
+	@Test
+	public void testDeleteTree() throws Exception
+	{
+		File dir = CreateTempDir();
+		File outside = CreateTempDir();
+		WriteFile( new File( outside, "keep.txt" ), RandomBytes( 10 ) );
+
+		for (int i = 0; i < 20; i++)
+		{
+			File sub = new File( dir, "d" + i + "/e" + (i % 3) );
+			sub.mkdirs();
+			for (int j = 0; j < 10; j++)
+			{
+				WriteFile( new File( sub, "f" + j ), RandomBytes( j ) );
+			}
+		}
+		new File( dir, "empty/empty" ).mkdirs();
+		Files.createSymbolicLink( new File( dir, "link" ).toPath(), outside.toPath() );
+		// Links to an outside directory, in subdirectories
+		Files.createSymbolicLink( new File( dir, "d0/link" ).toPath(), outside.toPath() );
+		Files.createSymbolicLink( new File( dir, "d1/e1/link" ).toPath(), outside.toPath() );
+
+		FileTreeReport report = FileUtil.DeleteTree( dir.getAbsolutePath(), 4 );
+		assertTrue( report.toString(), report.isSuccessful() );
+		assertEquals( 203, report.getFileCount() );
+		assertEquals( 43, report.getDirectoryCount() );
+		assertFalse( dir.exists() );
+		assertTrue( new File( outside, "keep.txt" ).exists() );
+
+		report = FileUtil.DeleteTree( dir.getAbsolutePath() );
+		assertEquals( 1, report.getFailureCount() );
+		assertFalse( FileUtil.TryDelete( dir.getAbsolutePath(), true ) );
+
+		assertTrue( FileUtil.TryDelete( outside.getAbsolutePath(), true ) );
+		assertFalse( outside.exists() );
+
+		// A wide tree, with a single thread: subdirectories waiting for
+		// their task are not kept open
+		File wide = CreateTempDir();
+		for (int i = 0; i < 3000; i++)
+		{
+			File sub = new File( wide, "d" + i );
+			sub.mkdir();
+			WriteFile( new File( sub, "f" ), RandomBytes( 1 ) );
+		}
+		report = FileUtil.DeleteTree( wide.getAbsolutePath(), 1 );
+		assertTrue( report.toString(), report.isSuccessful() );
+		assertEquals( 3000, report.getFileCount() );
+		assertFalse( wide.exists() );
+	}
+
+	@Test
+	public void testSync() throws Exception
+	{
+		File src = CreateTempDir();
+		File dest = new File( CreateTempDir(), "sync" );
+		byte[] big = RandomBytes( 3000000 );
+		WriteFile( new File( src, "a.txt" ), RandomBytes( 100 ) );
+		new File( src, "b" ).mkdir();
+		WriteFile( new File( src, "b/c.bin" ), big );
+		new File( src, "d" ).mkdir();
+		WriteFile( new File( src, "d/e.txt" ), RandomBytes( 200 ) );
+		Files.createSymbolicLink( new File( src, "link" ).toPath(), new File( "a.txt" ).toPath() );
+
+		FileTreeReport report = FileUtil.Sync( src.getAbsolutePath(), dest.getAbsolutePath() );
+		assertTrue( report.toString(), report.isSuccessful() );
+		assertEquals( 4, report.getFileCount() );
+		assertEquals( 0, report.getSkippedCount() );
+		assertEquals( 3000300, report.getByteCount() );
+
+		// Nothing changed
+		report = FileUtil.Sync( src.getAbsolutePath(), dest.getAbsolutePath() );
+		assertTrue( report.toString(), report.isSuccessful() );
+		assertEquals( 0, report.getFileCount() );
+		assertEquals( 4, report.getSkippedCount() );
+		assertEquals( 0, report.getByteCount() );
+
+		// One block changed, one file added, extraneous files
+		big[1500000] ^= 1;
+		WriteFile( new File( src, "b/c.bin" ), big );
+		new File( src, "b/c.bin" ).setLastModified( 1300000000000L );
+		WriteFile( new File( src, "f.txt" ), RandomBytes( 300 ) );
+		WriteFile( new File( dest, "x.txt" ), RandomBytes( 10 ) );
+		new File( dest, "y" ).mkdir();
+		WriteFile( new File( dest, "y/z.txt" ), RandomBytes( 10 ) );
+
+		FileSyncOptions opts = new FileSyncOptions();
+		opts.setDeltaTransfer( true );
+		opts.setBlockSize( 65536 );
+		opts.setDeleteExtraneous( true );
+		report = FileUtil.Sync( src.getAbsolutePath(), dest.getAbsolutePath(), opts );
+		assertTrue( report.toString(), report.isSuccessful() );
+		assertEquals( 2, report.getFileCount() );
+		assertEquals( 3, report.getSkippedCount() );
+		assertEquals( 65536 + 300, report.getByteCount() );
+		assertEquals( 3, report.getDeletedCount() );
+
+		assertArrayEquals( big, Files.readAllBytes( new File( dest, "b/c.bin" ).toPath() ) );
+		assertEquals( 1300000000000L, new File( dest, "b/c.bin" ).lastModified() );
+		assertTrue( new File( dest, "f.txt" ).isFile() );
+		assertFalse( new File( dest, "x.txt" ).exists() );
+		assertFalse( new File( dest, "y" ).exists() );
+
+		// Shrunk file
+		byte[] small = RandomBytes( 1000 );
+		WriteFile( new File( src, "b/c.bin" ), small );
+		report = FileUtil.Sync( src.getAbsolutePath(), dest.getAbsolutePath(), opts );
+		assertTrue( report.toString(), report.isSuccessful() );
+		assertArrayEquals( small, Files.readAllBytes( new File( dest, "b/c.bin" ).toPath() ) );
+
+		// A destination directory replaced by a source file
+		new File( dest, "g" ).mkdir();
+		WriteFile( new File( dest, "g/x" ), RandomBytes( 10 ) );
+		WriteFile( new File( dest, "g/y" ), RandomBytes( 10 ) );
+		byte[] g = RandomBytes( 50 );
+		WriteFile( new File( src, "g" ), g );
+		report = FileUtil.Sync( src.getAbsolutePath(), dest.getAbsolutePath(), opts );
+		assertTrue( report.toString(), report.isSuccessful() );
+		assertEquals( 3, report.getDeletedCount() );
+		assertArrayEquals( g, Files.readAllBytes( new File( dest, "g" ).toPath() ) );
+	}
+
+	@Test
+	public void testChecksum() throws Exception
+	{
+		File dir = CreateTempDir();
+		File vector = new File( dir, "vector" );
+		WriteFile( vector, "123456789".getBytes( "US-ASCII" ) );
+		File small = new File( dir, "small" );
+		byte[] smallContent = RandomBytes( 1000 );
+		WriteFile( small, smallContent );
+		File large = new File( dir, "large" );
+		byte[] largeContent = RandomBytes( 10000 );
+		WriteFile( large, largeContent );
+		File empty = new File( dir, "empty" );
+		WriteFile( empty, new byte[0] );
+
+		// Well-known check values
+		assertEquals( "cbf43926", new FileChecksummer( ChecksumAlgorithm.CRC32 ).checksum( vector.toPath() ) );
+		assertEquals( "e3069283", new FileChecksummer( ChecksumAlgorithm.CRC32C ).checksum( vector.toPath() ) );
+		assertEquals(
+			TreeHash( "123456789".getBytes( "US-ASCII" ), FileChecksummer.DEFAULT_BLOCK_SIZE ),
+			new FileChecksummer( ChecksumAlgorithm.SHA256 ).checksum( vector.toPath() )
+		);
+
+		// Multi-block files (block CRCs are combined into the file one)
+		List<Path> files = Arrays.asList( vector.toPath(), small.toPath(), large.toPath(), empty.toPath() );
+		for (ChecksumAlgorithm alg : new ChecksumAlgorithm[] { ChecksumAlgorithm.CRC32, ChecksumAlgorithm.CRC32C })
+		{
+			FileChecksummer whole = new FileChecksummer( alg, 1 );
+			FileChecksummer blocks = new FileChecksummer( alg, 4 );
+			blocks.setBlockSize( 1024 );
+			assertEquals( alg.toString(), whole.checksum( files ), blocks.checksum( files ) );
+		}
+
+		// Tree hash
+		FileChecksummer sha = new FileChecksummer( ChecksumAlgorithm.SHA256, 4 );
+		sha.setBlockSize( 4096 );
+		assertEquals( TreeHash( largeContent, 4096 ), sha.checksum( large.toPath() ) );
+		assertEquals( TreeHash( smallContent, 4096 ), sha.checksum( small.toPath() ) );
+		assertEquals( TreeHash( new byte[0], 4096 ), sha.checksum( empty.toPath() ) );
+
+		// A file made of the block digests does not collide
+		File forged = new File( dir, "forged" );
+		ByteArrayOutputStream leaves = new ByteArrayOutputStream();
+		for (int off = 0; off < largeContent.length; off += 4096)
+		{
+			MessageDigest leaf = MessageDigest.getInstance( "SHA-256" );
+			leaf.update( (byte) 0 );
+			leaf.update( largeContent, off, Math.min( 4096, largeContent.length - off ) );
+			leaves.write( leaf.digest() );
+		}
+		WriteFile( forged, leaves.toByteArray() );
+		assertFalse( sha.checksum( forged.toPath() ).equals( sha.checksum( large.toPath() ) ) );
+
+		// Verify mode
+		Map<Path,String> expected = new HashMap<Path,String>( sha.checksum( files ) );
+		assertTrue( sha.verify( expected ).isEmpty() );
+		assertTrue( sha.verify( large.toPath(), expected.get( large.toPath() ).toUpperCase() ) );
+		largeContent[5000] ^= 1;
+		WriteFile( large, largeContent );
+		assertEquals( expected.keySet().size() - 1, expected.size() - sha.verify( expected ).size() );
+		assertTrue( sha.verify( expected ).containsKey( large.toPath() ) );
+
+		// Verified copy
+		File copy = new File( dir, "copy" );
+		FileUtil.Copy( large.getAbsolutePath(), copy.getAbsolutePath(), null, ChecksumAlgorithm.CRC32C );
+		assertArrayEquals( largeContent, Files.readAllBytes( copy.toPath() ) );
+	}
+
+	@Test
+	public void testAsync() throws Exception
+	{
+		File dir = CreateTempDir();
+		byte[] content = RandomBytes( 100000 );
+		File src = new File( dir, "src" );
+		WriteFile( src, content );
+
+		assertArrayEquals( content, FileUtil.ReadAllAsync( src.getAbsolutePath() ).get() );
+
+		File dest = new File( dir, "dest" );
+		assertEquals( content.length, FileUtil.CopyAsync( src.getAbsolutePath(), dest.getAbsolutePath() ).get().longValue() );
+		assertArrayEquals( content, Files.readAllBytes( dest.toPath() ) );
+
+		// Bounded in-flight operations, small buffers
+		AsyncFileIO aio = new AsyncFileIO( 2, 3 );
+		try
+		{
+			aio.setBufferSize( 1000 );
+			List<CompletableFuture<Long>> copies = new ArrayList<CompletableFuture<Long>>();
+			for (int i = 0; i < 20; i++)
+			{
+				copies.add( aio.copy( src.toPath(), new File( dir, "copy" + i ).toPath() ) );
+			}
+			assertTrue( aio.getInFlightCount() <= 3 );
+			for (int i = 0; i < 20; i++)
+			{
+				assertEquals( content.length, copies.get( i ).get().longValue() );
+				assertArrayEquals( content, Files.readAllBytes( new File( dir, "copy" + i ).toPath() ) );
+			}
+			assertEquals( 0, aio.getInFlightCount() );
+			assertEquals( 0, aio.getQueuedCount() );
+
+			// Cancellation
+			List<CompletableFuture<byte[]>> reads = new ArrayList<CompletableFuture<byte[]>>();
+			for (int i = 0; i < 10; i++)
+			{
+				reads.add( aio.readAll( src.toPath() ) );
+			}
+			for (CompletableFuture<byte[]> f : reads)
+			{
+				f.cancel( true );
+			}
+			int cancelled = 0;
+			for (CompletableFuture<byte[]> f : reads)
+			{
+				try
+				{
+					// Operations may complete before being cancelled
+					assertArrayEquals( content, f.get() );
+				}
+				catch (CancellationException ce)
+				{
+					++cancelled;
+				}
+			}
+			assertTrue( cancelled > 0 );
+			// Slots are released
+			assertArrayEquals( content, aio.readAll( src.toPath() ).get() );
+
+			// Failures
+			try
+			{
+				aio.readAll( new File( dir, "missing" ).toPath() ).get();
+				fail( "Missing file read" );
+			}
+			catch (ExecutionException ee)
+			{
+				assertTrue( ee.getCause() instanceof java.io.IOException );
+			}
+		}
+		finally
+		{
+			aio.close();
+		}
+
+		// Many queued operations failing while being started
+		aio = new AsyncFileIO( 2, 1 );
+		try
+		{
+			aio.setBufferSize( 10 );
+			CompletableFuture<byte[]> slow = aio.readAll( src.toPath() );
+			List<CompletableFuture<byte[]>> missing = new ArrayList<CompletableFuture<byte[]>>();
+			for (int i = 0; i < 100000; i++)
+			{
+				missing.add( aio.readAll( new File( dir, "missing" ).toPath() ) );
+			}
+			assertArrayEquals( content, slow.get() );
+			for (CompletableFuture<byte[]> f : missing)
+			{
+				try
+				{
+					f.get( 10, TimeUnit.SECONDS );
+					fail( "Missing file read" );
+				}
+				catch (ExecutionException ee)
+				{
+					assertTrue( ee.getCause() instanceof java.io.IOException );
+				}
+			}
+			// Slots are released right after completing the futures
+			for (int i = 0; i < 100 && aio.getInFlightCount() > 0; i++)
+			{
+				Thread.sleep( 50 );
+			}
+			assertEquals( 0, aio.getInFlightCount() );
+			assertEquals( 0, aio.getQueuedCount() );
+		}
+		finally
+		{
+			aio.close();
+		}
+
+		FileTreeReport report = FileUtil.DeleteAsync( dir.getAbsolutePath() ).get();
+		assertTrue( report.toString(), report.isSuccessful() );
+		assertFalse( dir.exists() );
+	}
+
+	@Test
+	public void testBufferPool() throws Exception
+	{
+		BufferPool pool = new BufferPool();
+
+		byte[] b = pool.acquireBytes( 3000 );
+		assertEquals( 4096, b.length );
+		pool.release( b );
+		assertSame( b, pool.acquireBytes( 2049 ) );
+		assertEquals( 1, pool.getHitCount() );
+		assertEquals( 1, pool.getMissCount() );
+
+		char[] c = pool.acquireChars( 2048 );
+		assertEquals( 2048, c.length );
+		pool.release( c );
+		assertSame( c, pool.acquireChars( 1500 ) );
+
+		ByteBuffer bb = pool.acquireDirect( 5000 );
+		assertTrue( bb.isDirect() );
+		assertEquals( 5000, bb.limit() );
+		assertEquals( 8192, bb.capacity() );
+		bb.position( 10 );
+		pool.release( bb );
+		bb = pool.acquireDirect( 8000 );
+		assertEquals( 0, bb.position() );
+		assertEquals( 8000, bb.limit() );
+
+		// Not pooled
+		byte[] large = pool.acquireBytes( BufferPool.MAX_POOLED_SIZE + 1 );
+		assertEquals( BufferPool.MAX_POOLED_SIZE + 1, large.length );
+		pool.release( large );
+		pool.release( new byte[1000] );
+		assertEquals( 2, pool.getDiscardCount() );
+	}
+
+	/** Returns the SHA-256 tree hash of the given data, as documented. */
+	private static String TreeHash(byte[] data, int blockSize) throws Exception
+	{
+		MessageDigest root = MessageDigest.getInstance( "SHA-256" );
+		root.update( (byte) 1 );
+		root.update( ByteBuffer.allocate( 16 ).putLong( data.length ).putLong( blockSize ).array() );
+
+		int off = 0;
+		do
+		{
+			int len = Math.min( blockSize, data.length - off );
+			MessageDigest leaf = MessageDigest.getInstance( "SHA-256" );
+			leaf.update( (byte) 0 );
+			leaf.update( data, off, len );
+			root.update( leaf.digest() );
+			off += len;
+		}
+		while ( off < data.length );
+
+		return FileChecksummer.ToHex( root.digest() );
+	}
+
+	private static File CreateTempDir() throws Exception
+	{
+		File dir = Files.createTempDirectory( "fileutil" ).toFile();
+		dir.deleteOnExit();
+		return dir;
+	}
+
+	private static byte[] RandomBytes(int len)
+	{
+		byte[] b = new byte[len];
+		new Random( len ).nextBytes( b );
+		return b;
+	}
+
+	private static void WriteFile(File f, byte[] content) throws Exception
+	{
+		FileOutputStream fos = new FileOutputStream( f );
+		try
+		{
+			fos.write( content );
+		}
+		finally
+		{
+			fos.close();
+		}
+	}
+
+	public static void main(String[] args)
+	{
+		JUnitCore.main( FileUtilTester.class.getName() );
+	}
+}
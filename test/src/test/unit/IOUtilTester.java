@@ -0,0 +1,584 @@
+/*
+ * Copyright (C) 2008-2012  Marco Guazzone
+ *                          [Distributed Computing System (DCS) Group,
+ *                           Computer Science Institute,
+ *                           Department of Science and Technological Innovation,
+ *                           University of Piemonte Orientale,
+ *                           Alessandria (Italy)]
+ *
+ * This file is part of dcj-commons.
+ *
+ * dcsj-commons is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dcsj-commons is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dcsj-commons.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package test.unit;
+
+import it.unipmn.di.dcs.common.io.FastStringWriter;
+import it.unipmn.di.dcs.common.io.FileFollower;
+import it.unipmn.di.dcs.common.io.IFileLineListener;
+import it.unipmn.di.dcs.common.io.ILineFilter;
+import it.unipmn.di.dcs.common.io.IOUtil;
+import it.unipmn.di.dcs.common.io.LastNonEmptyLineReader;
+import it.unipmn.di.dcs.common.io.LastNonEmptyLineWriter;
+import it.unipmn.di.dcs.common.io.LineIndex;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import org.junit.*;
+import static org.junit.Assert.*;
+import org.junit.runner.JUnitCore;
+
+/**
+ * Test class for IOUtil.
+ *
+ * @author <a href="mailto:marco.guazzone@mfn.unipmn.it">Marco Guazzone</a>
+ */
+public class IOUtilTester
+{
+	@Test
+	public void testReadAll() throws Throwable
+	{
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 5000; i++)
+		{
+			sb.append( "line " ).append( i ).append( '\n' );
+		}
+		String text = sb.toString();
+
+		assertEquals( text, IOUtil.ReadAllToString( new StringReader( text ) ) );
+		assertEquals( "", IOUtil.ReadAllToString( new StringReader( "" ) ) );
+		assertEquals( text, IOUtil.ReadAllToStringBuilder( new StringReader( text ) ).toString() );
+
+		// Exact, too small and too large size hints
+		int[] hints = { text.length(), 10, text.length() + 100 };
+		for (int hint : hints)
+		{
+			assertEquals( text, IOUtil.ReadAllToString( new StringReader( text ), hint ) );
+			assertEquals( text, IOUtil.ReadAllToStringBuilder( new StringReader( text ), hint ).toString() );
+			char[] chars = IOUtil.ReadAllToChars( new StringReader( text ), hint );
+			assertEquals( text.length(), chars.length );
+			assertTrue( Arrays.equals( text.toCharArray(), chars ) );
+		}
+
+		FastStringWriter wr = new FastStringWriter( text.length() );
+		IOUtil.ReadAll( new StringReader( text ), wr );
+		assertEquals( text, wr.toString() );
+	}
+
+	@Test
+	public void testReadAllBytes() throws Exception
+	{
+		byte[] data = new byte[100000];
+		new Random( 1 ).nextBytes( data );
+
+		assertArrayEquals( data, IOUtil.ReadAllBytes( new ByteArrayInputStream( data ) ) );
+		assertArrayEquals( new byte[0], IOUtil.ReadAllBytes( new ByteArrayInputStream( new byte[0] ) ) );
+		assertArrayEquals( data, IOUtil.ReadAllBytes( new ByteArrayInputStream( data ), data.length ) );
+		assertArrayEquals( data, IOUtil.ReadAllBytes( new ByteArrayInputStream( data ), 7 ) );
+
+		ByteBuffer buf = IOUtil.ReadAllToByteBuffer( Channels.newChannel( new ByteArrayInputStream( data ) ) );
+		assertEquals( data.length, buf.remaining() );
+		assertArrayEquals( data, Arrays.copyOf( buf.array(), buf.remaining() ) );
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		assertEquals( data.length, IOUtil.ReadAll( new ByteArrayInputStream( data ), baos ) );
+		assertArrayEquals( data, baos.toByteArray() );
+
+		File f = File.createTempFile( "ioutil", ".bin" );
+		f.deleteOnExit();
+		FileOutputStream fos = new FileOutputStream( f );
+		try
+		{
+			fos.write( data );
+		}
+		finally
+		{
+			fos.close();
+		}
+		assertArrayEquals( data, IOUtil.ReadAllBytes( f.toPath() ) );
+		FileInputStream fis = new FileInputStream( f );
+		try
+		{
+			assertEquals( 10, fis.skip( 10 ) );
+			assertArrayEquals( Arrays.copyOfRange( data, 10, data.length ), IOUtil.ReadAllBytes( fis ) );
+		}
+		finally
+		{
+			fis.close();
+		}
+	}
+
+	@Test
+	public void testReadAllEncoded() throws Throwable
+	{
+		// Surrogate pairs crossing buffer boundaries, and an unpaired one
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 20000; i++)
+		{
+			sb.append( "a\u00e8\u20ac\ud83d\ude00" );
+		}
+		String text = sb.toString();
+		String invalid = "x\ud83dy";
+
+		for (String cs : new String[] { "UTF-8", "UTF-16", "ISO-8859-1" })
+		{
+			Charset charset = Charset.forName( cs );
+			assertArrayEquals( cs, text.getBytes( charset ), IOUtil.ReadAllToBytes( new StringReader( text ), charset, 0 ) );
+			assertArrayEquals( cs, text.getBytes( charset ), IOUtil.ReadAllToBytes( new StringReader( text ), charset, text.length() ) );
+			assertArrayEquals( cs, invalid.getBytes( charset ), IOUtil.ReadAllToBytes( new StringReader( invalid ), charset, 0 ) );
+
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			assertEquals( text.getBytes( charset ).length, IOUtil.ReadAll( new StringReader( text ), baos, charset ) );
+			assertArrayEquals( cs, text.getBytes( charset ), baos.toByteArray() );
+		}
+
+		assertArrayEquals( text.getBytes(), IOUtil.ReadAllToBytes( new StringReader( text ) ) );
+	}
+
+	@Test
+	public void testChunkedFastStringWriter() throws Throwable
+	{
+		FastStringWriter wr = FastStringWriter.Chunked( 7 );
+		StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 100; i++)
+		{
+			String s = "text #" + i + ";";
+			wr.write( s );
+			wr.write( s, 1, 3 );
+			wr.write( s.toCharArray(), 2, 2 );
+			wr.write( 'x' );
+			wr.append( new StringBuilder( s ), 0, 4 );
+			expected.append( s ).append( s, 1, 4 ).append( s, 2, 4 ).append( 'x' ).append( s, 0, 4 );
+		}
+		assertTrue( wr.isChunked() );
+		assertEquals( expected.length(), wr.length() );
+		assertEquals( expected.toString(), wr.toString() );
+
+		CharSequence view = wr.toCharSequence();
+		assertEquals( expected.length(), view.length() );
+		assertEquals( expected.charAt( 123 ), view.charAt( 123 ) );
+		assertEquals( expected.substring( 10, 50 ), view.subSequence( 10, 50 ).toString() );
+		assertEquals( expected.substring( 12, 20 ), view.subSequence( 10, 50 ).subSequence( 2, 10 ).toString() );
+
+		// Views are not affected by later writes
+		wr.write( "more" );
+		assertEquals( expected.length(), view.length() );
+
+		StringWriter sw = new StringWriter();
+		wr.writeTo( sw );
+		assertEquals( expected + "more", sw.toString() );
+
+		// Reading into a chunked writer
+		wr = FastStringWriter.Chunked();
+		IOUtil.ReadAll( new StringReader( expected.toString() ), wr );
+		assertEquals( expected.toString(), wr.toString() );
+
+		// Non-chunked writers support views too
+		FastStringWriter plain = new FastStringWriter();
+		plain.write( "abcdef", 1, 3 );
+		sw = new StringWriter();
+		plain.writeTo( sw );
+		assertEquals( "bcd", sw.toString() );
+		assertEquals( "bcd", plain.toCharSequence().toString() );
+	}
+
+	@Test
+	public void testLastNonEmptyLineReader() throws Exception
+	{
+		StringBuilder longLine = new StringBuilder();
+		for (int i = 0; i < 3000; i++)
+		{
+			longLine.append( "\u00e8\u20ac\ud83d\ude00 " );
+		}
+		String[] texts = {
+			"",
+			"\n\n",
+			"one",
+			"one\ntwo\n",
+			"one\r\ntwo\r\n  \r\n\t\r\n",
+			"one\rtwo\r\r",
+			"one\n" + longLine + "\n\n",
+			longLine + "\r\nlast \u00e8",
+		};
+
+		File f = File.createTempFile( "lastline", ".txt" );
+		f.deleteOnExit();
+		for (String cs : new String[] { "UTF-8", "UTF-16LE", "UTF-16", "UTF-32" })
+		{
+			Charset charset = Charset.forName( cs );
+			for (String text : texts)
+			{
+				Files.write( f.toPath(), text.getBytes( charset ) );
+
+				String expected = new LastNonEmptyLineReader( new StringReader( text ) ).readLine();
+				assertEquals( cs, expected, new LastNonEmptyLineReader( f.toPath(), charset ).readLine() );
+			}
+		}
+
+		// Reading the line
+		Files.write( f.toPath(), "first\nsecond line\n".getBytes( "UTF-8" ) );
+		LastNonEmptyLineReader rd = new LastNonEmptyLineReader( f.toPath(), Charset.forName( "UTF-8" ) );
+		char[] buf = new char[6];
+		assertEquals( 6, rd.read( buf, 0, 6 ) );
+		assertEquals( "second", new String( buf ) );
+		assertEquals( 5, rd.read( buf, 0, 6 ) );
+		assertEquals( " line", new String( buf, 0, 5 ) );
+		assertEquals( -1, rd.read( buf, 0, 6 ) );
+	}
+
+	@Test
+	public void testReadLastLines() throws Exception
+	{
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 20000; i++)
+		{
+			sb.append( "line " ).append( i );
+			sb.append( i % 3 == 0 ? "\r\n" : i % 3 == 1 ? "\n" : "\r" );
+			if ( i % 1000 == 0 )
+			{
+				sb.append( "\u00e8\u20ac long " );
+				for (int j = 0; j < 3000; j++)
+				{
+					sb.append( j );
+				}
+				sb.append( '\n' );
+			}
+		}
+		String[] texts = { "", "\n", "a\r\n\r\nb", "a\rb\r", sb.toString() };
+		ILineFilter odd = new ILineFilter()
+		{
+			public boolean accept(CharSequence line)
+			{
+				return line.length() > 0 && (line.charAt( line.length() - 1 ) - '0') % 2 == 1;
+			}
+		};
+
+		File f = File.createTempFile( "tail", ".txt" );
+		f.deleteOnExit();
+		for (String text : texts)
+		{
+			List<String> all = new ArrayList<String>();
+			List<String> odds = new ArrayList<String>();
+			BufferedReader brd = new BufferedReader( new StringReader( text ) );
+			String line = null;
+			while ( ( line = brd.readLine() ) != null )
+			{
+				all.add( line );
+				if ( odd.accept( line ) )
+				{
+					odds.add( line );
+				}
+			}
+			Files.write( f.toPath(), text.getBytes( "UTF-8" ) );
+
+			for (int n : new int[] { 1, 3, 100 })
+			{
+				List<String> expected = all.subList( Math.max( 0, all.size() - n ), all.size() );
+				assertEquals( expected, IOUtil.ReadLastLines( new StringReader( text ), n ) );
+				assertEquals( expected, IOUtil.ReadLastLines( f.toPath(), Charset.forName( "UTF-8" ), n ) );
+
+				expected = odds.subList( Math.max( 0, odds.size() - n ), odds.size() );
+				assertEquals( expected, IOUtil.ReadLastLines( new StringReader( text ), n, odd ) );
+				assertEquals( expected, IOUtil.ReadLastLines( f.toPath(), Charset.forName( "UTF-8" ), n, odd ) );
+			}
+		}
+	}
+
+	@Test
+	public void testLastNonEmptyLineWriter() throws Exception
+	{
+		String[][] cases = {
+			{ "", "" },
+			{ "one", "one" },
+			{ "one\ntwo\n", "two" },
+			{ "one\r\ntwo\r\n\r\n", "two" },
+			{ "one\rtwo three\r", "two three" },
+			{ "one\n\n\rtwo", "two" },
+		};
+
+		for (String[] c : cases)
+		{
+			String text = c[0];
+
+			// Every split into two writes, by arrays and by strings
+			for (int k = 0; k <= text.length(); k++)
+			{
+				StringWriter sw = new StringWriter();
+				LastNonEmptyLineWriter wr = new LastNonEmptyLineWriter( sw );
+				wr.write( text.toCharArray(), 0, k );
+				wr.write( text, k, text.length() - k );
+				assertEquals( "'" + text + "' split at " + k, c[1], wr.toString() );
+				wr.flush();
+				assertEquals( c[1], sw.toString() );
+			}
+
+			// One char at a time
+			LastNonEmptyLineWriter wr = new LastNonEmptyLineWriter( new StringWriter() );
+			for (int k = 0; k < text.length(); k++)
+			{
+				wr.write( text.charAt( k ) );
+			}
+			assertEquals( c[1], wr.toString() );
+		}
+
+		// Long lines
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 1000; i++)
+		{
+			sb.append( i );
+		}
+		LastNonEmptyLineWriter wr = new LastNonEmptyLineWriter( new StringWriter() );
+		wr.write( "x\n" + sb + "\r" );
+		assertEquals( sb.toString(), wr.toString() );
+		wr.write( "\n" + sb );
+		assertEquals( sb.toString(), wr.getBuffer().toString() );
+	}
+
+	@Test
+	public void testFileFollower() throws Exception
+	{
+		File dir = Files.createTempDirectory( "follow" ).toFile();
+		Path file = new File( dir, "follow.log" ).toPath();
+		Path rotated = new File( dir, "follow.log.1" ).toPath();
+		final List<String> lines = Collections.synchronizedList( new ArrayList<String>() );
+
+		FileFollower follower = new FileFollower();
+		follower.setPollInterval( 20 );
+		try
+		{
+			// Followed before being created
+			follower.follow(
+				file,
+				false,
+				Charset.forName( "UTF-8" ),
+				new IFileLineListener()
+				{
+					public void lineAppended(Path f, String line)
+					{
+						lines.add( line );
+					}
+
+					public void failed(Path f, Exception e)
+					{
+						lines.add( "failed: " + e );
+					}
+				}
+			);
+			follower.start();
+
+			byte[] e = "\u00e8\n".getBytes( "UTF-8" );
+			Append( file, "one\r\ntwo\npart".getBytes( "UTF-8" ) );
+			AwaitSize( lines, 2 );
+			// A character split across two appends
+			Append( file, new byte[] { e[0] } );
+			Thread.sleep( 100 );
+			Append( file, new byte[] { e[1], e[2] } );
+			AwaitSize( lines, 3 );
+			assertEquals( Arrays.asList( "one", "two", "part\u00e8" ), lines );
+
+			// Truncated
+			Files.write( file, new byte[0] );
+			Thread.sleep( 100 );
+			Append( file, "three\n".getBytes( "UTF-8" ) );
+			AwaitSize( lines, 4 );
+			assertEquals( "three", lines.get( 3 ) );
+
+			// Rotated
+			Files.move( file, rotated );
+			Thread.sleep( 100 );
+			Files.write( file, "four\nfive\n".getBytes( "UTF-8" ) );
+			AwaitSize( lines, 6 );
+			assertEquals( Arrays.asList( "four", "five" ), lines.subList( 4, 6 ) );
+
+			// Following again only replaces the listener
+			final List<String> others = Collections.synchronizedList( new ArrayList<String>() );
+			follower.follow(
+				file,
+				false,
+				Charset.forName( "UTF-8" ),
+				new IFileLineListener()
+				{
+					public void lineAppended(Path f, String line)
+					{
+						others.add( line );
+					}
+
+					public void failed(Path f, Exception e)
+					{
+						others.add( "failed: " + e );
+					}
+				}
+			);
+			Append( file, "again\n".getBytes( "UTF-8" ) );
+			AwaitSize( others, 1 );
+			assertEquals( Arrays.asList( "again" ), others );
+			assertEquals( 6, lines.size() );
+
+			follower.unfollow( file );
+			Append( file, "six\n".getBytes( "UTF-8" ) );
+			Thread.sleep( 200 );
+			assertEquals( 6, lines.size() );
+			assertEquals( 1, others.size() );
+		}
+		finally
+		{
+			follower.close();
+			Files.deleteIfExists( file );
+			Files.deleteIfExists( rotated );
+			Files.deleteIfExists( dir.toPath() );
+		}
+	}
+
+	private static void Append(Path file, byte[] data) throws Exception
+	{
+		Files.write( file, data, StandardOpenOption.CREATE, StandardOpenOption.APPEND );
+	}
+
+	private static void AwaitSize(List<?> list, int size) throws Exception
+	{
+		long deadline = System.currentTimeMillis() + 10000;
+		while ( list.size() < size && System.currentTimeMillis() < deadline )
+		{
+			Thread.sleep( 10 );
+		}
+		assertEquals( list.toString(), size, list.size() );
+	}
+
+	@Test
+	public void testLineIndex() throws Exception
+	{
+		List<String> lines = new ArrayList<String>();
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 5000; i++)
+		{
+			String line = ( i % 7 == 0 ) ? "" : "line \u00e8 " + i;
+			lines.add( line );
+			sb.append( line ).append( ( i % 3 == 0 ) ? "\r\n" : "\n" );
+		}
+		lines.add( "last" );
+		sb.append( "last" );
+
+		File f = File.createTempFile( "lineindex", ".txt" );
+		f.deleteOnExit();
+		Path path = f.toPath();
+		Path idx = LineIndex.IndexPath( path );
+		idx.toFile().deleteOnExit();
+		Files.write( path, sb.toString().getBytes( "UTF-8" ) );
+		Charset utf8 = Charset.forName( "UTF-8" );
+
+		try
+		{
+			// Sequential and parallel, with segments not aligned to lines
+			LineIndex[] indices = {
+				LineIndex.Build( path ),
+				LineIndex.Build( path, 1, 7 ),
+				LineIndex.Build( path, 4, 1000 ),
+			};
+			for (LineIndex index : indices)
+			{
+				assertEquals( lines.size(), index.getLineCount() );
+				assertEquals( f.length(), index.getFileSize() );
+				assertEquals( 0, index.offset( 0 ) );
+				for (int k = 0; k < lines.size(); k += 97)
+				{
+					assertEquals( lines.get( k ), index.readLine( k, utf8 ) );
+				}
+				assertEquals( "last", index.readLine( lines.size() - 1, utf8 ) );
+			}
+
+			// Lines in order, across splits
+			LineIndex index = indices[0];
+			Spliterator<CharSequence> suffix = index.parallelLines( utf8 );
+			Spliterator<CharSequence> prefix = suffix.trySplit();
+			assertNotNull( prefix );
+			assertEquals( lines.size(), prefix.estimateSize() + suffix.estimateSize() );
+			final List<String> read = new ArrayList<String>();
+			Consumer<CharSequence> collector = new Consumer<CharSequence>()
+			{
+				public void accept(CharSequence line)
+				{
+					read.add( line.toString() );
+				}
+			};
+			prefix.forEachRemaining( collector );
+			suffix.forEachRemaining( collector );
+			assertEquals( lines, read );
+
+			// Zero-copy views
+			Spliterator<CharSequence> latin1 = index.parallelLines( Charset.forName( "ISO-8859-1" ) );
+			latin1.tryAdvance( collector );
+			latin1.tryAdvance( collector );
+			assertEquals( "", read.get( lines.size() ) );
+			assertEquals( new String( lines.get( 1 ).getBytes( "UTF-8" ), "ISO-8859-1" ), read.get( lines.size() + 1 ) );
+			final long[] bytes = { 0 };
+			index.parallelLines().forEachRemaining( new Consumer<ByteBuffer>()
+			{
+				public void accept(ByteBuffer line)
+				{
+					bytes[0] += line.remaining();
+				}
+			});
+			assertEquals( String.join( "", lines ).getBytes( "UTF-8" ).length, bytes[0] );
+
+			// Saved, loaded, and out of date
+			assertNull( LineIndex.Load( path ) );
+			LineIndex.Open( path );
+			assertTrue( Files.exists( idx ) );
+			LineIndex loaded = LineIndex.Load( path );
+			assertNotNull( loaded );
+			assertEquals( lines.size(), loaded.getLineCount() );
+			assertEquals( index.offset( 4321 ), loaded.offset( 4321 ) );
+			assertTrue( loaded.isValid() );
+			Append( path, "\nmore\n".getBytes( "UTF-8" ) );
+			Files.setLastModifiedTime( path, FileTime.fromMillis( System.currentTimeMillis() + 5000 ) );
+			assertFalse( loaded.isValid() );
+			assertNull( LineIndex.Load( path ) );
+			assertEquals( lines.size() + 1, LineIndex.Open( path ).getLineCount() );
+			assertEquals( lines.size() + 1, LineIndex.Load( path ).getLineCount() );
+
+			// Empty file
+			Files.write( path, new byte[0] );
+			assertEquals( 0, LineIndex.Build( path ).getLineCount() );
+		}
+		finally
+		{
+			Files.deleteIfExists( idx );
+		}
+	}
+
+	public static void main(String[] args)
+	{
+		JUnitCore.main( IOUtilTester.class.getName() );
+	}
+}
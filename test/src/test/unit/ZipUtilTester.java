@@ -24,13 +24,38 @@
 
 package test.unit;
 
+import it.unipmn.di.dcs.common.CommonException;
+import it.unipmn.di.dcs.common.io.AdaptiveZipCompressionPolicy;
+import it.unipmn.di.dcs.common.io.FileTreeWalker;
+import it.unipmn.di.dcs.common.io.FileUtil;
+import it.unipmn.di.dcs.common.io.IZipCodec;
+import it.unipmn.di.dcs.common.io.IZipCompressionPolicy;
+import it.unipmn.di.dcs.common.io.ZipArchiveBuilder;
+import it.unipmn.di.dcs.common.io.ZipArchiveOptions;
+import it.unipmn.di.dcs.common.io.ZipCodecs;
+import it.unipmn.di.dcs.common.io.ZipCompression;
+import it.unipmn.di.dcs.common.io.ZipEntryReport;
+import it.unipmn.di.dcs.common.io.ZipEntryFilters;
+import it.unipmn.di.dcs.common.io.ZipIndex;
 import it.unipmn.di.dcs.common.io.ZipUtil;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
 import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Random;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 
 import org.junit.*;
 import static org.junit.Assert.*;
@@ -126,12 +151,989 @@ public final class ZipUtilTester
 		assertTrue( true );
 	}
 
+	@Test
+	public void testCreateZipParallel() throws Exception
+	{
+		File dir = CreateTempDir();
+
+		// Small files, an empty file and files spanning several chunks
+		byte[][] contents = {
+			RandomBytes( 100, false ),
+			new byte[0],
+			RandomBytes( 3 * 1024 * 1024 + 17, true ),
+			RandomBytes( 2 * 1024 * 1024 + 5, false )
+		};
+		String[] infileNames = new String[ contents.length ];
+		for (int i = 0; i < contents.length; i++)
+		{
+			File f = new File( dir, "file" + i + ".dat" );
+			WriteFile( f, contents[i] );
+			infileNames[i] = f.getAbsolutePath();
+		}
+
+		File seqTarget = File.createTempFile("zip", ".zip");
+		seqTarget.deleteOnExit();
+		File parTarget = File.createTempFile("zip", ".zip");
+		parTarget.deleteOnExit();
+
+		ZipUtil.CreateArchive( seqTarget.getAbsolutePath(), infileNames, 6, new String[] { dir.getAbsolutePath() + File.separator } );
+		ZipUtil.CreateArchive( parTarget.getAbsolutePath(), infileNames, 6, new String[] { dir.getAbsolutePath() + File.separator }, 4 );
+
+		// The archive does not depend on the parallelism level
+		assertArrayEquals( ReadFile( seqTarget ), ReadFile( parTarget ) );
+
+		ZipFile zf = new ZipFile( parTarget );
+		try
+		{
+			assertEquals( contents.length, zf.size() );
+			for (int i = 0; i < contents.length; i++)
+			{
+				ZipEntry ze = zf.getEntry( "file" + i + ".dat" );
+				assertNotNull( ze );
+				assertArrayEquals( contents[i], ReadStream( zf.getInputStream( ze ) ) );
+			}
+		}
+		finally
+		{
+			zf.close();
+		}
+
+		// Streaming readers also verify CRCs and data descriptors
+		ZipInputStream zis = new ZipInputStream( new java.io.FileInputStream( parTarget ) );
+		try
+		{
+			int n = 0;
+			for (ZipEntry ze = zis.getNextEntry(); ze != null; ze = zis.getNextEntry())
+			{
+				int i = Integer.parseInt( ze.getName().substring( 4, 5 ) );
+				assertArrayEquals( contents[i], ReadAvailable( zis ) );
+				n++;
+			}
+			assertEquals( contents.length, n );
+		}
+		finally
+		{
+			zis.close();
+		}
+	}
+
+	@Test
+	public void testAppendZip() throws Exception
+	{
+		File dir = CreateTempDir();
+		String[] prefixes = { dir.getAbsolutePath() + File.separator };
+
+		File a = new File( dir, "a.txt" );
+		WriteFile( a, RandomBytes( 5000, true ) );
+		File b = new File( dir, "b.txt" );
+		WriteFile( b, RandomBytes( 7000, false ) );
+		File c = new File( dir, "c.txt" );
+		WriteFile( c, RandomBytes( 300, true ) );
+
+		File target = File.createTempFile("zip", ".zip");
+		target.deleteOnExit();
+		ZipUtil.CreateArchive( target.getAbsolutePath(), new String[] { a.getAbsolutePath(), b.getAbsolutePath() }, 9, prefixes );
+		byte[] before = ReadFile( target );
+
+		// Plain append: existing entries are left untouched
+		ZipUtil.AddFilesToArchive( target.getAbsolutePath(), new String[] { c.getAbsolutePath() }, prefixes );
+		byte[] after = ReadFile( target );
+		ZipFile zf = new ZipFile( target );
+		try
+		{
+			assertEquals( 3, zf.size() );
+			assertArrayEquals( ReadFile( c ), ReadStream( zf.getInputStream( zf.getEntry( "c.txt" ) ) ) );
+			assertArrayEquals( ReadFile( a ), ReadStream( zf.getInputStream( zf.getEntry( "a.txt" ) ) ) );
+		}
+		finally
+		{
+			zf.close();
+		}
+		int localEntriesLen = before.length - 22 - 2 * (46 + 5);
+		for (int i = 0; i < localEntriesLen; i++)
+		{
+			assertEquals( before[i], after[i] );
+		}
+
+		// Replacing an entry: the archive is rewritten
+		WriteFile( a, RandomBytes( 4000, false ) );
+		ZipUtil.AddFilesToArchive( target.getAbsolutePath(), new String[] { a.getAbsolutePath() }, prefixes );
+		zf = new ZipFile( target );
+		try
+		{
+			assertEquals( 3, zf.size() );
+			assertArrayEquals( ReadFile( a ), ReadStream( zf.getInputStream( zf.getEntry( "a.txt" ) ) ) );
+			assertArrayEquals( ReadFile( b ), ReadStream( zf.getInputStream( zf.getEntry( "b.txt" ) ) ) );
+			assertArrayEquals( ReadFile( c ), ReadStream( zf.getInputStream( zf.getEntry( "c.txt" ) ) ) );
+		}
+		finally
+		{
+			zf.close();
+		}
+	}
+
+	@Test
+	public void testExtractZip() throws Exception
+	{
+		File dir = CreateTempDir();
+		File sub = new File( dir, "sub" );
+		sub.mkdirs();
+		sub.deleteOnExit();
+
+		File[] infiles = {
+			new File( dir, "a.txt" ),
+			new File( dir, "b.dat" ),
+			new File( sub, "c.txt" ),
+			new File( sub, "d.dat" )
+		};
+		for (int i = 0; i < infiles.length; i++)
+		{
+			WriteFile( infiles[i], RandomBytes( 1000 * (i + 1), i % 2 == 0 ) );
+		}
+
+		File target = File.createTempFile("zip", ".zip");
+		target.deleteOnExit();
+		ZipUtil.CreateArchive( target.getAbsolutePath(), new String[] { dir.getAbsolutePath() }, 6, new String[] { dir.getAbsolutePath() + File.separator } );
+
+		// Extract everything
+		File destAll = CreateTempDir();
+		ZipUtil.ExtractArchive( target.getAbsolutePath(), destAll.getAbsolutePath(), null, 3 );
+		for (File f : infiles)
+		{
+			File extracted = new File( destAll, f.getAbsolutePath().substring( dir.getAbsolutePath().length() + 1 ) );
+			extracted.deleteOnExit();
+			assertArrayEquals( ReadFile( f ), ReadFile( extracted ) );
+		}
+
+		// Extract text files only
+		File destTxt = CreateTempDir();
+		ZipUtil.ExtractArchive( target.getAbsolutePath(), destTxt.getAbsolutePath(), ZipEntryFilters.Glob( "**.txt" ), 2 );
+		assertTrue( new File( destTxt, "a.txt" ).isFile() );
+		assertTrue( new File( destTxt, "sub/c.txt" ).isFile() );
+		assertFalse( new File( destTxt, "b.dat" ).exists() );
+		assertFalse( new File( destTxt, "sub/d.dat" ).exists() );
+		new File( destTxt, "a.txt" ).deleteOnExit();
+		new File( destTxt, "sub" ).deleteOnExit();
+		new File( destTxt, "sub/c.txt" ).deleteOnExit();
+	}
+
+	@Test
+	public void testExtractZipPathTraversal() throws Exception
+	{
+		File target = File.createTempFile("zip", ".zip");
+		target.deleteOnExit();
+
+		ZipOutputStream zos = new ZipOutputStream( new FileOutputStream( target ) );
+		try
+		{
+			zos.putNextEntry( new ZipEntry( "ok.txt" ) );
+			zos.write( 'x' );
+			zos.closeEntry();
+			zos.putNextEntry( new ZipEntry( "okdir/" ) );
+			zos.closeEntry();
+			zos.putNextEntry( new ZipEntry( "sub/../../evil.txt" ) );
+			zos.write( 'x' );
+			zos.closeEntry();
+		}
+		finally
+		{
+			zos.close();
+		}
+
+		File dest = CreateTempDir();
+		try
+		{
+			ZipUtil.ExtractArchive( target.getAbsolutePath(), dest.getAbsolutePath(), null, 2 );
+			fail( "Path traversal not detected" );
+		}
+		catch (CommonException ce)
+		{
+			Log.info( "[zip] Expected failure: " + ce.getCause() );
+		}
+		assertFalse( new File( dest, "ok.txt" ).exists() );
+		assertFalse( new File( dest, "okdir" ).exists() );
+		assertEquals( 0, dest.list().length );
+		assertFalse( new File( dest.getParentFile(), "evil.txt" ).exists() );
+	}
+
+	@Test
+	public void testExtractZipDuplicateNames() throws Exception
+	{
+		File target = File.createTempFile("zip", ".zip");
+		target.deleteOnExit();
+
+		byte[][] data = new byte[4][];
+		for (int i = 0; i < data.length; i++)
+		{
+			data[i] = RandomBytes( 10000 + i, i % 2 == 0 );
+		}
+
+		// Names resolving to the same path, and a placeholder name for a
+		// duplicate (writers reject duplicate names)
+		String[] names = { "dup.txt", "DUP#txt", "a/b.txt", "a/./b.txt" };
+		ZipOutputStream zos = new ZipOutputStream( new FileOutputStream( target ) );
+		try
+		{
+			for (int i = 0; i < names.length; i++)
+			{
+				zos.putNextEntry( new ZipEntry( names[i] ) );
+				zos.write( data[i] );
+				zos.closeEntry();
+			}
+		}
+		finally
+		{
+			zos.close();
+		}
+
+		// Renames the placeholder, in the local header and the central
+		// directory
+		byte[] zip = ReadFile( target );
+		byte[] from = names[1].getBytes( "US-ASCII" );
+		int renamed = 0;
+		for (int i = 0; i + from.length <= zip.length; i++)
+		{
+			int j = 0;
+			while ( j < from.length && zip[i + j] == from[j] )
+			{
+				j++;
+			}
+			if ( j == from.length )
+			{
+				System.arraycopy( names[0].getBytes( "US-ASCII" ), 0, zip, i, from.length );
+				renamed++;
+			}
+		}
+		assertEquals( 2, renamed );
+		FileOutputStream fos = new FileOutputStream( target );
+		try
+		{
+			fos.write( zip );
+		}
+		finally
+		{
+			fos.close();
+		}
+
+		ZipIndex index = ZipIndex.Open( target );
+		assertEquals( 4, index.size() );
+		assertEquals( "dup.txt", index.getName( 1 ) );
+		InputStream is = index.getInputStream( "dup.txt" );
+		try
+		{
+			assertArrayEquals( data[0], ReadAvailable( is ) );
+		}
+		finally
+		{
+			is.close();
+		}
+		is = index.getInputStream( 1 );
+		try
+		{
+			assertArrayEquals( data[1], ReadAvailable( is ) );
+		}
+		finally
+		{
+			is.close();
+		}
+
+		File dest = CreateTempDir();
+		ZipUtil.ExtractArchive( target.getAbsolutePath(), dest.getAbsolutePath(), null, 4 );
+		assertArrayEquals( data[1], ReadFile( new File( dest, "dup.txt" ) ) );
+		assertArrayEquals( data[3], ReadFile( new File( dest, "a/b.txt" ) ) );
+		assertEquals( 2, dest.list().length );
+	}
+
+	@Test
+	public void testZipIndex() throws Exception
+	{
+		File target = File.createTempFile("zip", ".zip");
+		target.deleteOnExit();
+
+		byte[] stored = RandomBytes( 10000, false );
+		byte[] deflated = RandomBytes( 20000, true );
+		ZipOutputStream zos = new ZipOutputStream( new FileOutputStream( target ) );
+		try
+		{
+			ZipEntry ze = new ZipEntry( "stored.bin" );
+			ze.setMethod( ZipEntry.STORED );
+			ze.setSize( stored.length );
+			java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+			crc.update( stored );
+			ze.setCrc( crc.getValue() );
+			zos.putNextEntry( ze );
+			zos.write( stored );
+			zos.closeEntry();
+			zos.putNextEntry( new ZipEntry( "dir/deflated.txt" ) );
+			zos.write( deflated );
+			zos.closeEntry();
+		}
+		finally
+		{
+			zos.close();
+		}
+
+		ZipIndex zi = ZipIndex.Open( target );
+		assertSame( zi, ZipIndex.Open( target.getAbsolutePath() ) );
+		assertEquals( 2, zi.size() );
+		assertEquals( 1, zi.indexOf( "dir/deflated.txt" ) );
+		assertEquals( -1, zi.indexOf( "missing" ) );
+		assertEquals( ZipEntry.STORED, zi.getEntry( "stored.bin" ).getMethod() );
+		assertEquals( deflated.length, zi.getEntry( "dir/deflated.txt" ).getSize() );
+
+		ByteBuffer bb = zi.mapStoredEntry( "stored.bin" );
+		byte[] mapped = new byte[ bb.remaining() ];
+		bb.get( mapped );
+		assertArrayEquals( stored, mapped );
+		assertArrayEquals( deflated, ReadStream( zi.getInputStream( "dir/deflated.txt" ) ) );
+
+		// Updating the archive invalidates the cached index
+		File extra = File.createTempFile("tmp", ".tmp");
+		WriteFile( extra, RandomBytes( 10, true ) );
+		ZipUtil.AddFilesToArchive( target.getAbsolutePath(), new String[] { extra.getAbsolutePath() }, null );
+		ZipIndex zi2 = ZipIndex.Open( target );
+		assertNotSame( zi, zi2 );
+		assertEquals( 3, zi2.size() );
+		assertEquals( 3, ZipUtil.ReadArchive( target.getAbsolutePath() ).size() );
+	}
+
+	@Test
+	public void testAdaptiveCompression() throws Exception
+	{
+		File dir = CreateTempDir();
+		String[] prefixes = { dir.getAbsolutePath() + File.separator };
+
+		File gz = new File( dir, "a.gz" );
+		WriteFile( gz, RandomBytes( 3000, true ) );
+		File bin = new File( dir, "b.bin" );
+		WriteFile( bin, RandomBytes( (5 << 19) + 17, false ) );
+		File txt = new File( dir, "c.txt" );
+		WriteFile( txt, RandomBytes( (3 << 19) + 5, true ) );
+		File empty = new File( dir, "d.txt" );
+		WriteFile( empty, new byte[0] );
+
+		String[] files = { gz.getAbsolutePath(), bin.getAbsolutePath(), txt.getAbsolutePath(), empty.getAbsolutePath() };
+
+		File target = File.createTempFile("zip", ".zip");
+		target.deleteOnExit();
+		ZipArchiveOptions opts = new ZipArchiveOptions( 6, 3 );
+		opts.setCompressionPolicy( new AdaptiveZipCompressionPolicy() );
+		List<ZipEntryReport> reports = ZipUtil.CreateArchive( target.getAbsolutePath(), files, prefixes, opts );
+
+		assertEquals( 4, reports.size() );
+		assertEquals( ZipEntry.STORED, reports.get( 0 ).getMethod() );
+		assertEquals( ZipEntry.STORED, reports.get( 1 ).getMethod() );
+		assertEquals( ZipEntry.DEFLATED, reports.get( 2 ).getMethod() );
+		assertTrue( reports.get( 2 ).getRatio() < 0.8 );
+		assertEquals( ZipEntry.STORED, reports.get( 3 ).getMethod() );
+
+		ZipFile zf = new ZipFile( target );
+		try
+		{
+			for (int i = 0; i < files.length; i++)
+			{
+				File f = new File( files[i] );
+				ZipEntry ze = zf.getEntry( f.getName() );
+				assertEquals( reports.get( i ).getMethod(), ze.getMethod() );
+				assertEquals( reports.get( i ).getCompressedSize(), ze.getCompressedSize() );
+				assertArrayEquals( ReadFile( f ), ReadStream( zf.getInputStream( ze ) ) );
+			}
+		}
+		finally
+		{
+			zf.close();
+		}
+		ZipInputStream zis = new ZipInputStream( new java.io.FileInputStream( target ) );
+		try
+		{
+			int n = 0;
+			ZipEntry ze = null;
+			while ( (ze = zis.getNextEntry()) != null )
+			{
+				assertArrayEquals( ReadFile( new File( dir, ze.getName() ) ), ReadAvailable( zis ) );
+				n++;
+			}
+			assertEquals( 4, n );
+		}
+		finally
+		{
+			zis.close();
+		}
+
+		// The same policy applies when appending
+		File gz2 = new File( dir, "e.gz" );
+		WriteFile( gz2, RandomBytes( 100, true ) );
+		reports = ZipUtil.AddFilesToArchive( target.getAbsolutePath(), new String[] { gz2.getAbsolutePath() }, prefixes, opts );
+		assertEquals( 1, reports.size() );
+		assertEquals( ZipEntry.STORED, reports.get( 0 ).getMethod() );
+		zf = new ZipFile( target );
+		try
+		{
+			assertEquals( 5, zf.size() );
+			assertArrayEquals( ReadFile( gz2 ), ReadStream( zf.getInputStream( zf.getEntry( "e.gz" ) ) ) );
+		}
+		finally
+		{
+			zf.close();
+		}
+	}
+
+	@Test
+	public void testZipArchiveBuilder() throws Exception
+	{
+		File dir = CreateTempDir();
+		File f = new File( dir, "f.txt" );
+		WriteFile( f, RandomBytes( (3 << 19) + 11, true ) );
+
+		byte[] small = RandomBytes( 1000, true );
+		byte[] random = RandomBytes( 20000, false );
+		byte[] big = RandomBytes( 300000, true );
+		byte[] bigRandom = RandomBytes( 200000, false );
+		ByteBuffer direct = ByteBuffer.allocateDirect( 5000 );
+		direct.put( RandomBytes( 5000, true ) );
+		direct.flip();
+
+		ZipArchiveOptions opts = new ZipArchiveOptions();
+		opts.setCompressionPolicy( new AdaptiveZipCompressionPolicy() );
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		ZipArchiveBuilder zb = new ZipArchiveBuilder( bos, opts );
+		try
+		{
+			zb.setComment( "built" );
+			zb.addDirectory( "dir" );
+			zb.addEntry( "dir/small.txt", small );
+			zb.addEntry( "dir/random.bin", random );
+			zb.addEntry( "dir/direct.txt", direct );
+			zb.addEntry( "stream/small.txt", new ByteArrayInputStream( small ) );
+			zb.addEntry( "stream/big.txt", new ByteArrayInputStream( big ) );
+			zb.addEntry( "stream/random.bin", new ByteArrayInputStream( bigRandom ) );
+			zb.addFile( "file.txt", f.toPath() );
+			// The threads of the first file are reused
+			zb.addEntry( "after.txt", small );
+			zb.addFile( "file2.txt", f.toPath() );
+		}
+		finally
+		{
+			zb.close();
+		}
+		assertEquals( 0, direct.remaining() );
+
+		List<ZipEntryReport> reports = zb.getReports();
+		assertEquals( 9, reports.size() );
+		assertEquals( ZipEntry.DEFLATED, reports.get( 0 ).getMethod() );
+		assertEquals( ZipEntry.STORED, reports.get( 1 ).getMethod() );
+		assertEquals( ZipEntry.DEFLATED, reports.get( 5 ).getMethod() );
+		assertEquals( 0, reports.get( 5 ).getLevel() );
+		assertEquals( "file.txt", reports.get( 6 ).getName() );
+		assertEquals( "file2.txt", reports.get( 8 ).getName() );
+
+		String[] names = { "dir/", "dir/small.txt", "dir/random.bin", "dir/direct.txt", "stream/small.txt", "stream/big.txt", "stream/random.bin", "file.txt", "after.txt", "file2.txt" };
+		direct.flip();
+		byte[] directBytes = new byte[ direct.remaining() ];
+		direct.get( directBytes );
+		byte[][] contents = { new byte[0], small, random, directBytes, small, big, bigRandom, ReadFile( f ), small, ReadFile( f ) };
+
+		ZipInputStream zis = new ZipInputStream( new ByteArrayInputStream( bos.toByteArray() ) );
+		try
+		{
+			for (int i = 0; i < names.length; i++)
+			{
+				ZipEntry ze = zis.getNextEntry();
+				assertNotNull( ze );
+				assertEquals( names[i], ze.getName() );
+				assertArrayEquals( contents[i], ReadAvailable( zis ) );
+			}
+			assertNull( zis.getNextEntry() );
+		}
+		finally
+		{
+			zis.close();
+		}
+
+		File target = File.createTempFile("zip", ".zip");
+		target.deleteOnExit();
+		WriteFile( target, bos.toByteArray() );
+		ZipFile zf = new ZipFile( target );
+		try
+		{
+			assertEquals( names.length, zf.size() );
+			assertEquals( "built", zf.getComment() );
+			assertTrue( zf.getEntry( "dir/" ).isDirectory() );
+			for (int i = 0; i < names.length; i++)
+			{
+				assertArrayEquals( contents[i], ReadStream( zf.getInputStream( zf.getEntry( names[i] ) ) ) );
+			}
+		}
+		finally
+		{
+			zf.close();
+		}
+	}
+
+	@Test
+	public void testDeduplicate() throws Exception
+	{
+		File dir = CreateTempDir();
+		String[] prefixes = { dir.getAbsolutePath() + File.separator };
+
+		byte[] lib = RandomBytes( 200000, true );
+		byte[] other = RandomBytes( 200000, false );
+		String[] names = { "a/lib.jar", "a/x.txt", "b/lib.jar", "b/y.txt", "c/lib.jar", "c/x.txt" };
+		byte[][] contents = { lib, RandomBytes( 300, true ), lib, other, lib, RandomBytes( 301, true ) };
+		String[] files = new String[ names.length ];
+		for (int i = 0; i < names.length; i++)
+		{
+			File f = new File( dir, names[i] );
+			f.getParentFile().mkdirs();
+			f.getParentFile().deleteOnExit();
+			WriteFile( f, contents[i] );
+			files[i] = f.getAbsolutePath();
+		}
+
+		File plain = File.createTempFile("zip", ".zip");
+		plain.deleteOnExit();
+		ZipUtil.CreateArchive( plain.getAbsolutePath(), files, 6, prefixes, 2 );
+
+		File target = File.createTempFile("zip", ".zip");
+		target.deleteOnExit();
+		ZipArchiveOptions opts = new ZipArchiveOptions( 6, 2 );
+		opts.setDeduplicate( true );
+		List<ZipEntryReport> reports = ZipUtil.CreateArchive( target.getAbsolutePath(), files, prefixes, opts );
+
+		assertEquals( names.length, reports.size() );
+		assertEquals( 0, reports.get( 2 ).getCompressedSize() );
+		assertEquals( 0, reports.get( 4 ).getCompressedSize() );
+		assertTrue( reports.get( 5 ).getCompressedSize() > 0 );
+		assertTrue( target.length() < plain.length() - 2 * reports.get( 0 ).getCompressedSize() + 1000 );
+
+		ZipFile zf = new ZipFile( target );
+		try
+		{
+			assertEquals( names.length, zf.size() );
+			for (int i = 0; i < names.length; i++)
+			{
+				assertArrayEquals( contents[i], ReadStream( zf.getInputStream( zf.getEntry( names[i] ) ) ) );
+			}
+		}
+		finally
+		{
+			zf.close();
+		}
+
+		// Shared data survives the rewrite of the archive
+		WriteFile( new File( files[0] ), other );
+		contents[0] = other;
+		ZipUtil.AddFilesToArchive( target.getAbsolutePath(), new String[] { files[0] }, prefixes );
+		long size = target.length();
+		assertTrue( size < 2 * other.length + 2 * reports.get( 0 ).getCompressedSize() );
+		ZipIndex zi = ZipIndex.Open( target );
+		assertEquals( names.length, zi.size() );
+		for (int i = 0; i < names.length; i++)
+		{
+			assertArrayEquals( contents[i], ReadStream( zi.getInputStream( names[i] ) ) );
+		}
+
+		File dest = CreateTempDir();
+		ZipUtil.ExtractArchive( target.getAbsolutePath(), dest.getAbsolutePath(), null, 2 );
+		for (int i = 0; i < names.length; i++)
+		{
+			assertArrayEquals( contents[i], ReadFile( new File( dest, names[i] ) ) );
+		}
+	}
+
+	@Test
+	public void testCodecs() throws Exception
+	{
+		File dir = CreateTempDir();
+		String[] prefixes = { dir.getAbsolutePath() + File.separator };
+
+		IZipCodec lz = ZipCodecs.Lz();
+		assertSame( lz, ZipCodecs.ForMethod( lz.getMethod() ) );
+		assertSame( ZipCodecs.Deflate(), ZipCodecs.ForMethod( ZipEntry.DEFLATED ) );
+
+		String[] names = { "text.txt", "random.bin", "empty.txt", "big.txt" };
+		byte[][] contents = { RandomBytes( 100000, true ), RandomBytes( 70000, false ), new byte[0], RandomBytes( 3000000, true ) };
+		String[] files = new String[ names.length ];
+		for (int i = 0; i < names.length; i++)
+		{
+			File f = new File( dir, names[i] );
+			WriteFile( f, contents[i] );
+			files[i] = f.getAbsolutePath();
+		}
+
+		File target = File.createTempFile("zip", ".zip");
+		target.deleteOnExit();
+		ZipArchiveOptions opts = new ZipArchiveOptions( 6, 3 );
+		opts.setCodec( lz );
+		List<ZipEntryReport> reports = ZipUtil.CreateArchive( target.getAbsolutePath(), files, prefixes, opts );
+
+		assertEquals( names.length, reports.size() );
+		for (ZipEntryReport r : reports)
+		{
+			assertEquals( lz.getMethod(), r.getMethod() );
+			if ( r.getName().endsWith( ".txt" ) )
+			{
+				assertTrue( r.getCompressedSize() <= r.getSize() );
+			}
+		}
+		assertEquals( "big.txt", reports.get( 0 ).getName() );
+		assertTrue( reports.get( 0 ).getCompressedSize() < contents[3].length * 3 / 4 );
+
+		ZipIndex zi = ZipIndex.Open( target );
+		assertEquals( names.length, zi.size() );
+		for (int i = 0; i < names.length; i++)
+		{
+			assertEquals( lz.getMethod(), zi.getMethod( zi.indexOf( names[i] ) ) );
+			assertArrayEquals( contents[i], ReadStream( zi.getInputStream( names[i] ) ) );
+		}
+
+		// Entries are appended with the codec of the options
+		File extra = new File( dir, "extra.txt" );
+		byte[] extraContent = RandomBytes( 5000, true );
+		WriteFile( extra, extraContent );
+		ZipArchiveOptions defOpts = new ZipArchiveOptions( 6, 3 );
+		ZipUtil.AddFilesToArchive( target.getAbsolutePath(), new String[] { extra.getAbsolutePath() }, prefixes, defOpts );
+		zi = ZipIndex.Open( target );
+		assertEquals( names.length + 1, zi.size() );
+		assertEquals( ZipEntry.DEFLATED, zi.getMethod( zi.indexOf( "extra.txt" ) ) );
+		assertEquals( lz.getMethod(), zi.getMethod( zi.indexOf( names[0] ) ) );
+
+		File dest = CreateTempDir();
+		ZipUtil.ExtractArchive( target.getAbsolutePath(), dest.getAbsolutePath(), null, 2 );
+		for (int i = 0; i < names.length; i++)
+		{
+			assertArrayEquals( contents[i], ReadFile( new File( dest, names[i] ) ) );
+		}
+		assertArrayEquals( extraContent, ReadFile( new File( dest, "extra.txt" ) ) );
+
+		// Streamed entries
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		ZipArchiveBuilder zb = new ZipArchiveBuilder( bos, opts );
+		zb.addEntry( "stream.txt", new ByteArrayInputStream( contents[3] ) );
+		zb.addEntry( "bytes.txt", contents[0] );
+		ByteBuffer buf = ByteBuffer.allocateDirect( contents[0].length );
+		buf.put( contents[0] );
+		buf.flip();
+		zb.addEntry( "buffer.txt", buf );
+		zb.close();
+
+		File built = File.createTempFile("zip", ".zip");
+		built.deleteOnExit();
+		WriteFile( built, bos.toByteArray() );
+		zi = ZipIndex.Open( built );
+		assertEquals( 3, zi.size() );
+		assertEquals( lz.getMethod(), zi.getMethod( 0 ) );
+		assertArrayEquals( contents[3], ReadStream( zi.getInputStream( "stream.txt" ) ) );
+		assertArrayEquals( contents[0], ReadStream( zi.getInputStream( "bytes.txt" ) ) );
+		assertArrayEquals( contents[0], ReadStream( zi.getInputStream( "buffer.txt" ) ) );
+	}
+
+	@Test
+	public void testFileTreeWalker() throws Exception
+	{
+		File dir = CreateTempDir();
+		String[] names = { "b/z.txt", "a.txt", "b/c/y.txt", "b/a.txt", "c.txt", "b/c/x.txt", "b/d/w.txt" };
+		for (String name : names)
+		{
+			File f = new File( dir, name );
+			f.getParentFile().mkdirs();
+			WriteFile( f, RandomBytes( name.length(), true ) );
+		}
+		new File( dir, "empty" ).mkdir();
+
+		List<FileTreeWalker.Entry> entries = new FileTreeWalker( 4 ).walk( dir.toPath() );
+		String[] expected = { "", "a.txt", "b", "b/a.txt", "b/c", "b/c/x.txt", "b/c/y.txt", "b/d", "b/d/w.txt", "b/z.txt", "c.txt", "empty" };
+		assertEquals( expected.length, entries.size() );
+		for (int i = 0; i < expected.length; i++)
+		{
+			FileTreeWalker.Entry e = entries.get( i );
+			assertEquals( dir.toPath().resolve( expected[i] ), e.getPath() );
+			assertEquals( expected[i].isEmpty() ? 0 : expected[i].split( "/" ).length, e.getDepth() );
+			assertEquals( new File( dir, expected[i] ).isDirectory(), e.isDirectory() );
+			if ( !e.isDirectory() )
+			{
+				assertEquals( new File( dir, expected[i] ).length(), e.getAttributes().size() );
+			}
+		}
+
+		// Archives list files in the same order
+		File target = File.createTempFile("zip", ".zip");
+		target.deleteOnExit();
+		String[] prefixes = { dir.getAbsolutePath() + File.separator };
+		ZipUtil.CreateArchive( target.getAbsolutePath(), new String[] { dir.getAbsolutePath() }, 6, prefixes );
+		ZipIndex zi = ZipIndex.Open( target );
+		int j = 0;
+		for (int i = 0; i < expected.length; i++)
+		{
+			if ( !entries.get( i ).isDirectory() )
+			{
+				assertEquals( expected[i], zi.getName( j++ ) );
+			}
+		}
+		assertEquals( j, zi.size() );
+
+		assertTrue( FileUtil.TryDelete( dir.getAbsolutePath(), true ) );
+		assertFalse( dir.exists() );
+	}
+
+	@Test
+	public void testZip64LargeEntry() throws Exception
+	{
+		File dir = CreateTempDir();
+		String[] prefixes = { dir.getAbsolutePath() + File.separator };
+
+		long bigSize = (1L << 32) + 12345;
+		byte[] marker = RandomBytes( 1000, false );
+		File big = new File( dir, "big.bin" );
+		File small = new File( dir, "small.txt" );
+		File small2 = new File( dir, "small2.txt" );
+		File target = File.createTempFile("zip64", ".zip");
+		target.deleteOnExit();
+		File dest = CreateTempDir();
+
+		try
+		{
+			CreateSparseFile( big, bigSize, marker );
+			WriteFile( small, RandomBytes( 3000, true ) );
+			WriteFile( small2, RandomBytes( 2000, true ) );
+			String[] files = { big.getAbsolutePath(), small.getAbsolutePath() };
+
+			// Deflated entry with a ZIP64 data descriptor
+			ZipUtil.CreateArchive( target.getAbsolutePath(), files, 1, prefixes, 0 );
+			assertTrue( target.length() < bigSize );
+			assertEquals( bigSize, ZipIndex.Open( target ).getEntry( "big.bin" ).getSize() );
+			ZipInputStream zis = new ZipInputStream( new java.io.FileInputStream( target ) );
+			try
+			{
+				ZipEntry ze = zis.getNextEntry();
+				assertEquals( "big.bin", ze.getName() );
+				assertArrayEquals( marker, ReadTail( zis, bigSize, marker.length ) );
+				ze = zis.getNextEntry();
+				assertEquals( "small.txt", ze.getName() );
+				assertArrayEquals( ReadFile( small ), ReadAvailable( zis ) );
+				assertNull( zis.getNextEntry() );
+			}
+			finally
+			{
+				zis.close();
+			}
+
+			// Stored entry, so that the following ones lie beyond 4GB
+			ZipArchiveOptions opts = new ZipArchiveOptions();
+			opts.setCompressionPolicy( new IZipCompressionPolicy()
+			{
+				public int getSampleSize()
+				{
+					return 0;
+				}
+
+				public ZipCompression choose(String entryName, long size, byte[] sample, int off, int len)
+				{
+					return ZipCompression.Stored( "test" );
+				}
+			});
+			ZipUtil.CreateArchive( target.getAbsolutePath(), files, prefixes, opts );
+			ZipUtil.AddFilesToArchive( target.getAbsolutePath(), new String[] { small2.getAbsolutePath() }, prefixes );
+			assertTrue( target.length() > bigSize );
+
+			ZipFile zf = new ZipFile( target );
+			try
+			{
+				assertEquals( 3, zf.size() );
+				ZipEntry ze = zf.getEntry( "big.bin" );
+				assertEquals( bigSize, ze.getSize() );
+				assertEquals( ZipEntry.STORED, ze.getMethod() );
+				assertArrayEquals( marker, ReadTail( zf.getInputStream( ze ), bigSize, marker.length ) );
+				assertArrayEquals( ReadFile( small ), ReadStream( zf.getInputStream( zf.getEntry( "small.txt" ) ) ) );
+				assertArrayEquals( ReadFile( small2 ), ReadStream( zf.getInputStream( zf.getEntry( "small2.txt" ) ) ) );
+			}
+			finally
+			{
+				zf.close();
+			}
+
+			ZipIndex zi = ZipIndex.Open( target );
+			assertEquals( 3, zi.size() );
+			assertEquals( bigSize, zi.getEntry( "big.bin" ).getCompressedSize() );
+			assertArrayEquals( ReadFile( small2 ), ReadStream( zi.getInputStream( "small2.txt" ) ) );
+			assertEquals( 3, ZipUtil.ReadArchive( target.getAbsolutePath() ).size() );
+
+			StringWriter sw = new StringWriter();
+			ZipUtil.PrintArchive( target.getAbsolutePath(), sw );
+			assertTrue( sw.toString().contains( "\t" + bigSize + "\t" ) );
+
+			ZipUtil.ExtractArchive( target.getAbsolutePath(), dest.getAbsolutePath(), ZipEntryFilters.Glob( "*.txt" ), 2 );
+			assertArrayEquals( ReadFile( small ), ReadFile( new File( dest, "small.txt" ) ) );
+			assertArrayEquals( ReadFile( small2 ), ReadFile( new File( dest, "small2.txt" ) ) );
+			assertFalse( new File( dest, "big.bin" ).exists() );
+		}
+		finally
+		{
+			target.delete();
+			big.delete();
+		}
+	}
+
+	@Test
+	public void testZip64ManyEntries() throws Exception
+	{
+		int n = 70000;
+		File dir = CreateTempDir();
+		String[] prefixes = { dir.getAbsolutePath() + File.separator };
+
+		File target = File.createTempFile("zip64", ".zip");
+		target.deleteOnExit();
+		ZipArchiveBuilder zb = new ZipArchiveBuilder( new FileOutputStream( target ) );
+		try
+		{
+			for (int i = 0; i < n; i++)
+			{
+				zb.addEntry( "e" + i + ".txt", ("entry " + i).getBytes( "UTF-8" ) );
+			}
+		}
+		finally
+		{
+			zb.close();
+		}
+
+		File extra = new File( dir, "extra.txt" );
+		WriteFile( extra, RandomBytes( 100, true ) );
+		ZipUtil.AddFilesToArchive( target.getAbsolutePath(), new String[] { extra.getAbsolutePath() }, prefixes );
+
+		ZipFile zf = new ZipFile( target );
+		try
+		{
+			assertEquals( n + 1, zf.size() );
+			assertArrayEquals( "entry 69999".getBytes( "UTF-8" ), ReadStream( zf.getInputStream( zf.getEntry( "e69999.txt" ) ) ) );
+			assertArrayEquals( ReadFile( extra ), ReadStream( zf.getInputStream( zf.getEntry( "extra.txt" ) ) ) );
+		}
+		finally
+		{
+			zf.close();
+		}
+
+		ZipIndex zi = ZipIndex.Open( target );
+		assertEquals( n + 1, zi.size() );
+		assertEquals( "e65535.txt", zi.getName( 65535 ) );
+		assertArrayEquals( "entry 65536".getBytes( "UTF-8" ), ReadStream( zi.getInputStream( "e65536.txt" ) ) );
+
+		File dest = CreateTempDir();
+		ZipUtil.ExtractArchive( target.getAbsolutePath(), dest.getAbsolutePath(), ZipEntryFilters.Glob( "e6553?.txt", "extra.txt" ), 2 );
+		assertEquals( 11, dest.list().length );
+		assertArrayEquals( "entry 65530".getBytes( "UTF-8" ), ReadFile( new File( dest, "e65530.txt" ) ) );
+
+		target.delete();
+	}
+
 	@After
 	public void tearDown()
 	{
 		// empty
 	}
 
+	private static File CreateTempDir() throws Exception
+	{
+		File dir = File.createTempFile("zipdir", "");
+		dir.delete();
+		dir.mkdirs();
+		dir.deleteOnExit();
+		return dir;
+	}
+
+	private static byte[] RandomBytes(int len, boolean compressible)
+	{
+		byte[] b = new byte[len];
+		Random rnd = new Random( len );
+		for (int i = 0; i < len; i++)
+		{
+			b[i] = compressible ? (byte) ('a' + rnd.nextInt(4)) : (byte) rnd.nextInt();
+		}
+		return b;
+	}
+
+	/**
+	 * Creates a sparse file of the given size, ending with the given bytes.
+	 */
+	private static void CreateSparseFile(File f, long size, byte[] tail) throws Exception
+	{
+		RandomAccessFile raf = new RandomAccessFile( f, "rw" );
+		try
+		{
+			raf.setLength( size );
+			raf.seek( size - tail.length );
+			raf.write( tail );
+		}
+		finally
+		{
+			raf.close();
+		}
+		f.deleteOnExit();
+	}
+
+	/**
+	 * Reads a stream of the given length up to its end, returning its last
+	 * {@code len} bytes.
+	 */
+	private static byte[] ReadTail(InputStream is, long size, int len) throws Exception
+	{
+		long toSkip = size - len;
+		while ( toSkip > 0 )
+		{
+			long k = is.skip( toSkip );
+			if ( k <= 0 )
+			{
+				throw new java.io.EOFException();
+			}
+			toSkip -= k;
+		}
+		byte[] b = ReadAvailable( is );
+		assertEquals( len, b.length );
+		return b;
+	}
+
+	private static void WriteFile(File f, byte[] content) throws Exception
+	{
+		FileOutputStream fos = new FileOutputStream( f );
+		try
+		{
+			fos.write( content );
+		}
+		finally
+		{
+			fos.close();
+		}
+		f.deleteOnExit();
+	}
+
+	private static byte[] ReadFile(File f) throws Exception
+	{
+		return ReadStream( new java.io.FileInputStream( f ) );
+	}
+
+	private static byte[] ReadStream(InputStream is) throws Exception
+	{
+		try
+		{
+			return ReadAvailable( is );
+		}
+		finally
+		{
+			is.close();
+		}
+	}
+
+	private static byte[] ReadAvailable(InputStream is) throws Exception
+	{
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		byte[] buf = new byte[8192];
+		int n = 0;
+		while ( (n = is.read(buf)) > 0 )
+		{
+			baos.write( buf, 0, n );
+		}
+		return baos.toByteArray();
+	}
+
 	public static void main(String[] args)
 	{
 		JUnitCore.main( ZipUtilTester.class.getName() );